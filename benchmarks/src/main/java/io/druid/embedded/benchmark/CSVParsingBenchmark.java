@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.benchmark;
+
+import com.google.common.base.Charsets;
+import io.druid.data.input.InputRow;
+import io.druid.embedded.load.Loader;
+import io.druid.embedded.load.impl.CSVLoader;
+import io.druid.embedded.load.impl.CSVParser;
+import io.druid.embedded.load.impl.MappedCSVLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to parse a whole generated CSV file: fields only with {@link CSVParser}, then rows with the loaders,
+ * untyped (only "value" parsed) and typed through a {@link io.druid.embedded.load.RowSchema}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CSVParsingBenchmark {
+
+    @Param({"1000000"})
+    private long rows;
+
+    @Param({"10,100,1000,10000,100000"})
+    private String cardinalities;
+
+    private DataGenerator generator;
+    private File file;
+    private boolean[] internColumns;
+
+    @Setup
+    public void setup() throws IOException {
+        generator = new DataGenerator(rows, DataGenerator.parseCardinalities(cardinalities));
+        file = generator.getCsvFile(DataGenerator.getDataDir());
+        internColumns = new boolean[generator.getColumns().size()];
+        for (String dimension : generator.getDimensions()) {
+            internColumns[generator.getColumns().indexOf(dimension)] = true;
+        }
+    }
+
+    @Benchmark
+    public void parser(Blackhole blackhole) throws IOException {
+        CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                Charsets.UTF_8)), ',', internColumns);
+        try {
+            while (parser.readRow()) {
+                for (int i = 0; i < parser.getFieldCount(); i++) {
+                    blackhole.consume(parser.getField(i));
+                }
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    @Benchmark
+    public void csvLoader(Blackhole blackhole) {
+        consume(new CSVLoader(file, generator.getColumns(), generator.getDimensions(),
+                DataGenerator.TIMESTAMP_COLUMN), blackhole);
+    }
+
+    @Benchmark
+    public void typedCsvLoader(Blackhole blackhole) {
+        consume(new CSVLoader(file, generator.getColumns(), generator.getDimensions(),
+                DataGenerator.TIMESTAMP_COLUMN, generator.getRowSchema()), blackhole);
+    }
+
+    @Benchmark
+    public void mappedCsvLoader(Blackhole blackhole) {
+        consume(new MappedCSVLoader(file, ',', generator.getColumns(), generator.getDimensions(),
+                DataGenerator.TIMESTAMP_COLUMN, generator.getRowSchema()), blackhole);
+    }
+
+    private static void consume(Loader loader, Blackhole blackhole) {
+        for (InputRow row : loader) {
+            blackhole.consume(row);
+        }
+    }
+}
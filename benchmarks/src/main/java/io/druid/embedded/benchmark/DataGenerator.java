@@ -0,0 +1,291 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import io.druid.data.input.InputRow;
+import io.druid.data.input.MapBasedInputRow;
+import io.druid.data.input.impl.DimensionsSpec;
+import io.druid.embedded.IngestionPipeline;
+import io.druid.embedded.SegmentStore;
+import io.druid.embedded.load.Loader;
+import io.druid.embedded.load.RowSchema;
+import io.druid.embedded.load.impl.MappedCSVLoader;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.CountAggregatorFactory;
+import io.druid.query.aggregation.DoubleSumAggregatorFactory;
+import io.druid.query.aggregation.LongSumAggregatorFactory;
+import io.druid.query.aggregation.MaxAggregatorFactory;
+import io.druid.segment.IndexSpec;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Interval;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Generates synthetic rows for the benchmarks: a timestamp column, dimensions of configurable cardinality and
+ * three metrics. Values are drawn uniformly from a seeded random generator, so the same parameters always
+ * produce the same rows, and timestamps are spread evenly over one day starting at {@link #START}.
+ * <p>
+ * Dimension "dimN" takes values "dN_0" up to "dN_(cardinality - 1)". Metrics are "count" (long, 1 to 10),
+ * "value" (float, 0 to 1000) and "latency" (long, 0 to 999).
+ */
+public class DataGenerator {
+    public static final String TIMESTAMP_COLUMN = "ts";
+    public static final DateTime START = new DateTime(2016, 1, 1, 0, 0, DateTimeZone.UTC);
+    public static final Interval INTERVAL = new Interval(START, START.plusDays(1));
+
+    private static final long DAY_MILLIS = 24L * 3600 * 1000;
+
+    private final long rows;
+    private final int[] cardinalities;
+    private final long seed;
+    private final List<String> dimensions = new ArrayList<String>();
+    private final String[][] values;
+
+    public DataGenerator(long rows, int[] cardinalities) {
+        this(rows, cardinalities, 0);
+    }
+
+    /**
+     * @param rows          number of rows to generate
+     * @param cardinalities number of distinct values of each dimension
+     * @param seed          seed of the random generator
+     */
+    public DataGenerator(long rows, int[] cardinalities, long seed) {
+        if (rows <= 0) {
+            throw new IllegalArgumentException("Row count must be positive");
+        }
+        this.rows = rows;
+        this.cardinalities = cardinalities.clone();
+        this.seed = seed;
+        this.values = new String[cardinalities.length][];
+        for (int i = 0; i < cardinalities.length; i++) {
+            if (cardinalities[i] <= 0) {
+                throw new IllegalArgumentException("Cardinality must be positive");
+            }
+            dimensions.add("dim" + i);
+            values[i] = new String[cardinalities[i]];
+            for (int j = 0; j < cardinalities[i]; j++) {
+                values[i][j] = "d" + i + "_" + j;
+            }
+        }
+    }
+
+    /**
+     * @param cardinalities comma separated cardinalities, e.g. "10,100,1000"
+     */
+    public static int[] parseCardinalities(String cardinalities) {
+        List<String> parts = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(cardinalities);
+        int[] parsed = new int[parts.size()];
+        for (int i = 0; i < parsed.length; i++) {
+            parsed[i] = Integer.parseInt(parts.get(i));
+        }
+        return parsed;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public List<String> getDimensions() {
+        return dimensions;
+    }
+
+    public List<String> getMetrics() {
+        return new ArrayList<String>(getRowSchema().getMetrics().keySet());
+    }
+
+    /**
+     * @return all columns of the generated rows, in CSV order
+     */
+    public List<String> getColumns() {
+        List<String> columns = new ArrayList<String>();
+        columns.add(TIMESTAMP_COLUMN);
+        columns.addAll(dimensions);
+        columns.addAll(getMetrics());
+        return columns;
+    }
+
+    public RowSchema getRowSchema() {
+        return new RowSchema(ImmutableMap.of(
+                "count", RowSchema.Type.LONG,
+                "value", RowSchema.Type.FLOAT,
+                "latency", RowSchema.Type.LONG));
+    }
+
+    /**
+     * Rolls rows up by minute into "rows", "agg_count", "agg_value" and "agg_latency".
+     */
+    public IncrementalIndexSchema getIndexSchema() {
+        AggregatorFactory[] metrics = new AggregatorFactory[]{
+                new CountAggregatorFactory("rows"),
+                new LongSumAggregatorFactory("agg_count", "count"),
+                new DoubleSumAggregatorFactory("agg_value", "value"),
+                new MaxAggregatorFactory("agg_latency", "latency")
+        };
+        return new IncrementalIndexSchema(START.getMillis(), QueryGranularity.MINUTE,
+                new DimensionsSpec(dimensions, null, null), metrics);
+    }
+
+    /**
+     * Rows generated on the fly, so that ingestion can be measured without reading any input.
+     * The loader has no fingerprint.
+     */
+    public Loader asLoader() {
+        return new Loader(getColumns(), dimensions, TIMESTAMP_COLUMN) {
+            @Override
+            public Iterator<InputRow> iterator() {
+                return new RowIterator();
+            }
+        };
+    }
+
+    /**
+     * Writes the rows to a CSV file without header.
+     */
+    public void writeCsv(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8),
+                1 << 16);
+        try {
+            Joiner joiner = Joiner.on(',');
+            List<String> columns = getColumns();
+            List<Object> fields = new ArrayList<Object>(columns.size());
+            RowIterator iterator = new RowIterator();
+            while (iterator.hasNext()) {
+                Map<String, Object> event = iterator.nextEvent();
+                fields.clear();
+                for (String column : columns) {
+                    fields.add(event.get(column));
+                }
+                joiner.appendTo(writer, fields);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns the CSV file of these rows in the given directory, generating it unless an earlier run did.
+     */
+    public File getCsvFile(File dir) throws IOException {
+        File file = new File(dir, "rows-" + rows + "-" + Joiner.on('_').join(toList(cardinalities))
+                + "-" + seed + ".csv");
+        if (!file.exists()) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can't create " + dir);
+            }
+            File tmp = new File(dir, file.getName() + ".tmp");
+            writeCsv(tmp);
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't rename " + tmp + " to " + file);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Returns the segment of these rows, ingesting their CSV file with a thread per processor unless the
+     * {@link SegmentStore} in the given directory already holds it.
+     */
+    public QueryableIndex getSegment(File dir) throws IOException {
+        MappedCSVLoader loader = new MappedCSVLoader(getCsvFile(dir), ',', getColumns(), dimensions,
+                TIMESTAMP_COLUMN, getRowSchema());
+        IngestionPipeline pipeline = new IngestionPipeline(Runtime.getRuntime().availableProcessors(),
+                IngestionPipeline.DEFAULT_BATCH_SIZE);
+        return new SegmentStore(new File(dir, "segments")).getOrCreate(loader, getIndexSchema(), new IndexSpec(),
+                pipeline);
+    }
+
+    /**
+     * @return directory holding the generated files and segments of the benchmarks, set through the system
+     * property "druid.benchmark.dir"
+     */
+    public static File getDataDir() {
+        String dir = System.getProperty("druid.benchmark.dir");
+        if (dir == null) {
+            dir = System.getProperty("java.io.tmpdir") + File.separator + "embedded-druid-benchmark";
+        }
+        return new File(dir);
+    }
+
+    private static List<Integer> toList(int[] values) {
+        List<Integer> list = new ArrayList<Integer>(values.length);
+        for (int value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private class RowIterator implements Iterator<InputRow> {
+        private final Random random = new Random(seed);
+        private final long start = START.getMillis();
+        private long row;
+
+        @Override
+        public boolean hasNext() {
+            return row < rows;
+        }
+
+        @Override
+        public InputRow next() {
+            Map<String, Object> event = nextEvent();
+            return new MapBasedInputRow((Long) event.get(TIMESTAMP_COLUMN), dimensions, event);
+        }
+
+        Map<String, Object> nextEvent() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map<String, Object> event = new HashMap<String, Object>(values.length * 2 + 8);
+            event.put(TIMESTAMP_COLUMN, start + row * DAY_MILLIS / rows);
+            for (int i = 0; i < values.length; i++) {
+                event.put(dimensions.get(i), values[i][random.nextInt(values[i].length)]);
+            }
+            event.put("count", (long) (1 + random.nextInt(10)));
+            event.put("value", random.nextFloat() * 1000);
+            event.put("latency", (long) random.nextInt(1000));
+            row++;
+            return event;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+import io.druid.data.input.InputRow;
+import io.druid.embedded.IndexSpecs;
+import io.druid.embedded.QueryHelper;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.Druids;
+import io.druid.query.Query;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.DoubleSumAggregatorFactory;
+import io.druid.query.aggregation.LongSumAggregatorFactory;
+import io.druid.query.filter.DimFilter;
+import io.druid.query.filter.DimFilters;
+import io.druid.query.spec.QuerySegmentSpecs;
+import io.druid.segment.IndexIO;
+import io.druid.segment.IndexMerger;
+import io.druid.segment.IndexSpec;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.incremental.IncrementalIndex;
+import io.druid.segment.incremental.IndexSizeExceededException;
+import io.druid.segment.incremental.OnheapIncrementalIndex;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the bitmap encodings and column compressions of {@link IndexSpecs} on a segment of generated rows:
+ * {@link #load} times loading the segment, {@link #filteredQuery} a timeseries whose filter intersects the
+ * bitmaps of the lowest cardinality dimension with the union of values of the highest cardinality one.
+ * <p>
+ * The size of the segment on disk is not a timing, so it is printed once per trial and appended to
+ * "index-spec-sizes.csv" in the benchmark directory (see {@link DataGenerator#getDataDir()}), one line per
+ * combination of parameters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class IndexSpecBenchmark {
+
+    @Param({"1000000"})
+    private long rows;
+
+    @Param({"10,100,1000,10000,100000"})
+    private String cardinalities;
+
+    @Param({"concise", "roaring"})
+    private String bitmap;
+
+    @Param({"lz4", "lzf", "uncompressed"})
+    private String dimensionCompression;
+
+    @Param({"lz4", "lzf", "uncompressed"})
+    private String metricCompression;
+
+    public static final String SIZES_FILE = "index-spec-sizes.csv";
+
+    private File segmentDir;
+    private QueryableIndex index;
+    private Query query;
+
+    @Setup
+    public void setup() throws IOException, IndexSizeExceededException {
+        DataGenerator generator = new DataGenerator(rows, DataGenerator.parseCardinalities(cardinalities));
+        IndexSpec indexSpec = IndexSpecs.create(bitmap, dimensionCompression, metricCompression);
+        IncrementalIndex<?> incrementalIndex =
+                new OnheapIncrementalIndex(generator.getIndexSchema(), Integer.MAX_VALUE);
+        try {
+            for (InputRow row : generator.asLoader()) {
+                incrementalIndex.add(row);
+            }
+            segmentDir = Files.createTempDir();
+            IndexMerger.persist(incrementalIndex, segmentDir, null, indexSpec);
+        } finally {
+            incrementalIndex.close();
+        }
+        reportSize(FileUtils.sizeOfDirectory(segmentDir));
+        index = IndexIO.loadIndex(segmentDir);
+        query = createFilteredQuery(generator.getDimensions());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        index.close();
+        FileUtils.deleteQuietly(segmentDir);
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        QueryableIndex loaded = IndexIO.loadIndex(segmentDir);
+        try {
+            return loaded.getNumRows();
+        } finally {
+            loaded.close();
+        }
+    }
+
+    @Benchmark
+    public List<?> filteredQuery() {
+        @SuppressWarnings("unchecked")
+        Sequence<Object> results = QueryHelper.run(query, index);
+        return Sequences.toList(results, new ArrayList<Object>());
+    }
+
+    /**
+     * Prints the segment size and appends it to the sizes file, keyed by the parameters of the trial.
+     */
+    private void reportSize(long segmentBytes) throws IOException {
+        String line = rows + ",\"" + cardinalities + "\"," + bitmap + "," + dimensionCompression + ","
+                + metricCompression + "," + segmentBytes;
+        System.out.println("Segment size: " + line);
+        File sizes = new File(DataGenerator.getDataDir(), SIZES_FILE);
+        if (!sizes.isFile()) {
+            Files.createParentDirs(sizes);
+            Files.write("rows,cardinalities,bitmap,dimensionCompression,metricCompression,segmentBytes\n", sizes,
+                    Charsets.UTF_8);
+        }
+        Files.append(line + "\n", sizes, Charsets.UTF_8);
+    }
+
+    /**
+     * @return hourly timeseries filtered on one value of the first dimension and ten of the last one
+     */
+    private static Query createFilteredQuery(List<String> dimensions) {
+        String first = dimensions.get(0);
+        String last = dimensions.get(dimensions.size() - 1);
+        int lastIndex = dimensions.size() - 1;
+        List<DimFilter> values = new ArrayList<DimFilter>();
+        for (int i = 0; i < 10; i++) {
+            values.add(DimFilters.dimEquals(last, "d" + lastIndex + "_" + i));
+        }
+        return Druids.newTimeseriesQueryBuilder()
+                .dataSource("benchmark")
+                .intervals(QuerySegmentSpecs.create(DataGenerator.INTERVAL))
+                .granularity(QueryGranularity.HOUR)
+                .filters(DimFilters.and(DimFilters.dimEquals(first, "d0_1"), DimFilters.or(values)))
+                .aggregators(Arrays.<AggregatorFactory>asList(
+                        new LongSumAggregatorFactory("agg_count", "agg_count"),
+                        new DoubleSumAggregatorFactory("agg_value", "agg_value")))
+                .build();
+    }
+}
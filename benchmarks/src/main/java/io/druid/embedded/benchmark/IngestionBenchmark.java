@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.benchmark;
+
+import com.google.common.io.Files;
+import io.druid.data.input.InputRow;
+import io.druid.embedded.IngestionPipeline;
+import io.druid.embedded.load.impl.MappedCSVLoader;
+import io.druid.segment.IndexSpec;
+import io.druid.segment.incremental.IncrementalIndex;
+import io.druid.segment.incremental.IndexSizeExceededException;
+import io.druid.segment.incremental.OnheapIncrementalIndex;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to ingest generated rows. {@link #generate} only generates the rows, as a baseline for
+ * {@link #incrementalIndex}, which adds them to a single on-heap incremental index. {@link #pipeline} loads
+ * the generated CSV file through an {@link IngestionPipeline} up to the persisted segment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class IngestionBenchmark {
+
+    @Param({"1000000"})
+    private long rows;
+
+    @Param({"10,100,1000,10000,100000"})
+    private String cardinalities;
+
+    private DataGenerator generator;
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        generator = new DataGenerator(rows, DataGenerator.parseCardinalities(cardinalities));
+        file = generator.getCsvFile(DataGenerator.getDataDir());
+    }
+
+    @Benchmark
+    public void generate(Blackhole blackhole) {
+        for (InputRow row : generator.asLoader()) {
+            blackhole.consume(row);
+        }
+    }
+
+    @Benchmark
+    public int incrementalIndex() throws IndexSizeExceededException {
+        IncrementalIndex<?> index = new OnheapIncrementalIndex(generator.getIndexSchema(), Integer.MAX_VALUE);
+        try {
+            for (InputRow row : generator.asLoader()) {
+                index.add(row);
+            }
+            return index.size();
+        } finally {
+            index.close();
+        }
+    }
+
+    @Benchmark
+    public File pipeline(PipelineState state) throws IOException {
+        MappedCSVLoader loader = new MappedCSVLoader(file, ',', generator.getColumns(), generator.getDimensions(),
+                DataGenerator.TIMESTAMP_COLUMN, generator.getRowSchema());
+        return state.pipeline.persist(loader, generator.getIndexSchema(), state.indexDir, new IndexSpec());
+    }
+
+    @State(Scope.Benchmark)
+    public static class PipelineState {
+        @Param({"1", "4"})
+        private int numThreads;
+
+        @Param({"false", "true"})
+        private boolean offheap;
+
+        private IngestionPipeline pipeline;
+        private File indexDir;
+
+        @Setup
+        public void setup() {
+            pipeline = new IngestionPipeline(numThreads, IngestionPipeline.DEFAULT_BATCH_SIZE,
+                    IngestionPipeline.DEFAULT_MAX_ROWS_IN_MEMORY, 0, offheap,
+                    IngestionPipeline.DEFAULT_OFFHEAP_BUFFER_SIZE);
+        }
+
+        @Setup(Level.Invocation)
+        public void createDir() {
+            indexDir = Files.createTempDir();
+        }
+
+        @TearDown(Level.Invocation)
+        public void deleteDir() {
+            FileUtils.deleteQuietly(indexDir);
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.druid.embedded.QueryHelper;
+import io.druid.embedded.app.DruidRunner;
+import io.druid.segment.QueryableIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a mix of queries against the REST endpoint of a {@link DruidRunner}, and reports the throughput and
+ * the latency percentiles of each query. Unless a URL is given, a DruidRunner is started on a segment of
+ * generated rows (see {@link DataGenerator}).
+ * <p>
+ * With a target rate, requests are sent on a fixed schedule spread over the clients, and their latency is
+ * measured from the time they were due rather than the time they were sent, so that a server falling behind
+ * shows in the percentiles instead of slowing the clients down. Without a target rate, every client sends its
+ * next request as soon as the previous one is answered.
+ * <p>
+ * Options:
+ * <ul>
+ * <li>--url : query endpoint of a running server, e.g. http://host:37843/druid/v2/ (default none, start one)</li>
+ * <li>--port : port of the started server (default 37843)</li>
+ * <li>--rows, --cardinalities : rows of the started server (default 1000000, "10,100,1000,10000,100000")</li>
+ * <li>--queries : directory of query JSON files, each named after its file, added to the built-in queries
+ * groupBy, topN, timeseries, search and select</li>
+ * <li>--mix : weights of the queries to send, e.g. "topN=4,groupBy=1" (default all queries, same weight)</li>
+ * <li>--qps : target requests per second over all clients, 0 for as fast as possible (default 0)</li>
+ * <li>--clients : concurrent clients (default 32)</li>
+ * <li>--warmup, --duration : seconds of warm up, not reported, and of measurement (default 10, 60)</li>
+ * </ul>
+ */
+public class LoadTest {
+    public static final int DEFAULT_PORT = 37843;
+    private static final List<String> OPTIONS = Arrays.asList("url", "port", "rows", "cardinalities", "queries",
+            "mix", "qps", "clients", "warmup", "duration");
+
+    private final URL url;
+    private final List<String> names = new ArrayList<String>();
+    private final List<byte[]> bodies = new ArrayList<byte[]>();
+    private final List<Integer> weights = new ArrayList<Integer>();
+    private int totalWeight;
+    private final int qps;
+    private final int clients;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final Map<String, Latencies> latencies = new LinkedHashMap<String, Latencies>();
+
+    /**
+     * @param url             query endpoint
+     * @param queries         query JSON by name
+     * @param mix             weight of the queries to send, by name
+     * @param qps             target requests per second, 0 for as fast as possible
+     * @param clients         number of concurrent clients
+     * @param warmupSeconds   duration of the warm up, whose requests are not reported
+     * @param durationSeconds duration of the measurement
+     */
+    public LoadTest(URL url, Map<String, String> queries, Map<String, Integer> mix, int qps, int clients,
+                    int warmupSeconds, int durationSeconds) {
+        if (clients <= 0 || qps < 0 || durationSeconds <= 0) {
+            throw new IllegalArgumentException("Clients and duration must be positive, rate can't be negative");
+        }
+        this.url = url;
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            String query = queries.get(entry.getKey());
+            if (query == null) {
+                throw new IllegalArgumentException("Unknown query " + entry.getKey() + ", known queries are "
+                        + queries.keySet());
+            }
+            if (entry.getValue() <= 0) {
+                continue;
+            }
+            names.add(entry.getKey());
+            bodies.add(query.getBytes(Charsets.UTF_8));
+            weights.add(entry.getValue());
+            totalWeight += entry.getValue();
+            latencies.put(entry.getKey(), new Latencies());
+        }
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("No query to send");
+        }
+        this.qps = qps;
+        this.clients = clients;
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        long rows = Long.parseLong(get(options, "rows", "1000000"));
+        DataGenerator generator = new DataGenerator(rows,
+                DataGenerator.parseCardinalities(get(options, "cardinalities", "10,100,1000,10000,100000")));
+
+        Map<String, String> queries = new LinkedHashMap<String, String>();
+        for (String queryType : QueryBenchmark.QUERY_TYPES) {
+            queries.put(queryType, QueryHelper.jsonMapper.writeValueAsString(
+                    QueryBenchmark.createQuery(queryType, generator.getDimensions())));
+        }
+        if (options.containsKey("queries")) {
+            queries.putAll(readQueries(new File(options.get("queries"))));
+        }
+        Map<String, Integer> mix = new LinkedHashMap<String, Integer>();
+        if (options.containsKey("mix")) {
+            for (Map.Entry<String, String> weight : Splitter.on(',').trimResults().omitEmptyStrings()
+                    .withKeyValueSeparator('=').split(options.get("mix")).entrySet()) {
+                mix.put(weight.getKey(), Integer.parseInt(weight.getValue()));
+            }
+        } else {
+            for (String name : queries.keySet()) {
+                mix.put(name, 1);
+            }
+        }
+
+        int clients = Integer.parseInt(get(options, "clients", "32"));
+        // Keep a connection per client alive between requests
+        System.setProperty("http.maxConnections", String.valueOf(clients));
+
+        DruidRunner runner = null;
+        QueryableIndex index = null;
+        URL url;
+        if (options.containsKey("url")) {
+            url = new URL(options.get("url"));
+        } else {
+            int port = Integer.parseInt(get(options, "port", String.valueOf(DEFAULT_PORT)));
+            index = generator.getSegment(DataGenerator.getDataDir());
+            runner = new DruidRunner(port, index);
+            runner.run();
+            url = new URL("http://localhost:" + port + "/druid/v2/");
+        }
+        try {
+            LoadTest loadTest = new LoadTest(url, queries, mix, Integer.parseInt(get(options, "qps", "0")), clients,
+                    Integer.parseInt(get(options, "warmup", "10")), Integer.parseInt(get(options, "duration", "60")));
+            loadTest.run();
+            System.out.print(loadTest.report());
+        } finally {
+            if (runner != null) {
+                runner.stop();
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Sends requests until the warm up and the measurement are over.
+     */
+    public void run() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(clients,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("client-%d").build());
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < clients; i++) {
+                executor.submit(new Client(i, start));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return table of the requests, errors, throughput and latencies in milliseconds of each query and of
+     * all of them
+     */
+    public String report() {
+        Latencies all = new Latencies();
+        StringBuilder report = new StringBuilder(String.format("%-20s %10s %8s %10s %9s %9s %9s %9s %9s%n",
+                "query", "requests", "errors", "req/s", "p50", "p90", "p99", "p999", "max"));
+        for (Map.Entry<String, Latencies> entry : latencies.entrySet()) {
+            report.append(format(entry.getKey(), entry.getValue()));
+            all.addAll(entry.getValue());
+        }
+        report.append(format("all", all));
+        for (Map.Entry<String, Integer> error : all.getErrors().entrySet()) {
+            report.append(String.format("%s: %d%n", error.getKey(), error.getValue()));
+        }
+        return report.toString();
+    }
+
+    public Map<String, Latencies> getLatencies() {
+        return latencies;
+    }
+
+    private String format(String name, Latencies latencies) {
+        long requests = latencies.size() + latencies.getErrorCount();
+        return String.format("%-20s %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, requests,
+                latencies.getErrorCount(), requests * 1e9 / durationNanos,
+                latencies.getPercentile(0.5) / 1e6, latencies.getPercentile(0.9) / 1e6,
+                latencies.getPercentile(0.99) / 1e6, latencies.getPercentile(0.999) / 1e6,
+                latencies.getPercentile(1) / 1e6);
+    }
+
+    /**
+     * Sends a request, the next one being due either on schedule or right after the previous response.
+     */
+    private class Client implements Runnable {
+        private final int id;
+        private final long start;
+        private final Random random;
+
+        Client(int id, long start) {
+            this.id = id;
+            this.start = start;
+            this.random = new Random(id);
+        }
+
+        @Override
+        public void run() {
+            long end = start + warmupNanos + durationNanos;
+            for (long sent = 0; ; sent++) {
+                long due = qps > 0 ? start + (long) ((sent * clients + id) * 1e9 / qps) : System.nanoTime();
+                if (due >= end) {
+                    return;
+                }
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                int query = pick();
+                String error = send(bodies.get(query));
+                long latency = System.nanoTime() - due;
+                if (due >= start + warmupNanos) {
+                    if (error == null) {
+                        latencies.get(names.get(query)).add(latency);
+                    } else {
+                        latencies.get(names.get(query)).addError(error);
+                    }
+                }
+            }
+        }
+
+        private int pick() {
+            int weight = random.nextInt(totalWeight);
+            int query = 0;
+            while (weight >= weights.get(query)) {
+                weight -= weights.get(query++);
+            }
+            return query;
+        }
+    }
+
+    /**
+     * Posts the query and reads the whole response.
+     *
+     * @return null on success, else the HTTP status or the exception
+     */
+    private String send(byte[] body) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            OutputStream output = connection.getOutputStream();
+            try {
+                output.write(body);
+            } finally {
+                output.close();
+            }
+            int status = connection.getResponseCode();
+            InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (input != null) {
+                try {
+                    ByteStreams.copy(input, ByteStreams.nullOutputStream());
+                } finally {
+                    input.close();
+                }
+            }
+            return status == HttpURLConnection.HTTP_OK ? null : "HTTP " + status;
+        } catch (IOException e) {
+            return e.getClass().getSimpleName();
+        }
+    }
+
+    private static Map<String, String> readQueries(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IllegalArgumentException(dir + " is not a directory");
+        }
+        Arrays.sort(files);
+        Map<String, String> queries = new LinkedHashMap<String, String>();
+        for (File file : files) {
+            if (file.getName().endsWith(".json")) {
+                queries.put(Files.getNameWithoutExtension(file.getName()), Files.toString(file, Charsets.UTF_8));
+            }
+        }
+        return queries;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i += 2) {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+            if (name == null || !OPTIONS.contains(name) || i + 1 == args.length) {
+                throw new IllegalArgumentException("Usage: LoadTest [--option value]... with options " + OPTIONS);
+            }
+            options.put(name, args[i + 1]);
+        }
+        return options;
+    }
+
+    private static String get(Map<String, String> options, String name, String defaultValue) {
+        return options.containsKey(name) ? options.get(name) : defaultValue;
+    }
+
+    /**
+     * Latencies of the successful requests, in nanoseconds, and the causes of the failed ones.
+     */
+    public static class Latencies {
+        private long[] values = new long[1024];
+        private int size;
+        private final Map<String, Integer> errors = new LinkedHashMap<String, Integer>();
+
+        synchronized void add(long latency) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = latency;
+        }
+
+        synchronized void addError(String error) {
+            Integer count = errors.get(error);
+            errors.put(error, count == null ? 1 : count + 1);
+        }
+
+        synchronized void addAll(Latencies other) {
+            synchronized (other) {
+                for (int i = 0; i < other.size; i++) {
+                    add(other.values[i]);
+                }
+                for (Map.Entry<String, Integer> error : other.errors.entrySet()) {
+                    Integer count = errors.get(error.getKey());
+                    errors.put(error.getKey(), count == null ? error.getValue() : count + error.getValue());
+                }
+            }
+        }
+
+        public synchronized int size() {
+            return size;
+        }
+
+        public synchronized long getErrorCount() {
+            long count = 0;
+            for (int errorCount : errors.values()) {
+                count += errorCount;
+            }
+            return count;
+        }
+
+        public synchronized Map<String, Integer> getErrors() {
+            return new LinkedHashMap<String, Integer>(errors);
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return latency below which the given share of the requests were answered, 0 if there were none
+         */
+        public synchronized long getPercentile(double quantile) {
+            if (size == 0) {
+                return 0;
+            }
+            Arrays.sort(values, 0, size);
+            int rank = (int) Math.ceil(quantile * size) - 1;
+            return values[Math.max(0, Math.min(rank, size - 1))];
+        }
+    }
+}
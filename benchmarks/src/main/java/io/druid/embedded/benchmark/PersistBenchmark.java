@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.benchmark;
+
+import com.google.common.io.Files;
+import io.druid.data.input.InputRow;
+import io.druid.segment.IndexIO;
+import io.druid.segment.IndexMerger;
+import io.druid.segment.IndexSpec;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.incremental.IncrementalIndex;
+import io.druid.segment.incremental.IndexSizeExceededException;
+import io.druid.segment.incremental.OnheapIncrementalIndex;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to persist an incremental index of generated rows into a segment, and to load that segment back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class PersistBenchmark {
+
+    @Param({"1000000"})
+    private long rows;
+
+    @Param({"10,100,1000,10000,100000"})
+    private String cardinalities;
+
+    private IncrementalIndex<?> index;
+    private File segmentDir;
+    private File persistDir;
+
+    @Setup
+    public void setup() throws IOException, IndexSizeExceededException {
+        DataGenerator generator = new DataGenerator(rows, DataGenerator.parseCardinalities(cardinalities));
+        index = new OnheapIncrementalIndex(generator.getIndexSchema(), Integer.MAX_VALUE);
+        for (InputRow row : generator.asLoader()) {
+            index.add(row);
+        }
+        segmentDir = Files.createTempDir();
+        IndexMerger.persist(index, segmentDir, null, new IndexSpec());
+    }
+
+    @TearDown
+    public void tearDown() {
+        index.close();
+        FileUtils.deleteQuietly(segmentDir);
+    }
+
+    @Setup(Level.Invocation)
+    public void createDir() {
+        persistDir = Files.createTempDir();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteDir() {
+        FileUtils.deleteQuietly(persistDir);
+    }
+
+    @Benchmark
+    public File persist() throws IOException {
+        return IndexMerger.persist(index, persistDir, null, new IndexSpec());
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        QueryableIndex loaded = IndexIO.loadIndex(segmentDir);
+        try {
+            return loaded.getNumRows();
+        } finally {
+            loaded.close();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.benchmark;
+
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+import io.druid.embedded.QueryHelper;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.Druids;
+import io.druid.query.Query;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.DoubleSumAggregatorFactory;
+import io.druid.query.aggregation.LongSumAggregatorFactory;
+import io.druid.query.aggregation.MaxAggregatorFactory;
+import io.druid.query.filter.DimFilters;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.select.PagingSpec;
+import io.druid.query.spec.QuerySegmentSpecs;
+import io.druid.query.topn.TopNQueryBuilder;
+import io.druid.segment.QueryableIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of each query type on a segment of generated rows. Segments are kept under the benchmark directory
+ * (see {@link DataGenerator#getSegment}), so each row count is only ingested by the first run.
+ * <p>
+ * The default parameters cover 1M, 10M and 100M rows, which takes hours the first time; narrow them down with
+ * e.g. "-p rows=1000000".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class QueryBenchmark {
+    static final List<String> QUERY_TYPES = Arrays.asList("groupBy", "topN", "timeseries", "search", "select");
+
+    @Param({"1000000", "10000000", "100000000"})
+    private long rows;
+
+    @Param({"10,100,1000,10000,100000"})
+    private String cardinalities;
+
+    @Param({"groupBy", "topN", "timeseries", "search", "select"})
+    private String queryType;
+
+    private QueryableIndex index;
+    private Query query;
+
+    @Setup
+    public void setup() throws IOException {
+        DataGenerator generator = new DataGenerator(rows, DataGenerator.parseCardinalities(cardinalities));
+        index = generator.getSegment(DataGenerator.getDataDir());
+        query = createQuery(queryType, generator.getDimensions());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Benchmark
+    public List<?> query() {
+        @SuppressWarnings("unchecked")
+        Sequence<Object> results = QueryHelper.run(query, index);
+        return Sequences.toList(results, new ArrayList<Object>());
+    }
+
+    /**
+     * @param queryType  one of {@link #QUERY_TYPES}
+     * @param dimensions dimensions of the generated rows
+     * @return query of the given type on the generated rows
+     */
+    static Query createQuery(String queryType, List<String> dimensions) {
+        List<AggregatorFactory> aggregators = Arrays.<AggregatorFactory>asList(
+                new LongSumAggregatorFactory("agg_count", "agg_count"),
+                new DoubleSumAggregatorFactory("agg_value", "agg_value"),
+                new MaxAggregatorFactory("agg_latency", "agg_latency"));
+        switch (queryType) {
+            case "groupBy":
+                return GroupByQuery.builder()
+                        .setDataSource("benchmark")
+                        .setQuerySegmentSpec(QuerySegmentSpecs.create(DataGenerator.INTERVAL))
+                        .setGranularity(QueryGranularity.ALL)
+                        .addDimension(dimension(dimensions, 0))
+                        .addDimension(dimension(dimensions, 1))
+                        .setAggregatorSpecs(aggregators)
+                        .build();
+            case "topN":
+                return new TopNQueryBuilder()
+                        .dataSource("benchmark")
+                        .intervals(QuerySegmentSpecs.create(DataGenerator.INTERVAL))
+                        .granularity(QueryGranularity.ALL)
+                        .dimension(dimension(dimensions, 2))
+                        .metric("agg_count")
+                        .threshold(10)
+                        .aggregators(aggregators)
+                        .build();
+            case "timeseries":
+                return Druids.newTimeseriesQueryBuilder()
+                        .dataSource("benchmark")
+                        .intervals(QuerySegmentSpecs.create(DataGenerator.INTERVAL))
+                        .granularity(QueryGranularity.HOUR)
+                        .aggregators(aggregators)
+                        .build();
+            case "search":
+                return Druids.newSearchQueryBuilder()
+                        .dataSource("benchmark")
+                        .intervals(QuerySegmentSpecs.create(DataGenerator.INTERVAL))
+                        .granularity(QueryGranularity.ALL)
+                        .dimensions(dimension(dimensions, 3))
+                        .query("_99")
+                        .limit(100)
+                        .build();
+            case "select":
+                return Druids.newSelectQueryBuilder()
+                        .dataSource("benchmark")
+                        .intervals(QuerySegmentSpecs.create(DataGenerator.INTERVAL))
+                        .granularity(QueryGranularity.ALL)
+                        .filters(DimFilters.dimEquals(dimension(dimensions, 0), "d0_1"))
+                        .dimensions(dimensions)
+                        .metrics(Arrays.asList("agg_count", "agg_value", "agg_latency"))
+                        .pagingSpec(new PagingSpec(null, 1000))
+                        .build();
+            default:
+                throw new IllegalArgumentException("Unknown query type " + queryType);
+        }
+    }
+
+    /**
+     * @return the n-th dimension, or the last one if there are fewer
+     */
+    private static String dimension(List<String> dimensions, int n) {
+        return dimensions.get(Math.min(n, dimensions.size() - 1));
+    }
+}
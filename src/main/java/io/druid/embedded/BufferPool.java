@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.base.Supplier;
+import io.druid.collections.ResourceHolder;
+import io.druid.collections.StupidPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of direct (off-heap) processing buffers shared by all query engines.
+ * Buffers are allocated lazily up to a fixed count. Once all of them are in use, callers either
+ * wait for one to be returned or fail straight away, depending on the configured timeout.
+ * <p>
+ * Configuration is read from system properties (see {@link #fromSystemProperties()}):
+ * <ul>
+ * <li>druid.processing.buffer.sizeBytes : size of each buffer (default 64 MB)</li>
+ * <li>druid.processing.numBuffers : maximum number of buffers (default number of processors + 1)</li>
+ * <li>druid.processing.buffer.poolTimeoutMillis : how long to wait for a free buffer,
+ * 0 to fail fast, negative to wait forever (default 60000)</li>
+ * </ul>
+ */
+public class BufferPool extends StupidPool<ByteBuffer> {
+    public static final String SIZE_BYTES_PROPERTY = "druid.processing.buffer.sizeBytes";
+    public static final String NUM_BUFFERS_PROPERTY = "druid.processing.numBuffers";
+    public static final String TIMEOUT_PROPERTY = "druid.processing.buffer.poolTimeoutMillis";
+
+    public static final int DEFAULT_SIZE_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final long timeoutMillis;
+    private final BlockingQueue<ByteBuffer> idle = new LinkedBlockingQueue<ByteBuffer>();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong takeCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong waitTimeNanos = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private static class DirectBufferSupplier implements Supplier<ByteBuffer> {
+        private final int capacity;
+
+        public DirectBufferSupplier(int capacity) {
+            this.capacity = capacity;
+        }
+
+        public ByteBuffer get() {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    /**
+     * @param bufferSize    size of each buffer in bytes
+     * @param maxBuffers    maximum number of buffers the pool hands out at once
+     * @param timeoutMillis time to wait for a free buffer, 0 to fail fast, negative to wait forever
+     */
+    public BufferPool(int bufferSize, int maxBuffers, long timeoutMillis) {
+        super(new DirectBufferSupplier(bufferSize));
+        if (bufferSize <= 0 || maxBuffers <= 0) {
+            throw new IllegalArgumentException("Buffer size and count must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Creates a pool configured through system properties, falling back to the defaults.
+     *
+     * @return new BufferPool
+     */
+    public static BufferPool fromSystemProperties() {
+        int defaultCount = Runtime.getRuntime().availableProcessors() + 1;
+        return new BufferPool(
+                Integer.getInteger(SIZE_BYTES_PROPERTY, DEFAULT_SIZE_BYTES),
+                Integer.getInteger(NUM_BUFFERS_PROPERTY, defaultCount),
+                Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_MILLIS));
+    }
+
+    @Override
+    public ResourceHolder<ByteBuffer> take() {
+        takeCount.incrementAndGet();
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            buffer = allocate();
+        }
+        if (buffer == null) {
+            buffer = await();
+        }
+        inUse.incrementAndGet();
+        return new PooledBufferHolder(buffer);
+    }
+
+    private ByteBuffer allocate() {
+        while (true) {
+            int count = allocated.get();
+            if (count >= maxBuffers) {
+                return null;
+            }
+            if (allocated.compareAndSet(count, count + 1)) {
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+        }
+    }
+
+    private ByteBuffer await() {
+        if (timeoutMillis == 0) {
+            failureCount.incrementAndGet();
+            throw new IllegalStateException("No processing buffer available, all " + maxBuffers + " are in use");
+        }
+        waitCount.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            ByteBuffer buffer = timeoutMillis < 0 ? idle.take() : idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (buffer == null) {
+                failureCount.incrementAndGet();
+                throw new IllegalStateException("Timed out after " + timeoutMillis + " ms waiting for a processing buffer");
+            }
+            return buffer;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failureCount.incrementAndGet();
+            throw new IllegalStateException("Interrupted while waiting for a processing buffer", e);
+        } finally {
+            waitTimeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void release(ByteBuffer buffer) {
+        buffer.clear();
+        inUse.decrementAndGet();
+        idle.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    /**
+     * @return number of buffers allocated so far
+     */
+    public int getAllocatedCount() {
+        return allocated.get();
+    }
+
+    /**
+     * @return number of buffers currently handed out
+     */
+    public int getInUseCount() {
+        return inUse.get();
+    }
+
+    /**
+     * @return total number of take() calls
+     */
+    public long getTakeCount() {
+        return takeCount.get();
+    }
+
+    /**
+     * @return number of take() calls that had to wait for a buffer
+     */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * @return total time spent waiting for buffers, in milliseconds
+     */
+    public long getWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTimeNanos.get());
+    }
+
+    /**
+     * @return number of take() calls that failed because the pool was exhausted
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Returns the buffer to the pool when closed. Closing more than once has no effect.
+     */
+    private class PooledBufferHolder implements ResourceHolder<ByteBuffer> {
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final ByteBuffer buffer;
+
+        public PooledBufferHolder(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public ByteBuffer get() {
+            return buffer;
+        }
+
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(buffer);
+            }
+        }
+    }
+}
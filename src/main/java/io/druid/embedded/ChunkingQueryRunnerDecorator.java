@@ -0,0 +1,321 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.metamx.common.guava.BaseSequence;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+import io.druid.query.IntervalChunkingQueryRunnerDecorator;
+import io.druid.query.Query;
+import io.druid.query.QueryContextKeys;
+import io.druid.query.QueryInterruptedException;
+import io.druid.query.QueryRunner;
+import io.druid.query.QueryToolChest;
+import io.druid.query.QueryWatcher;
+import io.druid.query.aggregation.PostAggregator;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.groupby.orderby.NoopLimitSpec;
+import io.druid.query.spec.MultipleIntervalSegmentSpec;
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import org.joda.time.Period;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Splits the intervals of a query into chunks of a fixed period and runs the chunks in parallel, so that a query
+ * over a long time range is spread over several cores and no single scan builds one big intermediate result.
+ * Each chunk is merged through the toolchest on its own; the chunk results are returned in time order, to be
+ * merged once more by the caller.
+ * <p>
+ * At most "druid.query.chunk.maxInFlight" chunks (default 4) run or wait to be consumed at a time, the next one
+ * being started as the oldest is consumed, so that only a few chunk results are held in memory. Chunks still
+ * running when the result is closed early or fails are cancelled.
+ * <p>
+ * The chunk period is taken from the "chunkPeriod" context of the query, or else from the
+ * "druid.query.chunkPeriod" system property (default P0D, no chunking). Chunks run on their own pool of
+ * "druid.query.chunk.numThreads" threads (default number of processors), as they wait for the processing pool.
+ * Time boundary and metadata queries are never split.
+ */
+public class ChunkingQueryRunnerDecorator extends IntervalChunkingQueryRunnerDecorator {
+    public static final String CHUNK_PERIOD_PROPERTY = "druid.query.chunkPeriod";
+    public static final String NUM_THREADS_PROPERTY = "druid.query.chunk.numThreads";
+    public static final String MAX_IN_FLIGHT_PROPERTY = "druid.query.chunk.maxInFlight";
+    public static final String DEFAULT_CHUNK_PERIOD = "P0D";
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    private static final Set<String> UNCHUNKED_TYPES =
+            ImmutableSet.of(Query.TIME_BOUNDARY, Query.SEGMENT_METADATA, Query.DATASOURCE_METADATA);
+
+    private final Period defaultPeriod;
+    private final ListeningExecutorService executor;
+    private final QueryWatcher watcher;
+    private final int maxInFlight;
+
+    /**
+     * @param defaultPeriod chunk period of queries without a "chunkPeriod" context, P0D to not split them
+     * @param executor      executor running the chunks, which must not be the processing pool
+     * @param watcher       watcher the chunks are registered with, so that they can be cancelled
+     */
+    public ChunkingQueryRunnerDecorator(Period defaultPeriod, ExecutorService executor, QueryWatcher watcher) {
+        this(defaultPeriod, executor, watcher, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param defaultPeriod chunk period of queries without a "chunkPeriod" context, P0D to not split them
+     * @param executor      executor running the chunks, which must not be the processing pool
+     * @param watcher       watcher the chunks are registered with, so that they can be cancelled
+     * @param maxInFlight   maximum number of chunks of a query running or waiting to be consumed
+     */
+    public ChunkingQueryRunnerDecorator(Period defaultPeriod, ExecutorService executor, QueryWatcher watcher,
+                                        int maxInFlight) {
+        super(executor, watcher, null);
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("At least one chunk must be in flight");
+        }
+        this.defaultPeriod = defaultPeriod;
+        this.executor = MoreExecutors.listeningDecorator(executor);
+        this.watcher = watcher;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public static ChunkingQueryRunnerDecorator fromSystemProperties(QueryWatcher watcher) {
+        int numThreads = Integer.getInteger(NUM_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("chunk-%d").build());
+        return new ChunkingQueryRunnerDecorator(
+                Period.parse(System.getProperty(CHUNK_PERIOD_PROPERTY, DEFAULT_CHUNK_PERIOD)), executor, watcher,
+                Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, DEFAULT_MAX_IN_FLIGHT));
+    }
+
+    @Override
+    public <T> QueryRunner<T> decorate(final QueryRunner<T> delegate,
+                                       final QueryToolChest<T, ? extends Query<T>> toolChest) {
+        @SuppressWarnings("unchecked")
+        final QueryRunner<T> merged = ((QueryToolChest<T, Query<T>>) toolChest).mergeResults(delegate);
+        return new QueryRunner<T>() {
+            @Override
+            public Sequence<T> run(Query<T> query, Map<String, Object> responseContext) {
+                List<Interval> chunks = getChunks(query);
+                if (chunks.size() <= 1) {
+                    return delegate.run(query, responseContext);
+                }
+                return runChunks(merged, withoutFinalStages(query), chunks, responseContext);
+            }
+        };
+    }
+
+    /**
+     * Every chunk goes through the full merge of the toolchest, so the having spec, limit and post aggregators
+     * of a groupBy would drop or order the groups of a chunk on its own share of the metrics. They are left to
+     * the merge of all chunks.
+     *
+     * @return the query the chunks run
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Query<T> withoutFinalStages(Query<T> query) {
+        if (!(query instanceof GroupByQuery)) {
+            return query;
+        }
+        return (Query<T>) new GroupByQuery.Builder((GroupByQuery) query)
+                .setHavingSpec(null)
+                .setLimitSpec(new NoopLimitSpec())
+                .setPostAggregatorSpecs(Collections.<PostAggregator>emptyList())
+                .build();
+    }
+
+    /**
+     * @return the intervals of the query split by its chunk period, in time order
+     * @throws InvalidQueryException if the "chunkPeriod" context is not an ISO 8601 period
+     */
+    public List<Interval> getChunks(Query<?> query) {
+        Period period = getChunkPeriod(query);
+        // Periods of years or months have no fixed duration, so check whether the period moves time forward
+        if (UNCHUNKED_TYPES.contains(query.getType()) || !new DateTime(0).plus(period).isAfter(0)) {
+            return query.getIntervals();
+        }
+        List<Interval> chunks = new ArrayList<Interval>();
+        for (Interval interval : query.getIntervals()) {
+            DateTime start = interval.getStart();
+            while (start.isBefore(interval.getEnd())) {
+                DateTime end = start.plus(period);
+                if (end.isAfter(interval.getEnd())) {
+                    end = interval.getEnd();
+                }
+                chunks.add(new Interval(start, end));
+                start = end;
+            }
+        }
+        return chunks;
+    }
+
+    private Period getChunkPeriod(Query<?> query) {
+        Object period = query.getContextValue(QueryContextKeys.CHUNK_PERIOD);
+        if (period == null) {
+            return defaultPeriod;
+        }
+        try {
+            return Period.parse(period.toString());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidQueryException("Invalid " + QueryContextKeys.CHUNK_PERIOD + " " + period, e);
+        }
+    }
+
+    private <T> Sequence<T> runChunks(final QueryRunner<T> runner, final Query<T> query, final List<Interval> chunks,
+                                      final Map<String, Object> responseContext) {
+        Number timeout = query.getContextValue(QueryContextKeys.TIMEOUT);
+        final long deadline = timeout == null ? 0 : System.currentTimeMillis() + timeout.longValue();
+        return new BaseSequence<T, ChunkIterator<T>>(new BaseSequence.IteratorMaker<T, ChunkIterator<T>>() {
+            @Override
+            public ChunkIterator<T> make() {
+                return new ChunkIterator<T>(runner, query, chunks.iterator(), responseContext, deadline);
+            }
+
+            @Override
+            public void cleanup(ChunkIterator<T> iterator) {
+                iterator.cancel();
+            }
+        });
+    }
+
+    /**
+     * Iterates over the results of the chunks in time order, keeping at most maxInFlight chunks running or
+     * waiting to be consumed.
+     */
+    private class ChunkIterator<T> implements Iterator<T> {
+        private final QueryRunner<T> runner;
+        private final Query<T> query;
+        private final Iterator<Interval> chunks;
+        private final Map<String, Object> responseContext;
+        private final long deadline;
+        private final Deque<ListenableFuture<List<T>>> inFlight = new ArrayDeque<ListenableFuture<List<T>>>();
+        private Iterator<T> current = Iterators.emptyIterator();
+
+        private ChunkIterator(QueryRunner<T> runner, Query<T> query, Iterator<Interval> chunks,
+                              Map<String, Object> responseContext, long deadline) {
+            this.runner = runner;
+            this.query = query;
+            this.chunks = chunks;
+            this.responseContext = responseContext;
+            this.deadline = deadline;
+            fill();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (inFlight.isEmpty()) {
+                    return false;
+                }
+                current = await(inFlight.peek()).iterator();
+                inFlight.poll();
+                fill();
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fill() {
+            while (inFlight.size() < maxInFlight && chunks.hasNext()) {
+                final Query<T> chunkQuery = query.withQuerySegmentSpec(
+                        new MultipleIntervalSegmentSpec(Collections.singletonList(chunks.next())));
+                ListenableFuture<List<T>> future = executor.submit(new Callable<List<T>>() {
+                    @Override
+                    public List<T> call() {
+                        return Sequences.toList(runner.run(chunkQuery, responseContext), new ArrayList<T>());
+                    }
+                });
+                watcher.registerQuery(query, future);
+                inFlight.add(future);
+            }
+        }
+
+        /**
+         * Waits for the result of a chunk. If it fails, or the query times out, the remaining chunks are cancelled.
+         */
+        private List<T> await(ListenableFuture<List<T>> future) {
+            try {
+                if (deadline == 0) {
+                    return future.get();
+                }
+                return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                cancel();
+                throw new QueryTimeoutException();
+            } catch (CancellationException e) {
+                cancel();
+                throw new QueryInterruptedException("Query cancelled");
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new QueryInterruptedException(e);
+            } catch (ExecutionException e) {
+                cancel();
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        /**
+         * Cancels the chunks which are still in flight and starts no more.
+         */
+        private void cancel() {
+            for (ListenableFuture<List<T>> future : inFlight) {
+                future.cancel(true);
+            }
+            inFlight.clear();
+            while (chunks.hasNext()) {
+                chunks.next();
+            }
+        }
+    }
+}
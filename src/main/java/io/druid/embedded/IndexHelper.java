@@ -16,26 +16,35 @@
 
 package io.druid.embedded;
 
-import io.druid.data.input.InputRow;
+import com.metamx.common.Granularity;
 import io.druid.embedded.load.Loader;
 import io.druid.query.aggregation.histogram.ApproximateHistogramFoldingSerde;
 import io.druid.segment.IndexIO;
-import io.druid.segment.IndexMerger;
 import io.druid.segment.IndexSpec;
 import io.druid.segment.QueryableIndex;
-import io.druid.segment.incremental.IncrementalIndex;
 import io.druid.segment.incremental.IncrementalIndexSchema;
-import io.druid.segment.incremental.OnheapIncrementalIndex;
 import io.druid.segment.serde.ComplexMetrics;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.Interval;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * This is a Helper class which reads content of file and generates required index/segment files and persist it.
  * It also provides queryable index object after loading file into memory.
  */
 public class IndexHelper {
+    /**
+     * Directory of the store's temporary directory which partitioned segments are persisted under.
+     */
+    public static final String PARTITIONS_DIR = "partitions";
 
     /**
      * Initialization (handled by Guice in Druid system)
@@ -48,6 +57,7 @@ public class IndexHelper {
     /**
      * The only way to get a QueryableIndex from IncrementalIndex is to persist the IncrementalIndex
      * and reload it. This methods does that.
+     * Rows are loaded by the number of threads set in the system property "druid.ingest.numThreads".
      *
      * @param loader //     * @param aggregates
      * @return
@@ -55,22 +65,165 @@ public class IndexHelper {
      */
     public static QueryableIndex getQueryableIndex(Loader loader, IncrementalIndexSchema indexSchema)
             throws IOException {
-//	    IncrementalIndex<?> incIndex =
-//	        new OffheapIncrementalIndex(indexSchema, Utils.getBufferPool(), true, maxTotalBufferSize);
-        IncrementalIndex<?> incIndex = new OnheapIncrementalIndex(indexSchema, Integer.MAX_VALUE);
+        return getQueryableIndex(loader, indexSchema, IngestionPipeline.fromSystemProperties());
+    }
 
-        for (InputRow row : loader) {
-            incIndex.add(row);
-        }
-        String tmpDir = System.getProperty("druid.segment.dir");
-        if (tmpDir == null) {
-            tmpDir = System.getProperty("java.io.tmpdir") + File.separator + "druid-tmp-index-";
+    /**
+     * Loads the rows with the given number of threads, each filling an index of its own, and merges
+     * the indexes into a single segment.
+     *
+     * @param loader      Loader providing the rows
+     * @param indexSchema Schema of the index
+     * @param numThreads  Number of threads loading rows
+     * @return QueryableIndex holding all rows
+     * @throws IOException
+     */
+    public static QueryableIndex getQueryableIndex(Loader loader, IncrementalIndexSchema indexSchema, int numThreads)
+            throws IOException {
+        return getQueryableIndex(loader, indexSchema,
+                new IngestionPipeline(numThreads, Integer.getInteger(IngestionPipeline.BATCH_SIZE_PROPERTY,
+                        IngestionPipeline.DEFAULT_BATCH_SIZE)));
+    }
+
+    /**
+     * Loads the rows through the given pipeline and persists them into a single segment.
+     * Depending on the pipeline, rows are held on-heap or off-heap, and spilled to intermediate segments
+     * which are merged at the end once an index grows too large. The segment is encoded as configured through
+     * system properties (see {@link IndexSpecs#fromSystemProperties()}).
+     * If the loader has a fingerprint, the segment is kept in the {@link SegmentStore} and reused as long as
+     * the input and schema don't change.
+     *
+     * @param loader      Loader providing the rows
+     * @param indexSchema Schema of the index
+     * @param pipeline    Pipeline loading the rows
+     * @return QueryableIndex holding all rows
+     * @throws IOException
+     */
+    public static QueryableIndex getQueryableIndex(Loader loader, IncrementalIndexSchema indexSchema,
+                                                   IngestionPipeline pipeline) throws IOException {
+        return getQueryableIndex(loader, indexSchema, pipeline, IndexSpecs.fromSystemProperties());
+    }
+
+    /**
+     * Loads the rows through the given pipeline and persists them into a single segment encoded as set by the
+     * spec (see {@link IndexSpecs}).
+     * If the loader has a fingerprint, the segment is kept in the {@link SegmentStore}.
+     *
+     * @param loader      Loader providing the rows
+     * @param indexSchema Schema of the index
+     * @param pipeline    Pipeline loading the rows
+     * @param indexSpec   Bitmap encoding and column compression of the segment
+     * @return QueryableIndex holding all rows
+     * @throws IOException
+     */
+    public static QueryableIndex getQueryableIndex(Loader loader, IncrementalIndexSchema indexSchema,
+                                                   IngestionPipeline pipeline, IndexSpec indexSpec)
+            throws IOException {
+        SegmentStore store = SegmentStore.fromSystemProperties();
+        String fingerprint = loader.getFingerprint();
+        if (fingerprint != null) {
+            return store.getOrCreate(loader, fingerprint, indexSchema, indexSpec, pipeline,
+                    Collections.<RollupView>emptyList()).getIndex();
         }
-        File tmpIndexDir = new File(tmpDir + loader.hashCode());
-        IndexMerger.persist(incIndex, tmpIndexDir, null, new IndexSpec());
+        File tmpIndexDir = store.getTmpDir("index-" + loader.hashCode());
+        pipeline.persist(loader, indexSchema, tmpIndexDir, indexSpec);
         return IndexIO.loadIndex(tmpIndexDir);
     }
 
+    /**
+     * Loads the rows through the given pipeline and persists them into a segment, along with a segment for each
+     * rollup view, all filled from a single pass over the rows.
+     * If the loader has a fingerprint, the segments are kept in the {@link SegmentStore}.
+     *
+     * @param loader      Loader providing the rows
+     * @param indexSchema Schema of the index
+     * @param pipeline    Pipeline loading the rows
+     * @param views       Rollup views of the index
+     * @return the index holding all rows and the index of each view
+     * @throws IOException
+     */
+    public static IndexWithViews getIndexWithViews(Loader loader, IncrementalIndexSchema indexSchema,
+                                                   IngestionPipeline pipeline, List<RollupView> views)
+            throws IOException {
+        return getIndexWithViews(loader, indexSchema, pipeline, views, IndexSpecs.fromSystemProperties());
+    }
+
+    /**
+     * Loads the rows through the given pipeline and persists them into a segment, along with a segment for each
+     * rollup view, all encoded as set by the spec (see {@link IndexSpecs}).
+     *
+     * @param loader      Loader providing the rows
+     * @param indexSchema Schema of the index
+     * @param pipeline    Pipeline loading the rows
+     * @param views       Rollup views of the index
+     * @param indexSpec   Bitmap encoding and column compression of the segments
+     * @return the index holding all rows and the index of each view
+     * @throws IOException
+     */
+    public static IndexWithViews getIndexWithViews(Loader loader, IncrementalIndexSchema indexSchema,
+                                                   IngestionPipeline pipeline, List<RollupView> views,
+                                                   IndexSpec indexSpec) throws IOException {
+        SegmentStore store = SegmentStore.fromSystemProperties();
+        String fingerprint = loader.getFingerprint();
+        if (fingerprint != null) {
+            return store.getOrCreate(loader, fingerprint, indexSchema, indexSpec, pipeline, views);
+        }
+        File tmpIndexDir = store.getTmpDir("index-" + loader.hashCode());
+        Map<RollupView, File> viewDirs = new LinkedHashMap<RollupView, File>();
+        for (RollupView view : views) {
+            viewDirs.put(view.resolve(indexSchema), new File(tmpIndexDir.getPath() + "-" + view.getName()));
+        }
+        pipeline.persist(loader, indexSchema, tmpIndexDir, indexSpec, viewDirs);
+        Map<RollupView, QueryableIndex> viewIndexes = new LinkedHashMap<RollupView, QueryableIndex>();
+        for (Map.Entry<RollupView, File> view : viewDirs.entrySet()) {
+            viewIndexes.put(view.getKey(), IndexIO.loadIndex(view.getValue()));
+        }
+        return new IndexWithViews(IndexIO.loadIndex(tmpIndexDir), viewIndexes);
+    }
+
+    /**
+     * Loads the rows through the given pipeline and persists them into one segment per time bucket of the
+     * segment granularity, encoded as configured through system properties. The segments can then be registered
+     * with {@link SegmentRegistry#addPartitions(String, Map)}, so that queries only open the buckets they cover.
+     *
+     * @param loader             Loader providing the rows
+     * @param indexSchema        Schema of the segments
+     * @param pipeline           Pipeline loading the rows
+     * @param segmentGranularity Time span of each segment, such as HOUR, DAY or MONTH
+     * @return the interval of each segment and its directory
+     * @throws IOException
+     */
+    public static Map<Interval, File> getPartitions(Loader loader, IncrementalIndexSchema indexSchema,
+                                                    IngestionPipeline pipeline, Granularity segmentGranularity)
+            throws IOException {
+        return getPartitions(loader, indexSchema, pipeline, segmentGranularity, IndexSpecs.fromSystemProperties());
+    }
+
+    /**
+     * Loads the rows through the given pipeline and persists them into one segment per time bucket of the
+     * segment granularity, encoded as set by the spec (see {@link IndexSpecs}).
+     * The segments are persisted under a new directory of "tmp/partitions" in the {@link SegmentStore}
+     * directory, which is left to the caller to delete once the segments are no longer used.
+     *
+     * @param loader             Loader providing the rows
+     * @param indexSchema        Schema of the segments
+     * @param pipeline           Pipeline loading the rows
+     * @param segmentGranularity Time span of each segment, such as HOUR, DAY or MONTH
+     * @param indexSpec          Bitmap encoding and column compression of the segments
+     * @return the interval of each segment and its directory
+     * @throws IOException
+     */
+    public static Map<Interval, File> getPartitions(Loader loader, IncrementalIndexSchema indexSchema,
+                                                    IngestionPipeline pipeline, Granularity segmentGranularity,
+                                                    IndexSpec indexSpec) throws IOException {
+        File partitionsDir = SegmentStore.fromSystemProperties().getTmpDir(PARTITIONS_DIR);
+        FileUtils.forceMkdir(partitionsDir);
+        // A fresh directory per run, so that buckets of another run are never mixed in nor deleted
+        File tmpIndexDir = Files.createTempDirectory(partitionsDir.toPath(),
+                segmentGranularity.name().toLowerCase(Locale.ENGLISH) + "-").toFile();
+        return pipeline.persistPartitions(loader, indexSchema, tmpIndexDir, indexSpec, segmentGranularity);
+    }
+
     /**
      * Get QueryableIndex from index directory.
      *
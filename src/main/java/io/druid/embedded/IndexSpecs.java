@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.segment.IndexSpec;
+import io.druid.segment.data.BitmapSerde;
+import io.druid.segment.data.BitmapSerdeFactory;
+import io.druid.segment.data.RoaringBitmapSerdeFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Creates the {@link IndexSpec} segments are persisted with, which sets how their bitmap indexes and columns are
+ * encoded. Concise bitmaps are usually smaller for sparse dimensions, while Roaring bitmaps are faster to
+ * intersect and union. LZ4 decompresses faster than LZF at a similar ratio, and uncompressed columns trade disk
+ * and page cache for no decompression at all.
+ * <p>
+ * The default spec is read from system properties (see {@link #fromSystemProperties()}):
+ * <ul>
+ * <li>druid.ingest.bitmap : concise or roaring (default concise)</li>
+ * <li>druid.ingest.dimensionCompression : lz4, lzf or uncompressed (default lz4)</li>
+ * <li>druid.ingest.metricCompression : lz4, lzf or uncompressed (default lz4)</li>
+ * </ul>
+ */
+public class IndexSpecs {
+    public static final String BITMAP_PROPERTY = "druid.ingest.bitmap";
+    public static final String DIMENSION_COMPRESSION_PROPERTY = "druid.ingest.dimensionCompression";
+    public static final String METRIC_COMPRESSION_PROPERTY = "druid.ingest.metricCompression";
+
+    public static final String CONCISE = "concise";
+    public static final String ROARING = "roaring";
+    public static final String LZ4 = "lz4";
+    public static final String LZF = "lzf";
+    public static final String UNCOMPRESSED = IndexSpec.UNCOMPRESSED;
+    public static final List<String> BITMAPS = Arrays.asList(CONCISE, ROARING);
+    public static final List<String> COMPRESSIONS = Arrays.asList(LZ4, LZF, UNCOMPRESSED);
+
+    public static final String DEFAULT_BITMAP = CONCISE;
+    public static final String DEFAULT_COMPRESSION = LZ4;
+
+    private IndexSpecs() {
+    }
+
+    /**
+     * @param bitmap               bitmap encoding, one of {@link #BITMAPS}
+     * @param dimensionCompression compression of dimension columns, one of {@link #COMPRESSIONS}
+     * @param metricCompression    compression of metric columns, one of {@link #COMPRESSIONS}
+     * @return spec persisting segments with the given encodings
+     */
+    public static IndexSpec create(String bitmap, String dimensionCompression, String metricCompression) {
+        // Default encodings are left unset, as in new IndexSpec(), so that segments kept in a SegmentStore
+        // before they could be chosen keep their key
+        String dimensions = compression(dimensionCompression);
+        String metrics = compression(metricCompression);
+        return new IndexSpec(bitmapSerdeFactory(bitmap),
+                dimensions.equals(IndexSpec.DEFAULT_DIMENSION_COMPRESSION) ? null : dimensions,
+                metrics.equals(IndexSpec.DEFAULT_METRIC_COMPRESSION) ? null : metrics);
+    }
+
+    /**
+     * Creates the spec configured through system properties, falling back to the defaults.
+     *
+     * @return new IndexSpec
+     */
+    public static IndexSpec fromSystemProperties() {
+        return create(System.getProperty(BITMAP_PROPERTY, DEFAULT_BITMAP),
+                System.getProperty(DIMENSION_COMPRESSION_PROPERTY, DEFAULT_COMPRESSION),
+                System.getProperty(METRIC_COMPRESSION_PROPERTY, DEFAULT_COMPRESSION));
+    }
+
+    private static BitmapSerdeFactory bitmapSerdeFactory(String bitmap) {
+        String name = bitmap.toLowerCase(Locale.ENGLISH);
+        if (CONCISE.equals(name)) {
+            return new BitmapSerde.DefaultBitmapSerdeFactory();
+        }
+        if (ROARING.equals(name)) {
+            return new RoaringBitmapSerdeFactory();
+        }
+        throw new IllegalArgumentException("Unknown bitmap encoding " + bitmap + ", expected one of " + BITMAPS);
+    }
+
+    private static String compression(String compression) {
+        String name = compression.toLowerCase(Locale.ENGLISH);
+        if (!COMPRESSIONS.contains(name)) {
+            throw new IllegalArgumentException("Unknown compression " + compression + ", expected one of "
+                    + COMPRESSIONS);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.segment.QueryableIndex;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Index along with the rollup views built from the same rows.
+ */
+public class IndexWithViews implements Closeable {
+    private final QueryableIndex index;
+    private final Map<RollupView, QueryableIndex> views;
+
+    /**
+     * @param index index holding all rows
+     * @param views rollup views, resolved against the schema of the index, and their indexes
+     */
+    public IndexWithViews(QueryableIndex index, Map<RollupView, QueryableIndex> views) {
+        this.index = index;
+        this.views = Collections.unmodifiableMap(new LinkedHashMap<RollupView, QueryableIndex>(views));
+    }
+
+    public QueryableIndex getIndex() {
+        return index;
+    }
+
+    public Map<RollupView, QueryableIndex> getViews() {
+        return views;
+    }
+
+    @Override
+    public void close() throws IOException {
+        index.close();
+        for (QueryableIndex view : views.values()) {
+            view.close();
+        }
+    }
+}
@@ -0,0 +1,671 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.metamx.collections.bitmap.BitmapFactory;
+import com.metamx.common.Granularity;
+import io.druid.data.input.InputRow;
+import io.druid.embedded.load.Loader;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.segment.IndexIO;
+import io.druid.segment.IndexMerger;
+import io.druid.segment.IndexSpec;
+import io.druid.segment.IndexableAdapter;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.incremental.IncrementalIndex;
+import io.druid.segment.incremental.IncrementalIndexAdapter;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+import io.druid.segment.incremental.OffheapIncrementalIndex;
+import io.druid.segment.incremental.OnheapIncrementalIndex;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Interval;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the rows of a Loader into a persisted segment, using several threads and bounded memory.
+ * The calling thread splits the input of the Loader into batches (see {@link Loader#split(int)}), and each
+ * worker thread parses batches and adds their rows to an incremental index of its own.
+ * <p>
+ * Whenever an index reaches the row or byte limit, it is persisted to an intermediate segment and a fresh one
+ * is started. At the end the in-memory indexes are merged with IndexMerger, together with the intermediate
+ * segments if there are any.
+ * <p>
+ * Rows can also be partitioned by a segment granularity (see {@link #persistPartitions}), each worker then
+ * keeping an index per time bucket and every bucket ending up in a segment of its own. Off-heap indexes hold a
+ * buffer of a pool with maxOpenBuckets buffers per worker, so a worker keeps that many buckets in memory and
+ * spills the least recently used one when a row of yet another bucket comes in. A warning is logged when
+ * such spills get small, as input far from time order then produces a lot of tiny intermediate segments.
+ * <p>
+ * Configuration is read from system properties (see {@link #fromSystemProperties()}):
+ * <ul>
+ * <li>druid.ingest.numThreads : number of worker threads, 1 loads on the calling thread (default 1)</li>
+ * <li>druid.ingest.batchSize : number of rows per batch (default 10000)</li>
+ * <li>druid.ingest.maxRowsInMemory : rows an index holds before it is spilled to disk (default 500000)</li>
+ * <li>druid.ingest.maxBytesInMemory : estimated bytes an on-heap index holds before it is spilled to disk,
+ * 0 for no limit (default 0)</li>
+ * <li>druid.ingest.offheap : keep aggregated metrics and dimension values off-heap (default false)</li>
+ * <li>druid.ingest.offheap.bufferSizeBytes : size of the aggregation buffer of each off-heap index,
+ * an index is spilled when it is full (default 128 MB)</li>
+ * <li>druid.ingest.offheap.maxOpenBuckets : off-heap indexes a worker keeps open at once when partitioning
+ * by time, each holding its own buffer (default 4)</li>
+ * </ul>
+ */
+public class IngestionPipeline {
+    private static final Logger LOG = Logger.getLogger(IngestionPipeline.class);
+
+    public static final String NUM_THREADS_PROPERTY = "druid.ingest.numThreads";
+    public static final String BATCH_SIZE_PROPERTY = "druid.ingest.batchSize";
+    public static final String MAX_ROWS_PROPERTY = "druid.ingest.maxRowsInMemory";
+    public static final String MAX_BYTES_PROPERTY = "druid.ingest.maxBytesInMemory";
+    public static final String OFFHEAP_PROPERTY = "druid.ingest.offheap";
+    public static final String OFFHEAP_BUFFER_SIZE_PROPERTY = "druid.ingest.offheap.bufferSizeBytes";
+    public static final String OFFHEAP_MAX_OPEN_BUCKETS_PROPERTY = "druid.ingest.offheap.maxOpenBuckets";
+
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+    public static final int DEFAULT_MAX_ROWS_IN_MEMORY = 500000;
+    public static final int DEFAULT_OFFHEAP_BUFFER_SIZE = 128 * 1024 * 1024;
+    public static final int DEFAULT_OFFHEAP_MAX_OPEN_BUCKETS = 4;
+
+    /**
+     * Off-heap bucket spills holding less than this fraction of maxRowsInMemory are counted as small.
+     */
+    private static final int SMALL_SPILL_FRACTION = 100;
+
+    /**
+     * Rough per-row cost of an on-heap index besides the aggregators: the key holding timestamp and
+     * dimension ids, and the map entry pointing to the aggregators.
+     */
+    private static final int ROW_OVERHEAD_BYTES = 64;
+    private static final int DIMENSION_BYTES = 16;
+
+    private static final Iterable<InputRow> END_OF_INPUT = new ArrayList<InputRow>(0);
+
+    /**
+     * Bucket of all rows when they are not partitioned by time.
+     */
+    private static final long SINGLE_BUCKET = Long.MIN_VALUE;
+
+    private static final DateTimeFormatter PARTITION_FORMAT = ISODateTimeFormat.basicDateTime().withZoneUTC();
+
+    private final int numThreads;
+    private final int batchSize;
+    private final int maxRowsInMemory;
+    private final long maxBytesInMemory;
+    private final boolean offheap;
+    private final int offheapBufferSize;
+    private final int offheapMaxOpenBuckets;
+
+    /**
+     * Creates an on-heap pipeline with the default memory limits.
+     *
+     * @param numThreads number of worker threads
+     * @param batchSize  number of rows handed to a worker at once
+     */
+    public IngestionPipeline(int numThreads, int batchSize) {
+        this(numThreads, batchSize, DEFAULT_MAX_ROWS_IN_MEMORY, 0, false, DEFAULT_OFFHEAP_BUFFER_SIZE);
+    }
+
+    /**
+     * @param numThreads        number of worker threads
+     * @param batchSize         number of rows handed to a worker at once
+     * @param maxRowsInMemory   rows an index holds before it is spilled to disk
+     * @param maxBytesInMemory  estimated bytes an on-heap index holds before it is spilled, 0 for no limit
+     * @param offheap           whether to use off-heap indexes
+     * @param offheapBufferSize size of the aggregation buffer of each off-heap index
+     */
+    public IngestionPipeline(int numThreads, int batchSize, int maxRowsInMemory, long maxBytesInMemory,
+                             boolean offheap, int offheapBufferSize) {
+        this(numThreads, batchSize, maxRowsInMemory, maxBytesInMemory, offheap, offheapBufferSize,
+                DEFAULT_OFFHEAP_MAX_OPEN_BUCKETS);
+    }
+
+    /**
+     * @param numThreads            number of worker threads
+     * @param batchSize             number of rows handed to a worker at once
+     * @param maxRowsInMemory       rows an index holds before it is spilled to disk
+     * @param maxBytesInMemory      estimated bytes an on-heap index holds before it is spilled, 0 for no limit
+     * @param offheap               whether to use off-heap indexes
+     * @param offheapBufferSize     size of the aggregation buffer of each off-heap index
+     * @param offheapMaxOpenBuckets off-heap indexes a worker keeps open at once when partitioning by time
+     */
+    public IngestionPipeline(int numThreads, int batchSize, int maxRowsInMemory, long maxBytesInMemory,
+                             boolean offheap, int offheapBufferSize, int offheapMaxOpenBuckets) {
+        if (numThreads <= 0 || batchSize <= 0 || maxRowsInMemory <= 0 || offheapMaxOpenBuckets <= 0) {
+            throw new IllegalArgumentException(
+                    "Thread count, batch size, row limit and open bucket count must be positive");
+        }
+        this.numThreads = numThreads;
+        this.batchSize = batchSize;
+        this.maxRowsInMemory = maxRowsInMemory;
+        this.maxBytesInMemory = maxBytesInMemory;
+        this.offheap = offheap;
+        this.offheapBufferSize = offheapBufferSize;
+        this.offheapMaxOpenBuckets = offheapMaxOpenBuckets;
+    }
+
+    /**
+     * Creates a pipeline configured through system properties, falling back to the defaults.
+     *
+     * @return new IngestionPipeline
+     */
+    public static IngestionPipeline fromSystemProperties() {
+        return new IngestionPipeline(
+                Integer.getInteger(NUM_THREADS_PROPERTY, 1),
+                Integer.getInteger(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE),
+                Integer.getInteger(MAX_ROWS_PROPERTY, DEFAULT_MAX_ROWS_IN_MEMORY),
+                Long.getLong(MAX_BYTES_PROPERTY, 0L),
+                Boolean.getBoolean(OFFHEAP_PROPERTY),
+                Integer.getInteger(OFFHEAP_BUFFER_SIZE_PROPERTY, DEFAULT_OFFHEAP_BUFFER_SIZE),
+                Integer.getInteger(OFFHEAP_MAX_OPEN_BUCKETS_PROPERTY, DEFAULT_OFFHEAP_MAX_OPEN_BUCKETS));
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Loads all rows of the loader and persists them as a single segment.
+     *
+     * @param loader      source of the rows
+     * @param indexSchema schema of the segment
+     * @param indexDir    directory to persist the segment to
+     * @param indexSpec   format of the segment
+     * @return the segment directory
+     * @throws IOException if a row could not be added, a worker failed or persisting failed
+     */
+    public File persist(Loader loader, IncrementalIndexSchema indexSchema, File indexDir, IndexSpec indexSpec)
+            throws IOException {
+        return persist(loader, indexSchema, indexDir, indexSpec, Collections.<RollupView, File>emptyMap());
+    }
+
+    /**
+     * Loads all rows of the loader and persists them as a single segment, along with a segment for each
+     * rollup view. Rows are read once, each worker adding them to its indexes for the segment and every view.
+     *
+     * @param loader      source of the rows
+     * @param indexSchema schema of the segment
+     * @param indexDir    directory to persist the segment to
+     * @param indexSpec   format of the segments
+     * @param views       rollup views and the directory to persist each one to
+     * @return the segment directory
+     * @throws IOException if a row could not be added, a worker failed or persisting failed
+     */
+    public File persist(Loader loader, IncrementalIndexSchema indexSchema, File indexDir, IndexSpec indexSpec,
+                        Map<RollupView, File> views) throws IOException {
+        List<Ingestion> ingestions = new ArrayList<Ingestion>(views.size() + 1);
+        ingestions.add(new Ingestion(indexSchema, indexDir, indexSpec, null, null));
+        for (Map.Entry<RollupView, File> view : views.entrySet()) {
+            ingestions.add(new Ingestion(view.getKey().getSchema(indexSchema), view.getValue(), indexSpec,
+                    view.getKey(), null));
+        }
+        persist(loader, ingestions);
+        return indexDir;
+    }
+
+    /**
+     * Loads all rows of the loader and persists them as one segment per time bucket of the segment granularity,
+     * each in a subdirectory of indexDir named after its interval. Buckets without rows get no segment.
+     *
+     * @param loader             source of the rows
+     * @param indexSchema        schema of the segments
+     * @param indexDir           directory to persist the segments under
+     * @param indexSpec          format of the segments
+     * @param segmentGranularity time span of each segment
+     * @return the interval of each segment and its directory, ordered by time
+     * @throws IOException if a row could not be added, a worker failed or persisting failed
+     */
+    public Map<Interval, File> persistPartitions(Loader loader, IncrementalIndexSchema indexSchema, File indexDir,
+                                                 IndexSpec indexSpec, Granularity segmentGranularity)
+            throws IOException {
+        Ingestion ingestion = new Ingestion(indexSchema, indexDir, indexSpec, null, segmentGranularity);
+        Map<Long, File> dirs = persist(loader, Collections.singletonList(ingestion)).get(0);
+        Map<Interval, File> partitions = new LinkedHashMap<Interval, File>();
+        for (Map.Entry<Long, File> dir : dirs.entrySet()) {
+            partitions.put(ingestion.interval(dir.getKey()), dir.getValue());
+        }
+        return partitions;
+    }
+
+    /**
+     * @return the segment directory of each bucket, for each ingestion
+     */
+    private List<Map<Long, File>> persist(Loader loader, List<Ingestion> ingestions) throws IOException {
+        try {
+            List<Map<Long, List<IncrementalIndex<?>>>> indexes = load(loader, ingestions);
+            List<Map<Long, File>> dirs = new ArrayList<Map<Long, File>>(ingestions.size());
+            for (int i = 0; i < ingestions.size(); i++) {
+                dirs.add(ingestions.get(i).finish(indexes.get(i)));
+            }
+            return dirs;
+        } finally {
+            for (Ingestion ingestion : ingestions) {
+                for (List<File> spills : ingestion.spills.values()) {
+                    for (File spill : spills) {
+                        FileUtils.deleteQuietly(spill);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the non-empty in-memory indexes left in each bucket, for each ingestion
+     */
+    private List<Map<Long, List<IncrementalIndex<?>>>> load(Loader loader, List<Ingestion> ingestions)
+            throws IOException {
+        List<Map<Long, List<IncrementalIndex<?>>>> indexes =
+                new ArrayList<Map<Long, List<IncrementalIndex<?>>>>(ingestions.size());
+        for (int i = 0; i < ingestions.size(); i++) {
+            indexes.add(new TreeMap<Long, List<IncrementalIndex<?>>>());
+        }
+        if (numThreads == 1) {
+            Worker worker = new Worker(null, ingestions);
+            for (InputRow row : loader) {
+                worker.add(row);
+            }
+            collect(worker.indexes, indexes);
+            return addEmptyIndexes(ingestions, indexes);
+        }
+
+        final BlockingQueue<Iterable<InputRow>> queue = new ArrayBlockingQueue<Iterable<InputRow>>(numThreads * 2);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ingest-%d").build());
+        try {
+            List<Future<List<Map<Long, IncrementalIndex<?>>>>> workers =
+                    new ArrayList<Future<List<Map<Long, IncrementalIndex<?>>>>>();
+            for (int i = 0; i < numThreads; i++) {
+                workers.add(executor.submit(new Worker(queue, ingestions)));
+            }
+
+            Iterator<? extends Iterable<InputRow>> batches = loader.split(batchSize);
+            while (batches.hasNext()) {
+                enqueue(queue, batches.next(), workers);
+            }
+            for (int i = 0; i < numThreads; i++) {
+                enqueue(queue, END_OF_INPUT, workers);
+            }
+
+            for (Future<List<Map<Long, IncrementalIndex<?>>>> worker : workers) {
+                collect(get(worker), indexes);
+            }
+            return addEmptyIndexes(ingestions, indexes);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds the indexes of a worker to those of its bucket.
+     */
+    private static void collect(List<Map<Long, IncrementalIndex<?>>> workerIndexes,
+                                List<Map<Long, List<IncrementalIndex<?>>>> indexes) {
+        for (int i = 0; i < workerIndexes.size(); i++) {
+            for (Map.Entry<Long, IncrementalIndex<?>> index : workerIndexes.get(i).entrySet()) {
+                List<IncrementalIndex<?>> bucketIndexes = indexes.get(i).get(index.getKey());
+                if (bucketIndexes == null) {
+                    bucketIndexes = new ArrayList<IncrementalIndex<?>>();
+                    indexes.get(i).put(index.getKey(), bucketIndexes);
+                }
+                bucketIndexes.add(index.getValue());
+            }
+        }
+    }
+
+    /**
+     * Without any row, an unpartitioned ingestion still persists an empty segment.
+     */
+    private static List<Map<Long, List<IncrementalIndex<?>>>> addEmptyIndexes(
+            List<Ingestion> ingestions, List<Map<Long, List<IncrementalIndex<?>>>> indexes) {
+        for (int i = 0; i < ingestions.size(); i++) {
+            Ingestion ingestion = ingestions.get(i);
+            if (ingestion.segmentGranularity == null && indexes.get(i).isEmpty() && ingestion.spills.isEmpty()) {
+                indexes.get(i).put(SINGLE_BUCKET,
+                        Collections.<IncrementalIndex<?>>singletonList(ingestion.newIndex(SINGLE_BUCKET)));
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Persists the in-memory indexes into a single segment, merging them if there is more than one.
+     */
+    private static void persist(List<IncrementalIndex<?>> indexes, AggregatorFactory[] metrics,
+                                File indexDir, IndexSpec indexSpec) throws IOException {
+        try {
+            if (indexes.size() == 1) {
+                IndexMerger.persist(indexes.get(0), indexDir, null, indexSpec);
+                return;
+            }
+            BitmapFactory bitmapFactory = indexSpec.getBitmapSerdeFactory().getBitmapFactory();
+            List<IndexableAdapter> adapters = new ArrayList<IndexableAdapter>(indexes.size());
+            for (IncrementalIndex<?> index : indexes) {
+                adapters.add(new IncrementalIndexAdapter(index.getInterval(), index, bitmapFactory));
+            }
+            IndexMerger.merge(adapters, metrics, indexDir, null, indexSpec);
+        } finally {
+            for (IncrementalIndex<?> index : indexes) {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Merges intermediate segments into a single one.
+     */
+    private static void merge(List<File> spills, AggregatorFactory[] metrics, File indexDir, IndexSpec indexSpec)
+            throws IOException {
+        List<QueryableIndex> indexes = new ArrayList<QueryableIndex>(spills.size());
+        try {
+            for (File spill : spills) {
+                indexes.add(IndexIO.loadIndex(spill));
+            }
+            LOG.info("Merging " + indexes.size() + " intermediate segments into " + indexDir);
+            IndexMerger.mergeQueryableIndex(indexes, metrics, indexDir, indexSpec);
+        } finally {
+            for (QueryableIndex index : indexes) {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Waits for room in the queue, giving up if a worker has failed in the meantime.
+     */
+    private static void enqueue(BlockingQueue<Iterable<InputRow>> queue, Iterable<InputRow> batch,
+                                List<? extends Future<?>> workers) throws IOException {
+        try {
+            while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                for (Future<?> worker : workers) {
+                    if (worker.isDone()) {
+                        get(worker);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading rows", e);
+        }
+    }
+
+    private static <T> T get(Future<T> worker) throws IOException {
+        try {
+            return worker.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading rows", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to load rows", e.getCause());
+        }
+    }
+
+    /**
+     * State shared by the workers of a single run, for the segment or one of its views.
+     */
+    private class Ingestion {
+        private final IncrementalIndexSchema indexSchema;
+        private final RollupView view;
+        private final IncrementalIndexSchema offheapSchema;
+        private final File indexDir;
+        private final IndexSpec indexSpec;
+        private final Granularity segmentGranularity;
+        private final BufferPool offheapPool;
+        private final long rowSizeEstimate;
+        private final Map<Long, List<File>> spills = new TreeMap<Long, List<File>>();
+        private final int maxOpenBuckets;
+        private int spillCount;
+        private int smallSpillCount;
+
+        Ingestion(IncrementalIndexSchema indexSchema, File indexDir, IndexSpec indexSpec, RollupView view,
+                  Granularity segmentGranularity) {
+            this.indexSchema = indexSchema;
+            this.view = view;
+            // OffheapIncrementalIndex fails when dimensions are declared up front, as it sets them up before its
+            // own stores exist. Leaving them out is harmless since dimensions are also taken from every row.
+            this.offheapSchema = new IncrementalIndexSchema(indexSchema.getMinTimestamp(), indexSchema.getGran(),
+                    indexSchema.getDimensionsSpec().withDimensions(Collections.<String>emptyList()),
+                    indexSchema.getMetrics());
+            this.indexDir = indexDir;
+            this.indexSpec = indexSpec;
+            this.segmentGranularity = segmentGranularity;
+            // Each worker holds one buffer per open bucket, a spilled index returns its buffer before the next is
+            // created. Buffers are only allocated once a worker opens that many buckets.
+            this.maxOpenBuckets = segmentGranularity == null ? 1 : offheapMaxOpenBuckets;
+            this.offheapPool = offheap ? new BufferPool(offheapBufferSize, numThreads * maxOpenBuckets, -1) : null;
+            long rowSize = ROW_OVERHEAD_BYTES + indexSchema.getDimensionsSpec().getDimensions().size() * DIMENSION_BYTES;
+            for (AggregatorFactory metric : indexSchema.getMetrics()) {
+                rowSize += metric.getMaxIntermediateSize();
+            }
+            this.rowSizeEstimate = rowSize;
+        }
+
+        /**
+         * @param bucket time bucket of the rows of the index, which its data interval starts at
+         */
+        IncrementalIndex<?> newIndex(long bucket) {
+            IncrementalIndexSchema schema = offheap ? offheapSchema : indexSchema;
+            if (bucket > schema.getMinTimestamp()) {
+                schema = new IncrementalIndexSchema(bucket, schema.getGran(), schema.getDimensionsSpec(),
+                        schema.getMetrics());
+            }
+            if (offheap) {
+                // The total limit covers the off-heap dimension and row stores besides the aggregation buffer
+                return new OffheapIncrementalIndex(schema, offheapPool, true,
+                        Math.max(Utils.MAX_TOTAL_BUFFER_SIZE, offheapBufferSize * 2));
+            }
+            return new OnheapIncrementalIndex(schema, Integer.MAX_VALUE);
+        }
+
+        InputRow project(InputRow row) {
+            return view == null ? row : view.project(row);
+        }
+
+        /**
+         * @return start of the time bucket of the row
+         */
+        long bucket(InputRow row) {
+            if (segmentGranularity == null) {
+                return SINGLE_BUCKET;
+            }
+            return segmentGranularity.truncate(new DateTime(row.getTimestampFromEpoch(), DateTimeZone.UTC))
+                    .getMillis();
+        }
+
+        Interval interval(long bucket) {
+            return segmentGranularity.bucket(new DateTime(bucket, DateTimeZone.UTC));
+        }
+
+        /**
+         * @return whether the indexes of a worker hold too many rows together
+         */
+        boolean isFull(Iterable<IncrementalIndex<?>> indexes) {
+            long size = 0;
+            for (IncrementalIndex<?> index : indexes) {
+                size += index.size();
+            }
+            return size >= maxRowsInMemory
+                    || !offheap && maxBytesInMemory > 0 && size * rowSizeEstimate >= maxBytesInMemory;
+        }
+
+        /**
+         * Persists the in-memory indexes left by the workers, merging them with the intermediate segments of
+         * their bucket if there are any.
+         *
+         * @return the segment directory of each bucket
+         */
+        Map<Long, File> finish(Map<Long, List<IncrementalIndex<?>>> indexes) throws IOException {
+            Set<Long> buckets = new TreeSet<Long>(indexes.keySet());
+            buckets.addAll(spills.keySet());
+            Map<Long, File> dirs = new LinkedHashMap<Long, File>();
+            for (Long bucket : buckets) {
+                List<IncrementalIndex<?>> bucketIndexes = indexes.get(bucket);
+                File bucketDir = segmentGranularity == null
+                        ? indexDir
+                        : new File(indexDir, PARTITION_FORMAT.print(bucket) + "_"
+                                + PARTITION_FORMAT.print(interval(bucket).getEndMillis()));
+                if (!spills.containsKey(bucket)) {
+                    persist(bucketIndexes, indexSchema.getMetrics(), bucketDir, indexSpec);
+                } else {
+                    if (bucketIndexes != null) {
+                        for (IncrementalIndex<?> index : bucketIndexes) {
+                            spill(bucket, index);
+                            index.close();
+                        }
+                    }
+                    merge(spills.get(bucket), indexSchema.getMetrics(), bucketDir, indexSpec);
+                }
+                dirs.put(bucket, bucketDir);
+            }
+            return dirs;
+        }
+
+        /**
+         * Persists the index of a bucket to a new intermediate segment.
+         */
+        void spill(long bucket, IncrementalIndex<?> index) throws IOException {
+            File spillDir;
+            boolean warn = false;
+            synchronized (spills) {
+                List<File> bucketSpills = spills.get(bucket);
+                if (bucketSpills == null) {
+                    bucketSpills = new ArrayList<File>();
+                    spills.put(bucket, bucketSpills);
+                }
+                spillDir = new File(indexDir.getPath() + "-spill-" + spillCount++);
+                bucketSpills.add(spillDir);
+                if (offheap && segmentGranularity != null
+                        && index.size() < Math.max(1, maxRowsInMemory / SMALL_SPILL_FRACTION)) {
+                    // Warn once, then every time the number of small spills doubles
+                    smallSpillCount++;
+                    warn = Integer.bitCount(smallSpillCount) == 1 && smallSpillCount >= numThreads;
+                }
+            }
+            if (warn) {
+                LOG.warn(smallSpillCount + " off-heap buckets were spilled with few rows, the input is far from"
+                        + " time order. Raise " + OFFHEAP_MAX_OPEN_BUCKETS_PROPERTY + " or use on-heap indexes.");
+            }
+            LOG.info("Spilling " + index.size() + " rows to " + spillDir);
+            IndexMerger.persist(index, spillDir, null, indexSpec);
+        }
+    }
+
+    private class Worker implements Callable<List<Map<Long, IncrementalIndex<?>>>> {
+        private final BlockingQueue<Iterable<InputRow>> queue;
+        private final List<Ingestion> ingestions;
+        private final List<Map<Long, IncrementalIndex<?>>> indexes;
+
+        public Worker(BlockingQueue<Iterable<InputRow>> queue, List<Ingestion> ingestions) {
+            this.queue = queue;
+            this.ingestions = ingestions;
+            this.indexes = new ArrayList<Map<Long, IncrementalIndex<?>>>(ingestions.size());
+            for (int i = 0; i < ingestions.size(); i++) {
+                // In access order, so that the least recently used bucket comes first
+                indexes.add(new LinkedHashMap<Long, IncrementalIndex<?>>(16, 0.75f, true));
+            }
+        }
+
+        void add(InputRow row) throws IOException {
+            for (int i = 0; i < ingestions.size(); i++) {
+                Ingestion ingestion = ingestions.get(i);
+                Map<Long, IncrementalIndex<?>> bucketIndexes = indexes.get(i);
+                long bucket = ingestion.bucket(row);
+                IncrementalIndex<?> index = bucketIndexes.get(bucket);
+                if (index != null && !index.canAppendRow()) {
+                    spill(ingestion, bucket, bucketIndexes.remove(bucket));
+                    index = null;
+                }
+                if (index == null) {
+                    if (offheap && bucketIndexes.size() >= ingestion.maxOpenBuckets) {
+                        // The pool has maxOpenBuckets buffers per worker, held by the indexes of other buckets
+                        spillLeastRecentlyUsed(ingestion, bucketIndexes);
+                    }
+                    index = ingestion.newIndex(bucket);
+                    bucketIndexes.put(bucket, index);
+                }
+                index.add(ingestion.project(row));
+                if (ingestion.isFull(bucketIndexes.values())) {
+                    spillAll(i);
+                }
+            }
+        }
+
+        private void spillLeastRecentlyUsed(Ingestion ingestion, Map<Long, IncrementalIndex<?>> bucketIndexes)
+                throws IOException {
+            Iterator<Map.Entry<Long, IncrementalIndex<?>>> eldest = bucketIndexes.entrySet().iterator();
+            Map.Entry<Long, IncrementalIndex<?>> index = eldest.next();
+            eldest.remove();
+            spill(ingestion, index.getKey(), index.getValue());
+        }
+
+        private void spillAll(int i) throws IOException {
+            Iterator<Map.Entry<Long, IncrementalIndex<?>>> bucketIndexes = indexes.get(i).entrySet().iterator();
+            while (bucketIndexes.hasNext()) {
+                Map.Entry<Long, IncrementalIndex<?>> index = bucketIndexes.next();
+                bucketIndexes.remove();
+                spill(ingestions.get(i), index.getKey(), index.getValue());
+            }
+        }
+
+        private void spill(Ingestion ingestion, long bucket, IncrementalIndex<?> index) throws IOException {
+            try {
+                ingestion.spill(bucket, index);
+            } finally {
+                index.close();
+            }
+        }
+
+        @Override
+        public List<Map<Long, IncrementalIndex<?>>> call() throws Exception {
+            while (true) {
+                Iterable<InputRow> batch = queue.take();
+                if (batch == END_OF_INPUT) {
+                    return indexes;
+                }
+                for (InputRow row : batch) {
+                    add(row);
+                }
+            }
+        }
+    }
+}
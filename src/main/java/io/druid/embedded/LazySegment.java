@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.segment.IndexIO;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.QueryableIndexStorageAdapter;
+import io.druid.segment.Segment;
+import io.druid.segment.StorageAdapter;
+import org.joda.time.Interval;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Segment persisted in a directory and only loaded once it is scanned. Its data interval is the time bucket
+ * it was partitioned by, known without loading it, so that queries outside of the bucket never open it.
+ */
+public class LazySegment implements Segment {
+    private final String identifier;
+    private final Interval interval;
+    private final File indexDir;
+    private QueryableIndex index;
+
+    /**
+     * @param identifier identifier of the segment
+     * @param interval   time bucket holding all rows of the segment
+     * @param indexDir   directory of the persisted segment
+     */
+    public LazySegment(String identifier, Interval interval, File indexDir) {
+        this.identifier = identifier;
+        this.interval = interval;
+        this.indexDir = indexDir;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    @Override
+    public Interval getDataInterval() {
+        return interval;
+    }
+
+    @Override
+    public synchronized QueryableIndex asQueryableIndex() {
+        if (index == null) {
+            try {
+                index = IndexIO.loadIndex(indexDir);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not load segment " + identifier + " from " + indexDir, e);
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public StorageAdapter asStorageAdapter() {
+        return new QueryableIndexStorageAdapter(asQueryableIndex());
+    }
+
+    /**
+     * @return whether the segment has been loaded
+     */
+    public synchronized boolean isLoaded() {
+        return index != null;
+    }
+
+    public File getIndexDir() {
+        return indexDir;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+    }
+}
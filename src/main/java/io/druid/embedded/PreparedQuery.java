@@ -0,0 +1,273 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.query.BaseQuery;
+import io.druid.query.Query;
+import io.druid.query.filter.AndDimFilter;
+import io.druid.query.filter.DimFilter;
+import io.druid.query.filter.NotDimFilter;
+import io.druid.query.filter.OrDimFilter;
+import io.druid.query.filter.SelectorDimFilter;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.search.search.SearchQuery;
+import io.druid.query.select.SelectQuery;
+import io.druid.query.spec.MultipleIntervalSegmentSpec;
+import io.druid.query.spec.QuerySegmentSpec;
+import io.druid.query.timeseries.TimeseriesQuery;
+import io.druid.query.topn.TopNQuery;
+import org.joda.time.Interval;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Query parsed once from a template, then run with parameter bindings which are applied to the parsed query
+ * instead of going through JSON again.
+ * <p>
+ * Parameters are written "${name}" as the value of a selector filter of the query, e.g.
+ * <pre>
+ * "filter": {"type": "selector", "dimension": "page", "value": "${page}"}
+ * </pre>
+ * A parameter is bound to a string, which may be null, or to a list of strings, which turns the selector into
+ * an "or" of selectors. The intervals of the template can be replaced by binding "intervals" to an ISO 8601
+ * interval or a list of them. Every parameter must be bound.
+ */
+public class PreparedQuery {
+    public static final String INTERVALS_PARAMETER = "intervals";
+
+    private static final Pattern PARAMETER = Pattern.compile("\\$\\{(\\w+)\\}");
+
+    private final Query template;
+    private final Set<String> parameters;
+
+    /**
+     * @param template query with parameters in its selector filters
+     * @throws IllegalArgumentException if the query type can't be prepared
+     */
+    public PreparedQuery(Query template) {
+        if (!(template instanceof GroupByQuery || template instanceof TimeseriesQuery || template instanceof TopNQuery
+                || template instanceof SelectQuery || template instanceof SearchQuery)) {
+            throw new IllegalArgumentException("Queries of type " + template.getType() + " can't be prepared");
+        }
+        Set<String> names = new LinkedHashSet<String>();
+        addParameters(getFilter(template), names);
+        if (names.contains(INTERVALS_PARAMETER)) {
+            throw new IllegalArgumentException("\"" + INTERVALS_PARAMETER + "\" can't be a filter parameter");
+        }
+        this.template = template;
+        this.parameters = Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Parses the template, which may only have parameters in selector filter values.
+     *
+     * @param templateJson query JSON with parameters
+     * @return prepared query
+     * @throws IOException              if the JSON is not a valid query
+     * @throws IllegalArgumentException if parameters are used anywhere but in selector filter values
+     */
+    public static PreparedQuery fromJson(String templateJson) throws IOException {
+        PreparedQuery prepared = new PreparedQuery(QueryHelper.getQuery(templateJson));
+        Set<String> used = new HashSet<String>();
+        Matcher matcher = PARAMETER.matcher(templateJson);
+        while (matcher.find()) {
+            used.add(matcher.group(1));
+        }
+        used.removeAll(prepared.parameters);
+        if (!used.isEmpty()) {
+            throw new IllegalArgumentException("Parameters " + used + " are not selector filter values");
+        }
+        return prepared;
+    }
+
+    public Query getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return names of the filter parameters, "intervals" being always bindable
+     */
+    public Set<String> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @param bindings value of every parameter, and optionally the intervals
+     * @return the template with the parameters replaced by their values
+     * @throws IllegalArgumentException if a parameter is not bound, an unknown parameter is bound or a value
+     *                                  has the wrong type or is an empty list
+     */
+    public Query bind(Map<String, ?> bindings) {
+        for (String name : bindings.keySet()) {
+            if (!parameters.contains(name) && !INTERVALS_PARAMETER.equals(name)) {
+                throw new IllegalArgumentException("Unknown parameter " + name);
+            }
+        }
+        for (String name : parameters) {
+            if (!bindings.containsKey(name)) {
+                throw new IllegalArgumentException("Parameter " + name + " is not bound");
+            }
+        }
+        QuerySegmentSpec intervals = bindings.containsKey(INTERVALS_PARAMETER)
+                ? toSegmentSpec(bindings.get(INTERVALS_PARAMETER)) : ((BaseQuery) template).getQuerySegmentSpec();
+        DimFilter filter = bind(getFilter(template), bindings);
+        return withFilterAndIntervals(template, filter, intervals);
+    }
+
+    private static DimFilter getFilter(Query query) {
+        if (query instanceof GroupByQuery) {
+            return ((GroupByQuery) query).getDimFilter();
+        } else if (query instanceof TimeseriesQuery) {
+            return ((TimeseriesQuery) query).getDimensionsFilter();
+        } else if (query instanceof TopNQuery) {
+            return ((TopNQuery) query).getDimensionsFilter();
+        } else if (query instanceof SelectQuery) {
+            return ((SelectQuery) query).getDimensionsFilter();
+        }
+        return ((SearchQuery) query).getDimensionsFilter();
+    }
+
+    private static Query withFilterAndIntervals(Query query, DimFilter filter, QuerySegmentSpec intervals) {
+        if (query instanceof GroupByQuery) {
+            GroupByQuery groupBy = (GroupByQuery) query;
+            return new GroupByQuery(groupBy.getDataSource(), intervals, filter, groupBy.getGranularity(),
+                    groupBy.getDimensions(), groupBy.getAggregatorSpecs(), groupBy.getPostAggregatorSpecs(),
+                    groupBy.getHavingSpec(), groupBy.getLimitSpec(), groupBy.getContext());
+        } else if (query instanceof TimeseriesQuery) {
+            TimeseriesQuery timeseries = (TimeseriesQuery) query;
+            return new TimeseriesQuery(timeseries.getDataSource(), intervals, filter, timeseries.getGranularity(),
+                    timeseries.getAggregatorSpecs(), timeseries.getPostAggregatorSpecs(), timeseries.getContext());
+        } else if (query instanceof TopNQuery) {
+            TopNQuery topN = (TopNQuery) query;
+            return new TopNQuery(topN.getDataSource(), topN.getDimensionSpec(), topN.getTopNMetricSpec(),
+                    topN.getThreshold(), intervals, filter, topN.getGranularity(), topN.getAggregatorSpecs(),
+                    topN.getPostAggregatorSpecs(), topN.getContext());
+        } else if (query instanceof SelectQuery) {
+            SelectQuery select = (SelectQuery) query;
+            return new SelectQuery(select.getDataSource(), intervals, filter, select.getGranularity(),
+                    select.getDimensions(), select.getMetrics(), select.getPagingSpec(), select.getContext());
+        }
+        SearchQuery search = (SearchQuery) query;
+        return new SearchQuery(search.getDataSource(), filter, search.getGranularity(), search.getLimit(), intervals,
+                search.getDimensions(), search.getQuery(), search.getSort(), search.getContext());
+    }
+
+    private static void addParameters(DimFilter filter, Set<String> names) {
+        if (filter instanceof SelectorDimFilter) {
+            String name = getParameter((SelectorDimFilter) filter);
+            if (name != null) {
+                names.add(name);
+            }
+        } else if (filter instanceof AndDimFilter) {
+            for (DimFilter field : ((AndDimFilter) filter).getFields()) {
+                addParameters(field, names);
+            }
+        } else if (filter instanceof OrDimFilter) {
+            for (DimFilter field : ((OrDimFilter) filter).getFields()) {
+                addParameters(field, names);
+            }
+        } else if (filter instanceof NotDimFilter) {
+            addParameters(((NotDimFilter) filter).getField(), names);
+        }
+    }
+
+    /**
+     * @return a copy of the filter with its parameters replaced, sharing the parts without parameters
+     */
+    private static DimFilter bind(DimFilter filter, Map<String, ?> bindings) {
+        if (filter instanceof SelectorDimFilter) {
+            SelectorDimFilter selector = (SelectorDimFilter) filter;
+            String name = getParameter(selector);
+            return name == null ? filter : toSelector(selector.getDimension(), name, bindings.get(name));
+        } else if (filter instanceof AndDimFilter) {
+            return new AndDimFilter(bind(((AndDimFilter) filter).getFields(), bindings));
+        } else if (filter instanceof OrDimFilter) {
+            return new OrDimFilter(bind(((OrDimFilter) filter).getFields(), bindings));
+        } else if (filter instanceof NotDimFilter) {
+            return new NotDimFilter(bind(((NotDimFilter) filter).getField(), bindings));
+        }
+        return filter;
+    }
+
+    private static List<DimFilter> bind(List<DimFilter> filters, Map<String, ?> bindings) {
+        List<DimFilter> bound = new ArrayList<DimFilter>(filters.size());
+        for (DimFilter filter : filters) {
+            bound.add(bind(filter, bindings));
+        }
+        return bound;
+    }
+
+    private static DimFilter toSelector(String dimension, String name, Object value) {
+        if (value == null || value instanceof String) {
+            return new SelectorDimFilter(dimension, (String) value);
+        } else if (value instanceof List) {
+            if (((List<?>) value).isEmpty()) {
+                throw new IllegalArgumentException("Parameter " + name + " can't be an empty list");
+            }
+            List<DimFilter> selectors = new ArrayList<DimFilter>();
+            for (Object element : (List<?>) value) {
+                if (element != null && !(element instanceof String)) {
+                    throw new IllegalArgumentException("Parameter " + name + " must be a string or a list of strings");
+                }
+                selectors.add(new SelectorDimFilter(dimension, (String) element));
+            }
+            return new OrDimFilter(selectors);
+        }
+        throw new IllegalArgumentException("Parameter " + name + " must be a string or a list of strings");
+    }
+
+    private static QuerySegmentSpec toSegmentSpec(Object value) {
+        List<Interval> intervals = new ArrayList<Interval>();
+        if (value instanceof List) {
+            for (Object interval : (List<?>) value) {
+                intervals.add(toInterval(interval));
+            }
+        } else {
+            intervals.add(toInterval(value));
+        }
+        return new MultipleIntervalSegmentSpec(intervals);
+    }
+
+    private static Interval toInterval(Object value) {
+        if (value instanceof Interval) {
+            return (Interval) value;
+        } else if (value instanceof String) {
+            return new Interval(value);
+        }
+        throw new IllegalArgumentException("\"" + INTERVALS_PARAMETER + "\" must be an interval or a list of them");
+    }
+
+    /**
+     * @return name of the parameter the selector matches, or null if it matches a fixed value
+     */
+    private static String getParameter(SelectorDimFilter selector) {
+        if (selector.getValue() == null) {
+            return null;
+        }
+        Matcher matcher = PARAMETER.matcher(selector.getValue());
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+}
@@ -19,15 +19,33 @@ package io.druid.embedded;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.base.Function;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.metamx.common.guava.Sequence;
+import com.metamx.emitter.service.ServiceEmitter;
+import com.metamx.emitter.service.ServiceMetricEvent;
+import io.druid.embedded.cache.CachingQueryRunner;
+import io.druid.embedded.cache.ParsedQueryCache;
+import io.druid.embedded.cache.QueryResultCache;
+import io.druid.embedded.groupby.SpillingGroupByConfig;
+import io.druid.embedded.groupby.SpillingGroupByMerger;
+import io.druid.embedded.groupby.SpillingGroupByQueryRunnerFactory;
+import io.druid.embedded.groupby.SpillingGroupByQueryToolChest;
 import io.druid.embedded.jackson.QueryObjectMapper;
+import io.druid.embedded.metrics.MetricsEmitter;
 import io.druid.query.DefaultQueryRunnerFactoryConglomerate;
+import io.druid.query.MetricsEmittingQueryRunner;
 import io.druid.query.Query;
+import io.druid.query.QueryContextKeys;
+import io.druid.query.QueryRunner;
 import io.druid.query.QueryRunnerFactory;
 import io.druid.query.QueryRunnerFactoryConglomerate;
+import io.druid.query.QueryToolChest;
 import io.druid.query.groupby.*;
 import io.druid.query.metadata.SegmentMetadataQueryConfig;
 import io.druid.query.metadata.SegmentMetadataQueryQueryToolChest;
@@ -53,10 +71,20 @@ import io.druid.query.topn.TopNQueryQueryToolChest;
 import io.druid.query.topn.TopNQueryRunnerFactory;
 import io.druid.segment.QueryableIndex;
 import io.druid.segment.QueryableIndexSegment;
+import io.druid.segment.Segment;
+import org.joda.time.Interval;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This Helper class maintains all required query interface related classes and invokes it based
@@ -64,7 +92,19 @@ import java.util.HashMap;
  */
 public class QueryHelper {
     public static final ObjectMapper jsonMapper = new QueryObjectMapper();
+    public static final String NUM_THREADS_PROPERTY = "druid.processing.numThreads";
+    public static final ObjectMapper smileMapper = new QueryObjectMapper(new SmileFactory());
     private static final QueryRunnerFactoryConglomerate conglomerate;
+    private static final ExecutorService queryExecutor;
+    public static final String TIMEOUT_PROPERTY = "druid.query.timeoutMillis";
+    private static final QueryResultCache resultCache = QueryResultCache.fromSystemProperties();
+    private static final ParsedQueryCache parsedQueryCache = ParsedQueryCache.fromSystemProperties(jsonMapper);
+    private static final QueryManager queryManager = new QueryManager();
+    private static final ChunkingQueryRunnerDecorator intervalChunking =
+            ChunkingQueryRunnerDecorator.fromSystemProperties(queryManager);
+    private static final MetricsEmitter metrics = new MetricsEmitter();
+    private static final ServiceEmitter emitter = new ServiceEmitter("embedded-druid", "localhost", metrics);
+    private static final long defaultTimeout = Long.getLong(TIMEOUT_PROPERTY, 0);
 
     /*
      * Initialize QueryRunnerFactoryConglomerate.
@@ -86,11 +126,202 @@ public class QueryHelper {
         DefaultQueryRunnerFactoryConglomerate _conglomerate =
                 new DefaultQueryRunnerFactoryConglomerate(map);
         conglomerate = _conglomerate;
+
+        int numThreads = Integer.getInteger(NUM_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+        queryExecutor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("processing-%d").build());
+
+        registerSuppliedMetrics();
     }
 
-    @SuppressWarnings("unchecked")
     public static Sequence run(Query query, QueryableIndex index) {
-        return findFactory(query).createRunner(new QueryableIndexSegment("", index)).run(query, null);
+        return run(query, Collections.<Segment>singletonList(new QueryableIndexSegment("", index)));
+    }
+
+    /**
+     * Executes the query on every segment of the registry which belongs to one of the query's data sources
+     * and overlaps the query intervals, and merges the results. Segments with rollup views are scanned through
+     * their smallest view able to answer the query.
+     *
+     * @param query    Query to execute
+     * @param registry Registry to pick segments from
+     * @return Merged result of the query
+     */
+    public static Sequence run(Query query, SegmentRegistry registry) {
+        List<Segment> segments = new ArrayList<Segment>();
+        @SuppressWarnings("unchecked")
+        List<Interval> intervals = query.getIntervals();
+        for (String dataSource : query.getDataSource().getNames()) {
+            for (Segment segment : registry.getSegments(dataSource, intervals)) {
+                segments.add(route(query, segment, registry.getViews(segment.getIdentifier())));
+            }
+        }
+        return run(query, segments);
+    }
+
+    /**
+     * @return the smallest rollup view of the segment which gives the same results for the query, or the
+     * segment itself if none does
+     */
+    private static Segment route(Query query, Segment segment, Map<RollupView, Segment> views) {
+        Segment routed = segment;
+        for (Map.Entry<RollupView, Segment> view : views.entrySet()) {
+            if (view.getKey().canAnswer(query, segment.getDataInterval())
+                    && view.getValue().asQueryableIndex().getNumRows()
+                    < routed.asQueryableIndex().getNumRows()) {
+                routed = view.getValue();
+            }
+        }
+        return routed;
+    }
+
+    /**
+     * Executes the query on the given segments in parallel on the processing pool and merges the results
+     * through the query's toolchest.
+     *
+     * @param query    Query to execute
+     * @param segments Segments to scan
+     * @return Merged result of the query
+     */
+    @SuppressWarnings("unchecked")
+    public static Sequence run(Query query, List<Segment> segments) {
+        query = prepareQuery(query);
+        QueryRunnerFactory factory = findFactory(query);
+        QueryToolChest toolChest = factory.getToolchest();
+        List<QueryRunner> runners = new ArrayList<QueryRunner>(segments.size());
+        for (Segment segment : segments) {
+            QueryRunner runner = instrument(segment, factory.createRunner(segment), toolChest);
+            // Only persisted segments are immutable, so only their results can be cached
+            if (isCacheable(segment)) {
+                runner = new CachingQueryRunner(segment.getIdentifier(), runner, toolChest, resultCache, smileMapper);
+            }
+            runners.add(runner);
+        }
+        // Long intervals are split into chunks, each merged on its own before the chunks are merged together
+        QueryRunner runner = toolChest.mergeResults(
+                intervalChunking.decorate(factory.mergeRunners(queryExecutor, runners), toolChest));
+        runner = new MetricsEmittingQueryRunner(emitter, metricBuilder(toolChest), runner,
+                "query/time", Collections.<String, String>emptyMap());
+        return runner.run(query, new ConcurrentHashMap<String, Object>());
+    }
+
+    /**
+     * Emits the time spent scanning the segment as "query/segment/time" and its number of rows as
+     * "query/segment/rows". Cached results don't reach this runner, so they are not counted.
+     */
+    @SuppressWarnings("unchecked")
+    private static QueryRunner instrument(final Segment segment, QueryRunner runner, final QueryToolChest toolChest) {
+        final QueryRunner timed = new MetricsEmittingQueryRunner(emitter, metricBuilder(toolChest), runner,
+                "query/segment/time", Collections.<String, String>emptyMap());
+        return new QueryRunner() {
+            @Override
+            public Sequence run(Query query, Map responseContext) {
+                // A segment is handed every chunk of a query, only count the rows of those it overlaps
+                if (overlaps(segment, query)) {
+                    emitter.emit(toolChest.makeMetricBuilder(query)
+                            .build("query/segment/rows", segment.asStorageAdapter().getNumRows()));
+                }
+                return timed.run(query, responseContext);
+            }
+        };
+    }
+
+    private static boolean overlaps(Segment segment, Query query) {
+        Interval dataInterval = segment.getDataInterval();
+        for (Object interval : query.getIntervals()) {
+            if (dataInterval.overlaps((Interval) interval)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Function<Query, ServiceMetricEvent.Builder> metricBuilder(final QueryToolChest toolChest) {
+        return new Function<Query, ServiceMetricEvent.Builder>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public ServiceMetricEvent.Builder apply(Query query) {
+                return toolChest.makeMetricBuilder(query);
+            }
+        };
+    }
+
+    /**
+     * Emits a metric of the query, with the dimensions set by its toolchest.
+     *
+     * @param query  Query the metric belongs to
+     * @param metric Name of the metric, ending in "/time" for latencies in milliseconds
+     * @param value  Value of the metric
+     */
+    @SuppressWarnings("unchecked")
+    public static void emitMetric(Query query, String metric, Number value) {
+        emitter.emit(findFactory(query).getToolchest().makeMetricBuilder(query).build(metric, value));
+    }
+
+    /**
+     * @return metrics of the queries run so far, along with buffer pool and cache gauges and totals
+     */
+    public static MetricsEmitter getMetrics() {
+        return metrics;
+    }
+
+    private static void registerSuppliedMetrics() {
+        final BufferPool bufferPool = Utils.getBufferPool();
+        metrics.addGauge("buffer_pool_allocated", new Supplier<Integer>() {
+            public Integer get() {
+                return bufferPool.getAllocatedCount();
+            }
+        });
+        metrics.addGauge("buffer_pool_in_use", new Supplier<Integer>() {
+            public Integer get() {
+                return bufferPool.getInUseCount();
+            }
+        });
+        metrics.addCounter("buffer_pool_waits", new Supplier<Long>() {
+            public Long get() {
+                return bufferPool.getWaitCount();
+            }
+        });
+        metrics.addCounter("buffer_pool_wait_time_milliseconds", new Supplier<Long>() {
+            public Long get() {
+                return bufferPool.getWaitTimeMillis();
+            }
+        });
+        metrics.addCounter("buffer_pool_failures", new Supplier<Long>() {
+            public Long get() {
+                return bufferPool.getFailureCount();
+            }
+        });
+        metrics.addCounter("cache_hits", new Supplier<Long>() {
+            public Long get() {
+                return resultCache.getHitCount();
+            }
+        });
+        metrics.addCounter("cache_misses", new Supplier<Long>() {
+            public Long get() {
+                return resultCache.getMissCount();
+            }
+        });
+        metrics.addCounter("cache_evictions", new Supplier<Long>() {
+            public Long get() {
+                return resultCache.getEvictionCount();
+            }
+        });
+        metrics.addGauge("cache_size_bytes", new Supplier<Long>() {
+            public Long get() {
+                return resultCache.getSizeBytes();
+            }
+        });
+        metrics.addCounter("parse_cache_hits", new Supplier<Long>() {
+            public Long get() {
+                return parsedQueryCache.getHitCount();
+            }
+        });
+        metrics.addCounter("parse_cache_misses", new Supplier<Long>() {
+            public Long get() {
+                return parsedQueryCache.getMissCount();
+            }
+        });
     }
 
     /**
@@ -105,6 +336,63 @@ public class QueryHelper {
         return run(getQuery(queryJson), index);
     }
 
+    /**
+     * Parses a query JSON and executes it on the matching segments of the registry
+     *
+     * @param queryJson Query JSON
+     * @param registry  Registry to pick segments from
+     * @return Result of the query
+     * @throws IOException
+     */
+    public static Sequence run(String queryJson, SegmentRegistry registry) throws IOException {
+        return run(getQuery(queryJson), registry);
+    }
+
+    /**
+     * Gives the query an id, so that it can be cancelled through the {@link QueryManager}, and the timeout
+     * set by "druid.query.timeoutMillis" unless its context has one.
+     *
+     * @param query Query to prepare
+     * @return Query with an id and, if configured, a timeout
+     */
+    @SuppressWarnings("unchecked")
+    public static Query prepareQuery(Query query) {
+        if (query.getId() == null) {
+            query = query.withId(UUID.randomUUID().toString());
+        }
+        if (defaultTimeout > 0 && query.getContextValue(QueryContextKeys.TIMEOUT) == null) {
+            query = query.withOverriddenContext(
+                    ImmutableMap.<String, Object>of(QueryContextKeys.TIMEOUT, defaultTimeout));
+        }
+        return query;
+    }
+
+    private static boolean isCacheable(Segment segment) {
+        return resultCache.isEnabled() && segment.asQueryableIndex() != null
+                && segment.getIdentifier() != null && !segment.getIdentifier().isEmpty();
+    }
+
+    /**
+     * @return watcher of the running queries, used to cancel them
+     */
+    public static QueryManager getQueryManager() {
+        return queryManager;
+    }
+
+    /**
+     * @return cache holding parsed queries
+     */
+    public static ParsedQueryCache getParsedQueryCache() {
+        return parsedQueryCache;
+    }
+
+    /**
+     * @return cache holding per-segment query results
+     */
+    public static QueryResultCache getResultCache() {
+        return resultCache;
+    }
+
     @SuppressWarnings("unchecked")
     public static QueryRunnerFactory findFactory(Query query) {
         return conglomerate.findFactory(query);
@@ -116,16 +404,16 @@ public class QueryHelper {
 
     private static TimeseriesQueryRunnerFactory getTimeseriesQueryRunnerFactory() {
         TimeseriesQueryQueryToolChest toolChest =
-                new TimeseriesQueryQueryToolChest(Utils.NoopIntervalChunkingQueryRunnerDecorator());
+                new TimeseriesQueryQueryToolChest(intervalChunking);
         TimeseriesQueryEngine engine = new TimeseriesQueryEngine();
         final TimeseriesQueryRunnerFactory factory =
-                new TimeseriesQueryRunnerFactory(toolChest, engine, Utils.NOOP_QUERYWATCHER);
+                new TimeseriesQueryRunnerFactory(toolChest, engine, queryManager);
         return factory;
     }
 
     private static TimeBoundaryQueryRunnerFactory getTimeBoundaryQueryRunnerFactory() {
         final TimeBoundaryQueryRunnerFactory factory =
-                new TimeBoundaryQueryRunnerFactory(Utils.NOOP_QUERYWATCHER);
+                new TimeBoundaryQueryRunnerFactory(queryManager);
         return factory;
     }
 
@@ -133,49 +421,55 @@ public class QueryHelper {
         SegmentMetadataQueryConfig config = new SegmentMetadataQueryConfig();
         SegmentMetadataQueryQueryToolChest toolChest = new SegmentMetadataQueryQueryToolChest(config);
         final SegmentMetadataQueryRunnerFactory factory =
-                new SegmentMetadataQueryRunnerFactory(toolChest, Utils.NOOP_QUERYWATCHER);
+                new SegmentMetadataQueryRunnerFactory(toolChest, queryManager);
         return factory;
     }
 
     private static SelectQueryRunnerFactory getSelectQueryRunnerFactory() {
         SelectQueryQueryToolChest toolChest =
                 new SelectQueryQueryToolChest(new ObjectMapper(),
-                        Utils.NoopIntervalChunkingQueryRunnerDecorator());
+                        intervalChunking);
         SelectQueryEngine engine = new SelectQueryEngine();
         final SelectQueryRunnerFactory factory =
-                new SelectQueryRunnerFactory(toolChest, engine, Utils.NOOP_QUERYWATCHER);
+                new SelectQueryRunnerFactory(toolChest, engine, queryManager);
         return factory;
     }
 
     private static SearchQueryRunnerFactory getSearchQueryRunnerFactory() {
         SearchQueryQueryToolChest toolChest =
                 new SearchQueryQueryToolChest(new SearchQueryConfig(),
-                        Utils.NoopIntervalChunkingQueryRunnerDecorator());
+                        intervalChunking);
         SearchQueryRunnerFactory factory =
-                new SearchQueryRunnerFactory(toolChest, Utils.NOOP_QUERYWATCHER);
+                new SearchQueryRunnerFactory(toolChest, queryManager);
         return factory;
     }
 
     private static TopNQueryRunnerFactory getTopNQueryRunnerFactory() {
         TopNQueryQueryToolChest toolchest =
                 new TopNQueryQueryToolChest(new TopNQueryConfig(),
-                        Utils.NoopIntervalChunkingQueryRunnerDecorator());
+                        intervalChunking);
         TopNQueryRunnerFactory factory =
-                new TopNQueryRunnerFactory(Utils.getBufferPool(), toolchest, Utils.NOOP_QUERYWATCHER);
+                new TopNQueryRunnerFactory(Utils.getBufferPool(), toolchest, queryManager);
         return factory;
     }
 
     private static GroupByQueryRunnerFactory getGroupByQueryRunnerFactory() {
-        GroupByQueryConfig config = new GroupByQueryConfig();
-        config.setMaxIntermediateRows(10000);
-
-        Supplier<GroupByQueryConfig> configSupplier = Suppliers.ofInstance(config);
-        GroupByQueryEngine engine = new GroupByQueryEngine(configSupplier, Utils.getBufferPool());
+        SpillingGroupByConfig groupByConfig = SpillingGroupByConfig.fromSystemProperties();
+        Supplier<GroupByQueryConfig> configSupplier = Suppliers.ofInstance(groupByConfig.toQueryConfig(jsonMapper));
+        // Engine, toolchest and factory all draw from the same process-wide pool
+        BufferPool bufferPool = Utils.getBufferPool();
+        GroupByQueryEngine engine = new GroupByQueryEngine(configSupplier, bufferPool);
+        // Merges hold their own buffers, so that they never wait for the segment scans they merge
+        BufferPool mergeBufferPool = new BufferPool(groupByConfig.getBufferSizeBytes(),
+                groupByConfig.getNumMergeBuffers(),
+                Long.getLong(BufferPool.TIMEOUT_PROPERTY, BufferPool.DEFAULT_TIMEOUT_MILLIS));
+        SpillingGroupByMerger merger = new SpillingGroupByMerger(groupByConfig, mergeBufferPool, smileMapper,
+                queryManager);
 
         GroupByQueryRunnerFactory factory =
-                new GroupByQueryRunnerFactory(engine, Utils.NOOP_QUERYWATCHER, configSupplier,
-                        new GroupByQueryQueryToolChest(configSupplier, jsonMapper, engine, Utils.getBufferPool(),
-                                Utils.NoopIntervalChunkingQueryRunnerDecorator()), Utils.getBufferPool());
+                new SpillingGroupByQueryRunnerFactory(engine, queryManager, configSupplier,
+                        new SpillingGroupByQueryToolChest(configSupplier, jsonMapper, engine, bufferPool,
+                                intervalChunking, merger), bufferPool, merger);
         return factory;
     }
 
@@ -185,7 +479,8 @@ public class QueryHelper {
     }
 
     /**
-     * Converts the given query JSON into a Query object
+     * Converts the given query JSON into a Query object. Queries are kept in a {@link ParsedQueryCache}, so
+     * that a query posted again is not parsed again.
      *
      * @param queryJson query JSON
      * @return Query object containing the query
@@ -195,6 +490,6 @@ public class QueryHelper {
      */
     public static Query getQuery(String queryJson) throws JsonParseException,
             JsonMappingException, IOException {
-        return jsonMapper.readValue(queryJson, Query.class);
+        return parsedQueryCache.parse(queryJson);
     }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.druid.query.Query;
+import io.druid.query.QueryWatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps track of the futures of running queries by query id, so that they can be cancelled.
+ * Cancelling interrupts the processing threads; segment cursors check for interruption, so the scan stops
+ * and its processing buffers are returned to the pool right away.
+ * <p>
+ * Timeouts are enforced by the merging runners, which wait for the registered futures for at most the
+ * "timeout" of the query context and cancel them once it has passed.
+ */
+public class QueryManager implements QueryWatcher {
+    private final SetMultimap<String, ListenableFuture> queries = HashMultimap.create();
+
+    @Override
+    public void registerQuery(Query query, final ListenableFuture future) {
+        final String id = query.getId();
+        if (id == null) {
+            return;
+        }
+        synchronized (queries) {
+            queries.put(id, future);
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (queries) {
+                    queries.remove(id, future);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Cancels all running work of a query.
+     *
+     * @param id query id
+     * @return whether the query was running
+     */
+    public boolean cancelQuery(String id) {
+        List<ListenableFuture> futures;
+        synchronized (queries) {
+            futures = new ArrayList<ListenableFuture>(queries.removeAll(id));
+        }
+        for (ListenableFuture future : futures) {
+            future.cancel(true);
+        }
+        return !futures.isEmpty();
+    }
+
+    /**
+     * @return ids of the queries currently running
+     */
+    public Set<String> getRunningQueries() {
+        synchronized (queries) {
+            return ImmutableSet.copyOf(queries.keySet());
+        }
+    }
+}
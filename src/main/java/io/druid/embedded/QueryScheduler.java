@@ -0,0 +1,294 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.druid.query.Query;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for queries. Queries are assigned to a lane by type, and each lane runs a limited
+ * number of queries at once. Queries finding no free slot wait in a bounded queue; once the queue is full,
+ * or a query waited too long, it is rejected with a {@link QueryCapacityExceededException}.
+ * Waiting doesn't take a thread, a released slot is handed straight to the next query in the queue.
+ * <p>
+ * Lanes don't share slots, so cheap queries in the light lane are never stuck behind heavy ones.
+ * Configuration is read from system properties (see {@link #fromSystemProperties()}):
+ * <ul>
+ * <li>druid.query.scheduler.light.numSlots : concurrent light queries (default number of processors)</li>
+ * <li>druid.query.scheduler.heavy.numSlots : concurrent heavy queries (default number of processors)</li>
+ * <li>druid.query.scheduler.lightTypes : query types of the light lane, any other type is heavy
+ * (default timeBoundary,timeseries,segmentMetadata)</li>
+ * <li>druid.query.scheduler.maxQueued : queries waiting for a slot per lane (default 100)</li>
+ * <li>druid.query.scheduler.queueTimeoutMillis : how long a query waits for a slot (default 30000)</li>
+ * <li>druid.query.scheduler.retryAfterSeconds : delay suggested to rejected clients (default 1)</li>
+ * </ul>
+ */
+public class QueryScheduler {
+    public static final String LIGHT_SLOTS_PROPERTY = "druid.query.scheduler.light.numSlots";
+    public static final String HEAVY_SLOTS_PROPERTY = "druid.query.scheduler.heavy.numSlots";
+    public static final String LIGHT_TYPES_PROPERTY = "druid.query.scheduler.lightTypes";
+    public static final String MAX_QUEUED_PROPERTY = "druid.query.scheduler.maxQueued";
+    public static final String QUEUE_TIMEOUT_PROPERTY = "druid.query.scheduler.queueTimeoutMillis";
+    public static final String RETRY_AFTER_PROPERTY = "druid.query.scheduler.retryAfterSeconds";
+
+    public static final String DEFAULT_LIGHT_TYPES =
+            Query.TIME_BOUNDARY + "," + Query.TIMESERIES + "," + Query.SEGMENT_METADATA;
+    public static final int DEFAULT_MAX_QUEUED = 100;
+    public static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+
+    private final List<Lane> lanes;
+    private final Lane defaultLane;
+    private final long queueTimeoutMillis;
+    private final int retryAfterSeconds;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("query-scheduler-%d").build());
+
+    /**
+     * @param lanes              lanes to run queries in, queries of types no lane lists run in the last one
+     * @param queueTimeoutMillis time a query waits for a slot before being rejected
+     * @param retryAfterSeconds  delay suggested to rejected clients
+     */
+    public QueryScheduler(List<Lane> lanes, long queueTimeoutMillis, int retryAfterSeconds) {
+        if (lanes.isEmpty()) {
+            throw new IllegalArgumentException("At least one lane is needed");
+        }
+        this.lanes = ImmutableList.copyOf(lanes);
+        this.defaultLane = lanes.get(lanes.size() - 1);
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public static QueryScheduler fromSystemProperties() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int maxQueued = Integer.getInteger(MAX_QUEUED_PROPERTY, DEFAULT_MAX_QUEUED);
+        Set<String> lightTypes = ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings()
+                .split(System.getProperty(LIGHT_TYPES_PROPERTY, DEFAULT_LIGHT_TYPES)));
+        return new QueryScheduler(
+                ImmutableList.of(
+                        new Lane("light", lightTypes, Integer.getInteger(LIGHT_SLOTS_PROPERTY, processors), maxQueued),
+                        new Lane("heavy", ImmutableSet.<String>of(),
+                                Integer.getInteger(HEAVY_SLOTS_PROPERTY, processors), maxQueued)),
+                Long.getLong(QUEUE_TIMEOUT_PROPERTY, DEFAULT_QUEUE_TIMEOUT_MILLIS),
+                Integer.getInteger(RETRY_AFTER_PROPERTY, DEFAULT_RETRY_AFTER_SECONDS));
+    }
+
+    /**
+     * Takes a slot in the lane of the query, waiting for one if the lane is busy.
+     *
+     * @param query Query to run
+     * @return Slot to close once the query is done
+     * @throws QueryCapacityExceededException if the queue of the lane is full or no slot freed up in time
+     */
+    public Slot acquire(Query query) {
+        ListenableFuture<Slot> future = acquireAsync(query);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw Throwables.propagate(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (!future.cancel(false)) {
+                // A slot was handed over in the meantime
+                Futures.getUnchecked(future).close();
+            }
+            throw reject(getLane(query.getType()), "interrupted while waiting");
+        }
+    }
+
+    /**
+     * Takes a slot in the lane of the query without blocking. If the lane is busy, the query is queued and
+     * the future completes once a slot is released to it, or fails with a {@link QueryCapacityExceededException}
+     * when the queue timeout passes. Cancelling the future gives up the place in the queue.
+     *
+     * @param query Query to run
+     * @return Future of the slot to close once the query is done
+     * @throws QueryCapacityExceededException if the queue of the lane is full
+     */
+    public ListenableFuture<Slot> acquireAsync(Query query) {
+        final Lane lane = getLane(query.getType());
+        final SettableFuture<Slot> waiter = SettableFuture.create();
+        synchronized (lane) {
+            if (lane.available > 0) {
+                lane.available--;
+                return Futures.immediateFuture(new Slot(lane));
+            }
+            if (lane.waiters.size() >= lane.maxQueued) {
+                throw reject(lane, "queue is full");
+            }
+            lane.waiters.add(waiter);
+        }
+        waiter.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (waiter.isCancelled()) {
+                    synchronized (lane) {
+                        lane.waiters.remove(waiter);
+                    }
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                boolean expired;
+                synchronized (lane) {
+                    expired = lane.waiters.remove(waiter);
+                }
+                if (expired) {
+                    waiter.setException(reject(lane, "no slot freed up within " + queueTimeoutMillis + " ms"));
+                }
+            }
+        }, queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        return waiter;
+    }
+
+    /**
+     * @return lane running queries of the given type
+     */
+    public Lane getLane(String queryType) {
+        for (Lane lane : lanes) {
+            if (lane.types.contains(queryType)) {
+                return lane;
+            }
+        }
+        return defaultLane;
+    }
+
+    public List<Lane> getLanes() {
+        return lanes;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    private QueryCapacityExceededException reject(Lane lane, String reason) {
+        rejectedCount.incrementAndGet();
+        return new QueryCapacityExceededException(
+                "Too many " + lane.name + " queries, " + reason, retryAfterSeconds);
+    }
+
+    /**
+     * Group of query types sharing a number of slots and a wait queue.
+     */
+    public static class Lane {
+        private final String name;
+        private final Set<String> types;
+        private final int numSlots;
+        private final int maxQueued;
+        private final Deque<SettableFuture<Slot>> waiters = new ArrayDeque<SettableFuture<Slot>>();
+        private int available;
+
+        /**
+         * @param name      name of the lane
+         * @param types     query types running in the lane
+         * @param numSlots  queries of the lane running at once
+         * @param maxQueued queries of the lane waiting for a slot at once
+         */
+        public Lane(String name, Set<String> types, int numSlots, int maxQueued) {
+            if (numSlots < 1) {
+                throw new IllegalArgumentException("Lane " + name + " needs at least one slot");
+            }
+            this.name = name;
+            this.types = ImmutableSet.copyOf(types);
+            this.numSlots = numSlots;
+            this.maxQueued = maxQueued;
+            this.available = numSlots;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getNumSlots() {
+            return numSlots;
+        }
+
+        public synchronized int getRunningCount() {
+            return numSlots - available;
+        }
+
+        public synchronized int getQueuedCount() {
+            return waiters.size();
+        }
+
+        /**
+         * Hands the slot over to the first waiting query which is still interested, or frees it.
+         */
+        private void release() {
+            while (true) {
+                SettableFuture<Slot> waiter;
+                synchronized (this) {
+                    waiter = waiters.poll();
+                    if (waiter == null) {
+                        available++;
+                        return;
+                    }
+                }
+                if (waiter.set(new Slot(this))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Slot taken by a running query. Closing it more than once has no effect.
+     */
+    public static class Slot implements Closeable {
+        private final Lane lane;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Slot(Lane lane) {
+            this.lane = lane;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                lane.release();
+            }
+        }
+    }
+}
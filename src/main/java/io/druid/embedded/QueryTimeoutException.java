@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.query.QueryInterruptedException;
+
+/**
+ * Thrown when a query runs past its "timeout" context. Reported to clients as a gateway timeout.
+ */
+public class QueryTimeoutException extends QueryInterruptedException {
+    /**
+     * Message of the timeouts thrown by Druid's own runners, which are plain QueryInterruptedExceptions.
+     */
+    public static final String MESSAGE = "Query timeout";
+
+    private static final long serialVersionUID = 1L;
+
+    public QueryTimeoutException() {
+        super(MESSAGE);
+    }
+
+    /**
+     * @return whether the exception reports a timeout, thrown here or by one of Druid's runners
+     */
+    public static boolean isTimeout(Throwable e) {
+        return e instanceof QueryTimeoutException
+                || e instanceof QueryInterruptedException && MESSAGE.equals(e.getMessage());
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.druid.data.input.InputRow;
+import io.druid.data.input.MapBasedInputRow;
+import io.druid.segment.IncrementalIndexSegment;
+import io.druid.segment.IndexIO;
+import io.druid.segment.IndexMerger;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.QueryableIndexSegment;
+import io.druid.segment.Segment;
+import io.druid.segment.incremental.IncrementalIndex;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+import io.druid.segment.incremental.IndexSizeExceededException;
+import io.druid.segment.incremental.OnheapIncrementalIndex;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Data source accepting rows while it is being queried. Rows are appended to an in-memory tail which is
+ * registered as an {@link IncrementalIndexSegment}, so they can be queried right away.
+ * <p>
+ * Once the tail holds "druid.realtime.maxRows" rows or is older than "druid.realtime.maxAgeMillis", it is
+ * replaced by a fresh tail and handed off: a background thread persists it, loads it back as an immutable
+ * segment, swaps it for the tail in the registry and closes the tail. Appends never wait for a handoff.
+ */
+public class RealtimeIndex {
+    private static final Logger LOG = Logger.getLogger(RealtimeIndex.class);
+
+    public static final String MAX_ROWS_PROPERTY = "druid.realtime.maxRows";
+    public static final String MAX_AGE_PROPERTY = "druid.realtime.maxAgeMillis";
+    public static final String DIR_PROPERTY = "druid.realtime.dir";
+    public static final int DEFAULT_MAX_ROWS = 100000;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+    private static final AtomicInteger sequence = new AtomicInteger();
+
+    private final String dataSource;
+    private final IncrementalIndexSchema indexSchema;
+    private final String timestampColumn;
+    private final SegmentRegistry registry;
+    private final int maxRows;
+    private final long maxAgeMillis;
+    private final File persistDir;
+    private final ExecutorService handoffExecutor;
+    private final ScheduledExecutorService ageChecker;
+
+    private IncrementalIndex tail;
+    private Segment tailSegment;
+    private long tailCreatedMillis;
+    private boolean closed;
+
+    /**
+     * Creates a realtime data source with the limits and persist directory set by system properties.
+     *
+     * @param dataSource      Name of the data source
+     * @param indexSchema     Schema of the index
+     * @param timestampColumn Column holding the timestamp of a row, as millis or ISO 8601
+     * @param registry        Registry to add the segments to
+     */
+    public RealtimeIndex(String dataSource, IncrementalIndexSchema indexSchema, String timestampColumn,
+                         SegmentRegistry registry) {
+        this(dataSource, indexSchema, timestampColumn, registry,
+                Integer.getInteger(MAX_ROWS_PROPERTY, DEFAULT_MAX_ROWS),
+                Long.getLong(MAX_AGE_PROPERTY, DEFAULT_MAX_AGE_MILLIS),
+                new File(System.getProperty(DIR_PROPERTY,
+                        System.getProperty("java.io.tmpdir") + File.separator + "druid-realtime")));
+    }
+
+    /**
+     * @param dataSource      Name of the data source
+     * @param indexSchema     Schema of the index
+     * @param timestampColumn Column holding the timestamp of a row, as millis or ISO 8601
+     * @param registry        Registry to add the segments to
+     * @param maxRows         Number of rows after which the tail is handed off
+     * @param maxAgeMillis    Age after which a non-empty tail is handed off
+     * @param persistDir      Directory holding the handed off segments
+     */
+    public RealtimeIndex(String dataSource, IncrementalIndexSchema indexSchema, String timestampColumn,
+                         SegmentRegistry registry, int maxRows, long maxAgeMillis, File persistDir) {
+        if (maxRows < 1 || maxAgeMillis < 1) {
+            throw new IllegalArgumentException("Maximum rows and age must be positive");
+        }
+        this.dataSource = dataSource;
+        this.indexSchema = indexSchema;
+        this.timestampColumn = timestampColumn;
+        this.registry = registry;
+        this.maxRows = maxRows;
+        this.maxAgeMillis = maxAgeMillis;
+        this.persistDir = persistDir;
+        this.handoffExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("handoff-" + dataSource + "-%d").build());
+        this.ageChecker = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("handoff-timer-" + dataSource + "-%d").build());
+        newTail();
+
+        long period = Math.min(maxAgeMillis, 1000);
+        ageChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                handoffIfExpired();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public String getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Appends a row to the tail, handing the tail off if it is full.
+     *
+     * @param row Row to append
+     */
+    public synchronized void add(InputRow row) {
+        if (closed) {
+            throw new IllegalStateException("Realtime index " + dataSource + " is closed");
+        }
+        try {
+            tail.add(row);
+        } catch (IndexSizeExceededException e) {
+            throw new IllegalStateException(e);
+        }
+        if (tail.size() >= maxRows) {
+            handoff();
+        }
+    }
+
+    /**
+     * Appends a row given as a map of column name to value. Dimensions are those of the schema, or all
+     * columns but the timestamp if the schema declares none.
+     *
+     * @param event Row to append
+     */
+    public void add(Map<String, Object> event) {
+        Object timestamp = event.get(timestampColumn);
+        if (timestamp == null) {
+            throw new IllegalArgumentException("Row has no timestamp column " + timestampColumn);
+        }
+        List<String> dimensions = indexSchema.getDimensionsSpec().getDimensions();
+        if (dimensions.isEmpty()) {
+            dimensions = new ArrayList<String>(event.keySet());
+            dimensions.remove(timestampColumn);
+        }
+        add(new MapBasedInputRow(parseTimestamp(timestamp), dimensions, event));
+    }
+
+    /**
+     * @return number of rows in the tail
+     */
+    public synchronized int getTailSize() {
+        return tail.size();
+    }
+
+    /**
+     * Replaces the tail by an empty one and persists it in the background. The old tail stays queryable
+     * until its persisted segment is registered.
+     *
+     * @return Future completing once the segment is registered, with the segment
+     */
+    public synchronized Future<Segment> handoff() {
+        final IncrementalIndex index = tail;
+        final Segment segment = tailSegment;
+        newTail();
+        return handoffExecutor.submit(new Callable<Segment>() {
+            @Override
+            public Segment call() throws IOException {
+                return persist(index, segment);
+            }
+        });
+    }
+
+    /**
+     * Stops accepting rows and hands off the remaining tail, waiting for all handoffs to finish.
+     */
+    public void close() throws Exception {
+        Future<Segment> last;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            ageChecker.shutdownNow();
+            last = tail.size() > 0 ? handoff() : null;
+        }
+        if (last != null) {
+            last.get();
+        }
+        handoffExecutor.shutdown();
+    }
+
+    private synchronized void handoffIfExpired() {
+        if (!closed && tail.size() > 0 && System.currentTimeMillis() - tailCreatedMillis >= maxAgeMillis) {
+            handoff();
+        }
+    }
+
+    private void newTail() {
+        tail = new OnheapIncrementalIndex(indexSchema, Integer.MAX_VALUE);
+        tailSegment = new IncrementalIndexSegment(tail, dataSource + "_realtime_" + sequence.incrementAndGet());
+        tailCreatedMillis = System.currentTimeMillis();
+        registry.addSegment(dataSource, tailSegment);
+    }
+
+    private Segment persist(IncrementalIndex index, Segment tailSegment) throws IOException {
+        if (index.isEmpty()) {
+            registry.removeSegment(dataSource, tailSegment.getIdentifier());
+            index.close();
+            return null;
+        }
+        File dir = new File(persistDir, tailSegment.getIdentifier());
+        try {
+            IndexMerger.persist(index, dir, null, IndexSpecs.fromSystemProperties());
+            QueryableIndex queryableIndex = IndexIO.loadIndex(dir);
+            Segment segment = new QueryableIndexSegment(
+                    dataSource + "_" + queryableIndex.getDataInterval() + "_" + tailSegment.getIdentifier(),
+                    queryableIndex);
+            registry.replaceSegment(dataSource, tailSegment.getIdentifier(), segment);
+            LOG.info("Handed off " + index.size() + " rows of " + dataSource + " to " + dir);
+            // Queries started from now on scan the persisted segment, the tail only holds memory
+            index.close();
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            // The tail stays registered, so its rows remain queryable from memory
+            LOG.error("Failed to hand off " + tailSegment.getIdentifier(), e);
+            throw e;
+        }
+    }
+
+    private static long parseTimestamp(Object timestamp) {
+        if (timestamp instanceof Number) {
+            return ((Number) timestamp).longValue();
+        }
+        String value = timestamp.toString();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return new DateTime(value).getMillis();
+        }
+    }
+}
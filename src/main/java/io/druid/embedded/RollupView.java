@@ -0,0 +1,433 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.collect.ImmutableList;
+import io.druid.data.input.InputRow;
+import io.druid.data.input.Row;
+import io.druid.granularity.AllGranularity;
+import io.druid.granularity.DurationGranularity;
+import io.druid.granularity.NoneGranularity;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.Query;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.FilteredAggregatorFactory;
+import io.druid.query.dimension.DimensionSpec;
+import io.druid.query.filter.AndDimFilter;
+import io.druid.query.filter.DimFilter;
+import io.druid.query.filter.ExtractionDimFilter;
+import io.druid.query.filter.JavaScriptDimFilter;
+import io.druid.query.filter.NoopDimFilter;
+import io.druid.query.filter.NotDimFilter;
+import io.druid.query.filter.OrDimFilter;
+import io.druid.query.filter.RegexDimFilter;
+import io.druid.query.filter.SearchQueryDimFilter;
+import io.druid.query.filter.SelectorDimFilter;
+import io.druid.query.filter.SpatialDimFilter;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.timeseries.TimeseriesQuery;
+import io.druid.query.topn.TopNQuery;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rollup of an index on a subset of its dimensions and metrics, at a coarser granularity. Views are built
+ * from the same rows as their index during ingestion (see
+ * {@link IngestionPipeline#persist(io.druid.embedded.load.Loader, IncrementalIndexSchema, java.io.File,
+ * io.druid.segment.IndexSpec, Map)}) and registered along with it (see {@link SegmentRegistry#addIndex(String,
+ * IndexWithViews)}), so that queries which only need their dimensions, metrics and granularity scan far fewer
+ * rows.
+ * <p>
+ * A view answers timeseries, topN and groupBy queries when
+ * <ul>
+ * <li>every dimension used by the query, in dimension specs and filters, is a dimension of the view</li>
+ * <li>every aggregator of the query combines a metric of the view, e.g. a longSum over a longSum metric</li>
+ * <li>every bucket of the query granularity, and every bound of the query intervals falling within the data
+ * of the segment, is aligned on the view granularity</li>
+ * </ul>
+ * Results are the same as on the index, except that the timestamp of results at "all" granularity is
+ * truncated to the view granularity when the query interval starts before the data. Queries with the
+ * context flag "useRollupViews" set to false always scan the index.
+ */
+public class RollupView {
+    public static final String USE_VIEWS_CONTEXT_KEY = "useRollupViews";
+
+    /**
+     * Beyond this many buckets, checking that query buckets are aligned is not worth it.
+     */
+    private static final int MAX_CHECKED_BUCKETS = 100000;
+
+    private final String name;
+    private final List<String> dimensions;
+    private final QueryGranularity granularity;
+    private final List<String> metricNames;
+    private final Map<String, AggregatorFactory> metrics;
+
+    /**
+     * Creates a view holding all metrics of its index.
+     *
+     * @param name        name of the view, unique among the views of an index
+     * @param dimensions  dimensions of the view
+     * @param granularity granularity of the view
+     */
+    public RollupView(String name, List<String> dimensions, QueryGranularity granularity) {
+        this(name, dimensions, granularity, null);
+    }
+
+    /**
+     * @param name        name of the view, unique among the views of an index
+     * @param dimensions  dimensions of the view
+     * @param granularity granularity of the view
+     * @param metricNames metrics of the index kept in the view, null for all of them
+     */
+    public RollupView(String name, List<String> dimensions, QueryGranularity granularity, List<String> metricNames) {
+        this(name, dimensions, granularity, metricNames, null);
+    }
+
+    private RollupView(String name, List<String> dimensions, QueryGranularity granularity, List<String> metricNames,
+                       Map<String, AggregatorFactory> metrics) {
+        if (name == null || name.isEmpty() || dimensions == null || granularity == null) {
+            throw new IllegalArgumentException("A view needs a name, dimensions and a granularity");
+        }
+        this.name = name;
+        this.dimensions = ImmutableList.copyOf(dimensions);
+        this.granularity = granularity;
+        this.metricNames = metricNames == null ? null : ImmutableList.copyOf(metricNames);
+        this.metrics = metrics;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getDimensions() {
+        return dimensions;
+    }
+
+    public QueryGranularity getGranularity() {
+        return granularity;
+    }
+
+    /**
+     * @return names of the metrics kept in the view, null for all metrics of the index
+     */
+    public List<String> getMetricNames() {
+        return metricNames;
+    }
+
+    /**
+     * Binds the view to the schema of its index.
+     *
+     * @return view knowing the aggregators of its metrics
+     * @throws IllegalArgumentException if a dimension or a metric of the view is not in the schema, or if the
+     *                                  view is not coarser than the index
+     */
+    public RollupView resolve(IncrementalIndexSchema indexSchema) {
+        List<String> indexDimensions = indexSchema.getDimensionsSpec().getDimensions();
+        // Indexes without declared dimensions take them from the rows, so any dimension may be there
+        if (!indexDimensions.isEmpty() && !indexDimensions.containsAll(dimensions)) {
+            throw new IllegalArgumentException("View " + name + " has dimensions which are not in the index");
+        }
+        if (!isCoarser(granularity, indexSchema.getGran())) {
+            throw new IllegalArgumentException("View " + name + " is finer than its index");
+        }
+        Map<String, AggregatorFactory> indexMetrics = new HashMap<String, AggregatorFactory>();
+        for (AggregatorFactory metric : indexSchema.getMetrics()) {
+            indexMetrics.put(metric.getName(), metric);
+        }
+        Map<String, AggregatorFactory> resolved = new HashMap<String, AggregatorFactory>();
+        for (String metric : metricNames == null ? indexMetrics.keySet() : metricNames) {
+            if (!indexMetrics.containsKey(metric)) {
+                throw new IllegalArgumentException("Metric " + metric + " of view " + name + " is not in the index");
+            }
+            resolved.put(metric, indexMetrics.get(metric));
+        }
+        return new RollupView(name, dimensions, granularity, metricNames, resolved);
+    }
+
+    /**
+     * @return schema of the view, whose metrics are aggregated from the input rows like in the index
+     */
+    public IncrementalIndexSchema getSchema(IncrementalIndexSchema indexSchema) {
+        List<AggregatorFactory> viewMetrics = new ArrayList<AggregatorFactory>();
+        for (AggregatorFactory metric : indexSchema.getMetrics()) {
+            if (metricNames == null || metricNames.contains(metric.getName())) {
+                viewMetrics.add(metric);
+            }
+        }
+        return new IncrementalIndexSchema(indexSchema.getMinTimestamp(), granularity,
+                indexSchema.getDimensionsSpec().withDimensions(dimensions),
+                viewMetrics.toArray(new AggregatorFactory[viewMetrics.size()]));
+    }
+
+    /**
+     * @return the row as seen by the view, with the dimensions of the view only
+     */
+    public InputRow project(InputRow row) {
+        return new ProjectedRow(row, dimensions);
+    }
+
+    /**
+     * @param query        query to run
+     * @param dataInterval interval of the data of the index the view was built from
+     * @return whether the view gives the same results as the index
+     * @throws IllegalStateException if the view was not resolved
+     */
+    public boolean canAnswer(Query<?> query, Interval dataInterval) {
+        if (metrics == null) {
+            throw new IllegalStateException("View " + name + " is not bound to the schema of its index");
+        }
+        if (!Boolean.parseBoolean(String.valueOf(query.getContextValue(USE_VIEWS_CONTEXT_KEY, true)))) {
+            return false;
+        }
+        Set<String> usedDimensions = new HashSet<String>();
+        List<AggregatorFactory> aggregators;
+        QueryGranularity queryGranularity;
+        if (query instanceof TimeseriesQuery) {
+            TimeseriesQuery timeseries = (TimeseriesQuery) query;
+            aggregators = timeseries.getAggregatorSpecs();
+            queryGranularity = timeseries.getGranularity();
+            if (!addDimensions(timeseries.getDimensionsFilter(), usedDimensions)) {
+                return false;
+            }
+        } else if (query instanceof TopNQuery) {
+            TopNQuery topN = (TopNQuery) query;
+            aggregators = topN.getAggregatorSpecs();
+            queryGranularity = topN.getGranularity();
+            usedDimensions.add(topN.getDimensionSpec().getDimension());
+            if (!addDimensions(topN.getDimensionsFilter(), usedDimensions)) {
+                return false;
+            }
+        } else if (query instanceof GroupByQuery) {
+            GroupByQuery groupBy = (GroupByQuery) query;
+            aggregators = groupBy.getAggregatorSpecs();
+            queryGranularity = groupBy.getGranularity();
+            for (DimensionSpec dimension : groupBy.getDimensions()) {
+                usedDimensions.add(dimension.getDimension());
+            }
+            if (!addDimensions(groupBy.getDimFilter(), usedDimensions)) {
+                return false;
+            }
+        } else {
+            // Other queries look at rows or row counts, which the rollup changes
+            return false;
+        }
+        for (AggregatorFactory aggregator : aggregators) {
+            if (!canCombine(aggregator, usedDimensions)) {
+                return false;
+            }
+        }
+        return dimensions.containsAll(usedDimensions)
+                && isAligned(queryGranularity, query.getIntervals(), dataInterval);
+    }
+
+    /**
+     * The view holds each metric aggregated over its rows, which only the combining aggregator of the metric
+     * turns into the value it would have over the rows of the index.
+     */
+    private boolean canCombine(AggregatorFactory aggregator, Set<String> usedDimensions) {
+        if (aggregator instanceof FilteredAggregatorFactory) {
+            FilteredAggregatorFactory filtered = (FilteredAggregatorFactory) aggregator;
+            return addDimensions(filtered.getFilter(), usedDimensions)
+                    && canCombine(filtered.getAggregator(), usedDimensions);
+        }
+        List<String> fields = aggregator.requiredFields();
+        if (fields.size() != 1) {
+            return false;
+        }
+        AggregatorFactory metric = metrics.get(fields.get(0));
+        // Subclasses only rename their parent, like the legacy "max" type of "doubleMax"
+        return metric != null && metric.getCombiningFactory().getClass().isInstance(aggregator);
+    }
+
+    /**
+     * Rows of the view are truncated to its granularity, so a query may only split time where the view does.
+     * Bounds outside the data don't split any row.
+     */
+    private boolean isAligned(QueryGranularity queryGranularity, List<Interval> intervals, Interval dataInterval) {
+        if (granularity instanceof NoneGranularity) {
+            return true;
+        }
+        long dataStart = dataInterval.getStartMillis();
+        long dataEnd = dataInterval.getEndMillis();
+        for (Interval interval : intervals) {
+            long start = Math.max(interval.getStartMillis(), dataStart);
+            long end = Math.min(interval.getEndMillis(), dataEnd + 1);
+            if (start >= end) {
+                continue;
+            }
+            if (!isBoundary(interval.getStartMillis(), dataStart, dataEnd)
+                    || !isBoundary(interval.getEndMillis(), dataStart, dataEnd)) {
+                return false;
+            }
+            if (queryGranularity instanceof AllGranularity) {
+                continue;
+            }
+            if (queryGranularity instanceof NoneGranularity) {
+                return false;
+            }
+            int buckets = 0;
+            for (long bucket = queryGranularity.next(queryGranularity.truncate(start)); bucket < end;
+                 bucket = queryGranularity.next(bucket)) {
+                if (!isBoundary(bucket, dataStart, dataEnd) || ++buckets > MAX_CHECKED_BUCKETS) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isBoundary(long time, long dataStart, long dataEnd) {
+        return time <= dataStart || time > dataEnd || granularity.truncate(time) == time;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        RollupView view = (RollupView) o;
+        return name.equals(view.name) && dimensions.equals(view.dimensions) && granularity.equals(view.granularity)
+                && (metricNames == null ? view.metricNames == null : metricNames.equals(view.metricNames));
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "RollupView{name=" + name + ", dimensions=" + dimensions + ", granularity=" + granularity
+                + ", metrics=" + (metricNames == null ? "all" : metricNames) + "}";
+    }
+
+    /**
+     * @return whether every bucket of the coarse granularity is made of whole buckets of the fine one
+     */
+    private static boolean isCoarser(QueryGranularity coarse, QueryGranularity fine) {
+        if (fine instanceof NoneGranularity || coarse instanceof AllGranularity || coarse.equals(fine)) {
+            return true;
+        }
+        if (coarse instanceof DurationGranularity && fine instanceof DurationGranularity) {
+            long coarseDuration = ((DurationGranularity) coarse).getDurationMillis();
+            long fineDuration = ((DurationGranularity) fine).getDurationMillis();
+            long originShift = ((DurationGranularity) coarse).getOriginMillis()
+                    - ((DurationGranularity) fine).getOriginMillis();
+            return coarseDuration % fineDuration == 0 && originShift % fineDuration == 0;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether every dimension of the filter could be added, false for unknown filters
+     */
+    private static boolean addDimensions(DimFilter filter, Set<String> dimensions) {
+        if (filter == null || filter instanceof NoopDimFilter) {
+            return true;
+        } else if (filter instanceof SelectorDimFilter) {
+            dimensions.add(((SelectorDimFilter) filter).getDimension());
+        } else if (filter instanceof RegexDimFilter) {
+            dimensions.add(((RegexDimFilter) filter).getDimension());
+        } else if (filter instanceof SearchQueryDimFilter) {
+            dimensions.add(((SearchQueryDimFilter) filter).getDimension());
+        } else if (filter instanceof ExtractionDimFilter) {
+            dimensions.add(((ExtractionDimFilter) filter).getDimension());
+        } else if (filter instanceof JavaScriptDimFilter) {
+            dimensions.add(((JavaScriptDimFilter) filter).getDimension());
+        } else if (filter instanceof SpatialDimFilter) {
+            dimensions.add(((SpatialDimFilter) filter).getDimension());
+        } else if (filter instanceof NotDimFilter) {
+            return addDimensions(((NotDimFilter) filter).getField(), dimensions);
+        } else if (filter instanceof AndDimFilter || filter instanceof OrDimFilter) {
+            List<DimFilter> fields = filter instanceof AndDimFilter
+                    ? ((AndDimFilter) filter).getFields() : ((OrDimFilter) filter).getFields();
+            for (DimFilter field : fields) {
+                if (!addDimensions(field, dimensions)) {
+                    return false;
+                }
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Row exposing a subset of the dimensions of another row.
+     */
+    private static class ProjectedRow implements InputRow {
+        private final InputRow row;
+        private final List<String> dimensions;
+
+        ProjectedRow(InputRow row, List<String> dimensions) {
+            this.row = row;
+            this.dimensions = dimensions;
+        }
+
+        @Override
+        public List<String> getDimensions() {
+            return dimensions;
+        }
+
+        @Override
+        public long getTimestampFromEpoch() {
+            return row.getTimestampFromEpoch();
+        }
+
+        @Override
+        public DateTime getTimestamp() {
+            return row.getTimestamp();
+        }
+
+        @Override
+        public List<String> getDimension(String dimension) {
+            return row.getDimension(dimension);
+        }
+
+        @Override
+        public Object getRaw(String dimension) {
+            return row.getRaw(dimension);
+        }
+
+        @Override
+        public float getFloatMetric(String metric) {
+            return row.getFloatMetric(metric);
+        }
+
+        @Override
+        public long getLongMetric(String metric) {
+            return row.getLongMetric(metric);
+        }
+
+        @Override
+        public int compareTo(Row other) {
+            return row.compareTo(other);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.QueryableIndexSegment;
+import io.druid.segment.Segment;
+import org.joda.time.Interval;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the segments available for querying, grouped by data source.
+ * Each data source can hold any number of segments, each covering its own time interval.
+ * <p>
+ * Segments registered under {@link #DEFAULT_DATASOURCE} answer queries for data sources
+ * that have no segments of their own. Segment identifiers are used as cache keys and must be unique
+ * within the process.
+ * <p>
+ * Segments are added, removed and replaced under a single lock, while queries read the segment lists without
+ * locking.
+ */
+public class SegmentRegistry {
+    public static final String DEFAULT_DATASOURCE = "_default";
+
+    private static final AtomicInteger sequence = new AtomicInteger();
+
+    private final ConcurrentMap<String, List<Segment>> segments = new ConcurrentHashMap<String, List<Segment>>();
+    private final ConcurrentMap<String, Map<RollupView, Segment>> views =
+            new ConcurrentHashMap<String, Map<RollupView, Segment>>();
+    private final Object lock = new Object();
+
+    /**
+     * Registers a segment under the given data source.
+     *
+     * @param dataSource data source name
+     * @param segment    segment to add
+     */
+    public void addSegment(String dataSource, Segment segment) {
+        synchronized (lock) {
+            List<Segment> list = segments.get(dataSource);
+            if (list == null) {
+                list = new CopyOnWriteArrayList<Segment>();
+                segments.put(dataSource, list);
+            }
+            list.add(segment);
+        }
+    }
+
+    /**
+     * Registers an index under the given data source, generating a segment identifier from the
+     * data source and the interval covered by the index.
+     *
+     * @param dataSource data source name
+     * @param index      index to add
+     * @return the registered segment
+     */
+    public Segment addIndex(String dataSource, QueryableIndex index) {
+        String identifier = dataSource + "_" + index.getDataInterval() + "_" + sequence.incrementAndGet();
+        Segment segment = new QueryableIndexSegment(identifier, index);
+        addSegment(dataSource, segment);
+        return segment;
+    }
+
+    /**
+     * Registers time partitioned segments under the given data source, as persisted by
+     * {@link IngestionPipeline#persistPartitions}. Each segment is only loaded once a query overlapping its
+     * interval scans it.
+     *
+     * @param dataSource data source name
+     * @param partitions interval of each segment and its directory
+     * @return the registered segments
+     */
+    public List<Segment> addPartitions(String dataSource, Map<Interval, File> partitions) {
+        List<Segment> added = new ArrayList<Segment>(partitions.size());
+        for (Map.Entry<Interval, File> partition : partitions.entrySet()) {
+            String identifier = dataSource + "_" + partition.getKey() + "_" + sequence.incrementAndGet();
+            Segment segment = new LazySegment(identifier, partition.getKey(), partition.getValue());
+            addSegment(dataSource, segment);
+            added.add(segment);
+        }
+        return added;
+    }
+
+    /**
+     * Registers an index under the given data source along with its rollup views. The views are not segments
+     * of the data source, queries are routed to them by {@link QueryHelper#run(io.druid.query.Query,
+     * SegmentRegistry)} when they can answer for the index.
+     *
+     * @param dataSource data source name
+     * @param index      index and its views
+     * @return the registered segment of the index
+     */
+    public Segment addIndex(String dataSource, IndexWithViews index) {
+        Segment segment = addIndex(dataSource, index.getIndex());
+        if (!index.getViews().isEmpty()) {
+            Map<RollupView, Segment> segmentViews = new LinkedHashMap<RollupView, Segment>();
+            for (Map.Entry<RollupView, QueryableIndex> view : index.getViews().entrySet()) {
+                String identifier = segment.getIdentifier() + "_" + view.getKey().getName();
+                segmentViews.put(view.getKey(), new QueryableIndexSegment(identifier, view.getValue()));
+            }
+            views.put(segment.getIdentifier(), Collections.unmodifiableMap(segmentViews));
+        }
+        return segment;
+    }
+
+    /**
+     * @param identifier identifier of a segment
+     * @return rollup views of the segment and their segments, empty if it has none
+     */
+    public Map<RollupView, Segment> getViews(String identifier) {
+        Map<RollupView, Segment> segmentViews = views.get(identifier);
+        return segmentViews == null ? Collections.<RollupView, Segment>emptyMap() : segmentViews;
+    }
+
+    /**
+     * Removes a segment from the given data source.
+     *
+     * @param dataSource data source name
+     * @param identifier identifier of the segment to remove
+     * @return removed segment, or null if there was none
+     */
+    public Segment removeSegment(String dataSource, String identifier) {
+        synchronized (lock) {
+            List<Segment> list = segments.get(dataSource);
+            if (list != null) {
+                for (int i = 0; i < list.size(); i++) {
+                    if (list.get(i).getIdentifier().equals(identifier)) {
+                        views.remove(identifier);
+                        return list.remove(i);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Replaces a segment of the given data source in place, so that queries see either the old or the
+     * new segment but never both or neither.
+     *
+     * @param dataSource data source name
+     * @param identifier identifier of the segment to replace
+     * @param segment    segment taking its place
+     * @return whether the segment was found and replaced
+     */
+    public boolean replaceSegment(String dataSource, String identifier, Segment segment) {
+        synchronized (lock) {
+            List<Segment> list = segments.get(dataSource);
+            if (list != null) {
+                for (int i = 0; i < list.size(); i++) {
+                    if (list.get(i).getIdentifier().equals(identifier)) {
+                        list.set(i, segment);
+                        views.remove(identifier);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Removes a data source along with all its segments.
+     *
+     * @param dataSource data source name
+     * @return removed segments
+     */
+    public List<Segment> removeDataSource(String dataSource) {
+        synchronized (lock) {
+            List<Segment> removed = segments.remove(dataSource);
+            if (removed == null) {
+                return Collections.emptyList();
+            }
+            for (Segment segment : removed) {
+                views.remove(segment.getIdentifier());
+            }
+            return removed;
+        }
+    }
+
+    public Set<String> getDataSources() {
+        return Collections.unmodifiableSet(segments.keySet());
+    }
+
+    /**
+     * @param dataSource data source name
+     * @return all segments of the data source, falling back to the default data source
+     */
+    public List<Segment> getSegments(String dataSource) {
+        List<Segment> list = segments.get(dataSource);
+        if (list == null || list.isEmpty()) {
+            list = segments.get(DEFAULT_DATASOURCE);
+        }
+        return list == null ? Collections.<Segment>emptyList() : Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @param dataSource data source name
+     * @param intervals  query intervals
+     * @return segments of the data source whose data interval overlaps any of the given intervals
+     */
+    public List<Segment> getSegments(String dataSource, List<Interval> intervals) {
+        List<Segment> matching = new ArrayList<Segment>();
+        for (Segment segment : getSegments(dataSource)) {
+            Interval dataInterval = segment.getDataInterval();
+            for (Interval interval : intervals) {
+                if (overlaps(dataInterval, interval)) {
+                    matching.add(segment);
+                    break;
+                }
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Like {@link Interval#overlaps(org.joda.time.ReadableInterval)}, but a zero-length data interval
+     * (an index holding rows with a single timestamp) still matches the instant it covers.
+     */
+    private static boolean overlaps(Interval dataInterval, Interval interval) {
+        if (dataInterval.getStartMillis() == dataInterval.getEndMillis()) {
+            return interval.contains(dataInterval.getStartMillis());
+        }
+        return dataInterval.overlaps(interval);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import io.druid.embedded.load.Loader;
+import io.druid.jackson.DefaultObjectMapper;
+import io.druid.segment.IndexIO;
+import io.druid.segment.IndexSpec;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content addressed store of persisted segments. Each segment lives in a directory named after a hash of
+ * the loader fingerprint, the index schema and the index spec, next to a manifest which is written once the
+ * segment is complete. Asking for a segment which was already built loads it from disk instead of
+ * ingesting the input again, so restarts on unchanged data only need to memory-map the segments.
+ */
+public class SegmentStore {
+    private static final Logger LOG = Logger.getLogger(SegmentStore.class);
+
+    public static final String DIR_PROPERTY = "druid.segment.dir";
+    public static final String MANIFEST_FILE = "manifest.json";
+    public static final String INDEX_DIR = "index";
+    public static final String VIEWS_DIR = "views";
+    public static final String TMP_DIR = "tmp";
+
+    /**
+     * Part of every key, bump it when the segment layout changes so old segments are rebuilt.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final ObjectMapper jsonMapper = new DefaultObjectMapper();
+
+    private final File baseDir;
+
+    public SegmentStore(File baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    /**
+     * Stores segments in the directory set by "druid.segment.dir", or in "druid-segments" under the
+     * temporary directory.
+     */
+    public static SegmentStore fromSystemProperties() {
+        String dir = System.getProperty(DIR_PROPERTY);
+        if (dir == null) {
+            dir = System.getProperty("java.io.tmpdir") + File.separator + "druid-segments";
+        }
+        return new SegmentStore(new File(dir));
+    }
+
+    /**
+     * Loads the segment built from the loader with the given schema and spec, ingesting the input through
+     * the pipeline first if there is no complete segment for it yet.
+     *
+     * @param loader      Loader providing the rows, must have a fingerprint
+     * @param indexSchema Schema of the index
+     * @param indexSpec   Format of the persisted index
+     * @param pipeline    Pipeline loading the rows when the segment has to be built
+     * @return QueryableIndex holding all rows
+     * @throws IOException
+     */
+    public QueryableIndex getOrCreate(Loader loader, IncrementalIndexSchema indexSchema, IndexSpec indexSpec,
+                                      IngestionPipeline pipeline) throws IOException {
+        return getOrCreate(loader, indexSchema, indexSpec, pipeline, Collections.<RollupView>emptyList()).getIndex();
+    }
+
+    /**
+     * Loads the segment built from the loader with the given schema and spec along with its rollup views,
+     * ingesting the input through the pipeline first if there is no complete segment for them yet. Views are
+     * stored under "views" in the segment directory, and are part of the key.
+     *
+     * @param loader      Loader providing the rows, must have a fingerprint
+     * @param indexSchema Schema of the index
+     * @param indexSpec   Format of the persisted index and views
+     * @param pipeline    Pipeline loading the rows when the segment has to be built
+     * @param views       Rollup views of the index
+     * @return the index holding all rows and the index of each view
+     * @throws IOException
+     */
+    public IndexWithViews getOrCreate(Loader loader, IncrementalIndexSchema indexSchema, IndexSpec indexSpec,
+                                      IngestionPipeline pipeline, List<RollupView> views) throws IOException {
+        return getOrCreate(loader, loader.getFingerprint(), indexSchema, indexSpec, pipeline, views);
+    }
+
+    /**
+     * Same as {@link #getOrCreate(Loader, IncrementalIndexSchema, IndexSpec, IngestionPipeline, List)}, with the
+     * fingerprint of the loader already computed, as it may hash the whole input.
+     *
+     * @param loader      Loader providing the rows
+     * @param fingerprint Fingerprint of the loader
+     * @param indexSchema Schema of the index
+     * @param indexSpec   Format of the persisted index and views
+     * @param pipeline    Pipeline loading the rows when the segment has to be built
+     * @param views       Rollup views of the index
+     * @return the index holding all rows and the index of each view
+     * @throws IOException
+     */
+    public IndexWithViews getOrCreate(Loader loader, String fingerprint, IncrementalIndexSchema indexSchema,
+                                      IndexSpec indexSpec, IngestionPipeline pipeline, List<RollupView> views)
+            throws IOException {
+        if (fingerprint == null) {
+            throw new IllegalArgumentException("Loader has no fingerprint, its segments can't be stored");
+        }
+        String key = computeKey(fingerprint, indexSchema, indexSpec, views);
+        File segmentDir = new File(baseDir, key);
+        File indexDir = new File(segmentDir, INDEX_DIR);
+        Map<RollupView, File> viewDirs = new LinkedHashMap<RollupView, File>();
+        for (RollupView view : views) {
+            viewDirs.put(view.resolve(indexSchema), new File(new File(segmentDir, VIEWS_DIR), view.getName()));
+        }
+        if (contains(key)) {
+            LOG.info("Loading stored segment " + segmentDir);
+            return load(indexDir, viewDirs);
+        }
+
+        // Anything left over without a manifest is an interrupted build
+        FileUtils.deleteDirectory(segmentDir);
+        FileUtils.forceMkdir(segmentDir);
+        LOG.info("Building segment " + segmentDir);
+        pipeline.persist(loader, indexSchema, indexDir, indexSpec, viewDirs);
+        IndexWithViews index = load(indexDir, viewDirs);
+        List<String> viewNames = new ArrayList<String>();
+        for (RollupView view : views) {
+            viewNames.add(view.getName());
+        }
+        writeManifest(segmentDir, ImmutableMap.<String, Object>builder()
+                .put("key", key)
+                .put("fingerprint", fingerprint)
+                .put("interval", index.getIndex().getDataInterval().toString())
+                .put("numRows", index.getIndex().getNumRows())
+                .put("views", viewNames)
+                .put("createdTime", System.currentTimeMillis())
+                .build());
+        return index;
+    }
+
+    private static IndexWithViews load(File indexDir, Map<RollupView, File> viewDirs) throws IOException {
+        Map<RollupView, QueryableIndex> views = new LinkedHashMap<RollupView, QueryableIndex>();
+        for (Map.Entry<RollupView, File> view : viewDirs.entrySet()) {
+            views.put(view.getKey(), IndexIO.loadIndex(view.getValue()));
+        }
+        return new IndexWithViews(IndexIO.loadIndex(indexDir), views);
+    }
+
+    /**
+     * @param name name of the directory
+     * @return a directory of the store for segments which are not kept, such as those of loaders without
+     * fingerprint
+     */
+    public File getTmpDir(String name) {
+        return new File(new File(baseDir, TMP_DIR), name);
+    }
+
+    /**
+     * @return whether a complete segment is stored under the key
+     */
+    public boolean contains(String key) {
+        return new File(new File(baseDir, key), MANIFEST_FILE).isFile();
+    }
+
+    /**
+     * @return the manifest of the segment stored under the key, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> getManifest(String key) throws IOException {
+        File manifest = new File(new File(baseDir, key), MANIFEST_FILE);
+        return manifest.isFile() ? jsonMapper.readValue(manifest, Map.class) : null;
+    }
+
+    /**
+     * Removes the segment stored under the key.
+     */
+    public void remove(String key) throws IOException {
+        FileUtils.deleteDirectory(new File(baseDir, key));
+    }
+
+    public File getBaseDir() {
+        return baseDir;
+    }
+
+    /**
+     * @return hex encoded hash identifying the segment built from the input with the given schema and spec
+     */
+    public String computeKey(String fingerprint, IncrementalIndexSchema indexSchema, IndexSpec indexSpec)
+            throws IOException {
+        return computeKey(fingerprint, indexSchema, indexSpec, Collections.<RollupView>emptyList());
+    }
+
+    /**
+     * @return hex encoded hash identifying the segment built from the input with the given schema, spec and
+     * views
+     */
+    public String computeKey(String fingerprint, IncrementalIndexSchema indexSchema, IndexSpec indexSpec,
+                             List<RollupView> views) throws IOException {
+        List<Object> parts = new ArrayList<Object>(Arrays.asList(
+                FORMAT_VERSION,
+                fingerprint,
+                indexSchema.getMinTimestamp(),
+                indexSchema.getGran(),
+                indexSchema.getDimensionsSpec(),
+                indexSchema.getMetrics(),
+                indexSpec
+        ));
+        // Segments without views keep the key they had before views existed
+        for (RollupView view : views) {
+            parts.add(Arrays.asList(view.getName(), view.getDimensions(), view.getGranularity(),
+                    view.getMetricNames()));
+        }
+        byte[] schema = jsonMapper.writeValueAsBytes(parts);
+        return Hashing.sha1().hashBytes(schema).toString();
+    }
+
+    /**
+     * The manifest marks the segment as complete, so it is moved into place only once fully written.
+     */
+    private void writeManifest(File segmentDir, Map<String, Object> manifest) throws IOException {
+        File tmp = new File(segmentDir, MANIFEST_FILE + ".tmp");
+        jsonMapper.writerWithDefaultPrettyPrinter().writeValue(tmp, manifest);
+        if (!tmp.renameTo(new File(segmentDir, MANIFEST_FILE))) {
+            throw new IOException("Failed to write manifest in " + segmentDir);
+        }
+    }
+}
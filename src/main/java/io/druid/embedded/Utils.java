@@ -16,40 +16,17 @@
 
 package io.druid.embedded;
 
-import io.druid.collections.StupidPool;
-import io.druid.query.IntervalChunkingQueryRunnerDecorator;
 import io.druid.query.Query;
-import io.druid.query.QueryRunner;
-import io.druid.query.QueryToolChest;
 import io.druid.query.QueryWatcher;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.Map;
-
-import com.google.common.base.Supplier;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.metamx.common.guava.Sequence;
 import com.metamx.emitter.core.Event;
 import com.metamx.emitter.service.ServiceEmitter;
 
 public class Utils {
     public static final int MAX_TOTAL_BUFFER_SIZE = 1024 * 1024 * 1024;
 
-    private static class ByteBufferSuplier implements Supplier<ByteBuffer> {
-        int capacity;
-
-        public ByteBufferSuplier(int capacity) {
-            this.capacity = capacity;
-        }
-
-        public ByteBuffer get() {
-            return ByteBuffer.allocate(capacity);
-        }
-    }
+    private static final BufferPool BUFFER_POOL = BufferPool.fromSystemProperties();
 
     public static ServiceEmitter NOOP_SERVICE_EMITTER = new ServiceEmitter(null, null, null) {
         @Override
@@ -63,21 +40,26 @@ public class Utils {
         }
     };
 
-    public static StupidPool<ByteBuffer> getBufferPool() {
-        return new StupidPool<ByteBuffer>(new ByteBufferSuplier(MAX_TOTAL_BUFFER_SIZE / 2));
+    /**
+     * Process-wide pool of direct processing buffers, shared by every query engine.
+     *
+     * @return the shared BufferPool
+     */
+    public static BufferPool getBufferPool() {
+        return BUFFER_POOL;
     }
 
-    public static IntervalChunkingQueryRunnerDecorator NoopIntervalChunkingQueryRunnerDecorator() {
-        return new IntervalChunkingQueryRunnerDecorator(null, null, null) {
-            @Override
-            public <T> QueryRunner<T> decorate(final QueryRunner<T> delegate,
-                                               QueryToolChest<T, ? extends Query<T>> toolChest) {
-                return new QueryRunner<T>() {
-                    public Sequence<T> run(Query<T> query, Map<String, Object> responseContext) {
-                        return delegate.run(query, responseContext);
-                    }
-                };
-            }
-        };
+    /**
+     * Reads a boolean flag of the query context, given either as a boolean or as a string. Stands in for the
+     * deprecated context getters of {@link Query}.
+     *
+     * @param query        query holding the context
+     * @param key          context key
+     * @param defaultValue value if the context has none
+     * @return the flag
+     */
+    public static boolean getContextBoolean(Query<?> query, String key, boolean defaultValue) {
+        Object value = query.getContextValue(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.toString());
     }
 }
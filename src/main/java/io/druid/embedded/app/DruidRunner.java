@@ -1,5 +1,7 @@
 package io.druid.embedded.app;
 
+import io.druid.embedded.RealtimeIndex;
+import io.druid.embedded.SegmentRegistry;
 import io.druid.embedded.resource.DruidResource;
 import io.druid.segment.QueryableIndex;
 import io.swagger.jaxrs.config.BeanConfig;
@@ -16,27 +18,60 @@ import org.glassfish.jersey.servlet.ServletContainer;
 
 import javax.servlet.DispatcherType;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Starts a standalone instance of Druid
  */
 public class DruidRunner {
-    public static final Map<Integer, QueryableIndex> INDEX_MAP = new HashMap<>();
+    public static final Map<Integer, SegmentRegistry> REGISTRY_MAP = new ConcurrentHashMap<>();
+    public static final Map<Integer, Map<String, RealtimeIndex>> REALTIME_MAP = new ConcurrentHashMap<>();
     private Server server;
-    private QueryableIndex index;
+    private SegmentRegistry registry;
+    private final Map<String, RealtimeIndex> realtimeIndexes = new ConcurrentHashMap<>();
     private int port;
 
     /**
-     * Create a new DruidRunner to start and stop an embedded Druid instance
+     * Create a new DruidRunner to start and stop an embedded Druid instance.
+     * The index answers queries for any data source.
      *
      * @param port  Port to listen on
      * @param index Index to make available
      */
     public DruidRunner(int port, QueryableIndex index) {
+        this(port, new SegmentRegistry());
+        if (index != null) {
+            registry.addIndex(SegmentRegistry.DEFAULT_DATASOURCE, index);
+        }
+    }
+
+    /**
+     * Create a new DruidRunner serving the segments of the given registry
+     *
+     * @param port     Port to listen on
+     * @param registry Registry holding the segments to make available
+     */
+    public DruidRunner(int port, SegmentRegistry registry) {
         this.port = port;
-        this.index = index;
+        this.registry = registry;
+    }
+
+    /**
+     * @return registry holding the segments served by this instance
+     */
+    public SegmentRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Accepts rows for a data source through the ingest endpoint. The realtime index must add its
+     * segments to the registry of this instance.
+     *
+     * @param realtimeIndex Realtime index to append the rows to
+     */
+    public void addRealtimeIndex(RealtimeIndex realtimeIndex) {
+        realtimeIndexes.put(realtimeIndex.getDataSource(), realtimeIndex);
     }
 
     /**
@@ -54,7 +89,8 @@ public class DruidRunner {
             handlers.addHandler(buildContext(basePath));
             server.setHandler(handlers);
             server.start();
-            INDEX_MAP.put(port, index);
+            REGISTRY_MAP.put(port, registry);
+            REALTIME_MAP.put(port, realtimeIndexes);
         } else {
             throw new IllegalStateException("Server already running");
         }
@@ -88,6 +124,8 @@ public class DruidRunner {
         resourceConfig.packages(DruidResource.class.getPackage().getName(), ApiListingResource.class.getPackage().getName());
         ServletContainer servletContainer = new ServletContainer(resourceConfig);
         ServletHolder entityBrowser = new ServletHolder(servletContainer);
+        // Queries are answered asynchronously, off the request threads
+        entityBrowser.setAsyncSupported(true);
         ServletContextHandler entityBrowserContext = new ServletContextHandler(ServletContextHandler.SESSIONS);
         entityBrowserContext.setContextPath(basePath);
         entityBrowserContext.addServlet(entityBrowser, "/*");
@@ -113,13 +151,17 @@ public class DruidRunner {
     }
 
     /**
-     * Stops the server and removes the index
+     * Stops the server, removes the registry and hands off the rows of the realtime indexes
      *
      * @throws Exception
      */
     public void stop() throws Exception {
-        INDEX_MAP.remove(port);
+        REGISTRY_MAP.remove(port);
+        REALTIME_MAP.remove(port);
         server.stop();
+        for (RealtimeIndex realtimeIndex : realtimeIndexes.values()) {
+            realtimeIndex.close();
+        }
     }
 
     /**
@@ -131,6 +173,6 @@ public class DruidRunner {
      */
     public static void main(String[] args) throws Exception {
         // TODO Accept command line parameters to start up Druid
-        new DruidRunner(37843, null).run();
+        new DruidRunner(37843, new SegmentRegistry()).run();
     }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.cache;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+import io.druid.embedded.Utils;
+import io.druid.query.CacheStrategy;
+import io.druid.query.Query;
+import io.druid.query.QueryRunner;
+import io.druid.query.QueryToolChest;
+import org.apache.log4j.Logger;
+import org.joda.time.Interval;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the results of a single segment from the {@link QueryResultCache} and stores them there.
+ * The cache key is made of the segment identifier, the query intervals and the cache key computed by the
+ * toolchest's CacheStrategy. Queries without a CacheStrategy go straight to the underlying runner.
+ * <p>
+ * The "useCache" and "populateCache" query context flags control whether the cache is read and written,
+ * with defaults taken from the cache configuration.
+ */
+public class CachingQueryRunner<T> implements QueryRunner<T> {
+    private static final Logger LOG = Logger.getLogger(CachingQueryRunner.class);
+    private static final String USE_CACHE_KEY = "useCache";
+    private static final String POPULATE_CACHE_KEY = "populateCache";
+
+    private final String segmentIdentifier;
+    private final QueryRunner<T> baseRunner;
+    private final QueryToolChest<T, Query<T>> toolChest;
+    private final QueryResultCache cache;
+    private final ObjectMapper mapper;
+
+    public CachingQueryRunner(String segmentIdentifier, QueryRunner<T> baseRunner, QueryToolChest<T, Query<T>> toolChest,
+                              QueryResultCache cache, ObjectMapper mapper) {
+        this.segmentIdentifier = segmentIdentifier;
+        this.baseRunner = baseRunner;
+        this.toolChest = toolChest;
+        this.cache = cache;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public Sequence<T> run(Query<T> query, Map<String, Object> responseContext) {
+        final CacheStrategy<T, Object, Query<T>> strategy = toolChest.getCacheStrategy(query);
+        boolean useCache = strategy != null && cache.isEnabled()
+                && Utils.getContextBoolean(query, USE_CACHE_KEY, cache.isUseCache());
+        boolean populateCache = strategy != null && cache.isEnabled()
+                && Utils.getContextBoolean(query, POPULATE_CACHE_KEY, cache.isPopulateCache());
+        if (!useCache && !populateCache) {
+            return baseRunner.run(query, responseContext);
+        }
+
+        byte[] key = computeKey(query, strategy);
+        JavaType cacheType = mapper.getTypeFactory().constructCollectionType(List.class,
+                mapper.getTypeFactory().constructType(strategy.getCacheObjectClazz()));
+        if (useCache) {
+            byte[] cached = cache.get(key);
+            if (cached != null) {
+                try {
+                    List<Object> values = mapper.readValue(cached, cacheType);
+                    return Sequences.simple(Lists.transform(values, strategy.pullFromCache()));
+                } catch (IOException e) {
+                    LOG.warn("Could not read cached results of segment " + segmentIdentifier, e);
+                }
+            }
+        }
+
+        List<T> results = Sequences.toList(baseRunner.run(query, responseContext), new ArrayList<T>());
+        if (populateCache) {
+            try {
+                List<Object> values = new ArrayList<Object>(Lists.transform(results, strategy.prepareForCache()));
+                cache.put(key, mapper.writerWithType(cacheType).writeValueAsBytes(values));
+            } catch (IOException e) {
+                LOG.warn("Could not cache results of segment " + segmentIdentifier, e);
+            }
+        }
+        return Sequences.simple(results);
+    }
+
+    private byte[] computeKey(Query<T> query, CacheStrategy<T, Object, Query<T>> strategy) {
+        ByteArrayOutputStream key = new ByteArrayOutputStream();
+        byte[] segmentBytes = segmentIdentifier.getBytes(Charsets.UTF_8);
+        key.write(segmentBytes, 0, segmentBytes.length);
+        key.write(0xff);
+        for (Interval interval : query.getIntervals()) {
+            byte[] intervalBytes = (interval.getStartMillis() + "/" + interval.getEndMillis()).getBytes(Charsets.UTF_8);
+            key.write(intervalBytes, 0, intervalBytes.length);
+            key.write(0xff);
+        }
+        byte[] queryKey = strategy.computeCacheKey(query);
+        key.write(queryKey, 0, queryKey.length);
+        return key.toByteArray();
+    }
+}
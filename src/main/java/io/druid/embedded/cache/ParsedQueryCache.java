@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.cache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.druid.query.Query;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of parsed queries, so that queries posted again skip the deserialization of their
+ * aggregators, post-aggregators and filters. Queries are looked up by their JSON as is, then by their
+ * normalized JSON, with object keys sorted and whitespace removed, so that the same query written by different
+ * clients is only parsed once. Least recently used entries are evicted first.
+ * <p>
+ * Queries are immutable, so cached instances are shared by all the requests posting them.
+ * The number of entries is set by "druid.query.parseCache.size" (default 1000, 0 disables the cache).
+ */
+public class ParsedQueryCache {
+    public static final String SIZE_PROPERTY = "druid.query.parseCache.size";
+    public static final int DEFAULT_SIZE = 1000;
+
+    private static final ObjectMapper normalizer = new ObjectMapper()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+    private final ObjectMapper jsonMapper;
+    private final int maxSize;
+    private final Map<String, Query> entries;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param jsonMapper mapper parsing the queries
+     * @param maxSize    maximum number of entries, 0 disables the cache
+     */
+    public ParsedQueryCache(ObjectMapper jsonMapper, int maxSize) {
+        this.jsonMapper = jsonMapper;
+        this.maxSize = maxSize;
+        this.entries = new LruMap(maxSize);
+    }
+
+    /**
+     * Creates a cache sized through system properties, falling back to the default.
+     *
+     * @param jsonMapper mapper parsing the queries
+     * @return new ParsedQueryCache
+     */
+    public static ParsedQueryCache fromSystemProperties(ObjectMapper jsonMapper) {
+        return new ParsedQueryCache(jsonMapper, Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+    }
+
+    /**
+     * @param queryJson query JSON
+     * @return the cached query for the JSON, parsing it if there is none
+     * @throws IOException if the JSON is not a valid query
+     */
+    public Query parse(String queryJson) throws IOException {
+        if (maxSize <= 0) {
+            return jsonMapper.readValue(queryJson, Query.class);
+        }
+        Query query = get(queryJson);
+        if (query != null) {
+            hitCount.incrementAndGet();
+            return query;
+        }
+        String key = normalize(queryJson);
+        query = get(key);
+        if (query != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+            query = jsonMapper.readValue(queryJson, Query.class);
+            put(key, query);
+        }
+        // Clients tend to send the very same text again, which then skips normalizing
+        put(queryJson, query);
+        return query;
+    }
+
+    /**
+     * @return the JSON with object keys sorted and without whitespace
+     */
+    public static String normalize(String json) throws IOException {
+        return normalizer.writeValueAsString(normalizer.readValue(json, Object.class));
+    }
+
+    private Query get(String key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    private void put(String key, Query query) {
+        synchronized (entries) {
+            entries.put(key, query);
+        }
+    }
+
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Map in access order, evicting its least recently used entry once it holds more than maxSize.
+     */
+    private static class LruMap extends LinkedHashMap<String, Query> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        private LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of serialized query results, bounded by the total number of bytes of keys and values.
+ * Least recently used entries are evicted first.
+ * <p>
+ * Configuration is read from system properties (see {@link #fromSystemProperties()}):
+ * <ul>
+ * <li>druid.cache.sizeInBytes : maximum size of the cache, 0 disables it (default 32 MB)</li>
+ * <li>druid.cache.useCache : whether queries read from the cache unless their context says otherwise (default true)</li>
+ * <li>druid.cache.populateCache : whether queries write to the cache unless their context says otherwise (default true)</li>
+ * </ul>
+ */
+public class QueryResultCache {
+    public static final String SIZE_PROPERTY = "druid.cache.sizeInBytes";
+    public static final String USE_CACHE_PROPERTY = "druid.cache.useCache";
+    public static final String POPULATE_CACHE_PROPERTY = "druid.cache.populateCache";
+
+    public static final long DEFAULT_SIZE_BYTES = 32 * 1024 * 1024;
+
+    private final long maxSizeBytes;
+    private final boolean useCache;
+    private final boolean populateCache;
+    private final LinkedHashMap<ByteBuffer, byte[]> entries = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true);
+    private long sizeBytes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param maxSizeBytes  maximum total size of keys and values, 0 disables the cache
+     * @param useCache      default for the "useCache" query context flag
+     * @param populateCache default for the "populateCache" query context flag
+     */
+    public QueryResultCache(long maxSizeBytes, boolean useCache, boolean populateCache) {
+        this.maxSizeBytes = maxSizeBytes;
+        this.useCache = useCache;
+        this.populateCache = populateCache;
+    }
+
+    /**
+     * Creates a cache configured through system properties, falling back to the defaults.
+     *
+     * @return new QueryResultCache
+     */
+    public static QueryResultCache fromSystemProperties() {
+        return new QueryResultCache(
+                Long.getLong(SIZE_PROPERTY, DEFAULT_SIZE_BYTES),
+                Boolean.parseBoolean(System.getProperty(USE_CACHE_PROPERTY, "true")),
+                Boolean.parseBoolean(System.getProperty(POPULATE_CACHE_PROPERTY, "true")));
+    }
+
+    public boolean isEnabled() {
+        return maxSizeBytes > 0;
+    }
+
+    public boolean isUseCache() {
+        return useCache;
+    }
+
+    public boolean isPopulateCache() {
+        return populateCache;
+    }
+
+    /**
+     * @param key cache key
+     * @return cached value, or null if there is none
+     */
+    public byte[] get(byte[] key) {
+        byte[] value;
+        synchronized (entries) {
+            value = entries.get(ByteBuffer.wrap(key));
+        }
+        if (value == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * Stores a value, evicting least recently used entries until the cache fits its size again.
+     * Values larger than the whole cache are not stored.
+     *
+     * @param key   cache key
+     * @param value value to store
+     */
+    public void put(byte[] key, byte[] value) {
+        long entrySize = key.length + value.length;
+        if (!isEnabled() || entrySize > maxSizeBytes) {
+            return;
+        }
+        synchronized (entries) {
+            byte[] previous = entries.put(ByteBuffer.wrap(key), value);
+            if (previous != null) {
+                sizeBytes -= key.length + previous.length;
+            }
+            sizeBytes += entrySize;
+            Iterator<Map.Entry<ByteBuffer, byte[]>> iterator = entries.entrySet().iterator();
+            while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+                Map.Entry<ByteBuffer, byte[]> eldest = iterator.next();
+                sizeBytes -= eldest.getKey().capacity() + eldest.getValue().length;
+                iterator.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            sizeBytes = 0;
+        }
+    }
+
+    public long getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    public long getSizeBytes() {
+        synchronized (entries) {
+            return sizeBytes;
+        }
+    }
+
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.groupby;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import io.druid.query.Query;
+import io.druid.query.groupby.GroupByQueryConfig;
+
+import java.io.File;
+
+/**
+ * Configuration of groupBy queries.
+ * <p>
+ * The "spilling" strategy merges the per-segment results in a {@link SpillingGrouper} held in a merge buffer,
+ * spilling to disk when the buffer is full. The "index" strategy merges them in an incremental index on the
+ * heap, as Druid does, which fails once it holds maxResults rows. The strategy of a query can be overridden
+ * with its "groupByStrategy" context.
+ * <p>
+ * Configuration is read from system properties (see {@link #fromSystemProperties()}):
+ * <ul>
+ * <li>druid.query.groupBy.strategy : spilling or index (default spilling)</li>
+ * <li>druid.query.groupBy.bufferSizeBytes : size of each merge buffer, which caps the memory of a merge
+ * (default 64 MB)</li>
+ * <li>druid.query.groupBy.numMergeBuffers : maximum number of merge buffers (default 2)</li>
+ * <li>druid.query.groupBy.spillDir : directory the merges spill to (default java.io.tmpdir)</li>
+ * <li>druid.query.groupBy.maxIntermediateRows : rows a segment scan aggregates per pass (default 10000)</li>
+ * <li>druid.query.groupBy.maxResults : maximum rows of the index strategy (default 500000)</li>
+ * </ul>
+ */
+public class SpillingGroupByConfig {
+    public static final String STRATEGY_PROPERTY = "druid.query.groupBy.strategy";
+    public static final String BUFFER_SIZE_BYTES_PROPERTY = "druid.query.groupBy.bufferSizeBytes";
+    public static final String NUM_MERGE_BUFFERS_PROPERTY = "druid.query.groupBy.numMergeBuffers";
+    public static final String SPILL_DIR_PROPERTY = "druid.query.groupBy.spillDir";
+    public static final String MAX_INTERMEDIATE_ROWS_PROPERTY = "druid.query.groupBy.maxIntermediateRows";
+    public static final String MAX_RESULTS_PROPERTY = "druid.query.groupBy.maxResults";
+    public static final String STRATEGY_CONTEXT_KEY = "groupByStrategy";
+
+    public static final String STRATEGY_SPILLING = "spilling";
+    public static final String STRATEGY_INDEX = "index";
+    public static final int DEFAULT_BUFFER_SIZE_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_NUM_MERGE_BUFFERS = 2;
+    public static final int DEFAULT_MAX_INTERMEDIATE_ROWS = 10000;
+    public static final int DEFAULT_MAX_RESULTS = 500000;
+
+    private final String strategy;
+    private final int bufferSizeBytes;
+    private final int numMergeBuffers;
+    private final File spillDir;
+    private final int maxIntermediateRows;
+    private final int maxResults;
+
+    /**
+     * @param strategy            default strategy of the queries
+     * @param bufferSizeBytes     size of each merge buffer
+     * @param numMergeBuffers     maximum number of merge buffers, hence of concurrent spilling merges
+     * @param spillDir            directory the merges spill to
+     * @param maxIntermediateRows rows a segment scan aggregates per pass
+     * @param maxResults          maximum rows of the index strategy
+     */
+    public SpillingGroupByConfig(String strategy, int bufferSizeBytes, int numMergeBuffers, File spillDir,
+                                 int maxIntermediateRows, int maxResults) {
+        checkStrategy(strategy);
+        if (bufferSizeBytes <= 0 || numMergeBuffers <= 0 || maxIntermediateRows <= 0 || maxResults <= 0) {
+            throw new IllegalArgumentException("GroupBy buffer size, buffer count and row limits must be positive");
+        }
+        this.strategy = strategy;
+        this.bufferSizeBytes = bufferSizeBytes;
+        this.numMergeBuffers = numMergeBuffers;
+        this.spillDir = spillDir;
+        this.maxIntermediateRows = maxIntermediateRows;
+        this.maxResults = maxResults;
+    }
+
+    /**
+     * Creates a configuration from system properties, falling back to the defaults.
+     *
+     * @return new SpillingGroupByConfig
+     */
+    public static SpillingGroupByConfig fromSystemProperties() {
+        return new SpillingGroupByConfig(
+                System.getProperty(STRATEGY_PROPERTY, STRATEGY_SPILLING),
+                Integer.getInteger(BUFFER_SIZE_BYTES_PROPERTY, DEFAULT_BUFFER_SIZE_BYTES),
+                Integer.getInteger(NUM_MERGE_BUFFERS_PROPERTY, DEFAULT_NUM_MERGE_BUFFERS),
+                new File(System.getProperty(SPILL_DIR_PROPERTY, System.getProperty("java.io.tmpdir"))),
+                Integer.getInteger(MAX_INTERMEDIATE_ROWS_PROPERTY, DEFAULT_MAX_INTERMEDIATE_ROWS),
+                Integer.getInteger(MAX_RESULTS_PROPERTY, DEFAULT_MAX_RESULTS));
+    }
+
+    /**
+     * @return whether the query is merged by the spilling strategy
+     */
+    public boolean isSpilling(Query query) {
+        Object value = query.getContextValue(STRATEGY_CONTEXT_KEY);
+        String queryStrategy = value == null ? strategy : value.toString();
+        checkStrategy(queryStrategy);
+        return STRATEGY_SPILLING.equals(queryStrategy);
+    }
+
+    /**
+     * @param mapper mapper to build the configuration with, as maxResults has no setter
+     * @return configuration of Druid's groupBy engine and index strategy
+     */
+    public GroupByQueryConfig toQueryConfig(ObjectMapper mapper) {
+        return mapper.convertValue(
+                ImmutableMap.of("maxIntermediateRows", maxIntermediateRows, "maxResults", maxResults),
+                GroupByQueryConfig.class);
+    }
+
+    private static void checkStrategy(String strategy) {
+        if (!STRATEGY_SPILLING.equals(strategy) && !STRATEGY_INDEX.equals(strategy)) {
+            throw new IllegalArgumentException("Unknown groupBy strategy " + strategy);
+        }
+    }
+
+    public String getStrategy() {
+        return strategy;
+    }
+
+    public int getBufferSizeBytes() {
+        return bufferSizeBytes;
+    }
+
+    public int getNumMergeBuffers() {
+        return numMergeBuffers;
+    }
+
+    public File getSpillDir() {
+        return spillDir;
+    }
+
+    public int getMaxIntermediateRows() {
+        return maxIntermediateRows;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+}
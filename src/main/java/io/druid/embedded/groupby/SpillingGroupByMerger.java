@@ -0,0 +1,270 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.groupby;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.metamx.common.guava.Accumulator;
+import com.metamx.common.guava.BaseSequence;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+import io.druid.collections.ResourceHolder;
+import io.druid.collections.StupidPool;
+import io.druid.data.input.Row;
+import io.druid.embedded.QueryTimeoutException;
+import io.druid.embedded.Utils;
+import io.druid.query.Query;
+import io.druid.query.QueryContextKeys;
+import io.druid.query.QueryInterruptedException;
+import io.druid.query.QueryRunner;
+import io.druid.query.QueryWatcher;
+import io.druid.query.TableDataSource;
+import io.druid.query.groupby.GroupByQuery;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Merges the rows of groupBy runners in a {@link SpillingGrouper} held in a buffer of the merge pool. The
+ * runners are run in parallel and the merged rows are streamed out sorted, until the returned sequence is
+ * done and the buffer goes back to the pool.
+ */
+public class SpillingGroupByMerger {
+    private static final String BY_SEGMENT_KEY = "bySegment";
+    private static final String GROUP_BY_MERGE_KEY = "groupByMerge";
+
+    private static final Accumulator<SpillingGrouper, Row> ADD = new Accumulator<SpillingGrouper, Row>() {
+        @Override
+        public SpillingGrouper accumulate(SpillingGrouper grouper, Row row) {
+            try {
+                grouper.add(row);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not spill groupBy rows", e);
+            }
+            return grouper;
+        }
+    };
+
+    private final SpillingGroupByConfig config;
+    private final StupidPool<ByteBuffer> mergeBufferPool;
+    private final ObjectMapper spillMapper;
+    private final QueryWatcher watcher;
+
+    /**
+     * @param config          groupBy configuration
+     * @param mergeBufferPool pool of the buffers the groupers are held in
+     * @param spillMapper     mapper writing and reading the spilled runs
+     * @param watcher         watcher the runs of the runners are registered with, so that they can be cancelled
+     */
+    public SpillingGroupByMerger(SpillingGroupByConfig config, StupidPool<ByteBuffer> mergeBufferPool,
+                                 ObjectMapper spillMapper, QueryWatcher watcher) {
+        this.config = config;
+        this.mergeBufferPool = mergeBufferPool;
+        this.spillMapper = spillMapper;
+        this.watcher = watcher;
+    }
+
+    /**
+     * @return whether the query is merged here. Queries by segment, over subqueries or asking not to be merged
+     * are left to Druid.
+     */
+    public boolean appliesTo(Query query) {
+        return config.isSpilling(query)
+                && !Utils.getContextBoolean(query, BY_SEGMENT_KEY, false)
+                && Utils.getContextBoolean(query, GROUP_BY_MERGE_KEY, true)
+                && query.getDataSource() instanceof TableDataSource;
+    }
+
+    /**
+     * Runs the runners in parallel and merges their rows.
+     *
+     * @param query           query to run
+     * @param runners         runners returning uncombined rows
+     * @param executor        executor the runners run on
+     * @param responseContext response context of the query
+     * @return merged rows, sorted by timestamp then dimension values, without post aggregations
+     */
+    public Sequence<Row> merge(final GroupByQuery query, final List<QueryRunner<Row>> runners,
+                               final ListeningExecutorService executor, final Map<String, Object> responseContext) {
+        return new BaseSequence<Row, MergedIterator>(new GroupingMaker(query) {
+            @Override
+            void fill(SpillingGrouper grouper) {
+                SpillingGroupByMerger.this.fill(grouper, query, runners, executor, responseContext);
+            }
+        });
+    }
+
+    /**
+     * Merges rows which are already merged in parts, such as the results of the interval chunks of a query. The
+     * merges of the parts take buffers of the same pool, so all the parts are read before the buffer of this merge
+     * is taken. Holding it while they run would leave concurrent queries waiting on each other once every buffer
+     * is held by a query waiting for its parts.
+     *
+     * @param query query to run
+     * @param parts rows of the parts, uncombined across parts
+     * @return merged rows, sorted by timestamp then dimension values, without post aggregations
+     */
+    public Sequence<Row> mergeParts(final GroupByQuery query, final Sequence<Row> parts) {
+        return new BaseSequence<Row, MergedIterator>(new GroupingMaker(query) {
+            private List<Row> rows;
+
+            @Override
+            public MergedIterator make() {
+                rows = Sequences.toList(parts, new ArrayList<Row>());
+                return super.make();
+            }
+
+            @Override
+            void fill(SpillingGrouper grouper) {
+                Sequences.simple(rows).accumulate(grouper, ADD);
+                rows = null;
+            }
+        });
+    }
+
+    private void fill(final SpillingGrouper grouper, final GroupByQuery query, List<QueryRunner<Row>> runners,
+                      ListeningExecutorService executor, final Map<String, Object> responseContext) {
+        List<ListenableFuture<SpillingGrouper>> futures = new ArrayList<ListenableFuture<SpillingGrouper>>();
+        for (final QueryRunner<Row> runner : runners) {
+            futures.add(executor.submit(new Callable<SpillingGrouper>() {
+                @Override
+                public SpillingGrouper call() {
+                    return runner.run(query, responseContext).accumulate(grouper, ADD);
+                }
+            }));
+        }
+        ListenableFuture<List<SpillingGrouper>> future = Futures.allAsList(futures);
+        watcher.registerQuery(query, future);
+
+        Number timeout = query.getContextValue(QueryContextKeys.TIMEOUT);
+        try {
+            if (timeout == null) {
+                future.get();
+            } else {
+                future.get(timeout.longValue(), TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new QueryTimeoutException();
+        } catch (CancellationException e) {
+            future.cancel(true);
+            throw new QueryInterruptedException("Query cancelled");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new QueryInterruptedException(e);
+        } catch (ExecutionException e) {
+            future.cancel(true);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void closeQuietly(SpillingGrouper grouper, ResourceHolder<ByteBuffer> holder) {
+        try {
+            if (grouper != null) {
+                grouper.close();
+            }
+        } catch (IOException e) {
+            // The runs are temporary files, nothing is lost if one could not be deleted
+        } finally {
+            try {
+                holder.close();
+            } catch (IOException e) {
+                // Pooled holders don't fail on close
+            }
+        }
+    }
+
+    /**
+     * Groups the rows to merge in a buffer of the pool, which goes back to the pool when the rows are read.
+     */
+    private abstract class GroupingMaker implements BaseSequence.IteratorMaker<Row, MergedIterator> {
+        private final GroupByQuery query;
+
+        private GroupingMaker(GroupByQuery query) {
+            this.query = query;
+        }
+
+        /**
+         * Adds the rows to merge to the grouper.
+         */
+        abstract void fill(SpillingGrouper grouper);
+
+        @Override
+        public MergedIterator make() {
+            ResourceHolder<ByteBuffer> holder = mergeBufferPool.take();
+            SpillingGrouper grouper = null;
+            try {
+                grouper = new SpillingGrouper(query, holder.get(), config.getSpillDir(), spillMapper);
+                fill(grouper);
+                return new MergedIterator(grouper, holder);
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(grouper, holder);
+                if (e instanceof IOException) {
+                    throw new IllegalStateException("Could not merge groupBy rows", e);
+                }
+                throw (RuntimeException) e;
+            }
+        }
+
+        @Override
+        public void cleanup(MergedIterator iterator) {
+            closeQuietly(iterator.grouper, iterator.holder);
+        }
+    }
+
+    private static class MergedIterator implements Iterator<Row> {
+        private final SpillingGrouper grouper;
+        private final ResourceHolder<ByteBuffer> holder;
+        private final Iterator<Row> delegate;
+
+        private MergedIterator(SpillingGrouper grouper, ResourceHolder<ByteBuffer> holder) throws IOException {
+            this.grouper = grouper;
+            this.holder = holder;
+            this.delegate = grouper.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public Row next() {
+            return delegate.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
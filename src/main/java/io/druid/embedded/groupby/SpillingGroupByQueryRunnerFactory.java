@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.groupby;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.metamx.common.guava.Sequence;
+import io.druid.collections.StupidPool;
+import io.druid.data.input.Row;
+import io.druid.query.Query;
+import io.druid.query.QueryRunner;
+import io.druid.query.QueryWatcher;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.groupby.GroupByQueryConfig;
+import io.druid.query.groupby.GroupByQueryEngine;
+import io.druid.query.groupby.GroupByQueryRunnerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * GroupBy runner factory merging the rows of the segments through a {@link SpillingGroupByMerger}. Segments are
+ * still scanned by Druid's engine, which aggregates in processing buffers keyed by dictionary ids.
+ */
+public class SpillingGroupByQueryRunnerFactory extends GroupByQueryRunnerFactory {
+    private final SpillingGroupByMerger merger;
+
+    public SpillingGroupByQueryRunnerFactory(GroupByQueryEngine engine, QueryWatcher queryWatcher,
+                                             Supplier<GroupByQueryConfig> config,
+                                             SpillingGroupByQueryToolChest toolChest,
+                                             StupidPool<ByteBuffer> computationBufferPool,
+                                             SpillingGroupByMerger merger) {
+        super(engine, queryWatcher, config, toolChest, computationBufferPool);
+        this.merger = merger;
+    }
+
+    @Override
+    public QueryRunner<Row> mergeRunners(ExecutorService exec, Iterable<QueryRunner<Row>> queryRunners) {
+        final QueryRunner<Row> fallback = super.mergeRunners(exec, queryRunners);
+        final ListeningExecutorService executor = MoreExecutors.listeningDecorator(exec);
+        final List<QueryRunner<Row>> runners = Lists.newArrayList(queryRunners);
+        return new QueryRunner<Row>() {
+            @Override
+            public Sequence<Row> run(Query<Row> query, Map<String, Object> responseContext) {
+                if (!merger.appliesTo(query)) {
+                    return fallback.run(query, responseContext);
+                }
+                return merger.merge((GroupByQuery) query, runners, executor, responseContext);
+            }
+        };
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.groupby;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+import io.druid.collections.StupidPool;
+import io.druid.data.input.MapBasedRow;
+import io.druid.data.input.Row;
+import io.druid.embedded.ChunkingQueryRunnerDecorator;
+import io.druid.query.Query;
+import io.druid.query.QueryRunner;
+import io.druid.query.aggregation.PostAggregator;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.groupby.GroupByQueryConfig;
+import io.druid.query.groupby.GroupByQueryEngine;
+import io.druid.query.groupby.GroupByQueryQueryToolChest;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * GroupBy toolchest whose merge goes through a {@link SpillingGroupByMerger} instead of an incremental index.
+ * The rows of a single interval chunk come from {@link SpillingGroupByQueryRunnerFactory#mergeRunners} already
+ * merged, so only the results of several chunks are merged again here before post aggregation and limit. Chunks
+ * run without having spec, limit or post aggregators (see {@link ChunkingQueryRunnerDecorator}), so these only
+ * apply to the merge of all chunks.
+ */
+public class SpillingGroupByQueryToolChest extends GroupByQueryQueryToolChest {
+    private final ChunkingQueryRunnerDecorator intervalChunking;
+    private final SpillingGroupByMerger merger;
+
+    public SpillingGroupByQueryToolChest(Supplier<GroupByQueryConfig> configSupplier, ObjectMapper jsonMapper,
+                                         GroupByQueryEngine engine, StupidPool<ByteBuffer> bufferPool,
+                                         ChunkingQueryRunnerDecorator intervalChunking,
+                                         SpillingGroupByMerger merger) {
+        super(configSupplier, jsonMapper, engine, bufferPool, intervalChunking);
+        this.intervalChunking = intervalChunking;
+        this.merger = merger;
+    }
+
+    @Override
+    public QueryRunner<Row> mergeResults(final QueryRunner<Row> runner) {
+        final QueryRunner<Row> fallback = super.mergeResults(runner);
+        return new QueryRunner<Row>() {
+            @Override
+            public Sequence<Row> run(Query<Row> input, Map<String, Object> responseContext) {
+                if (!merger.appliesTo(input)) {
+                    return fallback.run(input, responseContext);
+                }
+                GroupByQuery query = (GroupByQuery) input;
+                GroupByQuery inner = query.withOverriddenContext(ImmutableMap.<String, Object>of("finalize", false));
+                Sequence<Row> rows = runner.run(inner, responseContext);
+                if (intervalChunking.getChunks(query).size() > 1) {
+                    rows = merger.mergeParts(inner, rows);
+                }
+                return query.applyLimit(postAggregate(query, rows));
+            }
+        };
+    }
+
+    private static Sequence<Row> postAggregate(final GroupByQuery query, Sequence<Row> rows) {
+        if (query.getPostAggregatorSpecs().isEmpty()) {
+            return rows;
+        }
+        return Sequences.map(rows, new Function<Row, Row>() {
+            @Override
+            public Row apply(Row input) {
+                Map<String, Object> event = new LinkedHashMap<String, Object>(((MapBasedRow) input).getEvent());
+                for (PostAggregator postAggregator : query.getPostAggregatorSpecs()) {
+                    event.put(postAggregator.getName(), postAggregator.compute(event));
+                }
+                return new MapBasedRow(input.getTimestamp(), event);
+            }
+        });
+    }
+}
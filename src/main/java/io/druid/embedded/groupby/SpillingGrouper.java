@@ -0,0 +1,647 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.groupby;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.PeekingIterator;
+import io.druid.data.input.MapBasedRow;
+import io.druid.data.input.Row;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.BufferAggregator;
+import io.druid.query.dimension.DimensionSpec;
+import io.druid.query.extraction.ExtractionFn;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.segment.ColumnSelectorFactory;
+import io.druid.segment.DimensionSelector;
+import io.druid.segment.FloatColumnSelector;
+import io.druid.segment.LongColumnSelector;
+import io.druid.segment.ObjectColumnSelector;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Groups the rows of a groupBy query by timestamp and dimension values, combining their metrics, within a
+ * fixed buffer, normally a direct one taken from a pool.
+ * <p>
+ * Dimension values are encoded as ids of a dictionary shared by all dimensions, which only covers the groups of
+ * the table and is cleared along with it, since spilled runs hold the values themselves. The buffer holds an
+ * open-addressing hash table whose buckets store the key (timestamp and dimension value ids) next to the state
+ * of the combining {@link BufferAggregator}s, so that grouping allocates nothing per row. The table starts small
+ * and doubles, alternating between the two halves of the buffer, until it reaches half of it. Once full, its
+ * entries are sorted by key and spilled as a run of Smile records to a file, and the table starts over.
+ * <p>
+ * {@link #iterator()} merges the spilled runs with the entries still in memory, combining equal keys, so rows
+ * come out sorted by timestamp then dimension values, and the number of groups is limited by disk rather than
+ * memory. A grouper is not thread safe once iterated, and must be closed to delete its runs.
+ */
+public class SpillingGrouper implements Closeable {
+    private static final int INITIAL_BUCKETS = 1024;
+    private static final float MAX_LOAD_FACTOR = 0.75f;
+    private static final int USED_FLAG = 0x80000000;
+    private static final int MARKER_SIZE = 4;
+    private static final int TIMESTAMP_SIZE = 8;
+    private static final int NULL_ID = -1;
+    private static final TypeReference<List<Object>> RECORD_TYPE = new TypeReference<List<Object>>() {
+    };
+    private static final Ordering<String> VALUE_ORDERING = Ordering.<String>natural().nullsFirst();
+
+    private final ByteBuffer buffer;
+    private final File spillDir;
+    private final ObjectMapper spillMapper;
+    private final QueryGranularity granularity;
+    private final long minTimestamp;
+    private final String[] dimensions;
+    private final AggregatorFactory[] factories;
+    private final BufferAggregator[] aggregators;
+    private final int[] aggregatorOffsets;
+    private final int keySize;
+    private final int bucketSize;
+    private final int regionSize;
+    private final int maxBuckets;
+
+    private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+    private final List<String> values = new ArrayList<String>();
+    private final int[] keyIds;
+    private final List<File> runs = new ArrayList<File>();
+    private final List<MappingIterator<List<Object>>> readers = new ArrayList<MappingIterator<List<Object>>>();
+
+    private Row currentRow;
+    private int tableOffset;
+    private int buckets;
+    private int size;
+    private int maxSize;
+    private boolean iterated;
+    private boolean closed;
+
+    /**
+     * @param query       groupBy query whose rows are grouped
+     * @param buffer      buffer holding the hash table, from its position to its limit
+     * @param spillDir    directory the runs are spilled to
+     * @param spillMapper mapper writing and reading the runs, which must know the complex metrics of the query
+     */
+    public SpillingGrouper(GroupByQuery query, ByteBuffer buffer, File spillDir, ObjectMapper spillMapper) {
+        this.buffer = buffer.slice();
+        this.spillDir = spillDir;
+        this.spillMapper = spillMapper;
+        this.granularity = query.getGranularity();
+        // Same lower bound as the incremental index of Druid's merge, which puts all rows of the "all"
+        // granularity at the start of the query
+        long start = query.getIntervals().get(0).getStartMillis();
+        this.minTimestamp = granularity.iterable(start, start + 1).iterator().next();
+
+        List<DimensionSpec> dimensionSpecs = query.getDimensions();
+        dimensions = new String[dimensionSpecs.size()];
+        for (int i = 0; i < dimensions.length; i++) {
+            dimensions[i] = dimensionSpecs.get(i).getOutputName();
+        }
+        keyIds = new int[dimensions.length];
+        keySize = TIMESTAMP_SIZE + 4 * dimensions.length;
+
+        List<AggregatorFactory> aggregatorSpecs = query.getAggregatorSpecs();
+        factories = new AggregatorFactory[aggregatorSpecs.size()];
+        aggregators = new BufferAggregator[factories.length];
+        aggregatorOffsets = new int[factories.length];
+        ColumnSelectorFactory selectorFactory = new RowSelectorFactory();
+        int offset = MARKER_SIZE + keySize;
+        for (int i = 0; i < factories.length; i++) {
+            factories[i] = aggregatorSpecs.get(i).getCombiningFactory();
+            aggregators[i] = factories[i].factorizeBuffered(selectorFactory);
+            aggregatorOffsets[i] = offset;
+            offset += factories[i].getMaxIntermediateSize();
+        }
+        bucketSize = offset;
+
+        regionSize = this.buffer.capacity() / 2;
+        maxBuckets = regionSize / bucketSize;
+        if (maxBuckets < 2) {
+            throw new IllegalArgumentException("Buffer of " + this.buffer.capacity()
+                    + " bytes is too small for groups of " + bucketSize + " bytes");
+        }
+        reset();
+    }
+
+    /**
+     * Adds a row to its group, spilling the table to disk if it is full.
+     *
+     * @param row row holding the dimensions and the (uncombined) metrics of the query
+     * @throws IOException if the table could not be spilled
+     */
+    public synchronized void add(Row row) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Grouper is closed");
+        }
+        currentRow = row;
+        long timestamp = Math.max(granularity.truncate(row.getTimestampFromEpoch()), minTimestamp);
+        for (int i = 0; i < dimensions.length; i++) {
+            keyIds[i] = lookupId(row.getDimension(dimensions[i]));
+        }
+        int hash = hash(timestamp, keyIds);
+        int bucket = findBucket(hash, timestamp);
+        if (buffer.getInt(bucket) == 0) {
+            if (size >= maxSize) {
+                if (!grow()) {
+                    spill();
+                    // The dictionary was cleared with the table
+                    for (int i = 0; i < dimensions.length; i++) {
+                        keyIds[i] = lookupId(row.getDimension(dimensions[i]));
+                    }
+                    hash = hash(timestamp, keyIds);
+                }
+                bucket = findBucket(hash, timestamp);
+            }
+            buffer.putInt(bucket, hash | USED_FLAG);
+            buffer.putLong(bucket + MARKER_SIZE, timestamp);
+            for (int i = 0; i < keyIds.length; i++) {
+                buffer.putInt(bucket + MARKER_SIZE + TIMESTAMP_SIZE + 4 * i, keyIds[i]);
+            }
+            for (int i = 0; i < aggregators.length; i++) {
+                aggregators[i].init(buffer, bucket + aggregatorOffsets[i]);
+            }
+            size++;
+        }
+        for (int i = 0; i < aggregators.length; i++) {
+            aggregators[i].aggregate(buffer, bucket + aggregatorOffsets[i]);
+        }
+        currentRow = null;
+    }
+
+    /**
+     * @return number of runs spilled to disk so far
+     */
+    public synchronized int getSpillCount() {
+        return runs.size();
+    }
+
+    /**
+     * @return number of distinct dimension values held in memory
+     */
+    synchronized int getDictionarySize() {
+        return values.size();
+    }
+
+    /**
+     * Can only be called once, as it opens a reader on every spilled run.
+     *
+     * @return the groups sorted by timestamp then dimension values, as rows of combined metrics
+     * @throws IOException if a spilled run could not be read
+     */
+    public synchronized Iterator<Row> iterator() throws IOException {
+        if (closed || iterated) {
+            throw new IllegalStateException("Grouper is " + (closed ? "closed" : "already iterated"));
+        }
+        iterated = true;
+        List<Iterator<Entry>> sources = new ArrayList<Iterator<Entry>>(runs.size() + 1);
+        for (File run : runs) {
+            // Read from a parser of our own, so that the records are not taken for the elements of a root array
+            MappingIterator<List<Object>> reader = spillMapper.readValues(spillMapper.getFactory().createParser(run),
+                    RECORD_TYPE);
+            readers.add(reader);
+            sources.add(new RunIterator(reader));
+        }
+        sources.add(memoryIterator());
+        final Iterator<Entry> entries = sources.size() == 1
+                ? sources.get(0)
+                : new CombiningIterator(Iterators.peekingIterator(Iterators.mergeSorted(sources, ENTRY_ORDER)));
+        return new Iterator<Row>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Row next() {
+                return entries.next().toRow();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (BufferAggregator aggregator : aggregators) {
+            aggregator.close();
+        }
+        for (MappingIterator<List<Object>> reader : readers) {
+            reader.close();
+        }
+        for (File run : runs) {
+            run.delete();
+        }
+    }
+
+    private int lookupId(List<String> dimensionValues) {
+        String value = dimensionValues.isEmpty() ? null : dimensionValues.get(0);
+        if (value == null) {
+            return NULL_ID;
+        }
+        Integer id = dictionary.get(value);
+        if (id == null) {
+            id = values.size();
+            dictionary.put(value, id);
+            values.add(value);
+        }
+        return id;
+    }
+
+    private static int hash(long timestamp, int[] ids) {
+        int hash = (int) (timestamp ^ (timestamp >>> 32));
+        for (int id : ids) {
+            hash = 31 * hash + id;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return offset of the bucket holding the key, or of the empty bucket where it belongs
+     */
+    private int findBucket(int hash, long timestamp) {
+        int marker = hash | USED_FLAG;
+        int index = (hash & ~USED_FLAG) % buckets;
+        while (true) {
+            int bucket = tableOffset + index * bucketSize;
+            int current = buffer.getInt(bucket);
+            if (current == 0 || (current == marker && keyEquals(bucket, timestamp))) {
+                return bucket;
+            }
+            index = (index + 1) % buckets;
+        }
+    }
+
+    private boolean keyEquals(int bucket, long timestamp) {
+        if (buffer.getLong(bucket + MARKER_SIZE) != timestamp) {
+            return false;
+        }
+        for (int i = 0; i < keyIds.length; i++) {
+            if (buffer.getInt(bucket + MARKER_SIZE + TIMESTAMP_SIZE + 4 * i) != keyIds[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the table to the other half of the buffer with twice as many buckets.
+     *
+     * @return false if the table already has the most buckets half of the buffer can hold
+     */
+    private boolean grow() {
+        if (buckets == maxBuckets) {
+            return false;
+        }
+        int oldOffset = tableOffset;
+        int oldBuckets = buckets;
+        tableOffset = oldOffset == 0 ? regionSize : 0;
+        buckets = Math.min(maxBuckets, buckets * 2);
+        maxSize = Math.max(1, (int) (buckets * MAX_LOAD_FACTOR));
+        clear();
+        for (int i = 0; i < oldBuckets; i++) {
+            int bucket = oldOffset + i * bucketSize;
+            int marker = buffer.getInt(bucket);
+            if (marker == 0) {
+                continue;
+            }
+            int index = (marker & ~USED_FLAG) % buckets;
+            while (buffer.getInt(tableOffset + index * bucketSize) != 0) {
+                index = (index + 1) % buckets;
+            }
+            ByteBuffer from = buffer.duplicate();
+            from.limit(bucket + bucketSize).position(bucket);
+            ByteBuffer to = buffer.duplicate();
+            to.position(tableOffset + index * bucketSize);
+            to.put(from);
+        }
+        return true;
+    }
+
+    private void reset() {
+        tableOffset = 0;
+        buckets = Math.min(maxBuckets, INITIAL_BUCKETS);
+        maxSize = Math.max(1, (int) (buckets * MAX_LOAD_FACTOR));
+        size = 0;
+        clear();
+        dictionary.clear();
+        values.clear();
+    }
+
+    private void clear() {
+        for (int i = 0; i < buckets; i++) {
+            buffer.putInt(tableOffset + i * bucketSize, 0);
+        }
+    }
+
+    /**
+     * Writes the entries of the table, sorted by key, to a new run and empties the table.
+     */
+    private void spill() throws IOException {
+        File run = File.createTempFile("groupBy", ".run", spillDir);
+        runs.add(run);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(run));
+        try {
+            JsonGenerator generator = spillMapper.getFactory().createGenerator(out);
+            for (int bucket : sortedBuckets()) {
+                generator.writeStartArray();
+                generator.writeNumber(buffer.getLong(bucket + MARKER_SIZE));
+                for (int i = 0; i < dimensions.length; i++) {
+                    generator.writeString(getValue(bucket, i));
+                }
+                for (int i = 0; i < aggregators.length; i++) {
+                    generator.writeObject(aggregators[i].get(buffer, bucket + aggregatorOffsets[i]));
+                }
+                generator.writeEndArray();
+            }
+            generator.close();
+        } finally {
+            out.close();
+        }
+        reset();
+    }
+
+    private String getValue(int bucket, int dimension) {
+        int id = buffer.getInt(bucket + MARKER_SIZE + TIMESTAMP_SIZE + 4 * dimension);
+        return id == NULL_ID ? null : values.get(id);
+    }
+
+    /**
+     * @return offsets of the used buckets, sorted by timestamp then dimension values
+     */
+    private Integer[] sortedBuckets() {
+        Integer[] sorted = new Integer[size];
+        int count = 0;
+        for (int i = 0; i < buckets; i++) {
+            int bucket = tableOffset + i * bucketSize;
+            if (buffer.getInt(bucket) != 0) {
+                sorted[count++] = bucket;
+            }
+        }
+
+        // Rank the values used by the table once, so that keys compare by int
+        BitSet used = new BitSet(values.size());
+        for (int bucket : sorted) {
+            for (int i = 0; i < dimensions.length; i++) {
+                int id = buffer.getInt(bucket + MARKER_SIZE + TIMESTAMP_SIZE + 4 * i);
+                if (id != NULL_ID) {
+                    used.set(id);
+                }
+            }
+        }
+        Integer[] ids = new Integer[used.cardinality()];
+        for (int id = used.nextSetBit(0), i = 0; id >= 0; id = used.nextSetBit(id + 1)) {
+            ids[i++] = id;
+        }
+        Arrays.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer left, Integer right) {
+                return values.get(left).compareTo(values.get(right));
+            }
+        });
+        final int[] ranks = new int[values.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ranks[ids[i]] = i;
+        }
+
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer left, Integer right) {
+                int result = Long.compare(buffer.getLong(left + MARKER_SIZE), buffer.getLong(right + MARKER_SIZE));
+                for (int i = 0; result == 0 && i < dimensions.length; i++) {
+                    int offset = MARKER_SIZE + TIMESTAMP_SIZE + 4 * i;
+                    result = Integer.compare(rank(buffer.getInt(left + offset)), rank(buffer.getInt(right + offset)));
+                }
+                return result;
+            }
+
+            private int rank(int id) {
+                return id == NULL_ID ? -1 : ranks[id];
+            }
+        });
+        return sorted;
+    }
+
+    private Iterator<Entry> memoryIterator() {
+        final Integer[] sorted = sortedBuckets();
+        return new Iterator<Entry>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < sorted.length;
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int bucket = sorted[next++];
+                String[] key = new String[dimensions.length];
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = getValue(bucket, i);
+                }
+                Object[] metrics = new Object[aggregators.length];
+                for (int i = 0; i < metrics.length; i++) {
+                    metrics[i] = aggregators[i].get(buffer, bucket + aggregatorOffsets[i]);
+                }
+                return new Entry(buffer.getLong(bucket + MARKER_SIZE), key, metrics);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry left, Entry right) {
+            int result = Long.compare(left.timestamp, right.timestamp);
+            for (int i = 0; result == 0 && i < left.dimensions.length; i++) {
+                result = VALUE_ORDERING.compare(left.dimensions[i], right.dimensions[i]);
+            }
+            return result;
+        }
+    };
+
+    private class Entry {
+        private final long timestamp;
+        private final String[] dimensions;
+        private final Object[] metrics;
+
+        private Entry(long timestamp, String[] dimensions, Object[] metrics) {
+            this.timestamp = timestamp;
+            this.dimensions = dimensions;
+            this.metrics = metrics;
+        }
+
+        private Row toRow() {
+            Map<String, Object> event = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < dimensions.length; i++) {
+                // Like the rows of an incremental index, rows leave out missing dimensions
+                if (dimensions[i] != null) {
+                    event.put(SpillingGrouper.this.dimensions[i], dimensions[i]);
+                }
+            }
+            for (int i = 0; i < metrics.length; i++) {
+                event.put(factories[i].getName(), metrics[i]);
+            }
+            return new MapBasedRow(granularity.toDateTime(timestamp), event);
+        }
+    }
+
+    /**
+     * Reads back the entries of a spilled run.
+     */
+    private class RunIterator implements Iterator<Entry> {
+        private final MappingIterator<List<Object>> reader;
+
+        private RunIterator(MappingIterator<List<Object>> reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return reader.hasNext();
+        }
+
+        @Override
+        public Entry next() {
+            List<Object> record = reader.next();
+            String[] key = new String[dimensions.length];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = (String) record.get(1 + i);
+            }
+            Object[] metrics = new Object[factories.length];
+            for (int i = 0; i < metrics.length; i++) {
+                metrics[i] = factories[i].deserialize(record.get(1 + key.length + i));
+            }
+            return new Entry(((Number) record.get(0)).longValue(), key, metrics);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Combines the consecutive entries of a sorted iterator which have the same key.
+     */
+    private class CombiningIterator implements Iterator<Entry> {
+        private final PeekingIterator<Entry> delegate;
+
+        private CombiningIterator(PeekingIterator<Entry> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public Entry next() {
+            Entry entry = delegate.next();
+            while (delegate.hasNext() && ENTRY_ORDER.compare(entry, delegate.peek()) == 0) {
+                Entry other = delegate.next();
+                for (int i = 0; i < factories.length; i++) {
+                    entry.metrics[i] = factories[i].combine(entry.metrics[i], other.metrics[i]);
+                }
+            }
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Feeds the combining aggregators from the metrics of the row being added.
+     */
+    private class RowSelectorFactory implements ColumnSelectorFactory {
+        @Override
+        public DimensionSelector makeDimensionSelector(String dimension, ExtractionFn extractionFn) {
+            throw new UnsupportedOperationException("Combining aggregators read no dimension");
+        }
+
+        @Override
+        public FloatColumnSelector makeFloatColumnSelector(final String columnName) {
+            return new FloatColumnSelector() {
+                @Override
+                public float get() {
+                    return currentRow.getFloatMetric(columnName);
+                }
+            };
+        }
+
+        @Override
+        public LongColumnSelector makeLongColumnSelector(final String columnName) {
+            return new LongColumnSelector() {
+                @Override
+                public long get() {
+                    return currentRow.getLongMetric(columnName);
+                }
+            };
+        }
+
+        @Override
+        public ObjectColumnSelector makeObjectColumnSelector(final String columnName) {
+            return new ObjectColumnSelector<Object>() {
+                @Override
+                public Class<Object> classOfObject() {
+                    return Object.class;
+                }
+
+                @Override
+                public Object get() {
+                    return currentRow.getRaw(columnName);
+                }
+            };
+        }
+    }
+}
@@ -16,23 +16,104 @@
 
 package io.druid.embedded.load;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Iterators;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import io.druid.data.input.InputRow;
 
 /**
  * This abstract class is interface for loading data of various formats. Possible implementation can be
  * CSV, XML, JSON etc. Implementation class needs to provide iterator implementation. 
- *
+ * Implementations which can parse parts of their input independently should also override
+ * {@link #split(int)} so that rows can be parsed in parallel.
  */
 public abstract class Loader implements Iterable<InputRow> {
 	  protected List<String> columns;
 	  protected List<String> dimensions;
 	  protected String timestampDimension;
+	  protected RowSchema schema;
 	  
 	  public Loader(List<String> cols, List<String> dims, String ts) {
+		  this(cols, dims, ts, null);
+	  }
+
+	  /**
+	   * @param cols : List of all columns
+	   * @param dims : List of dimensions
+	   * @param ts : Column holding the timestamp
+	   * @param schema : Types of the metric columns and format of the timestamp, or null to let the
+	   *                 implementation decide
+	   */
+	  public Loader(List<String> cols, List<String> dims, String ts, RowSchema schema) {
 		  this.columns = cols;
 		  this.dimensions = dims;
 		  this.timestampDimension = ts;
+		  this.schema = schema;
+	  }
+
+	  /**
+	   * Splits the input into batches of rows. The batches are read one after the other on the calling thread,
+	   * but may be iterated on other threads. By default rows are parsed while batching, implementations
+	   * which can defer parsing until a batch is iterated should override this.
+	   *
+	   * @param batchSize : Number of rows per batch
+	   * @return Iterator over batches of rows
+	   */
+	  public Iterator<? extends Iterable<InputRow>> split(int batchSize) {
+		  return Iterators.partition(iterator(), batchSize);
+	  }
+
+	  /**
+	   * Identifies the input along with the way it is turned into rows, so that segments built from it
+	   * can be reused. Loaders returning the same fingerprint must produce the same rows.
+	   *
+	   * @return fingerprint of the input, or null if the input can't be identified
+	   */
+	  public String getFingerprint() {
+		  return null;
+	  }
+
+	  /**
+	   * Hashes the content of an input file together with the column layout of the loader.
+	   *
+	   * @param file : Input file
+	   * @param format : Name of the file format, so that the same bytes read differently don't collide,
+	   *                 or null for delimiter separated text
+	   * @return fingerprint of the file
+	   */
+	  protected String fingerprint(File file, String format) {
+		  Hasher hasher = Hashing.sha1().newHasher();
+		  for (List<String> names : Arrays.asList(columns, dimensions)) {
+			  for (String name : names) {
+				  hasher.putString(name, Charsets.UTF_8).putByte((byte) 0);
+			  }
+			  hasher.putByte((byte) 1);
+		  }
+		  hasher.putString(String.valueOf(timestampDimension), Charsets.UTF_8).putByte((byte) 1);
+		  if (format != null) {
+			  hasher.putString(format, Charsets.UTF_8).putByte((byte) 1);
+		  }
+		  if (schema != null) {
+			  for (Map.Entry<String, RowSchema.Type> metric : schema.getMetrics().entrySet()) {
+				  hasher.putString(metric.getKey(), Charsets.UTF_8).putByte((byte) 0)
+						  .putString(metric.getValue().name(), Charsets.UTF_8).putByte((byte) 0);
+			  }
+			  hasher.putString(schema.getTimestampFormat(), Charsets.UTF_8).putByte((byte) 1);
+		  }
+		  try {
+			  hasher.putBytes(Files.hash(file, Hashing.sha1()).asBytes());
+		  } catch (IOException e) {
+			  throw new IllegalStateException("Failed to read " + file, e);
+		  }
+		  return hasher.hash().toString();
 	  }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load;
+
+import com.google.common.base.Function;
+import com.metamx.common.parsers.TimestampParser;
+import io.druid.data.input.InputRow;
+import org.joda.time.DateTime;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Types of the metric columns of an input, along with the format of its timestamp column. Loaders given a
+ * schema parse every metric once into a primitive, and build {@link TypedInputRow}s from which aggregators read
+ * the values directly, instead of parsing the text again for each aggregator.
+ * <p>
+ * The timestamp format is "millis" (default), "posix" (seconds), "iso", "auto" or a Joda-Time pattern.
+ */
+public class RowSchema {
+    public static final String MILLIS = "millis";
+    public static final String POSIX = "posix";
+
+    public enum Type {
+        LONG, FLOAT, DOUBLE
+    }
+
+    private final Map<String, Type> metrics;
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+    private final Type[] types;
+    private final String timestampFormat;
+    private final Function<String, DateTime> timestampParser;
+
+    public RowSchema(Map<String, Type> metrics) {
+        this(metrics, MILLIS);
+    }
+
+    /**
+     * @param metrics         metric columns and their types
+     * @param timestampFormat format of the timestamp column
+     */
+    public RowSchema(Map<String, Type> metrics, String timestampFormat) {
+        this.metrics = Collections.unmodifiableMap(new LinkedHashMap<String, Type>(metrics));
+        this.types = this.metrics.values().toArray(new Type[metrics.size()]);
+        for (String metric : this.metrics.keySet()) {
+            slots.put(metric, slots.size());
+        }
+        this.timestampFormat = timestampFormat;
+        this.timestampParser = MILLIS.equals(timestampFormat) || POSIX.equals(timestampFormat)
+                ? null : TimestampParser.createTimestampParser(timestampFormat);
+    }
+
+    public Map<String, Type> getMetrics() {
+        return metrics;
+    }
+
+    public String getTimestampFormat() {
+        return timestampFormat;
+    }
+
+    /**
+     * @return timestamp in milliseconds
+     */
+    public long parseTimestamp(String value) {
+        if (timestampParser != null) {
+            return timestampParser.apply(value).getMillis();
+        }
+        long timestamp = Long.parseLong(value);
+        return POSIX.equals(timestampFormat) ? timestamp * 1000 : timestamp;
+    }
+
+    /**
+     * Binds the schema to the columns of an input.
+     *
+     * @param columns         all columns of the input, in order
+     * @param dimensions      dimensions of the rows
+     * @param timestampColumn column holding the timestamp, or null if rows have none
+     * @return factory of rows from the fields of the input
+     */
+    public RowFactory newRowFactory(List<String> columns, List<String> dimensions, String timestampColumn) {
+        return new RowFactory(columns, dimensions, timestampColumn);
+    }
+
+    int getSlot(String metric) {
+        Integer slot = slots.get(metric);
+        return slot == null ? -1 : slot;
+    }
+
+    Type getType(int slot) {
+        return types[slot];
+    }
+
+    int size() {
+        return types.length;
+    }
+
+    /**
+     * Builds typed rows out of the text fields of an input. Instances are stateless and can be shared.
+     */
+    public class RowFactory {
+        private final List<String> columns;
+        private final List<String> dimensions;
+        private final int timestampIndex;
+        private final int[] columnSlots;
+
+        private RowFactory(List<String> columns, List<String> dimensions, String timestampColumn) {
+            this.columns = columns;
+            this.dimensions = dimensions;
+            this.timestampIndex = timestampColumn == null ? -1 : columns.indexOf(timestampColumn);
+            if (timestampColumn != null && timestampIndex < 0) {
+                throw new IllegalArgumentException("Timestamp column " + timestampColumn + " is not a column");
+            }
+            this.columnSlots = new int[columns.size()];
+            for (int i = 0; i < columnSlots.length; i++) {
+                columnSlots[i] = getSlot(columns.get(i));
+            }
+        }
+
+        /**
+         * @param fields values of the columns, null for missing values
+         * @return row of the fields, metrics being parsed according to their type
+         * @throws NumberFormatException if a metric or the timestamp can't be parsed
+         */
+        public InputRow makeRow(String[] fields) {
+            long timestamp = 1l;
+            long[] values = new long[types.length];
+            boolean[] present = new boolean[types.length];
+            Map<String, Object> event = new HashMap<String, Object>(columns.size() * 2);
+            for (int i = 0; i < columnSlots.length; i++) {
+                String field = fields[i];
+                if (field == null) {
+                    continue;
+                }
+                int slot = columnSlots[i];
+                if (i == timestampIndex) {
+                    timestamp = parseTimestamp(field);
+                } else if (slot >= 0) {
+                    values[slot] = TypedInputRow.parse(types[slot], field);
+                    present[slot] = true;
+                } else {
+                    event.put(columns.get(i), field);
+                }
+            }
+            if (timestampIndex >= 0 && fields[timestampIndex] == null) {
+                throw new NumberFormatException("Missing timestamp");
+            }
+            return new TypedInputRow(RowSchema.this, timestamp, dimensions, event, values, present);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load;
+
+import io.druid.data.input.InputRow;
+import io.druid.data.input.Row;
+import org.joda.time.DateTime;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Row whose metrics were parsed once according to a {@link RowSchema}. Metric values are kept as primitives
+ * (floating point values as the bits of a double), so reading them through {@link #getFloatMetric(String)} or
+ * {@link #getLongMetric(String)} neither parses nor boxes. Other columns are kept as text.
+ */
+public class TypedInputRow implements InputRow {
+    private final RowSchema schema;
+    private final long timestamp;
+    private final List<String> dimensions;
+    private final Map<String, Object> event;
+    private final long[] values;
+    private final boolean[] present;
+
+    TypedInputRow(RowSchema schema, long timestamp, List<String> dimensions, Map<String, Object> event,
+                  long[] values, boolean[] present) {
+        this.schema = schema;
+        this.timestamp = timestamp;
+        this.dimensions = dimensions;
+        this.event = event;
+        this.values = values;
+        this.present = present;
+    }
+
+    @Override
+    public List<String> getDimensions() {
+        return dimensions;
+    }
+
+    @Override
+    public long getTimestampFromEpoch() {
+        return timestamp;
+    }
+
+    @Override
+    public DateTime getTimestamp() {
+        return new DateTime(timestamp);
+    }
+
+    @Override
+    public List<String> getDimension(String dimension) {
+        Object value = getRaw(dimension);
+        return value == null ? Collections.<String>emptyList() : Collections.singletonList(value.toString());
+    }
+
+    @Override
+    public Object getRaw(String column) {
+        int slot = schema.getSlot(column);
+        if (slot < 0) {
+            return event.get(column);
+        }
+        if (!present[slot]) {
+            return null;
+        }
+        switch (schema.getType(slot)) {
+            case LONG:
+                return values[slot];
+            case FLOAT:
+                return (float) Double.longBitsToDouble(values[slot]);
+            default:
+                return Double.longBitsToDouble(values[slot]);
+        }
+    }
+
+    @Override
+    public float getFloatMetric(String metric) {
+        int slot = schema.getSlot(metric);
+        if (slot < 0) {
+            Object value = event.get(metric);
+            return value == null ? 0 : Float.parseFloat(value.toString());
+        }
+        return schema.getType(slot) == RowSchema.Type.LONG
+                ? values[slot] : (float) Double.longBitsToDouble(values[slot]);
+    }
+
+    @Override
+    public long getLongMetric(String metric) {
+        int slot = schema.getSlot(metric);
+        if (slot < 0) {
+            Object value = event.get(metric);
+            return value == null ? 0 : Long.parseLong(value.toString());
+        }
+        return schema.getType(slot) == RowSchema.Type.LONG
+                ? values[slot] : (long) Double.longBitsToDouble(values[slot]);
+    }
+
+    @Override
+    public int compareTo(Row other) {
+        long otherTimestamp = other.getTimestampFromEpoch();
+        return timestamp < otherTimestamp ? -1 : (timestamp == otherTimestamp ? 0 : 1);
+    }
+
+    @Override
+    public String toString() {
+        return "TypedInputRow{timestamp=" + getTimestamp() + ", event=" + event + "}";
+    }
+
+    /**
+     * @return the value as a long, or the bits of its double value for floating point types
+     */
+    static long parse(RowSchema.Type type, String value) {
+        switch (type) {
+            case LONG:
+                return Long.parseLong(value);
+            case FLOAT:
+                return Double.doubleToRawLongBits(Float.parseFloat(value));
+            default:
+                return Double.doubleToRawLongBits(Double.parseDouble(value));
+        }
+    }
+}
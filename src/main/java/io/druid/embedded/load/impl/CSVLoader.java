@@ -18,20 +18,28 @@ package io.druid.embedded.load.impl;
 
 import java.util.Iterator;
 import java.io.BufferedReader;
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Reader;
-import java.util.ArrayList;
+import java.io.StringReader;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.StringTokenizer;
+import java.util.NoSuchElementException;
 
+import com.google.common.base.Charsets;
 import io.druid.data.input.InputRow;
 import io.druid.data.input.MapBasedInputRow;
 import io.druid.embedded.load.Loader;
+import io.druid.embedded.load.RowSchema;
 
 /**
  * This is CSV loader implementation where data are comma separated.
+ * Fields may be quoted as described in RFC 4180, and empty fields keep their column.
  * If column name is "value", then it is assuming containing metric value and will be converted as float.
  * For specifying any metric name, metric column should be present in each record.
  * Ex : For say wikipedia schema, having dimensions
@@ -44,6 +52,8 @@ import io.druid.embedded.load.Loader;
 public class CSVLoader extends Loader {
 
 	protected Reader reader;
+	protected File file;
+	protected RowSchema.RowFactory rowFactory;
 	
 	/**
 	 * @param reader : Reader object pointing to CSV file
@@ -52,89 +62,212 @@ public class CSVLoader extends Loader {
 	 * @param timestampDimension : Dimension which indicates timestamp field in CSV File.
 	 */
 	public CSVLoader(Reader reader, List<String> columns, List<String> dimensions, String timestampDimension) {
-		super(columns, dimensions, timestampDimension);
+		this(reader, columns, dimensions, timestampDimension, null);
+	}
+
+	/**
+	 * @param reader : Reader object pointing to CSV file
+	 * @param columns : List of all columns in CSV file (including metric columns)
+	 * @param dimensions : List of dimensions (Excluding metric columns)
+	 * @param timestampDimension : Dimension which indicates timestamp field in CSV File.
+	 * @param schema : Types of the metric columns and format of the timestamp. Without schema, only the
+	 *                 "value" column is parsed, as a float, and the timestamp is in milliseconds.
+	 */
+	public CSVLoader(Reader reader, List<String> columns, List<String> dimensions, String timestampDimension,
+			RowSchema schema) {
+		super(columns, dimensions, timestampDimension, schema);
 		this.reader = reader;
+		this.rowFactory = newRowFactory();
+	}
+
+	/**
+	 * Reads a UTF-8 encoded CSV file. The file is opened each time the loader is iterated, and its
+	 * content makes up the fingerprint of the loader.
+	 *
+	 * @param file : CSV file
+	 * @param columns : List of all columns in CSV file (including metric and "value" column)
+	 * @param dimensions : List of dimensions (Excluding metric and value columns)
+	 * @param timestampDimension : Dimension which indicates timestamp field in CSV File.
+	 */
+	public CSVLoader(File file, List<String> columns, List<String> dimensions, String timestampDimension) {
+		this(file, columns, dimensions, timestampDimension, null);
+	}
+
+	/**
+	 * @param file : CSV file
+	 * @param columns : List of all columns in CSV file (including metric columns)
+	 * @param dimensions : List of dimensions (Excluding metric columns)
+	 * @param timestampDimension : Dimension which indicates timestamp field in CSV File.
+	 * @param schema : Types of the metric columns and format of the timestamp, or null
+	 */
+	public CSVLoader(File file, List<String> columns, List<String> dimensions, String timestampDimension,
+			RowSchema schema) {
+		super(columns, dimensions, timestampDimension, schema);
+		this.file = file;
+		this.rowFactory = newRowFactory();
 	}
 	
 	@Override
 	public Iterator<InputRow> iterator() {
-		return new CSVReaderIterator();
+		return new RowIterator(new CSVParser(openReader(), ',', getInternColumns()));
+	}
+
+	/**
+	 * Only looks for record boundaries while batching, so that the batches are parsed by whoever iterates them.
+	 */
+	@Override
+	public Iterator<Iterable<InputRow>> split(int batchSize) {
+		return new BatchIterator(openReader(), batchSize);
+	}
+
+	/**
+	 * Hashes the file content together with the column layout. Loaders reading from a Reader have
+	 * no fingerprint.
+	 */
+	@Override
+	public String getFingerprint() {
+		if (file == null) {
+			return null;
+		}
+		return fingerprint(file, null);
+	}
+
+	protected Reader openReader() {
+		if (file == null) {
+			return reader;
+		}
+		try {
+			return new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to open " + file, e);
+		}
 	}
 
 	protected Map<String, Object> parse(String row) {
-		List<String> data = new ArrayList<String>();
-		StringTokenizer stk = new StringTokenizer(row, ",");
-		while(stk.hasMoreTokens()) {
-			data.add(stk.nextToken());
+		CSVParser parser = new CSVParser(new StringReader(row), ',', null);
+		try {
+			return parser.readRow() ? toMap(parser) : null;
+		} catch (IOException e) {
+			return null;
 		}
-	    Map<String, Object> map = new HashMap<String, Object>();
-	    if(data.size() != columns.size()) {
+	}
+
+	/**
+	 * Converts the current row of the parser into a map of column name to value.
+	 * Empty and "null" fields are left out.
+	 *
+	 * @return map of the row, or null if the number of fields doesn't match the columns
+	 */
+	protected Map<String, Object> toMap(CSVParser parser) {
+	    if (parser.getFieldCount() != columns.size()) {
 	    	return null;
 	    }
+	    Map<String, Object> map = new HashMap<String, Object>(columns.size() * 2);
 	    for (int i = 0; i < columns.size(); i++) {
-	    	if (data.get(i).equals("null") || data.get(i).isEmpty()) {
+	    	String field = parser.getField(i);
+	    	if (field.isEmpty() || field.equals("null")) {
 	    		continue;
 	    	} else {
 	    		//Column name "value" is treated as special column containing value of metric
 	    		if (columns.get(i).equals("value")) {
-	    			map.put(columns.get(i), Float.parseFloat(data.get(i)));
+	    			map.put(columns.get(i), Float.parseFloat(field));
 	    		} else {
-	    			map.put(columns.get(i), data.get(i));
+	    			map.put(columns.get(i), field);
 	    		}
 	    	}
 	    }
 	    return map;
 	}
+
+	/**
+	 * Converts the current row of the parser into an InputRow. With a schema, metrics are parsed once into
+	 * primitives, otherwise the row is built from {@link #toMap(CSVParser)}.
+	 *
+	 * @return row, or null if the number of fields doesn't match the columns
+	 */
+	protected InputRow toRow(CSVParser parser) {
+		if (rowFactory == null) {
+			Map<String, Object> map = toMap(parser);
+			return map == null ? null : new MapBasedInputRow(getTimestamp(map), dimensions, map);
+		}
+		if (parser.getFieldCount() != columns.size()) {
+			return null;
+		}
+		String[] fields = new String[columns.size()];
+		for (int i = 0; i < fields.length; i++) {
+			String field = parser.getField(i);
+			fields[i] = field.isEmpty() || field.equals("null") ? null : field;
+		}
+		return rowFactory.makeRow(fields);
+	}
+
+	protected Long getTimestamp(Map<String, Object> map) {
+		if (timestampDimension == null) {
+			return 1l;
+		} else {
+			return (Long) Long.valueOf((String)map.get(timestampDimension));
+		}
+	}
+
+	private RowSchema.RowFactory newRowFactory() {
+		return schema == null ? null : schema.newRowFactory(columns, dimensions, timestampDimension);
+	}
+
+	/**
+	 * Dimension values repeat a lot, so they are interned by the parser.
+	 */
+	protected boolean[] getInternColumns() {
+		boolean[] intern = new boolean[columns.size()];
+		for (int i = 0; i < intern.length; i++) {
+			intern[i] = dimensions.contains(columns.get(i)) && !columns.get(i).equals(timestampDimension);
+		}
+		return intern;
+	}
 	
-	private class CSVReaderIterator implements Iterator<InputRow> {
-		String nextLine;
-		protected BufferedReader breader;
+	private class RowIterator implements Iterator<InputRow> {
+		InputRow nextRow;
+		protected CSVParser parser;
 	    	
-	    public CSVReaderIterator() {
-	      this.breader = new BufferedReader(reader);
+	    public RowIterator(CSVParser parser) {
+	      this.parser = parser;
 	    }
 
-	    protected Long getTimestamp(Map<String, Object> map) {
-	    	if (timestampDimension == null) {
-	    		return 1l;
-	    	} else {
-	    		return (Long) Long.valueOf((String)map.get(timestampDimension));
+	    public boolean hasNext() {
+	    	if (nextRow == null) {
+	    		nextRow = readRow();
 	    	}
+	    	return nextRow != null;
 	    }
 
-	    public boolean hasNext() {
-	    	try {
-	    		if (nextLine == null && (nextLine = breader.readLine()) == null) {
-	    			close();
-	    			return false;
-	    		} else {
-	    			return true;
-	    		}
-	    	} catch (IOException e) {
-	    		e.printStackTrace();
-	    		close();
-	    		return false;
+	    public InputRow next() {
+	    	if (!hasNext()) {
+	    		throw new NoSuchElementException();
 	    	}
+	    	InputRow row = nextRow;
+	    	nextRow = null;
+	    	return row;
 	    }
 
-	    public InputRow next() {
-	    	if (nextLine == null) {
-	    		try {
-	    			nextLine = breader.readLine();
-	    		} catch (IOException e) {
-	    			e.printStackTrace();
-	    			close();
-	    			return null;
+	    /**
+	     * Reads rows until one matches the columns, skipping those with the wrong number of fields. An
+	     * unterminated quote swallows the rest of the input, so it fails the load rather than truncate it.
+	     *
+	     * @throws IllegalStateException if the input could not be read or a quoted field was not terminated
+	     */
+	    private InputRow readRow() {
+	    	try {
+	    		while (parser.readRow()) {
+	    			InputRow row = toRow(parser);
+	    			if (row != null) {
+	    				return row;
+	    			}
 	    		}
+	    	} catch (IOException e) {
+	    		close();
+	    		throw new IllegalStateException("Could not parse CSV input", e);
 	    	}
-	    	Map<String, Object> map = parse(nextLine);
-	    	if(map == null) {
-		    	nextLine = null;
-	    		next();
-	    	}
-	    	InputRow row = new MapBasedInputRow(getTimestamp(map), dimensions, map);
-	    	nextLine = null;
-	    	return row;
+	    	close();
+	    	return null;
 	    }
 
 	    public void remove() {
@@ -143,9 +276,100 @@ public class CSVLoader extends Loader {
 	    
 	    public void close() {
 	    	try {
-	    		breader.close();
+	    		parser.close();
 	    	} catch(Exception e) {
 	    	}
 	    }
 	}
+
+	/**
+	 * Reads the input in batches of whole records and hands each batch out as characters, to be parsed when
+	 * iterated. Record boundaries are found by counting line breaks outside quoted fields.
+	 */
+	private class BatchIterator implements Iterator<Iterable<InputRow>> {
+		private final Reader reader;
+		private final int batchSize;
+		private final char[] buffer = new char[CSVParser.DEFAULT_BUFFER_SIZE];
+		private int position;
+		private int limit;
+		private boolean inQuotes;
+		private boolean done;
+		private Iterable<InputRow> nextBatch;
+
+		public BatchIterator(Reader reader, int batchSize) {
+			this.reader = reader;
+			this.batchSize = batchSize;
+		}
+
+		public boolean hasNext() {
+			if (nextBatch == null && !done) {
+				try {
+					nextBatch = readBatch();
+				} catch (IOException e) {
+					done = true;
+					closeReader();
+					throw new IllegalStateException("Could not read CSV input", e);
+				}
+				if (nextBatch == null) {
+					done = true;
+					closeReader();
+				}
+			}
+			return nextBatch != null;
+		}
+
+		public Iterable<InputRow> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Iterable<InputRow> batch = nextBatch;
+			nextBatch = null;
+			return batch;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void closeReader() {
+			try {
+				reader.close();
+			} catch (Exception e) {
+			}
+		}
+
+		private Iterable<InputRow> readBatch() throws IOException {
+			CharArrayWriter chunk = new CharArrayWriter(CSVParser.DEFAULT_BUFFER_SIZE);
+			int records = 0;
+			while (records < batchSize) {
+				if (position == limit) {
+					limit = reader.read(buffer, 0, buffer.length);
+					position = 0;
+					if (limit <= 0) {
+						limit = 0;
+						break;
+					}
+				}
+				int start = position;
+				while (position < limit && records < batchSize) {
+					char c = buffer[position++];
+					if (c == '"') {
+						inQuotes = !inQuotes;
+					} else if (c == '\n' && !inQuotes) {
+						records++;
+					}
+				}
+				chunk.write(buffer, start, position - start);
+			}
+			if (chunk.size() == 0) {
+				return null;
+			}
+			final char[] data = chunk.toCharArray();
+			return new Iterable<InputRow>() {
+				public Iterator<InputRow> iterator() {
+					return new RowIterator(new CSVParser(new CharArrayReader(data), ',', getInternColumns()));
+				}
+			};
+		}
+	}
 }
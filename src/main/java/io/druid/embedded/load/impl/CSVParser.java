@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Streaming parser for delimiter separated text following RFC 4180.
+ * Fields may be enclosed in double quotes, in which case they can contain delimiters, line breaks and
+ * escaped quotes (""). Empty fields are kept, so every field stays in its column.
+ * <p>
+ * The parser reads straight from a char buffer and reuses its field storage from row to row. Values of
+ * columns marked for interning are deduplicated through a per-column dictionary, so repeated dimension
+ * values share a single String instance.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class CSVParser implements Closeable {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int EOF = -1;
+
+    private final Reader reader;
+    private final char delimiter;
+    private final char[] buffer;
+    private int position;
+    private int limit;
+
+    private char[] fieldChars = new char[256];
+    private String[] fields = new String[16];
+    private int fieldCount;
+
+    private final boolean[] internColumns;
+    private final Dictionary[] dictionaries;
+
+    /**
+     * @param reader        source of the data
+     * @param delimiter     field delimiter
+     * @param internColumns columns whose values should be interned, may be null
+     */
+    public CSVParser(Reader reader, char delimiter, boolean[] internColumns) {
+        this(reader, delimiter, internColumns, DEFAULT_BUFFER_SIZE);
+    }
+
+    public CSVParser(Reader reader, char delimiter, boolean[] internColumns, int bufferSize) {
+        this.reader = reader;
+        this.delimiter = delimiter;
+        this.buffer = new char[bufferSize];
+        this.internColumns = internColumns == null ? new boolean[0] : internColumns;
+        this.dictionaries = new Dictionary[this.internColumns.length];
+        for (int i = 0; i < dictionaries.length; i++) {
+            if (this.internColumns[i]) {
+                dictionaries[i] = new Dictionary();
+            }
+        }
+    }
+
+    /**
+     * Reads the next row. Its fields are available through {@link #getField(int)} until the next call.
+     *
+     * @return false if the end of the input was reached
+     * @throws IOException if reading failed or a quoted field was not terminated
+     */
+    public boolean readRow() throws IOException {
+        fieldCount = 0;
+        int c = read();
+        if (c == EOF) {
+            return false;
+        }
+        while (true) {
+            int length = 0;
+            if (c == '"') {
+                while (true) {
+                    c = read();
+                    if (c == EOF) {
+                        throw new IOException("Unterminated quoted field in column " + fieldCount);
+                    }
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            break;
+                        }
+                    }
+                    length = append(length, (char) c);
+                }
+            }
+            // Unquoted field, or anything following the closing quote
+            while (c != delimiter && c != '\n' && c != '\r' && c != EOF) {
+                length = append(length, (char) c);
+                c = read();
+            }
+            addField(length);
+            if (c == delimiter) {
+                c = read();
+                continue;
+            }
+            if (c == '\r') {
+                c = read();
+                if (c != '\n' && c != EOF) {
+                    position--;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return number of fields in the current row
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @param index column index
+     * @return value of the field in the current row, empty if the field was empty
+     */
+    public String getField(int index) {
+        if (index >= fieldCount) {
+            throw new IndexOutOfBoundsException("Row has " + fieldCount + " fields, requested " + index);
+        }
+        return fields[index];
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return EOF;
+            }
+        }
+        return buffer[position++];
+    }
+
+    private int append(int length, char c) {
+        if (length == fieldChars.length) {
+            fieldChars = Arrays.copyOf(fieldChars, length * 2);
+        }
+        fieldChars[length] = c;
+        return length + 1;
+    }
+
+    private void addField(int length) {
+        if (fieldCount == fields.length) {
+            fields = Arrays.copyOf(fields, fieldCount * 2);
+        }
+        String value;
+        if (length == 0) {
+            value = "";
+        } else if (fieldCount < dictionaries.length && dictionaries[fieldCount] != null) {
+            value = dictionaries[fieldCount].intern(fieldChars, length);
+        } else {
+            value = new String(fieldChars, 0, length);
+        }
+        fields[fieldCount++] = value;
+    }
+
+    /**
+     * Open addressing table of distinct values, looked up directly from the field characters so that known
+     * values don't allocate. Stops growing once it holds MAX_ENTRIES values, after which unknown values are
+     * returned as new Strings.
+     */
+    private static class Dictionary {
+        private static final int MAX_ENTRIES = 1 << 16;
+
+        private String[] table = new String[64];
+        private int size;
+
+        String intern(char[] chars, int length) {
+            int hash = hash(chars, length);
+            int mask = table.length - 1;
+            int slot = hash & mask;
+            String entry;
+            while ((entry = table[slot]) != null) {
+                if (matches(entry, chars, length)) {
+                    return entry;
+                }
+                slot = (slot + 1) & mask;
+            }
+            String value = new String(chars, 0, length);
+            if (size < MAX_ENTRIES) {
+                table[slot] = value;
+                if (++size * 2 > table.length) {
+                    grow();
+                }
+            }
+            return value;
+        }
+
+        private static int hash(char[] chars, int length) {
+            int h = 0;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + chars[i];
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean matches(String entry, char[] chars, int length) {
+            if (entry.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (entry.charAt(i) != chars[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void grow() {
+            String[] old = table;
+            table = new String[old.length * 2];
+            int mask = table.length - 1;
+            for (String entry : old) {
+                if (entry != null) {
+                    char[] chars = entry.toCharArray();
+                    int slot = hash(chars, chars.length) & mask;
+                    while (table[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    table[slot] = entry;
+                }
+            }
+        }
+    }
+}
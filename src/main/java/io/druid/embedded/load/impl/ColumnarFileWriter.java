@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CountingOutputStream;
+import io.druid.data.input.Row;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes rows into a columnar file (see {@link ColumnarFormat}), e.g. to convert CSV input once and ingest it
+ * many times with a {@link ColumnarLoader}. Rows are buffered until a row group is full.
+ * <p>
+ * LONG and FLOAT columns take the metric value of the row, missing values being 0. STRING columns take the
+ * first value of the dimension, missing values being null.
+ */
+public class ColumnarFileWriter implements Closeable {
+    public static final int DEFAULT_ROW_GROUP_SIZE = 64 * 1024;
+
+    private final CountingOutputStream counter;
+    private final DataOutputStream output;
+    private final Map<String, ColumnarFormat.Type> columns;
+    private final String[] names;
+    private final ColumnarFormat.Type[] types;
+    private final int rowGroupSize;
+    private final List<ColumnarFormat.RowGroup> rowGroups = new ArrayList<ColumnarFormat.RowGroup>();
+
+    private final long[][] longs;
+    private final float[][] floats;
+    private final String[][] strings;
+    private int rows;
+
+    public ColumnarFileWriter(File file, Map<String, ColumnarFormat.Type> columns) throws IOException {
+        this(file, columns, DEFAULT_ROW_GROUP_SIZE);
+    }
+
+    /**
+     * @param file         file to write
+     * @param columns      columns to write and their types, in file order
+     * @param rowGroupSize rows per row group
+     */
+    public ColumnarFileWriter(File file, Map<String, ColumnarFormat.Type> columns, int rowGroupSize)
+            throws IOException {
+        this.columns = new LinkedHashMap<String, ColumnarFormat.Type>(columns);
+        this.names = this.columns.keySet().toArray(new String[columns.size()]);
+        this.types = this.columns.values().toArray(new ColumnarFormat.Type[columns.size()]);
+        this.rowGroupSize = rowGroupSize;
+        this.longs = new long[names.length][];
+        this.floats = new float[names.length][];
+        this.strings = new String[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            switch (types[i]) {
+                case LONG:
+                    longs[i] = new long[rowGroupSize];
+                    break;
+                case FLOAT:
+                    floats[i] = new float[rowGroupSize];
+                    break;
+                default:
+                    strings[i] = new String[rowGroupSize];
+            }
+        }
+        this.counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        this.output = new DataOutputStream(counter);
+        output.write(ColumnarFormat.MAGIC);
+    }
+
+    public void add(Row row) throws IOException {
+        for (int i = 0; i < names.length; i++) {
+            switch (types[i]) {
+                case LONG:
+                    longs[i][rows] = row.getLongMetric(names[i]);
+                    break;
+                case FLOAT:
+                    floats[i][rows] = row.getFloatMetric(names[i]);
+                    break;
+                default:
+                    List<String> values = row.getDimension(names[i]);
+                    strings[i][rows] = values == null || values.isEmpty() ? null : values.get(0);
+            }
+        }
+        if (++rows == rowGroupSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the pending row group and the footer, and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rows > 0) {
+                flush();
+            }
+            ByteArrayOutputStream footer = new ByteArrayOutputStream();
+            new ColumnarFormat(columns, rowGroups).writeFooter(new DataOutputStream(footer));
+            footer.writeTo(output);
+            output.writeInt(footer.size());
+            output.write(ColumnarFormat.MAGIC);
+        } finally {
+            output.close();
+        }
+    }
+
+    private void flush() throws IOException {
+        long[] offsets = new long[names.length];
+        int[] lengths = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            byte[] chunk;
+            switch (types[i]) {
+                case LONG:
+                    ByteBuffer longChunk = ByteBuffer.allocate(rows * 8);
+                    longChunk.asLongBuffer().put(longs[i], 0, rows);
+                    chunk = longChunk.array();
+                    break;
+                case FLOAT:
+                    ByteBuffer floatChunk = ByteBuffer.allocate(rows * 4);
+                    floatChunk.asFloatBuffer().put(floats[i], 0, rows);
+                    chunk = floatChunk.array();
+                    break;
+                default:
+                    chunk = encodeStrings(strings[i]);
+            }
+            offsets[i] = counter.getCount();
+            lengths[i] = chunk.length;
+            output.write(chunk);
+        }
+        rowGroups.add(new ColumnarFormat.RowGroup(rows, offsets, lengths));
+        rows = 0;
+    }
+
+    private byte[] encodeStrings(String[] values) throws IOException {
+        Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+        int[] ids = new int[rows];
+        for (int row = 0; row < rows; row++) {
+            String value = values[row];
+            if (value == null) {
+                ids[row] = -1;
+                continue;
+            }
+            Integer id = dictionary.get(value);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.put(value, id);
+            }
+            ids[row] = id;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream chunk = new DataOutputStream(bytes);
+        chunk.writeInt(dictionary.size());
+        for (String value : dictionary.keySet()) {
+            byte[] encoded = value.getBytes(Charsets.UTF_8);
+            chunk.writeInt(encoded.length);
+            chunk.write(encoded);
+        }
+        for (int id : ids) {
+            chunk.writeInt(id);
+        }
+        chunk.flush();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Layout of the columnar files written by {@link ColumnarFileWriter} and read by {@link ColumnarLoader}.
+ * <p>
+ * Rows are stored in row groups, and each row group stores every column in a chunk of its own, so that a
+ * reader only fetches the columns it needs and row groups can be decoded in parallel. The file is laid out as
+ * <pre>
+ * MAGIC
+ * row group 0: chunk of column 0, chunk of column 1, ...
+ * row group 1: ...
+ * footer: columns (name, type), row groups (rows, offset and length of each chunk)
+ * footer length (int), MAGIC
+ * </pre>
+ * Chunks of LONG and FLOAT columns hold one big endian value per row. Chunks of STRING columns hold a
+ * dictionary of the distinct values of the row group followed by one dictionary id per row, -1 for null.
+ */
+public class ColumnarFormat {
+    public static final byte[] MAGIC = "EDC1".getBytes(Charsets.US_ASCII);
+
+    public enum Type {
+        LONG, FLOAT, STRING
+    }
+
+    private final Map<String, Type> columns;
+    private final List<RowGroup> rowGroups;
+
+    public ColumnarFormat(Map<String, Type> columns, List<RowGroup> rowGroups) {
+        this.columns = Collections.unmodifiableMap(new LinkedHashMap<String, Type>(columns));
+        this.rowGroups = ImmutableList.copyOf(rowGroups);
+    }
+
+    /**
+     * @return columns of the file and their types, in file order
+     */
+    public Map<String, Type> getColumns() {
+        return columns;
+    }
+
+    public List<RowGroup> getRowGroups() {
+        return rowGroups;
+    }
+
+    /**
+     * Reads the footer of a columnar file.
+     *
+     * @throws IOException if the file is not a columnar file
+     */
+    public static ColumnarFormat read(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            long length = input.length();
+            byte[] magic = new byte[MAGIC.length];
+            if (length < 2 * MAGIC.length + 4) {
+                throw new IOException(file + " is not a columnar file");
+            }
+            input.seek(length - MAGIC.length);
+            input.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a columnar file");
+            }
+            input.seek(length - MAGIC.length - 4);
+            int footerLength = input.readInt();
+            input.seek(length - MAGIC.length - 4 - footerLength);
+            byte[] footer = new byte[footerLength];
+            input.readFully(footer);
+            return readFooter(new DataInputStream(new ByteArrayInputStream(footer)));
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads the chunk of a column in a row group.
+     */
+    public static ByteBuffer readChunk(RandomAccessFile input, RowGroup rowGroup, int column) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(rowGroup.lengths[column]);
+        long position = rowGroup.offsets[column];
+        while (chunk.hasRemaining()) {
+            int read = input.getChannel().read(chunk, position + chunk.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of columnar file");
+            }
+        }
+        chunk.flip();
+        return chunk;
+    }
+
+    void writeFooter(DataOutput output) throws IOException {
+        output.writeInt(columns.size());
+        for (Map.Entry<String, Type> column : columns.entrySet()) {
+            output.writeUTF(column.getKey());
+            output.writeByte(column.getValue().ordinal());
+        }
+        output.writeInt(rowGroups.size());
+        for (RowGroup rowGroup : rowGroups) {
+            output.writeInt(rowGroup.rows);
+            for (int i = 0; i < columns.size(); i++) {
+                output.writeLong(rowGroup.offsets[i]);
+                output.writeInt(rowGroup.lengths[i]);
+            }
+        }
+    }
+
+    private static ColumnarFormat readFooter(DataInput input) throws IOException {
+        Map<String, Type> columns = new LinkedHashMap<String, Type>();
+        int columnCount = input.readInt();
+        for (int i = 0; i < columnCount; i++) {
+            String name = input.readUTF();
+            columns.put(name, Type.values()[input.readByte()]);
+        }
+        int rowGroupCount = input.readInt();
+        List<RowGroup> rowGroups = new ArrayList<RowGroup>(rowGroupCount);
+        for (int i = 0; i < rowGroupCount; i++) {
+            int rows = input.readInt();
+            long[] offsets = new long[columnCount];
+            int[] lengths = new int[columnCount];
+            for (int j = 0; j < columnCount; j++) {
+                offsets[j] = input.readLong();
+                lengths[j] = input.readInt();
+            }
+            rowGroups.add(new RowGroup(rows, offsets, lengths));
+        }
+        return new ColumnarFormat(columns, rowGroups);
+    }
+
+    /**
+     * Location of the column chunks of a row group, by column index.
+     */
+    public static class RowGroup {
+        private final int rows;
+        private final long[] offsets;
+        private final int[] lengths;
+
+        public RowGroup(int rows, long[] offsets, int[] lengths) {
+            this.rows = rows;
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+import io.druid.data.input.InputRow;
+import io.druid.data.input.Row;
+import io.druid.embedded.load.Loader;
+import org.joda.time.DateTime;
+
+/**
+ * Loader for the columnar files written by {@link ColumnarFileWriter}. Only the chunks of the columns named
+ * in columns, dimensions and the timestamp column are read, the others are skipped on disk. Rows are views on
+ * the decoded column chunks of their row group, so metrics are never boxed nor parsed from text, and string
+ * values are decoded once per row group.
+ * <p>
+ * The row groups of the file are the batches handed out by {@link #split(int)}, each read and decoded by
+ * whoever iterates it, so the batch size is only decided when the file is written.
+ */
+public class ColumnarLoader extends Loader {
+
+	protected File file;
+
+	/**
+	 * @param file : Columnar file
+	 * @param columns : Columns to read, metrics included
+	 * @param dimensions : List of dimensions
+	 * @param timestampDimension : LONG column holding the timestamp of the rows, in milliseconds.
+	 */
+	public ColumnarLoader(File file, List<String> columns, List<String> dimensions, String timestampDimension) {
+		super(columns, dimensions, timestampDimension);
+		this.file = file;
+	}
+
+	@Override
+	public Iterator<InputRow> iterator() {
+		return Iterators.concat(Iterators.transform(split(0),
+				new Function<Iterable<InputRow>, Iterator<InputRow>>() {
+					public Iterator<InputRow> apply(Iterable<InputRow> batch) {
+						return batch.iterator();
+					}
+				}));
+	}
+
+	/**
+	 * Hands out the row groups of the file, whatever the batch size.
+	 */
+	@Override
+	public Iterator<Iterable<InputRow>> split(int batchSize) {
+		final ColumnarFormat format;
+		try {
+			format = ColumnarFormat.read(file);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to read " + file, e);
+		}
+		final Map<String, Integer> projection = getProjection(format);
+		return Iterators.transform(format.getRowGroups().iterator(),
+				new Function<ColumnarFormat.RowGroup, Iterable<InputRow>>() {
+					public Iterable<InputRow> apply(final ColumnarFormat.RowGroup rowGroup) {
+						return new Iterable<InputRow>() {
+							public Iterator<InputRow> iterator() {
+								return readRowGroup(format, rowGroup, projection).iterator();
+							}
+						};
+					}
+				});
+	}
+
+	@Override
+	public String getFingerprint() {
+		return fingerprint(file, "columnar");
+	}
+
+	/**
+	 * @return index in the file of every column to read, by name
+	 */
+	private Map<String, Integer> getProjection(ColumnarFormat format) {
+		Set<String> names = new LinkedHashSet<String>(columns);
+		names.addAll(dimensions);
+		if (timestampDimension != null) {
+			names.add(timestampDimension);
+		}
+		List<String> fileColumns = new ArrayList<String>(format.getColumns().keySet());
+		Map<String, Integer> projection = new HashMap<String, Integer>();
+		for (String name : names) {
+			int index = fileColumns.indexOf(name);
+			if (index < 0) {
+				throw new IllegalArgumentException("Column " + name + " is not in " + file);
+			}
+			projection.put(name, index);
+		}
+		return projection;
+	}
+
+	private List<InputRow> readRowGroup(ColumnarFormat format, ColumnarFormat.RowGroup rowGroup,
+			Map<String, Integer> projection) {
+		List<ColumnarFormat.Type> types = new ArrayList<ColumnarFormat.Type>(format.getColumns().values());
+		Map<String, Column> batch = new HashMap<String, Column>();
+		try {
+			RandomAccessFile input = new RandomAccessFile(file, "r");
+			try {
+				for (Map.Entry<String, Integer> column : projection.entrySet()) {
+					ByteBuffer chunk = ColumnarFormat.readChunk(input, rowGroup, column.getValue());
+					batch.put(column.getKey(), decode(types.get(column.getValue()), chunk, rowGroup.getRows()));
+				}
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to read " + file, e);
+		}
+		Column timestamps = timestampDimension == null ? null : batch.get(timestampDimension);
+		List<InputRow> rows = new ArrayList<InputRow>(rowGroup.getRows());
+		for (int i = 0; i < rowGroup.getRows(); i++) {
+			rows.add(new ColumnarRow(batch, timestamps, i));
+		}
+		return rows;
+	}
+
+	private static Column decode(ColumnarFormat.Type type, ByteBuffer chunk, int rows) {
+		switch (type) {
+			case LONG:
+				long[] longs = new long[rows];
+				chunk.asLongBuffer().get(longs);
+				return new LongColumn(longs);
+			case FLOAT:
+				float[] floats = new float[rows];
+				chunk.asFloatBuffer().get(floats);
+				return new FloatColumn(floats);
+			default:
+				String[] dictionary = new String[chunk.getInt()];
+				for (int i = 0; i < dictionary.length; i++) {
+					byte[] value = new byte[chunk.getInt()];
+					chunk.get(value);
+					dictionary[i] = new String(value, Charsets.UTF_8);
+				}
+				int[] ids = new int[rows];
+				chunk.asIntBuffer().get(ids);
+				return new StringColumn(dictionary, ids);
+		}
+	}
+
+	/**
+	 * Row of a row group, reading its values from the decoded column chunks.
+	 */
+	private class ColumnarRow implements InputRow {
+		private final Map<String, Column> batch;
+		private final Column timestamps;
+		private final int index;
+
+		ColumnarRow(Map<String, Column> batch, Column timestamps, int index) {
+			this.batch = batch;
+			this.timestamps = timestamps;
+			this.index = index;
+		}
+
+		public List<String> getDimensions() {
+			return dimensions;
+		}
+
+		public long getTimestampFromEpoch() {
+			return timestamps == null ? 1l : timestamps.getLong(index);
+		}
+
+		public DateTime getTimestamp() {
+			return new DateTime(getTimestampFromEpoch());
+		}
+
+		public List<String> getDimension(String dimension) {
+			Column column = batch.get(dimension);
+			String value = column == null ? null : column.getString(index);
+			return value == null ? Collections.<String>emptyList() : Collections.singletonList(value);
+		}
+
+		public Object getRaw(String dimension) {
+			Column column = batch.get(dimension);
+			return column == null ? null : column.get(index);
+		}
+
+		public float getFloatMetric(String metric) {
+			Column column = batch.get(metric);
+			return column == null ? 0 : column.getFloat(index);
+		}
+
+		public long getLongMetric(String metric) {
+			Column column = batch.get(metric);
+			return column == null ? 0 : column.getLong(index);
+		}
+
+		public int compareTo(Row other) {
+			long timestamp = getTimestampFromEpoch();
+			long otherTimestamp = other.getTimestampFromEpoch();
+			return timestamp < otherTimestamp ? -1 : (timestamp == otherTimestamp ? 0 : 1);
+		}
+	}
+
+	private static abstract class Column {
+		abstract Object get(int row);
+
+		abstract String getString(int row);
+
+		abstract float getFloat(int row);
+
+		abstract long getLong(int row);
+	}
+
+	private static class LongColumn extends Column {
+		private final long[] values;
+
+		LongColumn(long[] values) {
+			this.values = values;
+		}
+
+		Object get(int row) {
+			return values[row];
+		}
+
+		String getString(int row) {
+			return String.valueOf(values[row]);
+		}
+
+		float getFloat(int row) {
+			return values[row];
+		}
+
+		long getLong(int row) {
+			return values[row];
+		}
+	}
+
+	private static class FloatColumn extends Column {
+		private final float[] values;
+
+		FloatColumn(float[] values) {
+			this.values = values;
+		}
+
+		Object get(int row) {
+			return values[row];
+		}
+
+		String getString(int row) {
+			return String.valueOf(values[row]);
+		}
+
+		float getFloat(int row) {
+			return values[row];
+		}
+
+		long getLong(int row) {
+			return (long) values[row];
+		}
+	}
+
+	private static class StringColumn extends Column {
+		private final String[] dictionary;
+		private final int[] ids;
+
+		StringColumn(String[] dictionary, int[] ids) {
+			this.dictionary = dictionary;
+			this.ids = ids;
+		}
+
+		Object get(int row) {
+			return getString(row);
+		}
+
+		String getString(int row) {
+			return ids[row] < 0 ? null : dictionary[ids[row]];
+		}
+
+		float getFloat(int row) {
+			String value = getString(row);
+			return value == null ? 0 : Float.parseFloat(value);
+		}
+
+		long getLong(int row) {
+			String value = getString(row);
+			return value == null ? 0 : Long.parseLong(value);
+		}
+	}
+}
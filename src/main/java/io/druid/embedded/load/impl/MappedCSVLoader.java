@@ -0,0 +1,353 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+import com.google.common.hash.Hashing;
+import io.druid.data.input.InputRow;
+import io.druid.data.input.MapBasedInputRow;
+import io.druid.embedded.load.RowSchema;
+
+/**
+ * CSV loader which memory-maps its UTF-8 file instead of decoding it through a Reader. Delimiters and
+ * record boundaries are found in the mapped bytes, and fields are only decoded when a row is built
+ * (see {@link MappedCSVParser}). Rows are the same as those of {@link CSVLoader}.
+ * <p>
+ * The file is mapped in windows of at most mapSize bytes (1 GB by default), each starting at a record
+ * boundary, so files of any size can be read. When split into batches, the calling thread only looks for
+ * line breaks outside quoted fields; each batch is a view on the mapped window and is parsed by whoever
+ * iterates it. The intern dictionaries of the dimension columns are kept per thread, so that the batches
+ * parsed by a worker share them rather than decoding every value again.
+ * <p>
+ * Any ASCII delimiter can be used, e.g. '\t' for TSV files.
+ */
+public class MappedCSVLoader extends CSVLoader {
+	public static final int DEFAULT_MAP_SIZE = 1 << 30;
+
+	private final char delimiter;
+	private final int mapSize;
+
+	/**
+	 * @param file : CSV file
+	 * @param columns : List of all columns in CSV file (including metric and "value" column)
+	 * @param dimensions : List of dimensions (Excluding metric and value columns)
+	 * @param timestampDimension : Dimension which indicates timestamp field in CSV File.
+	 */
+	public MappedCSVLoader(File file, List<String> columns, List<String> dimensions, String timestampDimension) {
+		this(file, ',', columns, dimensions, timestampDimension);
+	}
+
+	/**
+	 * @param file : delimiter separated file
+	 * @param delimiter : field delimiter, an ASCII character
+	 * @param columns : List of all columns in the file (including metric and "value" column)
+	 * @param dimensions : List of dimensions (Excluding metric and value columns)
+	 * @param timestampDimension : Dimension which indicates timestamp field in the file.
+	 */
+	public MappedCSVLoader(File file, char delimiter, List<String> columns, List<String> dimensions,
+			String timestampDimension) {
+		this(file, delimiter, columns, dimensions, timestampDimension, DEFAULT_MAP_SIZE);
+	}
+
+	/**
+	 * @param schema : Types of the metric columns and format of the timestamp
+	 */
+	public MappedCSVLoader(File file, char delimiter, List<String> columns, List<String> dimensions,
+			String timestampDimension, RowSchema schema) {
+		this(file, delimiter, columns, dimensions, timestampDimension, schema, DEFAULT_MAP_SIZE);
+	}
+
+	/**
+	 * @param mapSize : maximum number of bytes mapped at once, must exceed the longest record
+	 */
+	public MappedCSVLoader(File file, char delimiter, List<String> columns, List<String> dimensions,
+			String timestampDimension, int mapSize) {
+		this(file, delimiter, columns, dimensions, timestampDimension, null, mapSize);
+	}
+
+	/**
+	 * @param schema : Types of the metric columns and format of the timestamp, or null to parse only the
+	 *                 "value" column, as a float
+	 * @param mapSize : maximum number of bytes mapped at once, must exceed the longest record
+	 */
+	public MappedCSVLoader(File file, char delimiter, List<String> columns, List<String> dimensions,
+			String timestampDimension, RowSchema schema, int mapSize) {
+		super(file, columns, dimensions, timestampDimension, schema);
+		MappedCSVParser.checkDelimiter(delimiter);
+		this.delimiter = delimiter;
+		this.mapSize = mapSize;
+	}
+
+	@Override
+	public Iterator<InputRow> iterator() {
+		return Iterators.concat(Iterators.transform(split(Integer.MAX_VALUE),
+				new Function<Iterable<InputRow>, Iterator<InputRow>>() {
+					public Iterator<InputRow> apply(Iterable<InputRow> batch) {
+						return batch.iterator();
+					}
+				}));
+	}
+
+	/**
+	 * Only looks for record boundaries while batching, so that the batches are parsed by whoever iterates them.
+	 */
+	@Override
+	public Iterator<Iterable<InputRow>> split(int batchSize) {
+		return new BatchIterator(batchSize);
+	}
+
+	/**
+	 * Same as the CSVLoader fingerprint for comma separated files, so that either loader reuses the
+	 * segments of the other.
+	 */
+	@Override
+	public String getFingerprint() {
+		String fingerprint = super.getFingerprint();
+		if (delimiter == ',') {
+			return fingerprint;
+		}
+		return Hashing.sha1().newHasher().putString(fingerprint, Charsets.UTF_8).putChar(delimiter)
+				.hash().toString();
+	}
+
+	/**
+	 * Converts the current row of the parser into a map of column name to value, decoding only the fields
+	 * which are kept. Empty and "null" fields are left out.
+	 *
+	 * @return map of the row, or null if the number of fields doesn't match the columns
+	 */
+	protected Map<String, Object> toMap(MappedCSVParser parser) {
+		if (parser.getFieldCount() != columns.size()) {
+			return null;
+		}
+		Map<String, Object> map = new HashMap<String, Object>(columns.size() * 2);
+		for (int i = 0; i < columns.size(); i++) {
+			if (parser.isEmptyOrNull(i)) {
+				continue;
+			}
+			//Column name "value" is treated as special column containing value of metric
+			if (columns.get(i).equals("value")) {
+				map.put(columns.get(i), Float.parseFloat(parser.getField(i)));
+			} else {
+				map.put(columns.get(i), parser.getField(i));
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Converts the current row of the parser into an InputRow, typed according to the schema if there is one.
+	 *
+	 * @return row, or null if the number of fields doesn't match the columns
+	 */
+	protected InputRow toRow(MappedCSVParser parser) {
+		if (rowFactory == null) {
+			Map<String, Object> map = toMap(parser);
+			return map == null ? null : new MapBasedInputRow(getTimestamp(map), dimensions, map);
+		}
+		if (parser.getFieldCount() != columns.size()) {
+			return null;
+		}
+		String[] fields = new String[columns.size()];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = parser.isEmptyOrNull(i) ? null : parser.getField(i);
+		}
+		return rowFactory.makeRow(fields);
+	}
+
+	private class RowIterator implements Iterator<InputRow> {
+		private final MappedCSVParser parser;
+		private InputRow nextRow;
+
+		public RowIterator(MappedCSVParser parser) {
+			this.parser = parser;
+		}
+
+		public boolean hasNext() {
+			if (nextRow == null) {
+				nextRow = readRow();
+			}
+			return nextRow != null;
+		}
+
+		public InputRow next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			InputRow row = nextRow;
+			nextRow = null;
+			return row;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Reads rows until one matches the columns, skipping those with the wrong number of fields. An
+		 * unterminated quote swallows the rest of the batch, so it fails the load rather than truncate it.
+		 *
+		 * @throws IllegalStateException if a quoted field was not terminated
+		 */
+		private InputRow readRow() {
+			try {
+				while (parser.readRow()) {
+					InputRow row = toRow(parser);
+					if (row != null) {
+						return row;
+					}
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not parse " + file, e);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Hands out views on the mapped file holding batchSize records each. A window is mapped from the start of
+	 * the next batch whenever the current one holds no complete record anymore.
+	 */
+	private class BatchIterator implements Iterator<Iterable<InputRow>> {
+		private final int batchSize;
+		private final long fileSize;
+		private final ThreadLocal<MappedCSVParser.Dictionary[]> dictionaries =
+				new ThreadLocal<MappedCSVParser.Dictionary[]>() {
+					@Override
+					protected MappedCSVParser.Dictionary[] initialValue() {
+						return MappedCSVParser.newDictionaries(getInternColumns());
+					}
+				};
+		private MappedByteBuffer window;
+		private long windowOffset;
+		private long offset;
+		private Iterable<InputRow> nextBatch;
+
+		public BatchIterator(int batchSize) {
+			this.batchSize = batchSize;
+			this.fileSize = file.length();
+		}
+
+		public boolean hasNext() {
+			if (nextBatch == null) {
+				nextBatch = readBatch();
+			}
+			return nextBatch != null;
+		}
+
+		public Iterable<InputRow> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Iterable<InputRow> batch = nextBatch;
+			nextBatch = null;
+			return batch;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private Iterable<InputRow> readBatch() {
+			if (offset >= fileSize) {
+				window = null;
+				return null;
+			}
+			if (window == null || offset >= windowOffset + window.limit()) {
+				map(offset);
+			}
+			int start = (int) (offset - windowOffset);
+			int end = findBoundary(start);
+			if (end < 0) {
+				if (start == 0) {
+					throw new IllegalStateException("Record at offset " + offset + " of " + file
+							+ " is longer than " + mapSize + " bytes");
+				}
+				// The window ends within the first record of the batch, map a new one starting at it
+				map(offset);
+				return readBatch();
+			}
+			offset = windowOffset + end;
+
+			ByteBuffer view = window.duplicate();
+			view.limit(end);
+			view.position(start);
+			final ByteBuffer batch = view.slice();
+			return new Iterable<InputRow>() {
+				public Iterator<InputRow> iterator() {
+					return new RowIterator(new MappedCSVParser(batch.duplicate(), delimiter, dictionaries.get()));
+				}
+			};
+		}
+
+		/**
+		 * @return end of the batch starting at start, which is short of batchSize records when the window ends
+		 * first, or -1 if the window holds no complete record
+		 */
+		private int findBoundary(int start) {
+			int limit = window.limit();
+			boolean lastWindow = windowOffset + limit == fileSize;
+			if (lastWindow && batchSize == Integer.MAX_VALUE) {
+				return limit;
+			}
+			int records = 0;
+			int boundary = -1;
+			boolean inQuotes = false;
+			for (int i = start; i < limit; i++) {
+				byte b = window.get(i);
+				if (b == '"') {
+					inQuotes = !inQuotes;
+				} else if (b == '\n' && !inQuotes) {
+					boundary = i + 1;
+					if (++records == batchSize) {
+						return boundary;
+					}
+				}
+			}
+			return lastWindow ? limit : boundary;
+		}
+
+		private void map(long position) {
+			try {
+				RandomAccessFile input = new RandomAccessFile(file, "r");
+				try {
+					window = input.getChannel().map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(mapSize, fileSize - position));
+					windowOffset = position;
+				} finally {
+					input.close();
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to map " + file, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Parser for UTF-8, delimiter separated text held in a ByteBuffer, typically a memory-mapped part of a file.
+ * It follows the same rules as {@link CSVParser}, but scans the bytes in place: a row only records where its
+ * fields start and end, and a field is decoded into a String when it is asked for. Quoted fields are
+ * unescaped into a scratch array, everything else is read straight from the buffer.
+ * <p>
+ * Values of columns marked for interning are looked up in a per-column dictionary by their bytes, so known
+ * values are never decoded again. Parsers used one after the other by the same thread can share their
+ * dictionaries, see {@link #newDictionaries(boolean[])}.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class MappedCSVParser {
+    private static final int EOF = -1;
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer view;
+    private final byte delimiter;
+    private int position;
+    private final int limit;
+
+    private int[] starts = new int[16];
+    private int[] lengths = new int[16];
+    private boolean[] quoted = new boolean[16];
+    private int fieldCount;
+
+    private byte[] scratch = new byte[256];
+    private int scratchLength;
+    private byte[] bytes = new byte[256];
+
+    private final Dictionary[] dictionaries;
+
+    /**
+     * @param buffer        data between its position and limit is parsed
+     * @param delimiter     field delimiter, must be an ASCII character
+     * @param internColumns columns whose values should be interned, may be null
+     */
+    public MappedCSVParser(ByteBuffer buffer, char delimiter, boolean[] internColumns) {
+        this(buffer, delimiter, newDictionaries(internColumns));
+    }
+
+    /**
+     * @param buffer       data between its position and limit is parsed
+     * @param delimiter    field delimiter, must be an ASCII character
+     * @param dictionaries per-column dictionaries, which must not be used by another thread at the same time
+     */
+    MappedCSVParser(ByteBuffer buffer, char delimiter, Dictionary[] dictionaries) {
+        checkDelimiter(delimiter);
+        this.buffer = buffer;
+        this.view = buffer.duplicate();
+        this.delimiter = (byte) delimiter;
+        this.position = buffer.position();
+        this.limit = buffer.limit();
+        this.dictionaries = dictionaries;
+    }
+
+    /**
+     * @param internColumns columns whose values should be interned, may be null
+     * @return empty dictionaries for the columns, to be shared by the parsers of a single thread
+     */
+    static Dictionary[] newDictionaries(boolean[] internColumns) {
+        boolean[] intern = internColumns == null ? new boolean[0] : internColumns;
+        Dictionary[] dictionaries = new Dictionary[intern.length];
+        for (int i = 0; i < dictionaries.length; i++) {
+            if (intern[i]) {
+                dictionaries[i] = new Dictionary();
+            }
+        }
+        return dictionaries;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the delimiter is not ASCII or can't be told apart from quotes and
+     *                                  line breaks
+     */
+    static void checkDelimiter(char delimiter) {
+        if (delimiter > 127 || delimiter == '"' || delimiter == '\n' || delimiter == '\r') {
+            throw new IllegalArgumentException("Unsupported delimiter [" + delimiter + "]");
+        }
+    }
+
+    /**
+     * Finds the fields of the next row. They are available through {@link #getField(int)} until the next call.
+     *
+     * @return false if the end of the buffer was reached
+     * @throws IOException if a quoted field was not terminated
+     */
+    public boolean readRow() throws IOException {
+        fieldCount = 0;
+        scratchLength = 0;
+        if (position >= limit) {
+            return false;
+        }
+        while (true) {
+            int start = position;
+            int c = read();
+            if (c == '"') {
+                int scratchStart = scratchLength;
+                while (true) {
+                    c = read();
+                    if (c == EOF) {
+                        throw new IOException("Unterminated quoted field in column " + fieldCount);
+                    }
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            break;
+                        }
+                    }
+                    appendScratch(c);
+                }
+                // Anything following the closing quote
+                while (c != delimiter && c != '\n' && c != '\r' && c != EOF) {
+                    appendScratch(c);
+                    c = read();
+                }
+                addField(scratchStart, scratchLength - scratchStart, true);
+            } else {
+                while (c != delimiter && c != '\n' && c != '\r' && c != EOF) {
+                    c = read();
+                }
+                int end = c == EOF ? position : position - 1;
+                addField(start, end - start, false);
+            }
+            if (c == delimiter) {
+                continue;
+            }
+            if (c == '\r' && position < limit && buffer.get(position) == '\n') {
+                position++;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return number of fields in the current row
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @param index column index
+     * @return whether the field is empty or holds "null", without decoding it
+     */
+    public boolean isEmptyOrNull(int index) {
+        checkIndex(index);
+        int length = lengths[index];
+        return length == 0 || (length == 4 && byteAt(index, 0) == 'n' && byteAt(index, 1) == 'u'
+                && byteAt(index, 2) == 'l' && byteAt(index, 3) == 'l');
+    }
+
+    /**
+     * @param index column index
+     * @return value of the field in the current row, empty if the field was empty
+     */
+    public String getField(int index) {
+        checkIndex(index);
+        if (lengths[index] == 0) {
+            return "";
+        }
+        if (index < dictionaries.length && dictionaries[index] != null) {
+            return dictionaries[index].intern(this, index);
+        }
+        return decode(index);
+    }
+
+    private int read() {
+        return position < limit ? buffer.get(position++) & 0xff : EOF;
+    }
+
+    private void appendScratch(int c) {
+        if (scratchLength == scratch.length) {
+            scratch = Arrays.copyOf(scratch, scratchLength * 2);
+        }
+        scratch[scratchLength++] = (byte) c;
+    }
+
+    private void addField(int start, int length, boolean inScratch) {
+        if (fieldCount == starts.length) {
+            starts = Arrays.copyOf(starts, fieldCount * 2);
+            lengths = Arrays.copyOf(lengths, fieldCount * 2);
+            quoted = Arrays.copyOf(quoted, fieldCount * 2);
+        }
+        starts[fieldCount] = start;
+        lengths[fieldCount] = length;
+        quoted[fieldCount] = inScratch;
+        fieldCount++;
+    }
+
+    private void checkIndex(int index) {
+        if (index >= fieldCount) {
+            throw new IndexOutOfBoundsException("Row has " + fieldCount + " fields, requested " + index);
+        }
+    }
+
+    private byte byteAt(int index, int offset) {
+        int at = starts[index] + offset;
+        return quoted[index] ? scratch[at] : buffer.get(at);
+    }
+
+    private String decode(int index) {
+        int length = lengths[index];
+        if (quoted[index]) {
+            return new String(scratch, starts[index], length, Charsets.UTF_8);
+        }
+        if (length > bytes.length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        view.limit(starts[index] + length);
+        view.position(starts[index]);
+        view.get(bytes, 0, length);
+        return new String(bytes, 0, length, Charsets.UTF_8);
+    }
+
+    /**
+     * Open addressing table of distinct values, looked up by the bytes of a field so that known values are
+     * neither copied nor decoded. Stops growing once it holds MAX_ENTRIES values, after which unknown values
+     * are returned as new Strings.
+     */
+    static class Dictionary {
+        private static final int MAX_ENTRIES = 1 << 16;
+
+        private byte[][] keys = new byte[64][];
+        private String[] values = new String[64];
+        private int size;
+
+        String intern(MappedCSVParser parser, int index) {
+            int length = parser.lengths[index];
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + parser.byteAt(index, i);
+            }
+            int mask = keys.length - 1;
+            int slot = mix(hash) & mask;
+            byte[] key;
+            while ((key = keys[slot]) != null) {
+                if (matches(key, parser, index)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            String value = parser.decode(index);
+            if (size < MAX_ENTRIES) {
+                key = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    key[i] = parser.byteAt(index, i);
+                }
+                keys[slot] = key;
+                values[slot] = value;
+                if (++size * 2 > keys.length) {
+                    grow();
+                }
+            }
+            return value;
+        }
+
+        private static int hash(byte[] key) {
+            int hash = 0;
+            for (byte b : key) {
+                hash = 31 * hash + b;
+            }
+            return hash;
+        }
+
+        private static int mix(int h) {
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean matches(byte[] key, MappedCSVParser parser, int index) {
+            if (key.length != parser.lengths[index]) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != parser.byteAt(index, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new String[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = mix(hash(oldKeys[i])) & mask;
+                    while (keys[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+}
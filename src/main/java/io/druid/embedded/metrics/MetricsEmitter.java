@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.metrics;
+
+import com.google.common.base.Supplier;
+import com.metamx.emitter.core.Emitter;
+import com.metamx.emitter.core.Event;
+import com.metamx.emitter.service.ServiceMetricEvent;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emitter keeping metric events in memory, aggregated by metric and query type, to be scraped in the
+ * Prometheus text format.
+ * <p>
+ * Metrics ending in "/time" are recorded in latency histograms, any other metric is summed up in a counter.
+ * Gauges and supplied counters, such as the totals kept by the buffer pool and the caches, are read when the
+ * metrics are written.
+ */
+public class MetricsEmitter implements Emitter {
+    public static final String TYPE_DIMENSION = "type";
+
+    private static final String PREFIX = "druid_";
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Histogram>> histograms =
+            new ConcurrentSkipListMap<String, ConcurrentMap<String, Histogram>>();
+    private final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> counters =
+            new ConcurrentSkipListMap<String, ConcurrentMap<String, AtomicLong>>();
+    private final ConcurrentMap<String, Supplier<? extends Number>> gauges =
+            new ConcurrentSkipListMap<String, Supplier<? extends Number>>();
+    private final ConcurrentMap<String, Supplier<? extends Number>> suppliedCounters =
+            new ConcurrentSkipListMap<String, Supplier<? extends Number>>();
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void emit(Event event) {
+        if (!(event instanceof ServiceMetricEvent)) {
+            return;
+        }
+        ServiceMetricEvent metricEvent = (ServiceMetricEvent) event;
+        String metric = metricEvent.getMetric();
+        String type = getType(metricEvent);
+        long value = metricEvent.getValue().longValue();
+        if (metric.endsWith("/time")) {
+            get(histograms, metric, type, Histogram.class).record(value);
+        } else {
+            get(counters, metric, type, AtomicLong.class).addAndGet(value);
+        }
+    }
+
+    /**
+     * Registers a value read each time the metrics are written.
+     *
+     * @param name  Prometheus name of the gauge, without prefix
+     * @param value supplier of the current value
+     */
+    public void addGauge(String name, Supplier<? extends Number> value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Registers a monotonic total kept elsewhere, read each time the metrics are written and exported as a
+     * counter with a "_total" suffix.
+     *
+     * @param name  Prometheus name of the counter, without prefix and suffix
+     * @param value supplier of the current total
+     */
+    public void addCounter(String name, Supplier<? extends Number> value) {
+        suppliedCounters.put(name, value);
+    }
+
+    /**
+     * @return the histogram of the metric for the query type, or null if nothing was recorded
+     */
+    public Histogram getHistogram(String metric, String type) {
+        Map<String, Histogram> byType = histograms.get(metric);
+        return byType == null ? null : byType.get(type);
+    }
+
+    /**
+     * @return the sum of the metric for the query type
+     */
+    public long getCounter(String metric, String type) {
+        Map<String, AtomicLong> byType = counters.get(metric);
+        AtomicLong counter = byType == null ? null : byType.get(type);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     */
+    public void writePrometheus(Writer writer) throws IOException {
+        long[] bounds = Histogram.getBounds();
+        for (Map.Entry<String, ConcurrentMap<String, Histogram>> entry : histograms.entrySet()) {
+            String name = toName(entry.getKey()) + "_milliseconds";
+            writer.write("# TYPE " + name + " histogram\n");
+            for (Map.Entry<String, Histogram> byType : entry.getValue().entrySet()) {
+                Histogram histogram = byType.getValue();
+                String labels = "type=\"" + byType.getKey() + "\"";
+                long cumulative = 0;
+                for (int i = 0; i < bounds.length; i++) {
+                    cumulative += histogram.getBucketCount(i);
+                    writer.write(name + "_bucket{" + labels + ",le=\"" + bounds[i] + "\"} " + cumulative + "\n");
+                }
+                writer.write(name + "_bucket{" + labels + ",le=\"+Inf\"} " + histogram.getCount() + "\n");
+                writer.write(name + "_sum{" + labels + "} " + histogram.getSum() + "\n");
+                writer.write(name + "_count{" + labels + "} " + histogram.getCount() + "\n");
+            }
+        }
+        for (Map.Entry<String, ConcurrentMap<String, AtomicLong>> entry : counters.entrySet()) {
+            String name = toName(entry.getKey()) + "_total";
+            writer.write("# TYPE " + name + " counter\n");
+            for (Map.Entry<String, AtomicLong> byType : entry.getValue().entrySet()) {
+                writer.write(name + "{type=\"" + byType.getKey() + "\"} " + byType.getValue().get() + "\n");
+            }
+        }
+        for (Map.Entry<String, Supplier<? extends Number>> entry : suppliedCounters.entrySet()) {
+            String name = PREFIX + entry.getKey() + "_total";
+            writer.write("# TYPE " + name + " counter\n");
+            writer.write(name + " " + entry.getValue().get() + "\n");
+        }
+        for (Map.Entry<String, Supplier<? extends Number>> entry : gauges.entrySet()) {
+            String name = PREFIX + entry.getKey();
+            writer.write("# TYPE " + name + " gauge\n");
+            writer.write(name + " " + entry.getValue().get() + "\n");
+        }
+        writer.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    private static <T> T get(ConcurrentMap<String, ConcurrentMap<String, T>> map, String metric, String type,
+                             Class<T> clazz) {
+        ConcurrentMap<String, T> byType = map.get(metric);
+        if (byType == null) {
+            ConcurrentMap<String, T> newByType = new ConcurrentSkipListMap<String, T>();
+            byType = map.putIfAbsent(metric, newByType);
+            if (byType == null) {
+                byType = newByType;
+            }
+        }
+        T value = byType.get(type);
+        if (value == null) {
+            try {
+                T newValue = clazz.newInstance();
+                value = byType.putIfAbsent(type, newValue);
+                if (value == null) {
+                    value = newValue;
+                }
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return value;
+    }
+
+    private static String getType(ServiceMetricEvent event) {
+        Object type = event.getUserDims().get(TYPE_DIMENSION);
+        if (type instanceof String[]) {
+            type = ((String[]) type).length == 0 ? null : ((String[]) type)[0];
+        }
+        return type == null ? "unknown" : type.toString().replace("\"", "");
+    }
+
+    private static String toName(String metric) {
+        return PREFIX + metric.replaceAll("[^a-zA-Z0-9]", "_");
+    }
+}
@@ -0,0 +1,195 @@
+package io.druid.embedded.resource;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import io.druid.data.input.MapBasedRow;
+import io.druid.embedded.QueryHelper;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Decodes the frames written by {@link ColumnarResultWriter}, e.g. from the response of a query posted with
+ * "Accept: application/x-druid-columnar". Rows are read one frame at a time, each as a MapBasedRow holding its
+ * non-null values: strings for dimensions, Long or Double for numeric metrics and the JSON decoded value for
+ * anything else. Once all rows are read, {@link #getPagingIdentifiers()} holds the paging identifiers of select
+ * results.
+ */
+public class ColumnarResultReader implements Iterator<MapBasedRow>, Closeable {
+    private final DataInputStream in;
+    private final ObjectMapper jsonMapper = QueryHelper.jsonMapper;
+
+    private int rows;
+    private int row;
+    private long[] timestamps;
+    private String[] names;
+    private Object[][] columns;
+    private boolean done;
+    private Map<String, Integer> pagingIdentifiers;
+
+    public ColumnarResultReader(InputStream input) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+        byte[] magic = new byte[ColumnarResultWriter.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, ColumnarResultWriter.MAGIC)) {
+            throw new IOException("Not a columnar result stream");
+        }
+    }
+
+    /**
+     * Reads all remaining rows and closes the stream.
+     */
+    public List<MapBasedRow> readAll() throws IOException {
+        List<MapBasedRow> all = new ArrayList<MapBasedRow>();
+        try {
+            while (hasNextRow()) {
+                all.add(nextRow());
+            }
+        } finally {
+            close();
+        }
+        return all;
+    }
+
+    /**
+     * @return paging identifiers of the select results, or null if the results were not of a select query or
+     * not all rows have been read
+     */
+    public Map<String, Integer> getPagingIdentifiers() {
+        return pagingIdentifiers;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return hasNextRow();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read frame", e);
+        }
+    }
+
+    @Override
+    public MapBasedRow next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return nextRow();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean hasNextRow() throws IOException {
+        while (!done && row == rows) {
+            readFrame();
+        }
+        return !done;
+    }
+
+    private MapBasedRow nextRow() {
+        Map<String, Object> event = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < names.length; i++) {
+            Object value = columns[i][row];
+            if (value != null) {
+                event.put(names[i], value);
+            }
+        }
+        return new MapBasedRow(timestamps[row++], event);
+    }
+
+    private void readFrame() throws IOException {
+        rows = in.readInt();
+        row = 0;
+        if (rows == 0) {
+            done = true;
+            int length = in.readInt();
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                pagingIdentifiers = jsonMapper.readValue(bytes, new TypeReference<Map<String, Integer>>() {
+                });
+            }
+            return;
+        }
+        int numColumns = in.readInt();
+        timestamps = new long[rows];
+        for (int i = 0; i < rows; i++) {
+            timestamps[i] = in.readLong();
+        }
+        names = new String[numColumns];
+        columns = new Object[numColumns][];
+        for (int i = 0; i < numColumns; i++) {
+            names[i] = readString();
+            columns[i] = readColumn();
+        }
+    }
+
+    private Object[] readColumn() throws IOException {
+        byte type = in.readByte();
+        Object[] values = new Object[rows];
+        switch (type) {
+            case ColumnarResultWriter.TYPE_LONG:
+            case ColumnarResultWriter.TYPE_DOUBLE:
+                byte[] nulls = null;
+                if (in.readBoolean()) {
+                    nulls = new byte[(rows + 7) / 8];
+                    in.readFully(nulls);
+                }
+                for (int i = 0; i < rows; i++) {
+                    Object value = type == ColumnarResultWriter.TYPE_LONG ? (Object) in.readLong() : in.readDouble();
+                    if (nulls == null || (nulls[i >> 3] & (1 << (i & 7))) == 0) {
+                        values[i] = value;
+                    }
+                }
+                break;
+            case ColumnarResultWriter.TYPE_STRING:
+                String[] dictionary = new String[in.readInt() + 1];
+                for (int i = 1; i < dictionary.length; i++) {
+                    dictionary[i] = readString();
+                }
+                int width = in.readByte();
+                for (int i = 0; i < rows; i++) {
+                    int id = width == 1 ? in.readUnsignedByte() : width == 2 ? in.readUnsignedShort() : in.readInt();
+                    values[i] = dictionary[id];
+                }
+                break;
+            case ColumnarResultWriter.TYPE_JSON:
+                for (int i = 0; i < rows; i++) {
+                    int length = in.readInt();
+                    if (length >= 0) {
+                        byte[] bytes = new byte[length];
+                        in.readFully(bytes);
+                        values[i] = jsonMapper.readValue(bytes, Object.class);
+                    }
+                }
+                break;
+            default:
+                throw new IOException("Unknown column type " + type);
+        }
+        return values;
+    }
+
+    private String readString() throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
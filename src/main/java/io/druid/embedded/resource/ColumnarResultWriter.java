@@ -0,0 +1,285 @@
+package io.druid.embedded.resource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import io.druid.data.input.MapBasedRow;
+import io.druid.embedded.QueryHelper;
+import io.druid.query.MetricValueExtractor;
+import io.druid.query.Query;
+import io.druid.query.Result;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.select.EventHolder;
+import io.druid.query.select.SelectQuery;
+import io.druid.query.select.SelectResultValue;
+import io.druid.query.timeseries.TimeseriesQuery;
+import io.druid.query.topn.TopNQuery;
+import io.druid.query.topn.TopNResultValue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes query results as a stream of columnar frames, each holding up to {@link #DEFAULT_FRAME_ROWS} rows.
+ * Every result is flattened into rows of a timestamp and named values: a row per groupBy row, per timeseries
+ * result, per topN value and per select event.
+ * <p>
+ * The stream starts with {@link #MAGIC}, followed by frames, a frame of zero rows and a trailer. A frame is
+ * <pre>
+ * int rows, int columns, long[rows] timestamps, then per column:
+ *   string name, byte type and
+ *   LONG / DOUBLE : byte hasNulls, null bitmap of (rows + 7) / 8 bytes if it has, long[rows] / double[rows]
+ *   STRING        : int dictionary size, string[size], byte id width (1, 2 or 4), ids[rows], 0 for null
+ *   JSON          : per row int length, -1 for null, and the JSON encoded value
+ * </pre>
+ * Strings are an int byte length followed by UTF-8 bytes. Missing and null values can't be told apart.
+ * <p>
+ * The trailer is an int length, -1 for none, and the JSON encoded paging identifiers of select results, merged
+ * over all results, which clients pass back in the pagingSpec of the query for the next page.
+ */
+public class ColumnarResultWriter implements ResultFormat.ResultWriter {
+    public static final byte[] MAGIC = {'D', 'C', 'F', 2};
+    public static final int DEFAULT_FRAME_ROWS = 4096;
+
+    static final byte TYPE_LONG = 0;
+    static final byte TYPE_DOUBLE = 1;
+    static final byte TYPE_STRING = 2;
+    static final byte TYPE_JSON = 3;
+
+    private final DataOutputStream out;
+    private final ObjectMapper jsonMapper = QueryHelper.jsonMapper;
+    private final int frameRows;
+    private final long[] timestamps;
+    private final List<Map<String, Object>> events;
+    private Map<String, Integer> pagingIdentifiers;
+
+    public ColumnarResultWriter(OutputStream output) throws IOException {
+        this(output, DEFAULT_FRAME_ROWS);
+    }
+
+    public ColumnarResultWriter(OutputStream output, int frameRows) throws IOException {
+        if (frameRows <= 0) {
+            throw new IllegalArgumentException("Frames need at least one row");
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        this.frameRows = frameRows;
+        this.timestamps = new long[frameRows];
+        this.events = new ArrayList<Map<String, Object>>(frameRows);
+        out.write(MAGIC);
+    }
+
+    /**
+     * @return whether the results of the query are made of rows which can be encoded in frames
+     */
+    public static boolean supports(Query query) {
+        return query instanceof GroupByQuery || query instanceof TimeseriesQuery || query instanceof TopNQuery
+                || query instanceof SelectQuery;
+    }
+
+    @Override
+    public void write(Object result) throws IOException {
+        if (result instanceof MapBasedRow) {
+            MapBasedRow row = (MapBasedRow) result;
+            add(row.getTimestampFromEpoch(), row.getEvent());
+        } else if (result instanceof Result) {
+            Result<?> wrapper = (Result<?>) result;
+            long timestamp = wrapper.getTimestamp().getMillis();
+            Object value = wrapper.getValue();
+            if (value instanceof TopNResultValue) {
+                for (MetricValueExtractor extractor : ((TopNResultValue) value).getValue()) {
+                    add(timestamp, extractor.getBaseObject());
+                }
+            } else if (value instanceof SelectResultValue) {
+                if (pagingIdentifiers == null) {
+                    pagingIdentifiers = new LinkedHashMap<String, Integer>();
+                }
+                pagingIdentifiers.putAll(((SelectResultValue) value).getPagingIdentifiers());
+                for (EventHolder holder : ((SelectResultValue) value).getEvents()) {
+                    Map<String, Object> event = new HashMap<String, Object>(holder.getEvent());
+                    event.remove(EventHolder.timestampKey);
+                    add(holder.getTimestamp().getMillis(), event);
+                }
+            } else if (value instanceof MetricValueExtractor) {
+                add(timestamp, ((MetricValueExtractor) value).getBaseObject());
+            } else {
+                throw new IllegalArgumentException("Can't encode result value " + value);
+            }
+        } else {
+            throw new IllegalArgumentException("Can't encode result " + result);
+        }
+    }
+
+    private void add(long timestamp, Map<String, Object> event) throws IOException {
+        timestamps[events.size()] = timestamp;
+        events.add(event);
+        if (events.size() == frameRows) {
+            writeFrame();
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (!events.isEmpty()) {
+            writeFrame();
+        }
+        out.writeInt(0);
+        if (pagingIdentifiers == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = jsonMapper.writeValueAsBytes(pagingIdentifiers);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void writeFrame() throws IOException {
+        int rows = events.size();
+        Set<String> columns = new LinkedHashSet<String>();
+        for (Map<String, Object> event : events) {
+            columns.addAll(event.keySet());
+        }
+        out.writeInt(rows);
+        out.writeInt(columns.size());
+        for (int i = 0; i < rows; i++) {
+            out.writeLong(timestamps[i]);
+        }
+        Object[] values = new Object[rows];
+        for (String column : columns) {
+            for (int i = 0; i < rows; i++) {
+                values[i] = events.get(i).get(column);
+            }
+            writeString(column);
+            writeColumn(values);
+        }
+        events.clear();
+    }
+
+    private void writeColumn(Object[] values) throws IOException {
+        byte type = getType(values);
+        out.writeByte(type);
+        switch (type) {
+            case TYPE_LONG:
+            case TYPE_DOUBLE:
+                writeNulls(values);
+                for (Object value : values) {
+                    if (type == TYPE_LONG) {
+                        out.writeLong(value == null ? 0 : ((Number) value).longValue());
+                    } else {
+                        out.writeDouble(value == null ? 0 : ((Number) value).doubleValue());
+                    }
+                }
+                break;
+            case TYPE_STRING:
+                writeDictionary(values);
+                break;
+            default:
+                for (Object value : values) {
+                    if (value == null) {
+                        out.writeInt(-1);
+                    } else {
+                        byte[] bytes = jsonMapper.writeValueAsBytes(value);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                }
+        }
+    }
+
+    /**
+     * @return the narrowest type holding all values, columns without values being strings
+     */
+    private static byte getType(Object[] values) {
+        boolean strings = false;
+        boolean longs = false;
+        boolean doubles = false;
+        for (Object value : values) {
+            if (value == null) {
+                continue;
+            }
+            if (value instanceof String) {
+                strings = true;
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                    || value instanceof Byte) {
+                longs = true;
+            } else if (value instanceof Float || value instanceof Double) {
+                doubles = true;
+            } else {
+                return TYPE_JSON;
+            }
+        }
+        if (strings) {
+            return longs || doubles ? TYPE_JSON : TYPE_STRING;
+        }
+        if (doubles) {
+            return TYPE_DOUBLE;
+        }
+        return longs ? TYPE_LONG : TYPE_STRING;
+    }
+
+    private void writeNulls(Object[] values) throws IOException {
+        byte[] nulls = new byte[(values.length + 7) / 8];
+        boolean hasNulls = false;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                nulls[i >> 3] |= 1 << (i & 7);
+                hasNulls = true;
+            }
+        }
+        out.writeBoolean(hasNulls);
+        if (hasNulls) {
+            out.write(nulls);
+        }
+    }
+
+    private void writeDictionary(Object[] values) throws IOException {
+        Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        List<String> entries = new ArrayList<String>();
+        int[] ids = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                Integer id = dictionary.get(values[i]);
+                if (id == null) {
+                    entries.add((String) values[i]);
+                    id = entries.size();
+                    dictionary.put((String) values[i], id);
+                }
+                ids[i] = id;
+            }
+        }
+        out.writeInt(entries.size());
+        for (String entry : entries) {
+            writeString(entry);
+        }
+        int width = entries.size() < 0xFF ? 1 : entries.size() < 0xFFFF ? 2 : 4;
+        out.writeByte(width);
+        for (int id : ids) {
+            if (width == 1) {
+                out.writeByte(id);
+            } else if (width == 2) {
+                out.writeShort(id);
+            } else {
+                out.writeInt(id);
+            }
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
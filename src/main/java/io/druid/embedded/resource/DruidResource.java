@@ -1,21 +1,46 @@
 package io.druid.embedded.resource;
 
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Yielder;
+import com.metamx.common.guava.YieldingAccumulator;
+import io.druid.embedded.InvalidQueryException;
+import io.druid.embedded.PreparedQuery;
+import io.druid.embedded.QueryCapacityExceededException;
 import io.druid.embedded.QueryHelper;
-import io.druid.embedded.jackson.QueryObjectMapper;
+import io.druid.embedded.QueryScheduler;
+import io.druid.embedded.QueryTimeoutException;
 import io.druid.embedded.service.DruidService;
+import io.druid.query.Query;
+import io.druid.query.QueryInterruptedException;
 import io.swagger.annotations.Api;
 import org.apache.log4j.Logger;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Endpoint for queries
@@ -24,11 +49,13 @@ import javax.ws.rs.core.Response;
 @Api("Druid API")
 public class DruidResource {
     private static final Logger LOG = Logger.getLogger(DruidResource.class);
+    public static final String QUERY_ID_HEADER = "X-Druid-Query-Id";
+    private static final int TOO_MANY_REQUESTS = 429;
 
     /**
      * Used as a response in case of failure
      */
-    private class FailureResponse {
+    private static class FailureResponse {
         private String message;
 
         public FailureResponse(String message) {
@@ -40,18 +67,297 @@ public class DruidResource {
         }
     }
 
+    /**
+     * Runs the query asynchronously. The request thread returns as soon as the query is parsed; the query
+     * waits for a scheduler slot without holding a thread, then runs and writes its result on the query
+     * executor.
+     * <p>
+     * Results are written as JSON, Smile or columnar frames (see {@link ResultFormat}) depending on the Accept
+     * header. Errors are always JSON.
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ResultFormat.APPLICATION_SMILE, ResultFormat.APPLICATION_COLUMNAR})
+    public void query(@Context HttpServletRequest req, @Context HttpHeaders headers, String queryJson,
+                      @Suspended final AsyncResponse asyncResponse) {
+        Query query;
+        try {
+            query = DruidService.parseQuery(queryJson);
+        } catch (Exception e) {
+            asyncResponse.resume(errorResponse(e));
+            return;
+        }
+        submit(req.getServerPort(), headers, query, asyncResponse);
+    }
+
+    /**
+     * Parses a query template and keeps it under the given name. Parameters are selector filter values written
+     * "${name}" (see {@link PreparedQuery}).
+     */
+    @PUT
+    @Path("/prepared/{name}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response prepare(@PathParam("name") String name, String templateJson) {
+        try {
+            PreparedQuery prepared = DruidService.registerPreparedQuery(name, templateJson);
+            return Response.ok(ImmutableMap.of("name", name, "parameters", prepared.getParameters())).build();
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(new FailureResponse(e.getMessage())).build();
+        } catch (Exception e) {
+            LOG.error("Exception while preparing query", e);
+            return Response.serverError().entity(new FailureResponse("Internal Server Error")).build();
+        }
+    }
+
+    /**
+     * Runs a prepared query with the parameter bindings given as a JSON object, e.g.
+     * {"page": "JB", "intervals": "2016-01-01/2016-01-02"}. Results are written like those of posted queries.
+     */
+    @POST
+    @Path("/prepared/{name}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ResultFormat.APPLICATION_SMILE, ResultFormat.APPLICATION_COLUMNAR})
+    public void runPrepared(@Context HttpServletRequest req, @Context HttpHeaders headers,
+                            @PathParam("name") String name, String bindingsJson,
+                            @Suspended final AsyncResponse asyncResponse) {
+        Query query;
+        try {
+            query = DruidService.bindPreparedQuery(name, bindingsJson);
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(new FailureResponse(e.getMessage())).build());
+            return;
+        } catch (Exception e) {
+            asyncResponse.resume(errorResponse(e));
+            return;
+        }
+        if (query == null) {
+            asyncResponse.resume(Response.status(Response.Status.NOT_FOUND).type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(new FailureResponse("No prepared query " + name)).build());
+            return;
+        }
+        submit(req.getServerPort(), headers, query, asyncResponse);
+    }
+
+    @DELETE
+    @Path("/prepared/{name}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response unprepare(@PathParam("name") String name) {
+        if (DruidService.unregisterPreparedQuery(name)) {
+            return Response.noContent().build();
+        }
+        return Response.status(Response.Status.NOT_FOUND)
+                .entity(new FailureResponse("No prepared query " + name)).build();
+    }
+
+    /**
+     * Waits for a scheduler slot, then runs the query and resumes the response with its result.
+     */
+    private void submit(final int indexKey, HttpHeaders headers, final Query query,
+                        final AsyncResponse asyncResponse) {
+        final ResultFormat format;
+        ListenableFuture<QueryScheduler.Slot> slot;
+        try {
+            format = ResultFormat.negotiate(headers.getAcceptableMediaTypes(), query);
+            if (format == null) {
+                asyncResponse.resume(Response.status(Response.Status.NOT_ACCEPTABLE)
+                        .type(MediaType.APPLICATION_JSON_TYPE)
+                        .entity(new FailureResponse("No acceptable encoding for " + query.getType() + " results"))
+                        .build());
+                return;
+            }
+            slot = DruidService.acquireSlot(query);
+        } catch (Exception e) {
+            asyncResponse.resume(errorResponse(e));
+            return;
+        }
+        Futures.addCallback(slot, new FutureCallback<QueryScheduler.Slot>() {
+            @Override
+            public void onSuccess(QueryScheduler.Slot slot) {
+                Response response = run(indexKey, query, format, slot);
+                final Object entity = response.getEntity();
+                if (entity instanceof ResultOutput) {
+                    // Jersey may complete the response without ever writing it, e.g. once the client is gone
+                    asyncResponse.register(new CompletionCallback() {
+                        @Override
+                        public void onComplete(Throwable throwable) {
+                            ((ResultOutput) entity).release();
+                        }
+                    });
+                }
+                if (!asyncResponse.resume(response)) {
+                    // The response will never be written, so the result and the slot have to be released here
+                    if (entity instanceof ResultOutput) {
+                        ((ResultOutput) entity).release();
+                    }
+                    slot.close();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                asyncResponse.resume(errorResponse(t));
+            }
+        }, DruidService.getQueryExecutor());
+    }
+
+    /**
+     * Runs the query up to its first result row. The slot is released once the response is complete, or right
+     * away if the query failed.
+     */
+    private Response run(int indexKey, Query query, ResultFormat format, QueryScheduler.Slot slot) {
+        try {
+            return Response.ok(stream(query, DruidService.handleQuery(indexKey, query), format, slot),
+                    format.getMediaType()).header(QUERY_ID_HEADER, query.getId()).build();
+        } catch (Exception e) {
+            slot.close();
+            return errorResponse(e);
+        }
+    }
+
+    static Response errorResponse(Throwable e) {
+        if (e instanceof QueryCapacityExceededException) {
+            return Response.status(TOO_MANY_REQUESTS).type(MediaType.APPLICATION_JSON_TYPE)
+                    .header(HttpHeaders.RETRY_AFTER, ((QueryCapacityExceededException) e).getRetryAfterSeconds())
+                    .entity(new FailureResponse(e.getMessage())).build();
+        } else if (e instanceof JsonProcessingException || e instanceof InvalidQueryException) {
+            return Response.status(Response.Status.BAD_REQUEST).type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(new FailureResponse(e.getMessage())).build();
+        } else if (e instanceof QueryInterruptedException) {
+            // Timed out or cancelled through the DELETE endpoint
+            Response.Status status = QueryTimeoutException.isTimeout(e)
+                    ? Response.Status.GATEWAY_TIMEOUT : Response.Status.INTERNAL_SERVER_ERROR;
+            return Response.status(status).type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(new FailureResponse(e.getMessage())).build();
+        }
+        LOG.error("Exception while handling query", e);
+        return Response.serverError().type(MediaType.APPLICATION_JSON_TYPE)
+                .entity(new FailureResponse("Internal Server Error")).build();
+    }
+
+    /**
+     * Cancels a running query. The id is the "queryId" of the query, or the one returned in the
+     * X-Druid-Query-Id header.
+     */
+    @DELETE
+    @Path("/{queryId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response cancel(@PathParam("queryId") String queryId) {
+        if (DruidService.cancelQuery(queryId)) {
+            return Response.status(Response.Status.ACCEPTED).build();
+        }
+        return Response.status(Response.Status.NOT_FOUND)
+                .entity(new FailureResponse("No running query " + queryId)).build();
+    }
+
+    /**
+     * Appends rows to a realtime data source. They can be queried as soon as the request returns.
+     */
     @POST
+    @Path("/ingest/{dataSource}")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response query(@Context HttpServletRequest req, String queryJson) {
+    public Response ingest(@Context HttpServletRequest req, @PathParam("dataSource") String dataSource,
+                           String rowsJson) {
         try {
-            int indexKey = req.getServerPort();
-            return Response.ok(QueryHelper.jsonMapper.writeValueAsString(DruidService.handleQuery(indexKey, queryJson))).build();
-        } catch (JsonMappingException e) {
+            int rows = DruidService.handleIngest(req.getServerPort(), dataSource, rowsJson);
+            if (rows < 0) {
+                return Response.status(Response.Status.NOT_FOUND)
+                        .entity(new FailureResponse("No realtime data source " + dataSource)).build();
+            }
+            return Response.ok(ImmutableMap.of("rows", rows)).build();
+        } catch (JsonProcessingException | IllegalArgumentException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(new FailureResponse(e.getMessage())).build();
         } catch (Exception e) {
-            LOG.error("Exception while handling query", e);
+            LOG.error("Exception while ingesting rows", e);
             return Response.serverError().entity(new FailureResponse("Internal Server Error")).build();
         }
     }
+
+    /**
+     * Wraps the result in a StreamingOutput which writes one row at a time in the given format straight
+     * to the response, so the result never has to be held in memory as a whole.
+     * The first row is computed before returning, so that failures while starting the query are
+     * still reported with a proper status code.
+     * <p>
+     * Emits the time until the first row, spent waiting for the segment scans and merging their results,
+     * as "query/merge/time", the time spent writing the response as "query/serialize/time" and its size as
+     * "query/bytes".
+     *
+     * @param query    Query being answered
+     * @param sequence Result of the query
+     * @param format   Encoding of the result
+     * @param slot     Scheduler slot of the query, released once the result is written or released
+     * @return StreamingOutput writing the result
+     */
+    @SuppressWarnings("unchecked")
+    static ResultOutput stream(Query query, Sequence sequence, ResultFormat format, Closeable slot) {
+        long start = System.currentTimeMillis();
+        Yielder<Object> first = sequence.toYielder(null, new YieldingAccumulator<Object, Object>() {
+            @Override
+            public Object accumulate(Object accumulated, Object in) {
+                yield();
+                return in;
+            }
+        });
+        QueryHelper.emitMetric(query, "query/merge/time", System.currentTimeMillis() - start);
+        return new ResultOutput(query, first, format, slot);
+    }
+
+    /**
+     * Result of a query, written to the response by Jersey. Its yielder and scheduler slot are released once it
+     * is written, or through {@link #release()} when the response is completed without writing it.
+     */
+    static class ResultOutput implements StreamingOutput {
+        private final Query query;
+        private final ResultFormat format;
+        private final Closeable slot;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile Yielder<Object> yielder;
+
+        private ResultOutput(Query query, Yielder<Object> first, ResultFormat format, Closeable slot) {
+            this.query = query;
+            this.yielder = first;
+            this.format = format;
+            this.slot = slot;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException {
+            long start = System.currentTimeMillis();
+            CountingOutputStream counter = new CountingOutputStream(output);
+            try (ResultFormat.ResultWriter writer = format.open(counter)) {
+                while (!yielder.isDone()) {
+                    writer.write(yielder.get());
+                    yielder = yielder.next(null);
+                }
+                writer.finish();
+            } finally {
+                release();
+                QueryHelper.emitMetric(query, "query/serialize/time", System.currentTimeMillis() - start);
+                QueryHelper.emitMetric(query, "query/bytes", counter.getCount());
+            }
+        }
+
+        /**
+         * Closes the yielder and releases the slot, once.
+         */
+        void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                yielder.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close the result of query " + query.getId(), e);
+            } finally {
+                try {
+                    slot.close();
+                } catch (IOException e) {
+                    LOG.warn("Could not release the slot of query " + query.getId(), e);
+                }
+            }
+        }
+    }
 }
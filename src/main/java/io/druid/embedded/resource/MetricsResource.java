@@ -0,0 +1,34 @@
+package io.druid.embedded.resource;
+
+import io.druid.embedded.QueryHelper;
+import io.swagger.annotations.Api;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Endpoint for query, buffer pool and cache metrics in the Prometheus text format
+ */
+@Path("/metrics")
+@Api("Metrics API")
+public class MetricsResource {
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    @GET
+    @Produces(PROMETHEUS_CONTENT_TYPE)
+    public Response metrics() {
+        return Response.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                QueryHelper.getMetrics().writePrometheus(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            }
+        }).build();
+    }
+}
@@ -0,0 +1,129 @@
+package io.druid.embedded.resource;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.druid.embedded.QueryHelper;
+import io.druid.query.Query;
+
+import javax.ws.rs.core.MediaType;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Encodings of query results, picked from the Accept header of the request.
+ */
+public enum ResultFormat {
+    JSON(MediaType.APPLICATION_JSON) {
+        @Override
+        public ResultWriter open(OutputStream output) throws IOException {
+            return new JacksonResultWriter(QueryHelper.jsonMapper, output);
+        }
+    },
+    /**
+     * Binary encoding of the same document as JSON, read by any Jackson client with a SmileFactory.
+     */
+    SMILE(ResultFormat.APPLICATION_SMILE) {
+        @Override
+        public ResultWriter open(OutputStream output) throws IOException {
+            return new JacksonResultWriter(QueryHelper.smileMapper, output);
+        }
+    },
+    /**
+     * Frames of dictionary encoded dimensions and primitive metric arrays, read by {@link ColumnarResultReader}.
+     */
+    COLUMNAR(ResultFormat.APPLICATION_COLUMNAR) {
+        @Override
+        public ResultWriter open(OutputStream output) throws IOException {
+            return new ColumnarResultWriter(output);
+        }
+
+        @Override
+        public boolean supports(Query query) {
+            return ColumnarResultWriter.supports(query);
+        }
+    };
+
+    public static final String APPLICATION_SMILE = "application/x-jackson-smile";
+    public static final String APPLICATION_COLUMNAR = "application/x-druid-columnar";
+
+    private final MediaType mediaType;
+
+    ResultFormat(String mediaType) {
+        this.mediaType = MediaType.valueOf(mediaType);
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * @return writer encoding results to the output, which is closed along with the writer. The encoding is
+     * only complete once {@link ResultWriter#finish()} was called, so that a failed query never looks like a
+     * complete result.
+     */
+    public abstract ResultWriter open(OutputStream output) throws IOException;
+
+    /**
+     * @return whether the results of the query can be encoded in this format
+     */
+    public boolean supports(Query query) {
+        return true;
+    }
+
+    /**
+     * @param acceptable media types accepted by the client, most preferred first
+     * @param query      query being answered
+     * @return the first acceptable format supporting the query, or null if there is none
+     */
+    public static ResultFormat negotiate(List<MediaType> acceptable, Query query) {
+        for (MediaType type : acceptable) {
+            for (ResultFormat format : values()) {
+                if (type.isCompatible(format.mediaType) && format.supports(query)) {
+                    return format;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes results one at a time.
+     */
+    public interface ResultWriter extends Closeable {
+        void write(Object result) throws IOException;
+
+        /**
+         * Ends the result after the last row.
+         */
+        void finish() throws IOException;
+    }
+
+    /**
+     * Writes results as a single array.
+     */
+    private static class JacksonResultWriter implements ResultWriter {
+        private final JsonGenerator generator;
+
+        JacksonResultWriter(ObjectMapper mapper, OutputStream output) throws IOException {
+            generator = mapper.getFactory().createGenerator(output);
+            generator.writeStartArray();
+        }
+
+        @Override
+        public void write(Object result) throws IOException {
+            generator.writeObject(result);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            generator.writeEndArray();
+        }
+
+        @Override
+        public void close() throws IOException {
+            generator.close();
+        }
+    }
+}
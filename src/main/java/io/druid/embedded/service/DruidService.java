@@ -1,20 +1,167 @@
 package io.druid.embedded.service;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.metamx.common.guava.Sequence;
+import io.druid.embedded.QueryCapacityExceededException;
+import io.druid.embedded.PreparedQuery;
 import io.druid.embedded.QueryHelper;
+import io.druid.embedded.QueryScheduler;
+import io.druid.embedded.RealtimeIndex;
 import io.druid.embedded.app.DruidRunner;
+import io.druid.query.Query;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Handles queries from DruidResource and returns the response
  */
 public class DruidService {
     private static final Logger LOG = Logger.getLogger(DruidService.class);
+    private static final QueryScheduler scheduler = QueryScheduler.fromSystemProperties();
+    // Only queries holding a scheduler slot get here, so the scheduler bounds the number of threads
+    private static final ExecutorService queryExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("query-%d").build());
+    private static final ConcurrentMap<String, PreparedQuery> preparedQueries =
+            new ConcurrentHashMap<String, PreparedQuery>();
 
     public static Sequence handleQuery(Integer indexKey, String queryJson) throws IOException {
+        return handleQuery(indexKey, parseQuery(queryJson));
+    }
+
+    public static Sequence handleQuery(Integer indexKey, Query query) {
+        return QueryHelper.run(query, DruidRunner.REGISTRY_MAP.get(indexKey));
+    }
+
+    /**
+     * Parses the query and gives it an id if it has none, so that it can be cancelled.
+     */
+    public static Query parseQuery(String queryJson) throws IOException {
         LOG.trace("Got query: " + queryJson);
-        return QueryHelper.run(queryJson, DruidRunner.INDEX_MAP.get(indexKey));
+        long start = System.currentTimeMillis();
+        Query query = QueryHelper.prepareQuery(QueryHelper.getQuery(queryJson));
+        QueryHelper.emitMetric(query, "query/parse/time", System.currentTimeMillis() - start);
+        return query;
+    }
+
+    /**
+     * Parses the template and keeps it under the given name, replacing any previous one.
+     *
+     * @throws IllegalArgumentException if the template has parameters it can't bind
+     */
+    public static PreparedQuery registerPreparedQuery(String name, String templateJson) throws IOException {
+        PreparedQuery prepared = PreparedQuery.fromJson(templateJson);
+        preparedQueries.put(name, prepared);
+        LOG.trace("Prepared query " + name + " with parameters " + prepared.getParameters());
+        return prepared;
+    }
+
+    /**
+     * @return whether there was a prepared query with that name
+     */
+    public static boolean unregisterPreparedQuery(String name) {
+        return preparedQueries.remove(name) != null;
+    }
+
+    /**
+     * Binds the parameters given as a JSON object to the prepared query, and gives the query an id. Binding
+     * takes the place of parsing, so its time is emitted as "query/parse/time".
+     *
+     * @return the bound query, or null if there is no prepared query with that name
+     * @throws IllegalArgumentException if the bindings don't match the parameters
+     */
+    public static Query bindPreparedQuery(String name, String bindingsJson) throws IOException {
+        PreparedQuery prepared = preparedQueries.get(name);
+        if (prepared == null) {
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        Map<String, Object> bindings = QueryHelper.jsonMapper.readValue(bindingsJson,
+                new TypeReference<Map<String, Object>>() {
+                });
+        Query query = QueryHelper.prepareQuery(prepared.bind(bindings));
+        QueryHelper.emitMetric(query, "query/parse/time", System.currentTimeMillis() - start);
+        return query;
+    }
+
+    /**
+     * Takes a slot in the scheduler lane of the query, without blocking the calling thread.
+     *
+     * @return Future of the slot to close once the result is written
+     * @throws QueryCapacityExceededException if the query is not admitted
+     */
+    public static ListenableFuture<QueryScheduler.Slot> acquireSlot(final Query query) {
+        final long start = System.currentTimeMillis();
+        ListenableFuture<QueryScheduler.Slot> slot;
+        try {
+            slot = scheduler.acquireAsync(query);
+        } catch (QueryCapacityExceededException e) {
+            QueryHelper.emitMetric(query, "query/rejected", 1);
+            throw e;
+        }
+        Futures.addCallback(slot, new FutureCallback<QueryScheduler.Slot>() {
+            @Override
+            public void onSuccess(QueryScheduler.Slot result) {
+                QueryHelper.emitMetric(query, "query/wait/time", System.currentTimeMillis() - start);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (t instanceof QueryCapacityExceededException) {
+                    QueryHelper.emitMetric(query, "query/rejected", 1);
+                }
+            }
+        });
+        return slot;
+    }
+
+    /**
+     * @return executor running queries and writing their results, off the server request threads
+     */
+    public static ExecutorService getQueryExecutor() {
+        return queryExecutor;
+    }
+
+    public static QueryScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return whether the query was running
+     */
+    public static boolean cancelQuery(String queryId) {
+        LOG.trace("Cancelling query: " + queryId);
+        return QueryHelper.getQueryManager().cancelQuery(queryId);
+    }
+
+    /**
+     * Appends rows given as a JSON array of objects to a realtime data source.
+     *
+     * @return number of rows appended, or -1 if the data source doesn't accept rows
+     */
+    public static int handleIngest(Integer indexKey, String dataSource, String rowsJson) throws IOException {
+        Map<String, RealtimeIndex> realtimeIndexes = DruidRunner.REALTIME_MAP.get(indexKey);
+        RealtimeIndex realtimeIndex = realtimeIndexes == null ? null : realtimeIndexes.get(dataSource);
+        if (realtimeIndex == null) {
+            return -1;
+        }
+        List<Map<String, Object>> rows = QueryHelper.jsonMapper.readValue(rowsJson,
+                new TypeReference<List<Map<String, Object>>>() {
+                });
+        for (Map<String, Object> row : rows) {
+            realtimeIndex.add(row);
+        }
+        LOG.trace("Appended " + rows.size() + " rows to " + dataSource);
+        return rows.size();
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.collections.ResourceHolder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest {
+
+    @Test
+    public void reusesReleasedBuffers() throws IOException {
+        BufferPool pool = new BufferPool(1024, 2, 0);
+        ResourceHolder<ByteBuffer> first = pool.take();
+        Assert.assertTrue(first.get().isDirect());
+        ByteBuffer buffer = first.get();
+        first.close();
+        first.close();
+
+        ResourceHolder<ByteBuffer> second = pool.take();
+        Assert.assertSame(second.get(), buffer);
+        Assert.assertEquals(pool.getAllocatedCount(), 1);
+        Assert.assertEquals(pool.getInUseCount(), 1);
+        second.close();
+        Assert.assertEquals(pool.getInUseCount(), 0);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void failsFastWhenExhausted() {
+        BufferPool pool = new BufferPool(1024, 1, 0);
+        pool.take();
+        try {
+            pool.take();
+        } finally {
+            Assert.assertEquals(pool.getFailureCount(), 1);
+        }
+    }
+
+    @Test
+    public void waitsForReleasedBuffer() throws Exception {
+        final BufferPool pool = new BufferPool(1024, 1, 10000);
+        final ResourceHolder<ByteBuffer> holder = pool.take();
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    holder.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        releaser.start();
+        ResourceHolder<ByteBuffer> next = pool.take();
+        Assert.assertNotNull(next.get());
+        Assert.assertEquals(pool.getWaitCount(), 1);
+        next.close();
+        releaser.join();
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+import io.druid.data.input.Row;
+import io.druid.data.input.impl.DimensionsSpec;
+import io.druid.embedded.groupby.SpillingGroupByConfig;
+import io.druid.embedded.helper.IndexCreationHelper;
+import io.druid.embedded.helper.QueryCreationHelper;
+import io.druid.embedded.load.impl.CSVLoader;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.Druids;
+import io.druid.query.Query;
+import io.druid.query.QueryContextKeys;
+import io.druid.query.QueryRunner;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.CountAggregatorFactory;
+import io.druid.query.aggregation.LongSumAggregatorFactory;
+import io.druid.query.dimension.DefaultDimensionSpec;
+import io.druid.query.dimension.DimensionSpec;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.groupby.having.GreaterThanHavingSpec;
+import io.druid.query.groupby.orderby.DefaultLimitSpec;
+import io.druid.query.groupby.orderby.OrderByColumnSpec;
+import io.druid.query.spec.QuerySegmentSpecs;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+import org.joda.time.DateTime;
+import org.joda.time.Days;
+import org.joda.time.Interval;
+import org.joda.time.Period;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ChunkingQueryRunnerDecoratorTest {
+    private static final int DAYS = 20;
+    private static final List<String> URLS = Arrays.asList("abc", "def", "ghi");
+
+    @Test
+    public void splitsIntervalsByPeriod() {
+        ChunkingQueryRunnerDecorator decorator = new ChunkingQueryRunnerDecorator(
+                Period.days(10), MoreExecutors.sameThreadExecutor(), Utils.NOOP_QUERYWATCHER);
+        Query query = QueryCreationHelper.getGroupByQuery().withQuerySegmentSpec(
+                QuerySegmentSpecs.create(new Interval("2016-01-01/2016-01-25")));
+
+        List<Interval> chunks = decorator.getChunks(query);
+        Assert.assertEquals(chunks, Lists.newArrayList(
+                new Interval("2016-01-01/2016-01-11"),
+                new Interval("2016-01-11/2016-01-21"),
+                new Interval("2016-01-21/2016-01-25")));
+
+        Query unchunked = query.withOverriddenContext(
+                ImmutableMap.<String, Object>of(QueryContextKeys.CHUNK_PERIOD, "P0D"));
+        Assert.assertEquals(decorator.getChunks(unchunked), query.getIntervals());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void chunkedQueryMatchesUnchunked() throws IOException {
+        SegmentRegistry registry = new SegmentRegistry();
+        registry.addIndex("test", IndexCreationHelper.createDruidSegments());
+        Query query = QueryCreationHelper.getGroupByQuery();
+        Query chunked = query.withOverriddenContext(
+                ImmutableMap.<String, Object>of(QueryContextKeys.CHUNK_PERIOD, "P1Y"));
+
+        List<Row> expected = Sequences.toList(QueryHelper.run(query, registry), Lists.<Row>newArrayList());
+        List<Row> actual = Sequences.toList(QueryHelper.run(chunked, registry), Lists.<Row>newArrayList());
+        Assert.assertEquals(actual.size(), 2);
+        Assert.assertEquals(actual, expected);
+    }
+
+    @Test(expectedExceptions = InvalidQueryException.class)
+    public void rejectsInvalidChunkPeriod() {
+        ChunkingQueryRunnerDecorator decorator = new ChunkingQueryRunnerDecorator(
+                Period.days(10), MoreExecutors.sameThreadExecutor(), Utils.NOOP_QUERYWATCHER);
+        decorator.getChunks(QueryCreationHelper.getGroupByQuery().withOverriddenContext(
+                ImmutableMap.<String, Object>of(QueryContextKeys.CHUNK_PERIOD, "one week")));
+    }
+
+    @Test(expectedExceptions = QueryTimeoutException.class)
+    @SuppressWarnings("unchecked")
+    public void timesOutSlowChunks() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ChunkingQueryRunnerDecorator decorator = new ChunkingQueryRunnerDecorator(
+                    Period.days(10), executor, Utils.NOOP_QUERYWATCHER);
+            Query query = Druids.newTimeseriesQueryBuilder()
+                    .dataSource("test")
+                    .intervals("2016-01-01/2016-01-25")
+                    .granularity(QueryGranularity.ALL)
+                    .aggregators(Collections.<AggregatorFactory>singletonList(new CountAggregatorFactory("rows")))
+                    .context(ImmutableMap.<String, Object>of(QueryContextKeys.TIMEOUT, 50))
+                    .build();
+            QueryRunner runner = decorator.decorate(new QueryRunner() {
+                @Override
+                public Sequence run(Query query, Map responseContext) {
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return Sequences.empty();
+                }
+            }, QueryHelper.findFactory(query).getToolchest());
+            Sequences.toList(runner.run(query, new HashMap<String, Object>()), Lists.newArrayList());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void mergesAcrossChunks() throws IOException {
+        SegmentRegistry registry = getDailyRegistry();
+
+        Query all = getDailyQuery(QueryGranularity.ALL).build();
+        Assert.assertTrue(getChunks(all) > 1);
+        List<Row> rows = assertChunkedMatchesUnchunked(all, registry);
+        Assert.assertEquals(rows.size(), URLS.size());
+        for (Row row : rows) {
+            Assert.assertEquals(row.getLongMetric("agg_count"), getTotal(row.getDimension("URL").get(0)));
+        }
+
+        List<Row> daily = assertChunkedMatchesUnchunked(getDailyQuery(QueryGranularity.DAY).build(), registry);
+        Assert.assertEquals(daily.size(), URLS.size() * DAYS);
+        for (Row row : daily) {
+            int day = Days.daysBetween(new DateTime("2016-01-01T00:00:00Z"), row.getTimestamp()).getDays();
+            Assert.assertEquals(row.getLongMetric("agg_count"), 2 * getCount(row.getDimension("URL").get(0), day));
+        }
+    }
+
+    @Test
+    public void appliesHavingAndLimitAcrossChunks() throws IOException {
+        SegmentRegistry registry = getDailyRegistry();
+        for (String strategy : Arrays.asList(SpillingGroupByConfig.STRATEGY_SPILLING,
+                SpillingGroupByConfig.STRATEGY_INDEX)) {
+            Map<String, Object> context = ImmutableMap.<String, Object>of(
+                    SpillingGroupByConfig.STRATEGY_CONTEXT_KEY, strategy);
+
+            // No url reaches the threshold within a single week
+            Query having = getDailyQuery(QueryGranularity.ALL)
+                    .setHavingSpec(new GreaterThanHavingSpec("agg_count", 80))
+                    .setContext(context)
+                    .build();
+            List<Row> rows = assertChunkedMatchesUnchunked(having, registry);
+            Assert.assertEquals(rows.size(), 2);
+
+            // The url leading the first week is not the one leading the following weeks
+            Query limit = getDailyQuery(QueryGranularity.ALL)
+                    .setLimitSpec(new DefaultLimitSpec(Collections.singletonList(
+                            new OrderByColumnSpec("agg_count", OrderByColumnSpec.Direction.DESCENDING)), 1))
+                    .setContext(context)
+                    .build();
+            rows = assertChunkedMatchesUnchunked(limit, registry);
+            Assert.assertEquals(rows.size(), 1);
+            Assert.assertEquals(rows.get(0).getDimension("URL"), Collections.singletonList("abc"));
+            Assert.assertEquals(rows.get(0).getLongMetric("agg_count"), getTotal("abc"));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Row> assertChunkedMatchesUnchunked(Query query, SegmentRegistry registry) {
+        Query chunked = query.withOverriddenContext(
+                ImmutableMap.<String, Object>of(QueryContextKeys.CHUNK_PERIOD, "P1W"));
+        List<Row> expected = Sequences.toList(QueryHelper.run(query, registry), Lists.<Row>newArrayList());
+        List<Row> actual = Sequences.toList(QueryHelper.run(chunked, registry), Lists.<Row>newArrayList());
+        Assert.assertEquals(actual, expected);
+        return actual;
+    }
+
+    private static int getChunks(Query query) {
+        ChunkingQueryRunnerDecorator decorator = new ChunkingQueryRunnerDecorator(
+                Period.weeks(1), MoreExecutors.sameThreadExecutor(), Utils.NOOP_QUERYWATCHER);
+        return decorator.getChunks(query).size();
+    }
+
+    private static SegmentRegistry getDailyRegistry() throws IOException {
+        SegmentRegistry registry = new SegmentRegistry();
+        registry.addIndex("test", IndexHelper.getQueryableIndex(getDailyLoader(), getDailySchema(),
+                IngestionPipeline.fromSystemProperties()));
+        return registry;
+    }
+
+    /**
+     * Two rows per url and day, one in the morning and one in the evening, over several weeks.
+     */
+    private static CSVLoader getDailyLoader() {
+        StringBuilder csv = new StringBuilder();
+        for (int day = 0; day < DAYS; day++) {
+            long start = new DateTime("2016-01-01T00:00:00Z").plusDays(day).getMillis();
+            for (String url : URLS) {
+                int count = getCount(url, day);
+                csv.append(url).append(',').append(start + 3600000L).append(',').append(count).append('\n');
+                csv.append(url).append(',').append(start + 20 * 3600000L).append(',').append(count).append('\n');
+            }
+        }
+        return new CSVLoader(new StringReader(csv.toString()), Arrays.asList("URL", "TS", "count"),
+                Collections.singletonList("URL"), "TS");
+    }
+
+    /**
+     * "abc" leads the first week and "ghi" the following ones, but "abc" leads overall.
+     */
+    private static int getCount(String url, int day) {
+        if (url.equals("abc") && day < 7) {
+            return 5;
+        }
+        if (url.equals("ghi") && day >= 7) {
+            return 3;
+        }
+        return 1;
+    }
+
+    private static long getTotal(String url) {
+        long total = 0;
+        for (int day = 0; day < DAYS; day++) {
+            total += 2 * getCount(url, day);
+        }
+        return total;
+    }
+
+    private static IncrementalIndexSchema getDailySchema() {
+        return new IncrementalIndexSchema(0, QueryGranularity.NONE,
+                new DimensionsSpec(Collections.singletonList("URL"), null, null),
+                new AggregatorFactory[]{new LongSumAggregatorFactory("agg_count", "count")});
+    }
+
+    private static GroupByQuery.Builder getDailyQuery(QueryGranularity granularity) {
+        return GroupByQuery.builder()
+                .setDataSource("test")
+                .setQuerySegmentSpec(QuerySegmentSpecs.create(new Interval("2016-01-01T00:00:00Z/2016-02-01T00:00:00Z")))
+                .setGranularity(granularity)
+                .setDimensions(Collections.<DimensionSpec>singletonList(new DefaultDimensionSpec("URL", "URL")))
+                .addAggregator(new LongSumAggregatorFactory("agg_count", "agg_count"));
+    }
+}
@@ -75,4 +75,57 @@ public class EmbeddedDruidTest {
         Assert.assertEquals(results.size(), 1);
     }
 
+    @Test
+    public void groupByQueryOverMultipleSegments() throws IOException {
+        SegmentRegistry registry = new SegmentRegistry();
+        registry.addIndex("test", IndexCreationHelper.createDruidSegments());
+        registry.addIndex("test", IndexCreationHelper.createDruidSegments());
+        registry.addIndex("other", IndexCreationHelper.createDruidSegments());
+        Query query = QueryCreationHelper.getGroupByQuery();
+
+        @SuppressWarnings("unchecked")
+        Sequence<Row> sequence = QueryHelper.run(query, registry);
+        ArrayList<Row> results = Sequences.toList(sequence, Lists.<Row>newArrayList());
+        Assert.assertEquals(results.size(), 2);
+        long totalCount = 0;
+        for (Row row : results) {
+            totalCount += row.getLongMetric("agg_count");
+        }
+        Assert.assertEquals(totalCount, 30);
+    }
+
+    @Test
+    public void groupByQueryOnParallelLoadedIndex() throws IOException {
+        assertGroupByResults(IndexCreationHelper.createDruidSegments(new IngestionPipeline(3, 1)));
+    }
+
+    @Test
+    public void groupByQueryOnSpilledIndex() throws IOException {
+        assertGroupByResults(IndexCreationHelper.createDruidSegments(
+                new IngestionPipeline(1, 1, 1, 0, false, IngestionPipeline.DEFAULT_OFFHEAP_BUFFER_SIZE)));
+    }
+
+    @Test
+    public void groupByQueryOnOffheapIndex() throws IOException {
+        assertGroupByResults(IndexCreationHelper.createDruidSegments(
+                new IngestionPipeline(2, 1, 2, 0, true, 1024 * 1024)));
+    }
+
+    private static void assertGroupByResults(QueryableIndex index) {
+        Query query = QueryCreationHelper.getGroupByQuery();
+
+        @SuppressWarnings("unchecked")
+        Sequence<Row> sequence = QueryHelper.run(query, index);
+        ArrayList<Row> results = Sequences.toList(sequence, Lists.<Row>newArrayList());
+        Assert.assertEquals(results.size(), 2);
+        for (Row row : results) {
+            if (row.getDimension("URL").get(0).equals("abc")) {
+                Assert.assertEquals(row.getLongMetric("agg_count"), 12);
+                Assert.assertEquals(row.getLongMetric("agg_max"), 124);
+            } else {
+                Assert.assertEquals(row.getLongMetric("agg_count"), 3);
+                Assert.assertEquals(row.getLongMetric("agg_max"), 123);
+            }
+        }
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.collect.Lists;
+import com.metamx.collections.bitmap.ConciseBitmapFactory;
+import com.metamx.collections.bitmap.RoaringBitmapFactory;
+import com.metamx.common.guava.Sequences;
+import io.druid.data.input.Row;
+import io.druid.embedded.helper.IndexCreationHelper;
+import io.druid.embedded.helper.QueryCreationHelper;
+import io.druid.embedded.load.Loader;
+import io.druid.embedded.load.impl.CSVLoader;
+import io.druid.segment.IndexSpec;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.data.CompressedObjectStrategy;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class IndexSpecsTest {
+
+    @DataProvider
+    public Object[][] encodings() {
+        List<Object[]> encodings = new ArrayList<Object[]>();
+        for (String bitmap : IndexSpecs.BITMAPS) {
+            for (String compression : IndexSpecs.COMPRESSIONS) {
+                encodings.add(new Object[]{bitmap, compression});
+            }
+        }
+        return encodings.toArray(new Object[encodings.size()][]);
+    }
+
+    @Test(dataProvider = "encodings")
+    public void testPersistAndQuery(String bitmap, String compression) throws IOException {
+        IndexSpec indexSpec = IndexSpecs.create(bitmap, compression, compression);
+        CompressedObjectStrategy.CompressionStrategy strategy =
+                CompressedObjectStrategy.CompressionStrategy.valueOf(compression.toUpperCase());
+        // Uncompressed dimensions are written without any compression strategy
+        Assert.assertEquals(indexSpec.getDimensionCompressionStrategy(),
+                IndexSpecs.UNCOMPRESSED.equals(compression) ? null : strategy);
+        Assert.assertEquals(indexSpec.getMetricCompressionStrategy(), strategy);
+
+        Loader loader = new CSVLoader(new BufferedReader(new FileReader(new File("./src/test/resources/report.csv"))),
+                IndexCreationHelper.getColumns(), IndexCreationHelper.getDimensions(), "TS");
+        QueryableIndex index = IndexHelper.getQueryableIndex(loader, IndexCreationHelper.getIndexSchema(),
+                new IngestionPipeline(1, 10), indexSpec);
+        try {
+            Assert.assertEquals(index.getBitmapFactoryForDimensions().getClass(),
+                    IndexSpecs.ROARING.equals(bitmap) ? RoaringBitmapFactory.class : ConciseBitmapFactory.class);
+
+            @SuppressWarnings("unchecked")
+            List<Row> results = Sequences.toList(QueryHelper.run(QueryCreationHelper.getGroupByQuery(), index),
+                    Lists.<Row>newArrayList());
+            Assert.assertEquals(results.size(), 2);
+            for (Row row : results) {
+                boolean abc = row.getDimension("URL").get(0).equals("abc");
+                Assert.assertEquals(row.getLongMetric("agg_count"), abc ? 12 : 3);
+                Assert.assertEquals(row.getLongMetric("agg_max"), abc ? 124 : 123);
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testDefaultsKeepStoreKeys() throws IOException {
+        SegmentStore store = new SegmentStore(new File(System.getProperty("java.io.tmpdir")));
+        Assert.assertEquals(
+                store.computeKey("input", IndexCreationHelper.getIndexSchema(), IndexSpecs.fromSystemProperties()),
+                store.computeKey("input", IndexCreationHelper.getIndexSchema(), new IndexSpec()));
+    }
+
+    @Test
+    public void testNamesAreCaseInsensitive() {
+        Assert.assertEquals(IndexSpecs.create("Roaring", "LZF", "Uncompressed"),
+                IndexSpecs.create(IndexSpecs.ROARING, IndexSpecs.LZF, IndexSpecs.UNCOMPRESSED));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownBitmap() {
+        IndexSpecs.create("bitset", IndexSpecs.LZ4, IndexSpecs.LZ4);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownCompression() {
+        IndexSpecs.create(IndexSpecs.CONCISE, "gzip", IndexSpecs.LZ4);
+    }
+}
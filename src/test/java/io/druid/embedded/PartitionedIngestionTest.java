@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.collect.Lists;
+import com.metamx.common.Granularity;
+import com.metamx.common.guava.Sequences;
+import io.druid.embedded.helper.IndexCreationHelper;
+import io.druid.embedded.load.impl.CSVLoader;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.Druids;
+import io.druid.query.Query;
+import io.druid.query.Result;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.LongSumAggregatorFactory;
+import io.druid.query.spec.QuerySegmentSpecs;
+import io.druid.query.timeseries.TimeseriesResultValue;
+import io.druid.segment.IndexSpec;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.Segment;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Interval;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class PartitionedIngestionTest {
+    private static final DateTime START = new DateTime(2016, 1, 1, 0, 0, DateTimeZone.UTC);
+    private static final int DAYS = 3;
+
+    private File baseDir;
+    private CSVLoader loader;
+    private IncrementalIndexSchema indexSchema;
+    private SegmentRegistry registry;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        baseDir = new File(System.getProperty("java.io.tmpdir"), "partitioned-ingestion-test-" + System.nanoTime());
+        // One row per hour, the days in reverse order so that buckets are interleaved across batches
+        StringBuilder csv = new StringBuilder();
+        for (int day = DAYS - 1; day >= 0; day--) {
+            for (int hour = 0; hour < 24; hour++) {
+                long timestamp = START.plusDays(day).plusHours(hour).getMillis();
+                csv.append(hour % 2 == 0 ? "slc" : "phx").append(",r1cart,URLTransaction,abc,").append(timestamp)
+                        .append(",Duration,").append(hour).append(",").append(day + 1).append(",0,1,1\n");
+            }
+        }
+        File input = new File(baseDir, "hourly.csv");
+        FileUtils.writeStringToFile(input, csv.toString());
+
+        indexSchema = new IncrementalIndexSchema(0, QueryGranularity.NONE,
+                IndexCreationHelper.getIndexSchema().getDimensionsSpec(),
+                new AggregatorFactory[]{new LongSumAggregatorFactory("agg_count", "count")});
+        loader = new CSVLoader(input, IndexCreationHelper.getColumns(), IndexCreationHelper.getDimensions(), "TS");
+        registry = new SegmentRegistry();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        for (Segment segment : registry.removeDataSource("test")) {
+            segment.close();
+        }
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    @Test
+    public void persistsOneSegmentPerBucket() throws IOException {
+        // Spilling every few rows, with two workers sharing the buckets
+        Map<Interval, File> partitions = new IngestionPipeline(2, 5, 10, 0, false, 0)
+                .persistPartitions(loader, indexSchema, new File(baseDir, "segments"), new IndexSpec(),
+                        Granularity.DAY);
+        assertPartitions(partitions);
+    }
+
+    @Test
+    public void persistsOneSegmentPerBucketOffheap() throws IOException {
+        Map<Interval, File> partitions = new IngestionPipeline(1, 10, 100, 0, true, 1024 * 1024)
+                .persistPartitions(loader, indexSchema, new File(baseDir, "segments"), new IndexSpec(),
+                        Granularity.DAY);
+        assertPartitions(partitions);
+    }
+
+    @Test
+    public void persistsInterleavedBucketsOffheap() throws IOException {
+        // Hours of all days round robin, so that every row switches bucket
+        StringBuilder csv = new StringBuilder();
+        for (int hour = 0; hour < 24; hour++) {
+            for (int day = 0; day < DAYS; day++) {
+                long timestamp = START.plusDays(day).plusHours(hour).getMillis();
+                csv.append("slc,r1cart,URLTransaction,abc,").append(timestamp).append(",Duration,").append(hour)
+                        .append(",").append(day + 1).append(",0,1,1\n");
+            }
+        }
+        File input = new File(baseDir, "interleaved.csv");
+        FileUtils.writeStringToFile(input, csv.toString());
+        CSVLoader interleaved = new CSVLoader(input, IndexCreationHelper.getColumns(),
+                IndexCreationHelper.getDimensions(), "TS");
+
+        // Every bucket open at once, then fewer open buckets than days so that buckets are evicted and spilled
+        for (int maxOpenBuckets : new int[]{DAYS, DAYS - 1}) {
+            Map<Interval, File> partitions = new IngestionPipeline(1, 10, 100, 0, true, 1024 * 1024, maxOpenBuckets)
+                    .persistPartitions(interleaved, indexSchema, new File(baseDir, "segments-" + maxOpenBuckets),
+                            new IndexSpec(), Granularity.DAY);
+            assertPartitions(partitions);
+        }
+    }
+
+    @Test
+    public void persistsPartitionsUnderSegmentDir() throws IOException {
+        File segmentDir = new File(baseDir, "store");
+        String previous = System.getProperty(SegmentStore.DIR_PROPERTY);
+        System.setProperty(SegmentStore.DIR_PROPERTY, segmentDir.getPath());
+        try {
+            IngestionPipeline pipeline = new IngestionPipeline(1, 10);
+            Map<Interval, File> first = IndexHelper.getPartitions(loader, indexSchema, pipeline, Granularity.DAY);
+            Map<Interval, File> second = IndexHelper.getPartitions(loader, indexSchema, pipeline, Granularity.DAY);
+            assertPartitions(first);
+            assertPartitions(second);
+            File partitionsDir = new SegmentStore(segmentDir).getTmpDir(IndexHelper.PARTITIONS_DIR);
+            for (File dir : first.values()) {
+                Assert.assertEquals(dir.getParentFile().getParentFile(), partitionsDir);
+                Assert.assertFalse(second.containsValue(dir));
+            }
+        } finally {
+            if (previous == null) {
+                System.clearProperty(SegmentStore.DIR_PROPERTY);
+            } else {
+                System.setProperty(SegmentStore.DIR_PROPERTY, previous);
+            }
+        }
+    }
+
+    @Test
+    public void scansOnlyOverlappingSegments() throws IOException {
+        Map<Interval, File> partitions = new IngestionPipeline(1, 10)
+                .persistPartitions(loader, indexSchema, new File(baseDir, "segments"), new IndexSpec(),
+                        Granularity.DAY);
+        List<Segment> segments = registry.addPartitions("test", partitions);
+        Assert.assertEquals(segments.size(), DAYS);
+        for (Segment segment : segments) {
+            Assert.assertFalse(((LazySegment) segment).isLoaded());
+        }
+
+        // A few hours of the second day
+        Interval hours = new Interval(START.plusDays(1).plusHours(2), START.plusDays(1).plusHours(5));
+        Assert.assertEquals(getTotal(hours), 3 * 2);
+        Assert.assertFalse(((LazySegment) segments.get(0)).isLoaded());
+        Assert.assertTrue(((LazySegment) segments.get(1)).isLoaded());
+        Assert.assertFalse(((LazySegment) segments.get(2)).isLoaded());
+
+        Assert.assertEquals(getTotal(new Interval(START, START.plusDays(DAYS))), 24 * (1 + 2 + 3));
+        for (Segment segment : segments) {
+            Assert.assertTrue(((LazySegment) segment).isLoaded());
+        }
+    }
+
+    private void assertPartitions(Map<Interval, File> partitions) throws IOException {
+        List<Interval> expected = new ArrayList<Interval>();
+        for (int day = 0; day < DAYS; day++) {
+            expected.add(new Interval(START.plusDays(day), START.plusDays(day + 1)));
+        }
+        Assert.assertEquals(new ArrayList<Interval>(partitions.keySet()), expected);
+        for (Map.Entry<Interval, File> partition : partitions.entrySet()) {
+            QueryableIndex index = IndexHelper.getQueryableIndex(partition.getValue());
+            try {
+                Assert.assertEquals(index.getNumRows(), 24);
+                Assert.assertTrue(partition.getKey().contains(index.getDataInterval()));
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private long getTotal(Interval interval) {
+        Query query = Druids.newTimeseriesQueryBuilder()
+                .dataSource("test")
+                .granularity(QueryGranularity.ALL)
+                .intervals(QuerySegmentSpecs.create(interval))
+                .aggregators(Arrays.<AggregatorFactory>asList(new LongSumAggregatorFactory("agg_count", "agg_count")))
+                .build();
+        List<Result<TimeseriesResultValue>> results = Sequences.toList(
+                QueryHelper.run(query, registry),
+                Lists.<Result<TimeseriesResultValue>>newArrayList());
+        return results.get(0).getValue().getLongMetric("agg_count");
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.metamx.common.guava.Sequences;
+import io.druid.data.input.Row;
+import io.druid.embedded.helper.IndexCreationHelper;
+import io.druid.embedded.helper.QueryCreationHelper;
+import io.druid.query.Query;
+import io.druid.query.filter.DimFilter;
+import io.druid.query.filter.DimFilters;
+import io.druid.query.filter.OrDimFilter;
+import io.druid.query.filter.SelectorDimFilter;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.segment.QueryableIndex;
+import org.joda.time.Interval;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class PreparedQueryTest {
+
+    private static String getTemplate() throws IOException {
+        return QueryHelper.jsonMapper.writeValueAsString(QueryCreationHelper.getGroupByQuery())
+                .replace("\"r1cart\"", "\"${pool}\"").replace("\"Duration\"", "\"${metric}\"");
+    }
+
+    @Test
+    public void bindsFilterValuesAndIntervals() throws IOException {
+        PreparedQuery prepared = PreparedQuery.fromJson(getTemplate());
+        Assert.assertEquals(new ArrayList<String>(prepared.getParameters()), Arrays.asList("pool", "metric"));
+
+        GroupByQuery query = (GroupByQuery) prepared.bind(ImmutableMap.of("pool", "r1cart", "metric", "Duration"));
+        Assert.assertEquals(QueryHelper.jsonMapper.writeValueAsString(query),
+                QueryHelper.jsonMapper.writeValueAsString(prepared.getTemplate())
+                        .replace("${pool}", "r1cart").replace("${metric}", "Duration"));
+
+        query = (GroupByQuery) prepared.bind(ImmutableMap.of("pool", "r1cart",
+                "metric", Arrays.asList("Duration", "Count"), "intervals", "2016-01-01/2016-01-02"));
+        Assert.assertEquals(query.getIntervals(), Collections.singletonList(new Interval("2016-01-01/2016-01-02")));
+        Assert.assertEquals(query.getDimFilter(), DimFilters.and(
+                DimFilters.dimEquals("report", "URLTransaction"),
+                DimFilters.dimEquals("pool", "r1cart"),
+                new OrDimFilter(Arrays.<DimFilter>asList(
+                        new SelectorDimFilter("metric", "Duration"), new SelectorDimFilter("metric", "Count")))));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void runsBoundQuery() throws IOException {
+        QueryableIndex index = IndexCreationHelper.createDruidSegments();
+        Query query = PreparedQuery.fromJson(getTemplate()).bind(ImmutableMap.of("pool", "r1cart", "metric", "Duration"));
+        List<Row> results = Sequences.toList(QueryHelper.run(query, index), Lists.<Row>newArrayList());
+        Assert.assertEquals(results.size(), 2);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsUnboundParameter() throws IOException {
+        PreparedQuery.fromJson(getTemplate()).bind(ImmutableMap.of("pool", "r1cart"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsUnknownParameter() throws IOException {
+        PreparedQuery.fromJson(getTemplate()).bind(ImmutableMap.of("pool", "r1cart", "metric", "Duration",
+                "colo", "slc"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsEmptyList() throws IOException {
+        PreparedQuery.fromJson(getTemplate()).bind(ImmutableMap.of("pool", "r1cart",
+                "metric", Collections.emptyList()));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsParameterOutsideFilters() throws IOException {
+        PreparedQuery.fromJson(getTemplate().replace("\"URL\"", "\"${dimension}\""));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.util.concurrent.SettableFuture;
+import io.druid.embedded.helper.QueryCreationHelper;
+import io.druid.query.Query;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class QueryManagerTest {
+
+    @Test
+    public void cancelsRunningQuery() {
+        QueryManager manager = new QueryManager();
+        Query query = QueryCreationHelper.getGroupByQuery().withId("q1");
+        SettableFuture<Object> future = SettableFuture.create();
+        manager.registerQuery(query, future);
+        Assert.assertTrue(manager.getRunningQueries().contains("q1"));
+
+        Assert.assertTrue(manager.cancelQuery("q1"));
+        Assert.assertTrue(future.isCancelled());
+        Assert.assertFalse(manager.cancelQuery("q1"));
+    }
+
+    @Test
+    public void forgetsCompletedQuery() {
+        QueryManager manager = new QueryManager();
+        SettableFuture<Object> future = SettableFuture.create();
+        manager.registerQuery(QueryCreationHelper.getGroupByQuery().withId("q2"), future);
+        future.set(null);
+        Assert.assertTrue(manager.getRunningQueries().isEmpty());
+        Assert.assertFalse(manager.cancelQuery("q2"));
+    }
+
+    @Test
+    public void assignsQueryId() {
+        Query query = QueryHelper.prepareQuery(QueryCreationHelper.getGroupByQuery());
+        Assert.assertNotNull(query.getId());
+        Assert.assertEquals(QueryHelper.prepareQuery(query).getId(), query.getId());
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.druid.embedded.helper.QueryCreationHelper;
+import io.druid.query.Query;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class QuerySchedulerTest {
+    private static final Query HEAVY = QueryCreationHelper.getGroupByQuery();
+    private static final Query LIGHT = QueryCreationHelper.getTopNQuery();
+
+    private static QueryScheduler newScheduler(int maxQueued, long queueTimeoutMillis) {
+        return new QueryScheduler(ImmutableList.of(
+                new QueryScheduler.Lane("light", ImmutableSet.of(Query.TOPN), 1, maxQueued),
+                new QueryScheduler.Lane("heavy", ImmutableSet.<String>of(), 1, maxQueued)),
+                queueTimeoutMillis, 3);
+    }
+
+    @Test
+    public void rejectsWhenLaneIsFull() {
+        QueryScheduler scheduler = newScheduler(0, 1000);
+        QueryScheduler.Slot slot = scheduler.acquire(HEAVY);
+        try {
+            scheduler.acquire(HEAVY);
+            Assert.fail("Query should have been rejected");
+        } catch (QueryCapacityExceededException e) {
+            Assert.assertEquals(e.getRetryAfterSeconds(), 3);
+        }
+
+        // Other lanes are not affected
+        scheduler.acquire(LIGHT).close();
+
+        slot.close();
+        slot.close();
+        Assert.assertEquals(scheduler.getLane(HEAVY.getType()).getRunningCount(), 0);
+        scheduler.acquire(HEAVY).close();
+        Assert.assertEquals(scheduler.getRejectedCount(), 1);
+    }
+
+    @Test
+    public void waitsForSlotUntilTimeout() throws InterruptedException {
+        final QueryScheduler scheduler = newScheduler(1, 200);
+        final QueryScheduler.Slot slot = scheduler.acquire(HEAVY);
+        try {
+            scheduler.acquire(HEAVY);
+            Assert.fail("Query should have timed out");
+        } catch (QueryCapacityExceededException e) {
+            Assert.assertEquals(scheduler.getLane(HEAVY.getType()).getQueuedCount(), 0);
+        }
+
+        Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                slot.close();
+            }
+        });
+        releaser.start();
+        QueryScheduler.Slot waited = scheduler.acquire(HEAVY);
+        Assert.assertEquals(waited.getLane().getName(), "heavy");
+        waited.close();
+        releaser.join();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.collect.Lists;
+import com.metamx.common.guava.Sequences;
+import io.druid.data.input.Row;
+import io.druid.embedded.helper.IndexCreationHelper;
+import io.druid.embedded.helper.QueryCreationHelper;
+import io.druid.segment.Segment;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RealtimeIndexTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void queriesTailAndHandedOffSegments() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "realtime-test-" + System.nanoTime());
+        SegmentRegistry registry = new SegmentRegistry();
+        RealtimeIndex realtimeIndex = new RealtimeIndex("test", IndexCreationHelper.getIndexSchema(), "TS",
+                registry, 2, Long.MAX_VALUE, dir);
+        try {
+            realtimeIndex.add(row("slc", "abc", 1234, 5, 123));
+            realtimeIndex.add(row("phx", "abc", 1235, 7, 124));
+            realtimeIndex.add(row("slc", "def", 1234, 3, 123));
+            Assert.assertEquals(realtimeIndex.getTailSize(), 1);
+            assertCounts(registry, 12, 3);
+
+            realtimeIndex.handoff().get();
+            Assert.assertEquals(realtimeIndex.getTailSize(), 0);
+            int persisted = 0;
+            for (Segment segment : registry.getSegments("test")) {
+                if (segment.asQueryableIndex() != null) {
+                    persisted++;
+                }
+            }
+            Assert.assertEquals(persisted, 2);
+            assertCounts(registry, 12, 3);
+        } finally {
+            realtimeIndex.close();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void assertCounts(SegmentRegistry registry, long abc, long def) {
+        List<Row> results = Sequences.toList(QueryHelper.run(QueryCreationHelper.getGroupByQuery(), registry),
+                Lists.<Row>newArrayList());
+        Assert.assertEquals(results.size(), 2);
+        for (Row row : results) {
+            long expected = row.getDimension("URL").get(0).equals("abc") ? abc : def;
+            Assert.assertEquals(row.getLongMetric("agg_count"), expected);
+        }
+    }
+
+    private static Map<String, Object> row(String colo, String url, long timestamp, long count, float value) {
+        Map<String, Object> row = new HashMap<String, Object>();
+        row.put("colo", colo);
+        row.put("pool", "r1cart");
+        row.put("report", "URLTransaction");
+        row.put("URL", url);
+        row.put("TS", timestamp);
+        row.put("metric", "Duration");
+        row.put("value", value);
+        row.put("count", count);
+        row.put("min", 0);
+        row.put("max", value);
+        row.put("sum", value);
+        return row;
+    }
+}
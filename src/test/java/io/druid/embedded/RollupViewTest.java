@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.metamx.common.guava.Sequences;
+import io.druid.data.input.MapBasedRow;
+import io.druid.data.input.Row;
+import io.druid.embedded.helper.IndexCreationHelper;
+import io.druid.embedded.load.impl.CSVLoader;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.Druids;
+import io.druid.query.Query;
+import io.druid.query.Result;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.CountAggregatorFactory;
+import io.druid.query.aggregation.DoubleSumAggregatorFactory;
+import io.druid.query.aggregation.LongSumAggregatorFactory;
+import io.druid.query.aggregation.MaxAggregatorFactory;
+import io.druid.query.filter.DimFilters;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.spec.QuerySegmentSpecs;
+import io.druid.query.timeseries.TimeseriesResultValue;
+import io.druid.segment.IndexSpec;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class RollupViewTest {
+    private static final RollupView URL_VIEW = new RollupView("url",
+            Arrays.asList("report", "pool", "metric", "URL"), QueryGranularity.ALL);
+    private static final RollupView COLO_VIEW = new RollupView("colo",
+            Arrays.asList("colo", "report"), QueryGranularity.HOUR, Arrays.asList("agg_count", "agg_sum"));
+
+    private File baseDir;
+    private IncrementalIndexSchema indexSchema;
+    private IndexWithViews index;
+    private SegmentRegistry registry;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        baseDir = new File(System.getProperty("java.io.tmpdir"), "rollup-view-test-" + System.nanoTime());
+        File input = new File(baseDir, "report.csv");
+        FileUtils.copyFile(new File("./src/test/resources/report.csv"), input);
+
+        IncrementalIndexSchema schema = IndexCreationHelper.getIndexSchema();
+        indexSchema = new IncrementalIndexSchema(0, QueryGranularity.NONE, schema.getDimensionsSpec(),
+                schema.getMetrics());
+        CSVLoader loader = new CSVLoader(input, IndexCreationHelper.getColumns(), IndexCreationHelper.getDimensions(),
+                "TS");
+        index = new SegmentStore(new File(baseDir, "segments")).getOrCreate(loader, indexSchema, new IndexSpec(),
+                new IngestionPipeline(1, 10), Arrays.asList(URL_VIEW, COLO_VIEW));
+        registry = new SegmentRegistry();
+        registry.addIndex("test", index);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        index.close();
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    @Test
+    public void buildsViewsAlongWithIndex() {
+        Assert.assertEquals(index.getIndex().getNumRows(), 3);
+        Map<RollupView, ?> views = index.getViews();
+        Assert.assertEquals(views.size(), 2);
+        Assert.assertEquals(index.getViews().get(URL_VIEW).getNumRows(), 2);
+        Assert.assertEquals(index.getViews().get(COLO_VIEW).getNumRows(), 2);
+        Assert.assertEquals(index.getViews().get(COLO_VIEW).getAvailableDimensions(), Arrays.asList("colo", "report"));
+    }
+
+    @Test
+    public void routesToViewWithSameResults() {
+        Query query = getGroupByQuery(QueryGranularity.ALL, "URL", new LongSumAggregatorFactory("agg_count", "agg_count"),
+                new MaxAggregatorFactory("agg_max", "agg_max"), new DoubleSumAggregatorFactory("agg_sum", "agg_sum"));
+        RollupView urlView = index.getViews().keySet().iterator().next();
+        Assert.assertTrue(urlView.canAnswer(query, index.getIndex().getDataInterval()));
+
+        List<Map<String, Object>> routed = getEvents(query);
+        Assert.assertEquals(routed, getEvents(withoutViews(query)));
+        Assert.assertEquals(routed.size(), 2);
+        Assert.assertEquals(routed.get(0).get("URL"), "abc");
+        Assert.assertEquals(((Number) routed.get(0).get("agg_count")).longValue(), 12);
+        Assert.assertEquals(((Number) routed.get(0).get("agg_max")).doubleValue(), 124.0);
+        Assert.assertEquals(((Number) routed.get(0).get("agg_sum")).doubleValue(), 247.0);
+    }
+
+    @Test
+    public void fallsBackToIndex() {
+        Interval dataInterval = index.getIndex().getDataInterval();
+        RollupView urlView = null;
+        RollupView coloView = null;
+        for (RollupView view : index.getViews().keySet()) {
+            if (view.equals(URL_VIEW)) {
+                urlView = view;
+            } else {
+                coloView = view;
+            }
+        }
+
+        // Dimension missing from the view
+        Assert.assertFalse(urlView.canAnswer(getGroupByQuery(QueryGranularity.ALL, "colo",
+                new LongSumAggregatorFactory("agg_count", "agg_count")), dataInterval));
+        // Counting rows depends on the rollup
+        Assert.assertFalse(urlView.canAnswer(getGroupByQuery(QueryGranularity.ALL, "URL",
+                new CountAggregatorFactory("rows")), dataInterval));
+        // Metric missing from the view
+        Assert.assertFalse(coloView.canAnswer(getGroupByQuery(QueryGranularity.ALL, "colo",
+                new MaxAggregatorFactory("agg_max", "agg_max")), dataInterval));
+        // Buckets finer than the view
+        Assert.assertFalse(urlView.canAnswer(getGroupByQuery(QueryGranularity.NONE, "URL",
+                new LongSumAggregatorFactory("agg_count", "agg_count")), dataInterval));
+        Assert.assertTrue(coloView.canAnswer(getGroupByQuery(QueryGranularity.HOUR, "colo",
+                new LongSumAggregatorFactory("agg_count", "agg_count")), dataInterval));
+        // Interval ending within the data, off the view granularity
+        Query cut = Druids.newTimeseriesQueryBuilder()
+                .dataSource("test")
+                .granularity(QueryGranularity.ALL)
+                .intervals(QuerySegmentSpecs.create(new Interval(0, 1235)))
+                .aggregators(Arrays.<AggregatorFactory>asList(new LongSumAggregatorFactory("agg_count", "agg_count")))
+                .build();
+        Assert.assertFalse(coloView.canAnswer(cut, dataInterval));
+        Assert.assertEquals(getTotal(cut), 8);
+        // Only aggregating queries can be routed
+        Assert.assertFalse(urlView.canAnswer(Druids.newTimeBoundaryQueryBuilder().dataSource("test").build(),
+                dataInterval));
+        Assert.assertFalse(urlView.canAnswer(withoutViews(getGroupByQuery(QueryGranularity.ALL, "URL",
+                new LongSumAggregatorFactory("agg_count", "agg_count"))), dataInterval));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsFinerGranularity() {
+        new RollupView("minute", Arrays.asList("URL"), QueryGranularity.MINUTE).resolve(
+                IndexCreationHelper.getIndexSchema());
+    }
+
+    @Test
+    public void dropsViewsWithSegment() {
+        String identifier = registry.getSegments("test").get(0).getIdentifier();
+        Assert.assertEquals(registry.getViews(identifier).size(), 2);
+        registry.removeSegment("test", identifier);
+        Assert.assertTrue(registry.getViews(identifier).isEmpty());
+    }
+
+    private static GroupByQuery getGroupByQuery(QueryGranularity granularity, String dimension,
+                                                AggregatorFactory... aggregators) {
+        return GroupByQuery.builder()
+                .setDataSource("test")
+                .setQuerySegmentSpec(QuerySegmentSpecs.create(new Interval(0, new DateTime().getMillis())))
+                .setGranularity(granularity)
+                .addDimension(dimension)
+                .setAggregatorSpecs(Arrays.asList(aggregators))
+                .setDimFilter(DimFilters.dimEquals("report", "URLTransaction"))
+                .build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Query withoutViews(Query query) {
+        return query.withOverriddenContext(ImmutableMap.<String, Object>of(RollupView.USE_VIEWS_CONTEXT_KEY, false));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> getEvents(Query query) {
+        List<Row> rows = Sequences.toList(QueryHelper.run(query, registry), Lists.<Row>newArrayList());
+        List<Map<String, Object>> events = new ArrayList<Map<String, Object>>();
+        for (Row row : rows) {
+            events.add(((MapBasedRow) row).getEvent());
+        }
+        return events;
+    }
+
+    @SuppressWarnings("unchecked")
+    private long getTotal(Query query) {
+        List<Result<TimeseriesResultValue>> results = Sequences.toList(
+                QueryHelper.run(query, registry),
+                Lists.<Result<TimeseriesResultValue>>newArrayList());
+        return results.get(0).getValue().getLongMetric("agg_count");
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.data.input.InputRow;
+import io.druid.embedded.helper.IndexCreationHelper;
+import io.druid.embedded.load.impl.CSVLoader;
+import io.druid.segment.IndexSpec;
+import io.druid.segment.QueryableIndex;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+public class SegmentStoreTest {
+    private File baseDir;
+    private File input;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        baseDir = new File(System.getProperty("java.io.tmpdir"), "segment-store-test-" + System.nanoTime());
+        input = new File(baseDir, "report.csv");
+        FileUtils.copyFile(new File("./src/test/resources/report.csv"), input);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    @Test
+    public void reusesStoredSegment() throws IOException {
+        SegmentStore store = new SegmentStore(new File(baseDir, "segments"));
+        IngestionPipeline pipeline = new IngestionPipeline(1, 10);
+
+        CountingLoader loader = new CountingLoader(input);
+        QueryableIndex built = store.getOrCreate(loader, IndexCreationHelper.getIndexSchema(), new IndexSpec(), pipeline);
+        Assert.assertEquals(loader.reads, 1);
+
+        String key = store.computeKey(loader.getFingerprint(), IndexCreationHelper.getIndexSchema(), new IndexSpec());
+        Assert.assertTrue(store.contains(key));
+        Assert.assertEquals(store.getManifest(key).get("numRows"), built.getNumRows());
+
+        CountingLoader restarted = new CountingLoader(input);
+        QueryableIndex loaded = store.getOrCreate(restarted, IndexCreationHelper.getIndexSchema(), new IndexSpec(), pipeline);
+        Assert.assertEquals(restarted.reads, 0);
+        Assert.assertEquals(loaded.getNumRows(), built.getNumRows());
+    }
+
+    @Test
+    public void rebuildsWhenInputChanges() throws IOException {
+        SegmentStore store = new SegmentStore(new File(baseDir, "segments"));
+        String before = new CountingLoader(input).getFingerprint();
+        FileUtils.copyFile(new File("./src/test/resources/report1.csv"), input);
+        String after = new CountingLoader(input).getFingerprint();
+        Assert.assertNotEquals(after, before);
+        Assert.assertFalse(store.contains(store.computeKey(after, IndexCreationHelper.getIndexSchema(), new IndexSpec())));
+    }
+
+    private static class CountingLoader extends CSVLoader {
+        int reads;
+
+        CountingLoader(File file) {
+            super(file, IndexCreationHelper.getColumns(), IndexCreationHelper.getDimensions(), "TS");
+        }
+
+        @Override
+        public Iterator<InputRow> iterator() {
+            reads++;
+            return super.iterator();
+        }
+
+        @Override
+        public Iterator<Iterable<InputRow>> split(int batchSize) {
+            reads++;
+            return super.split(batchSize);
+        }
+    }
+}
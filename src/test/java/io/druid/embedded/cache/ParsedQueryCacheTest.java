@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.cache;
+
+import io.druid.embedded.QueryHelper;
+import io.druid.embedded.helper.QueryCreationHelper;
+import io.druid.query.Query;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+
+public class ParsedQueryCacheTest {
+
+    @Test
+    public void reusesParsedQuery() throws IOException {
+        ParsedQueryCache cache = new ParsedQueryCache(QueryHelper.jsonMapper, 10);
+        String json = QueryHelper.jsonMapper.writeValueAsString(QueryCreationHelper.getGroupByQuery());
+        Query first = cache.parse(json);
+        Assert.assertSame(cache.parse(json), first);
+        Assert.assertEquals(cache.getMissCount(), 1);
+        Assert.assertEquals(cache.getHitCount(), 1);
+
+        // Same query written differently
+        String pretty = QueryHelper.jsonMapper.writerWithDefaultPrettyPrinter()
+                .writeValueAsString(QueryHelper.jsonMapper.readValue(json, Object.class));
+        Assert.assertSame(cache.parse(pretty), first);
+        Assert.assertEquals(cache.getMissCount(), 1);
+        Assert.assertEquals(QueryHelper.jsonMapper.writeValueAsString(first), json);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        ParsedQueryCache cache = new ParsedQueryCache(QueryHelper.jsonMapper, 2);
+        String groupBy = QueryHelper.jsonMapper.writeValueAsString(QueryCreationHelper.getGroupByQuery());
+        String topN = QueryHelper.jsonMapper.writeValueAsString(QueryCreationHelper.getTopNQuery());
+        cache.parse(groupBy);
+        cache.parse(topN);
+        Assert.assertEquals(cache.getEntryCount(), 2);
+        cache.parse(groupBy);
+        Assert.assertEquals(cache.getMissCount(), 3);
+    }
+
+    @Test
+    public void normalizesKeyOrderAndWhitespace() throws IOException {
+        Assert.assertEquals(ParsedQueryCache.normalize("{ \"b\" : 1, \"a\" : [ 2, {\"d\": 3, \"c\": 4} ] }"),
+                "{\"a\":[2,{\"c\":4,\"d\":3}],\"b\":1}");
+    }
+}
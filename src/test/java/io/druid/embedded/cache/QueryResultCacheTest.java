@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.cache;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.metamx.common.guava.Sequences;
+import io.druid.embedded.QueryHelper;
+import io.druid.embedded.SegmentRegistry;
+import io.druid.embedded.helper.IndexCreationHelper;
+import io.druid.embedded.helper.QueryCreationHelper;
+import io.druid.query.Query;
+import io.druid.query.Result;
+import io.druid.query.topn.DimensionAndMetricValueExtractor;
+import io.druid.query.topn.TopNResultValue;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+public class QueryResultCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        QueryResultCache cache = new QueryResultCache(30, true, true);
+        cache.put(new byte[]{1}, new byte[9]);
+        cache.put(new byte[]{2}, new byte[9]);
+        cache.put(new byte[]{3}, new byte[9]);
+        Assert.assertNotNull(cache.get(new byte[]{1}));
+
+        cache.put(new byte[]{4}, new byte[9]);
+        Assert.assertNull(cache.get(new byte[]{2}));
+        Assert.assertNotNull(cache.get(new byte[]{1}));
+        Assert.assertEquals(cache.getEvictionCount(), 1);
+        Assert.assertEquals(cache.getSizeBytes(), 30);
+    }
+
+    @Test
+    public void ignoresEntriesLargerThanCache() {
+        QueryResultCache cache = new QueryResultCache(10, true, true);
+        cache.put(new byte[]{1}, new byte[10]);
+        Assert.assertNull(cache.get(new byte[]{1}));
+        Assert.assertEquals(cache.getEntryCount(), 0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void servesRepeatedQueryFromCache() throws IOException {
+        SegmentRegistry registry = new SegmentRegistry();
+        registry.addIndex("test", IndexCreationHelper.createDruidSegments());
+        Query query = QueryCreationHelper.getTopNQuery();
+        QueryResultCache cache = QueryHelper.getResultCache();
+
+        List<Result> first = Sequences.toList(QueryHelper.run(query, registry), Lists.<Result>newArrayList());
+        long hits = cache.getHitCount();
+        List<Result> second = Sequences.toList(QueryHelper.run(query, registry), Lists.<Result>newArrayList());
+        Assert.assertEquals(cache.getHitCount(), hits + 1);
+        Assert.assertEquals(summarize(second), summarize(first));
+
+        Query uncached = query.withOverriddenContext(ImmutableMap.<String, Object>of("useCache", false));
+        Sequences.toList(QueryHelper.run(uncached, registry), Lists.<Result>newArrayList());
+        Assert.assertEquals(cache.getHitCount(), hits + 1);
+    }
+
+    private static List<String> summarize(List<Result> results) {
+        List<String> summary = Lists.newArrayList();
+        for (Result result : results) {
+            for (DimensionAndMetricValueExtractor value : ((TopNResultValue) result.getValue()).getValue()) {
+                summary.add(value.getStringDimensionValue("colo") + "=" + value.getLongMetric("agg_count"));
+            }
+        }
+        return summary;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.groupby;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+import io.druid.data.input.MapBasedRow;
+import io.druid.data.input.Row;
+import io.druid.embedded.BufferPool;
+import io.druid.embedded.QueryHelper;
+import io.druid.embedded.QueryTimeoutException;
+import io.druid.embedded.Utils;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.Query;
+import io.druid.query.QueryContextKeys;
+import io.druid.query.QueryRunner;
+import io.druid.query.aggregation.LongSumAggregatorFactory;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.spec.QuerySegmentSpecs;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.Interval;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+public class SpillingGroupByMergerTest {
+    private File spillDir;
+    private ListeningExecutorService executor;
+
+    @BeforeMethod
+    public void setUp() {
+        spillDir = new File(System.getProperty("java.io.tmpdir"), "spilling-merger-test-" + System.nanoTime());
+        spillDir.mkdirs();
+        executor = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        FileUtils.deleteDirectory(spillDir);
+    }
+
+    @Test
+    public void timesOutSlowRunners() {
+        SpillingGroupByMerger merger = createMerger(new BufferPool(1024 * 1024, 1, 1000));
+        GroupByQuery query = createQuery(ImmutableMap.<String, Object>of(QueryContextKeys.TIMEOUT, 50));
+        QueryRunner<Row> slow = new QueryRunner<Row>() {
+            @Override
+            public Sequence<Row> run(Query<Row> query, Map<String, Object> responseContext) {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Sequences.empty();
+            }
+        };
+
+        try {
+            Sequences.toList(merger.merge(query, Collections.singletonList(slow), executor,
+                    new HashMap<String, Object>()), Lists.<Row>newArrayList());
+            Assert.fail("Expected a timeout");
+        } catch (QueryTimeoutException e) {
+            Assert.assertTrue(QueryTimeoutException.isTimeout(e));
+        }
+    }
+
+    @Test
+    public void mergesPartsBeforeTakingBuffer() {
+        // A single buffer, which the merges of the parts and the merge of all parts both need
+        BufferPool pool = new BufferPool(1024 * 1024, 1, 0);
+        SpillingGroupByMerger merger = createMerger(pool);
+        GroupByQuery query = createQuery(Collections.<String, Object>emptyMap());
+        Map<String, Object> responseContext = new HashMap<String, Object>();
+        Sequence<Row> parts = Sequences.concat(
+                merger.merge(query, Collections.singletonList(createRunner("x", "y")), executor, responseContext),
+                merger.merge(query, Collections.singletonList(createRunner("y", "z")), executor, responseContext));
+
+        List<Row> rows = Sequences.toList(merger.mergeParts(query, parts), Lists.<Row>newArrayList());
+        Assert.assertEquals(rows.size(), 3);
+        Assert.assertEquals(rows.get(0).getDimension("a"), Collections.singletonList("x"));
+        Assert.assertEquals(rows.get(1).getLongMetric("count"), 2);
+        Assert.assertEquals(rows.get(2).getDimension("a"), Collections.singletonList("z"));
+        Assert.assertEquals(pool.getFailureCount(), 0);
+        Assert.assertEquals(pool.getInUseCount(), 0);
+    }
+
+    private SpillingGroupByMerger createMerger(BufferPool pool) {
+        SpillingGroupByConfig config = new SpillingGroupByConfig(SpillingGroupByConfig.STRATEGY_SPILLING,
+                1024 * 1024, 1, spillDir, 100, 100);
+        return new SpillingGroupByMerger(config, pool, QueryHelper.smileMapper, Utils.NOOP_QUERYWATCHER);
+    }
+
+    private static GroupByQuery createQuery(Map<String, Object> context) {
+        return GroupByQuery.builder()
+                .setDataSource("test")
+                .setQuerySegmentSpec(QuerySegmentSpecs.create(new Interval(0, 10000)))
+                .setGranularity(QueryGranularity.ALL)
+                .addDimension("a")
+                .addAggregator(new LongSumAggregatorFactory("count", "count"))
+                .setContext(context)
+                .build();
+    }
+
+    /**
+     * @return runner returning a row counting one for each of the values
+     */
+    private static QueryRunner<Row> createRunner(final String... values) {
+        return new QueryRunner<Row>() {
+            @Override
+            public Sequence<Row> run(Query<Row> query, Map<String, Object> responseContext) {
+                List<Row> rows = new ArrayList<Row>();
+                for (String value : values) {
+                    rows.add(new MapBasedRow(0, ImmutableMap.<String, Object>of("a", value, "count", 1L)));
+                }
+                return Sequences.simple(rows);
+            }
+        };
+    }
+}
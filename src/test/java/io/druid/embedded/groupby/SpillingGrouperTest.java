@@ -0,0 +1,275 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.groupby;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.metamx.common.guava.Sequences;
+import io.druid.data.input.MapBasedRow;
+import io.druid.data.input.Row;
+import io.druid.embedded.QueryHelper;
+import io.druid.embedded.SegmentRegistry;
+import io.druid.embedded.helper.IndexCreationHelper;
+import io.druid.granularity.PeriodGranularity;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.aggregation.DoubleMaxAggregatorFactory;
+import io.druid.query.aggregation.DoubleSumAggregatorFactory;
+import io.druid.query.aggregation.LongSumAggregatorFactory;
+import io.druid.query.aggregation.histogram.ApproximateHistogram;
+import io.druid.query.aggregation.histogram.ApproximateHistogramFoldingAggregatorFactory;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.spec.QuerySegmentSpecs;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Interval;
+import org.joda.time.Period;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class SpillingGrouperTest {
+    private static final int KEYS = 1000;
+    private static final int ROWS = 5000;
+
+    private final GroupByQuery query = GroupByQuery.builder()
+            .setDataSource("test")
+            .setQuerySegmentSpec(QuerySegmentSpecs.create(new Interval(0, 10000)))
+            .setGranularity(QueryGranularity.NONE)
+            .addDimension("a")
+            .addDimension("b")
+            .addAggregator(new LongSumAggregatorFactory("count", "count"))
+            .addAggregator(new DoubleMaxAggregatorFactory("max", "max"))
+            .addAggregator(new ApproximateHistogramFoldingAggregatorFactory("hist", "hist", 10, 5, null, null))
+            .build();
+
+    private File spillDir;
+
+    @BeforeMethod
+    public void setUp() {
+        spillDir = new File(System.getProperty("java.io.tmpdir"), "spilling-grouper-test-" + System.nanoTime());
+        spillDir.mkdirs();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(spillDir);
+    }
+
+    @Test
+    public void testGroupsInMemory() throws IOException {
+        SpillingGrouper grouper = new SpillingGrouper(query, ByteBuffer.allocateDirect(8 * 1024 * 1024), spillDir,
+                QueryHelper.smileMapper);
+        try {
+            addRows(grouper);
+            Assert.assertEquals(grouper.getSpillCount(), 0);
+            assertGroups(grouper.iterator());
+        } finally {
+            grouper.close();
+        }
+    }
+
+    @Test
+    public void testSpillsWhenFull() throws IOException {
+        SpillingGrouper grouper = new SpillingGrouper(query, ByteBuffer.allocate(16 * 1024), spillDir,
+                QueryHelper.smileMapper);
+        try {
+            addRows(grouper);
+            Assert.assertTrue(grouper.getSpillCount() > 1);
+            Assert.assertEquals(spillDir.list().length, grouper.getSpillCount());
+            assertGroups(grouper.iterator());
+        } finally {
+            grouper.close();
+        }
+        Assert.assertEquals(spillDir.list().length, 0);
+    }
+
+    @Test
+    public void testDictionaryBoundedAcrossSpills() throws IOException {
+        SpillingGrouper grouper = new SpillingGrouper(query, ByteBuffer.allocate(16 * 1024), spillDir,
+                QueryHelper.smileMapper);
+        try {
+            // Every row is a group of its own, with values never seen before
+            int maxDictionarySize = 0;
+            for (int i = 0; i < ROWS; i++) {
+                Map<String, Object> event = new HashMap<String, Object>();
+                event.put("a", "a" + i);
+                event.put("b", "b" + i);
+                event.put("count", 1L);
+                event.put("max", (double) i);
+                event.put("hist", new ApproximateHistogram(10));
+                grouper.add(new MapBasedRow(0, event));
+                maxDictionarySize = Math.max(maxDictionarySize, grouper.getDictionarySize());
+            }
+            Assert.assertTrue(grouper.getSpillCount() > 5);
+            // At most two values per group of a single table, rather than two per row seen
+            int groupsPerTable = ROWS / grouper.getSpillCount() + 1;
+            Assert.assertTrue(maxDictionarySize <= 2 * groupsPerTable, "" + maxDictionarySize);
+
+            Iterator<Row> rows = grouper.iterator();
+            int groups = 0;
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                Assert.assertEquals(row.getLongMetric("count"), 1);
+                Assert.assertEquals(row.getDimension("b").get(0), "b" + row.getDimension("a").get(0).substring(1));
+                groups++;
+            }
+            Assert.assertEquals(groups, ROWS);
+        } finally {
+            grouper.close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testIteratesOnce() throws IOException {
+        SpillingGrouper grouper = new SpillingGrouper(query, ByteBuffer.allocate(16 * 1024), spillDir,
+                QueryHelper.smileMapper);
+        try {
+            addRows(grouper);
+            grouper.iterator();
+            grouper.iterator();
+        } finally {
+            grouper.close();
+        }
+    }
+
+    @Test
+    public void testRowsInGranularityTimeZone() throws IOException {
+        DateTimeZone zone = DateTimeZone.forID("America/Los_Angeles");
+        GroupByQuery daily = GroupByQuery.builder()
+                .setDataSource("test")
+                .setQuerySegmentSpec(QuerySegmentSpecs.create(new Interval("2016-01-01/2016-01-03")))
+                .setGranularity(new PeriodGranularity(Period.days(1), null, zone))
+                .addDimension("a")
+                .addAggregator(new LongSumAggregatorFactory("count", "count"))
+                .build();
+        SpillingGrouper grouper = new SpillingGrouper(daily, ByteBuffer.allocate(16 * 1024), spillDir,
+                QueryHelper.smileMapper);
+        try {
+            grouper.add(new MapBasedRow(new DateTime("2016-01-01T12:00:00Z"),
+                    ImmutableMap.<String, Object>of("a", "x", "count", 1L)));
+            Row row = grouper.iterator().next();
+            Assert.assertEquals(row.getTimestamp(), new DateTime("2016-01-01T00:00:00", zone));
+            Assert.assertEquals(row.getTimestamp().getZone(), zone);
+        } finally {
+            grouper.close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testBufferTooSmall() {
+        new SpillingGrouper(query, ByteBuffer.allocate(64), spillDir, QueryHelper.smileMapper);
+    }
+
+    @Test
+    public void testStrategiesAgree() throws IOException {
+        SegmentRegistry registry = new SegmentRegistry();
+        registry.addIndex("test", IndexCreationHelper.createDruidSegments());
+        registry.addIndex("test", IndexCreationHelper.createDruidSegments());
+        GroupByQuery groupBy = GroupByQuery.builder()
+                .setDataSource("test")
+                .setQuerySegmentSpec(QuerySegmentSpecs.create(new Interval(0, new DateTime().getMillis())))
+                .setGranularity(QueryGranularity.ALL)
+                .addDimension("colo")
+                .addDimension("URL")
+                .addAggregator(new LongSumAggregatorFactory("agg_count", "agg_count"))
+                .addAggregator(new DoubleSumAggregatorFactory("agg_sum", "agg_sum"))
+                .build();
+
+        List<Row> spilling = run(registry, groupBy, SpillingGroupByConfig.STRATEGY_SPILLING);
+        List<Row> index = run(registry, groupBy, SpillingGroupByConfig.STRATEGY_INDEX);
+        Assert.assertFalse(spilling.isEmpty());
+        Assert.assertEquals(spilling.size(), index.size());
+        Map<List<Object>, Row> indexRows = new HashMap<List<Object>, Row>();
+        for (Row row : index) {
+            indexRows.put(key(row), row);
+        }
+        for (Row row : spilling) {
+            Row expected = indexRows.get(key(row));
+            Assert.assertNotNull(expected, row.toString());
+            Assert.assertEquals(row.getLongMetric("agg_count"), expected.getLongMetric("agg_count"));
+            Assert.assertEquals(row.getFloatMetric("agg_sum"), expected.getFloatMetric("agg_sum"), 0.001);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownStrategy() {
+        GroupByQuery groupBy = query.withOverriddenContext(
+                ImmutableMap.<String, Object>of(SpillingGroupByConfig.STRATEGY_CONTEXT_KEY, "unknown"));
+        SpillingGroupByConfig.fromSystemProperties().isSpilling(groupBy);
+    }
+
+    private static List<Row> run(SegmentRegistry registry, GroupByQuery groupBy, String strategy) {
+        GroupByQuery query = groupBy.withOverriddenContext(
+                ImmutableMap.<String, Object>of(SpillingGroupByConfig.STRATEGY_CONTEXT_KEY, strategy));
+        return Sequences.toList(QueryHelper.run(query, registry), Lists.<Row>newArrayList());
+    }
+
+    private static List<Object> key(Row row) {
+        return Arrays.<Object>asList(row.getTimestampFromEpoch(), row.getDimension("colo"), row.getDimension("URL"));
+    }
+
+    private static void addRows(SpillingGrouper grouper) throws IOException {
+        for (int i = 0; i < ROWS; i++) {
+            int key = i % KEYS;
+            Map<String, Object> event = new HashMap<String, Object>();
+            event.put("a", "a" + key / 10);
+            // Every tenth group has no value for b
+            if (key % 10 != 0) {
+                event.put("b", "b" + key % 10);
+            }
+            event.put("count", 1L);
+            event.put("max", (double) i);
+            ApproximateHistogram histogram = new ApproximateHistogram(10);
+            histogram.offer(i);
+            event.put("hist", histogram);
+            grouper.add(new MapBasedRow(key % 2 * 1000, event));
+        }
+    }
+
+    private static void assertGroups(Iterator<Row> rows) {
+        int groups = 0;
+        Row previous = null;
+        while (rows.hasNext()) {
+            Row row = rows.next();
+            if (previous != null) {
+                Assert.assertTrue(previous.getTimestampFromEpoch() < row.getTimestampFromEpoch()
+                        || (previous.getTimestampFromEpoch() == row.getTimestampFromEpoch()
+                        && previous.getDimension("a").get(0).compareTo(row.getDimension("a").get(0)) <= 0));
+            }
+            int key = Integer.parseInt(row.getDimension("a").get(0).substring(1)) * 10
+                    + (row.getDimension("b").isEmpty() ? 0 : Integer.parseInt(row.getDimension("b").get(0).substring(1)));
+            Assert.assertEquals(row.getTimestampFromEpoch(), key % 2 * 1000);
+            Assert.assertEquals(row.getLongMetric("count"), ROWS / KEYS);
+            Assert.assertEquals(row.getFloatMetric("max"), (float) (ROWS - KEYS + key), 0.001);
+            Assert.assertEquals(((ApproximateHistogram) row.getRaw("hist")).count(), ROWS / KEYS);
+            previous = row;
+            groups++;
+        }
+        Assert.assertEquals(groups, KEYS);
+    }
+}
@@ -9,8 +9,10 @@ import retrofit.RestAdapter;
 import retrofit.converter.JacksonConverter;
 import retrofit.http.Body;
 import retrofit.http.POST;
+import retrofit.http.Path;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * Acts as a client to make calls to Druid
@@ -22,6 +24,9 @@ public class DruidClient {
 
         @POST("/")
         List<Row> groupBy(@Body Query query);
+
+        @POST("/ingest/{dataSource}")
+        Map<String, Object> ingest(@Path("dataSource") String dataSource, @Body List<Map<String, Object>> rows);
     }
 
     private Druid druid;
@@ -38,4 +43,8 @@ public class DruidClient {
     public List<Row> groupBy(Query query) throws JsonProcessingException {
         return druid.groupBy(query);
     }
+
+    public Map<String, Object> ingest(String dataSource, List<Map<String, Object>> rows) {
+        return druid.ingest(dataSource, rows);
+    }
 }
@@ -2,6 +2,7 @@ package io.druid.embedded.helper;
 
 import io.druid.data.input.impl.DimensionsSpec;
 import io.druid.embedded.IndexHelper;
+import io.druid.embedded.IngestionPipeline;
 import io.druid.embedded.load.Loader;
 import io.druid.embedded.load.impl.CSVLoader;
 import io.druid.granularity.QueryGranularity;
@@ -20,18 +21,32 @@ import java.util.List;
  */
 public class IndexCreationHelper {
     public static QueryableIndex createDruidSegments() throws IOException {
+        return createDruidSegments(IngestionPipeline.fromSystemProperties());
+    }
+
+    public static QueryableIndex createDruidSegments(IngestionPipeline pipeline) throws IOException {
         //  Create druid segments from raw data
         Reader reader = new BufferedReader(new FileReader(new File("./src/test/resources/report.csv")));
+        Loader loader = new CSVLoader(reader, getColumns(), getDimensions(), "TS");
+        QueryableIndex index = IndexHelper.getQueryableIndex(loader, getIndexSchema(), pipeline);
+        return index;
+    }
 
-        List<String> columns = Arrays.asList("colo", "pool", "report", "URL", "TS", "metric", "value", "count", "min", "max", "sum");
+    public static List<String> getColumns() {
+        return Arrays.asList("colo", "pool", "report", "URL", "TS", "metric", "value", "count", "min", "max", "sum");
+    }
+
+    public static List<String> getDimensions() {
         List<String> exclusions = Arrays.asList("_Timestamp", "_Machine", "_ThreadId", "_Query");
         List<String> metrics = Arrays.asList("value", "count", "min", "max", "sum");
-        List<String> dimensions = new ArrayList<String>(columns);
+        List<String> dimensions = new ArrayList<String>(getColumns());
         dimensions.removeAll(exclusions);
         dimensions.removeAll(metrics);
-        Loader loader = new CSVLoader(reader, columns, dimensions, "TS");
+        return dimensions;
+    }
 
-        DimensionsSpec dimensionsSpec = new DimensionsSpec(dimensions, null, null);
+    public static IncrementalIndexSchema getIndexSchema() {
+        DimensionsSpec dimensionsSpec = new DimensionsSpec(getDimensions(), null, null);
         AggregatorFactory[] metricsAgg = new AggregatorFactory[]{
                 new LongSumAggregatorFactory("agg_count", "count"),
                 new MaxAggregatorFactory("agg_max", "max"),
@@ -39,8 +54,6 @@ public class IndexCreationHelper {
                 new DoubleSumAggregatorFactory("agg_sum", "sum"),
                 new ApproximateHistogramAggregatorFactory("agg_histogram", "value", null, null, null, null)
         };
-        IncrementalIndexSchema indexSchema = new IncrementalIndexSchema(0, QueryGranularity.ALL, dimensionsSpec, metricsAgg);
-        QueryableIndex index = IndexHelper.getQueryableIndex(loader, indexSchema);
-        return index;
+        return new IncrementalIndexSchema(0, QueryGranularity.ALL, dimensionsSpec, metricsAgg);
     }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.metamx.common.guava.Sequences;
+import io.druid.data.input.InputRow;
+import io.druid.data.input.Row;
+import io.druid.embedded.IndexHelper;
+import io.druid.embedded.IngestionPipeline;
+import io.druid.embedded.QueryHelper;
+import io.druid.embedded.helper.IndexCreationHelper;
+import io.druid.embedded.helper.QueryCreationHelper;
+import io.druid.embedded.load.impl.CSVLoader;
+import io.druid.embedded.load.impl.MappedCSVLoader;
+import io.druid.segment.QueryableIndex;
+import org.joda.time.DateTime;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+public class RowSchemaTest {
+    private static final RowSchema REPORT_SCHEMA = new RowSchema(ImmutableMap.of(
+            "value", RowSchema.Type.FLOAT,
+            "count", RowSchema.Type.LONG,
+            "min", RowSchema.Type.LONG,
+            "max", RowSchema.Type.LONG,
+            "sum", RowSchema.Type.DOUBLE));
+
+    @Test
+    public void parsesMetricsByType() {
+        RowSchema schema = new RowSchema(ImmutableMap.of(
+                "bytes", RowSchema.Type.LONG,
+                "ratio", RowSchema.Type.FLOAT,
+                "total", RowSchema.Type.DOUBLE), "iso");
+        List<InputRow> rows = Lists.newArrayList(new CSVLoader(
+                new StringReader("2016-04-01T00:00:00Z,sf,12345678901,0.5,1.25\n2016-04-02T00:00:00Z,sj,,,2\n"),
+                Arrays.asList("ts", "city", "bytes", "ratio", "total"), Arrays.asList("city"), "ts", schema));
+
+        Assert.assertEquals(rows.size(), 2);
+        InputRow row = rows.get(0);
+        Assert.assertEquals(row.getTimestamp(), new DateTime("2016-04-01T00:00:00Z"));
+        Assert.assertEquals(row.getDimension("city"), Arrays.asList("sf"));
+        Assert.assertEquals(row.getRaw("bytes"), 12345678901L);
+        Assert.assertEquals(row.getLongMetric("bytes"), 12345678901L);
+        Assert.assertEquals(row.getRaw("ratio"), 0.5f);
+        Assert.assertEquals(row.getRaw("total"), 1.25d);
+        Assert.assertEquals(row.getFloatMetric("total"), 1.25f);
+
+        Assert.assertNull(rows.get(1).getRaw("bytes"));
+        Assert.assertEquals(rows.get(1).getLongMetric("bytes"), 0);
+    }
+
+    @Test
+    public void parsesPosixTimestamps() {
+        RowSchema schema = new RowSchema(ImmutableMap.<String, RowSchema.Type>of(), RowSchema.POSIX);
+        Assert.assertEquals(schema.parseTimestamp("1459468800"), 1459468800000L);
+        Assert.assertEquals(new RowSchema(ImmutableMap.<String, RowSchema.Type>of()).parseTimestamp("1234"), 1234L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void typedLoadersBuildSameIndex() throws Exception {
+        File report = new File("./src/test/resources/report.csv");
+        for (Loader loader : Arrays.<Loader>asList(
+                new CSVLoader(report, IndexCreationHelper.getColumns(), IndexCreationHelper.getDimensions(),
+                        "TS", REPORT_SCHEMA),
+                new MappedCSVLoader(report, ',', IndexCreationHelper.getColumns(),
+                        IndexCreationHelper.getDimensions(), "TS", REPORT_SCHEMA))) {
+            QueryableIndex index = IndexHelper.getQueryableIndex(loader, IndexCreationHelper.getIndexSchema(),
+                    new IngestionPipeline(2, 1));
+            List<Row> results = Sequences.toList(QueryHelper.run(QueryCreationHelper.getGroupByQuery(), index),
+                    Lists.<Row>newArrayList());
+            Assert.assertEquals(results.size(), 2);
+            for (Row row : results) {
+                boolean abc = row.getDimension("URL").get(0).equals("abc");
+                Assert.assertEquals(row.getLongMetric("agg_count"), abc ? 12 : 3);
+                Assert.assertEquals(row.getLongMetric("agg_max"), abc ? 124 : 123);
+                Assert.assertEquals(row.getFloatMetric("agg_sum"), abc ? 247f : 123f);
+            }
+        }
+    }
+
+    @Test
+    public void schemaChangesFingerprint() {
+        File report = new File("./src/test/resources/report.csv");
+        Assert.assertNotEquals(
+                new CSVLoader(report, IndexCreationHelper.getColumns(), IndexCreationHelper.getDimensions(),
+                        "TS", REPORT_SCHEMA).getFingerprint(),
+                new CSVLoader(report, IndexCreationHelper.getColumns(), IndexCreationHelper.getDimensions(),
+                        "TS").getFingerprint());
+    }
+}
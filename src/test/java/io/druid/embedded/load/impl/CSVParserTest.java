@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import com.google.common.collect.Lists;
+import io.druid.data.input.InputRow;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+public class CSVParserTest {
+
+    @Test
+    public void keepsEmptyFields() throws IOException {
+        CSVParser parser = new CSVParser(new StringReader("a,,c,\n"), ',', null);
+        Assert.assertTrue(parser.readRow());
+        Assert.assertEquals(parser.getFieldCount(), 4);
+        Assert.assertEquals(parser.getField(1), "");
+        Assert.assertEquals(parser.getField(2), "c");
+        Assert.assertEquals(parser.getField(3), "");
+        Assert.assertFalse(parser.readRow());
+    }
+
+    @Test
+    public void handlesQuotedFields() throws IOException {
+        // Small buffer so that fields span buffer refills
+        CSVParser parser = new CSVParser(new StringReader("\"a,b\",\"say \"\"hi\"\"\",\"multi\r\nline\"\r\nx,y,z"),
+                ',', null, 4);
+        Assert.assertTrue(parser.readRow());
+        Assert.assertEquals(parser.getFieldCount(), 3);
+        Assert.assertEquals(parser.getField(0), "a,b");
+        Assert.assertEquals(parser.getField(1), "say \"hi\"");
+        Assert.assertEquals(parser.getField(2), "multi\r\nline");
+        Assert.assertTrue(parser.readRow());
+        Assert.assertEquals(parser.getField(2), "z");
+        Assert.assertFalse(parser.readRow());
+    }
+
+    @Test
+    public void internsMarkedColumns() throws IOException {
+        CSVParser parser = new CSVParser(new StringReader("slc,1\nslc,1\n"), ',', new boolean[]{true, false});
+        Assert.assertTrue(parser.readRow());
+        String dimension = parser.getField(0);
+        String metric = parser.getField(1);
+        Assert.assertTrue(parser.readRow());
+        Assert.assertSame(parser.getField(0), dimension);
+        Assert.assertNotSame(parser.getField(1), metric);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void failsOnUnterminatedQuote() throws IOException {
+        new CSVParser(new StringReader("\"abc"), ',', null).readRow();
+    }
+
+    @Test
+    public void loaderFailsOnUnterminatedQuote() {
+        String csv = "a,1\n\"b,2\nc,3\n";
+        List<String> columns = Arrays.asList("dim", "count");
+        try {
+            Lists.newArrayList(new CSVLoader(new StringReader(csv), columns, columns.subList(0, 1), null));
+            Assert.fail("Expected the load to fail");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        try {
+            Iterator<? extends Iterable<InputRow>> batches =
+                    new CSVLoader(new StringReader(csv), columns, columns.subList(0, 1), null).split(1);
+            while (batches.hasNext()) {
+                Lists.newArrayList(batches.next());
+            }
+            Assert.fail("Expected the load to fail");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
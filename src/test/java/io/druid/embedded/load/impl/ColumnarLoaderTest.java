@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import com.google.common.collect.Lists;
+import com.metamx.common.guava.Sequences;
+import io.druid.data.input.InputRow;
+import io.druid.data.input.Row;
+import io.druid.embedded.IndexHelper;
+import io.druid.embedded.IngestionPipeline;
+import io.druid.embedded.QueryHelper;
+import io.druid.embedded.helper.IndexCreationHelper;
+import io.druid.embedded.helper.QueryCreationHelper;
+import io.druid.embedded.load.Loader;
+import io.druid.segment.QueryableIndex;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ColumnarLoaderTest {
+
+    @Test
+    public void readsRowsWrittenFromCSV() throws IOException {
+        File file = writeReport(4);
+        List<InputRow> expected = Lists.newArrayList(csvLoader());
+        List<InputRow> rows = Lists.newArrayList(new ColumnarLoader(file, IndexCreationHelper.getColumns(),
+                IndexCreationHelper.getDimensions(), "TS"));
+
+        Assert.assertEquals(rows.size(), expected.size());
+        for (int i = 0; i < rows.size(); i++) {
+            Assert.assertEquals(rows.get(i).getTimestampFromEpoch(), expected.get(i).getTimestampFromEpoch());
+            Assert.assertEquals(rows.get(i).getDimension("URL"), expected.get(i).getDimension("URL"));
+            Assert.assertEquals(rows.get(i).getLongMetric("count"), expected.get(i).getLongMetric("count"));
+            Assert.assertEquals(rows.get(i).getFloatMetric("value"), expected.get(i).getFloatMetric("value"));
+        }
+    }
+
+    @Test
+    public void readsOnlyProjectedColumns() throws IOException {
+        Loader loader = new ColumnarLoader(writeReport(4), Arrays.asList("URL", "count"),
+                Arrays.asList("URL"), "TS");
+        InputRow row = loader.iterator().next();
+        Assert.assertNotNull(row.getRaw("count"));
+        Assert.assertNull(row.getRaw("colo"));
+        Assert.assertEquals(row.getDimensions(), Arrays.asList("URL"));
+
+        // One batch per row group of 4 rows, whatever the batch size
+        int rows = Lists.newArrayList(csvLoader()).size();
+        Iterator<? extends Iterable<InputRow>> batches = loader.split(100);
+        Assert.assertEquals(Lists.newArrayList(batches).size(), (rows + 3) / 4);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void failsOnUnknownColumn() throws IOException {
+        new ColumnarLoader(writeReport(4), Arrays.asList("missing"), Arrays.<String>asList(), "TS").iterator();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void buildsQueryableIndex() throws IOException {
+        Loader loader = new ColumnarLoader(writeReport(ColumnarFileWriter.DEFAULT_ROW_GROUP_SIZE),
+                IndexCreationHelper.getColumns(), IndexCreationHelper.getDimensions(), "TS");
+        QueryableIndex index = IndexHelper.getQueryableIndex(loader, IndexCreationHelper.getIndexSchema(),
+                new IngestionPipeline(2, 1));
+        List<Row> results = Sequences.toList(QueryHelper.run(QueryCreationHelper.getGroupByQuery(), index),
+                Lists.<Row>newArrayList());
+        Assert.assertEquals(results.size(), 2);
+        for (Row row : results) {
+            boolean abc = row.getDimension("URL").get(0).equals("abc");
+            Assert.assertEquals(row.getLongMetric("agg_count"), abc ? 12 : 3);
+            Assert.assertEquals(row.getLongMetric("agg_max"), abc ? 124 : 123);
+        }
+    }
+
+    private static Loader csvLoader() {
+        return new CSVLoader(new File("./src/test/resources/report.csv"), IndexCreationHelper.getColumns(),
+                IndexCreationHelper.getDimensions(), "TS");
+    }
+
+    private static File writeReport(int rowGroupSize) throws IOException {
+        Map<String, ColumnarFormat.Type> columns = new LinkedHashMap<String, ColumnarFormat.Type>();
+        for (String column : Arrays.asList("colo", "pool", "report", "URL", "metric")) {
+            columns.put(column, ColumnarFormat.Type.STRING);
+        }
+        for (String column : Arrays.asList("TS", "count", "min", "max")) {
+            columns.put(column, ColumnarFormat.Type.LONG);
+        }
+        columns.put("value", ColumnarFormat.Type.FLOAT);
+        columns.put("sum", ColumnarFormat.Type.FLOAT);
+
+        File file = File.createTempFile("report", ".edc");
+        file.deleteOnExit();
+        ColumnarFileWriter writer = new ColumnarFileWriter(file, columns, rowGroupSize);
+        try {
+            for (InputRow row : csvLoader()) {
+                writer.add(row);
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
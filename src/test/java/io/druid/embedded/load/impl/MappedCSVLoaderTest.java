@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import io.druid.data.input.InputRow;
+import io.druid.data.input.MapBasedInputRow;
+import io.druid.embedded.load.Loader;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+public class MappedCSVLoaderTest {
+    private static final List<String> COLUMNS = Arrays.asList("ts", "city", "page", "metric", "value");
+    private static final List<String> DIMENSIONS = Arrays.asList("city", "page", "metric");
+    private static final String DATA = "1,sf,\"a,b\",count,1\n"
+            + "2,sj,\"say \"\"hi\"\"\",count,2\r\n"
+            + "3,münchen,\"multi\nline\",count,3\n"
+            + "4,sf,null,count,4\n"
+            + "broken,row\n"
+            + "5,,,count,5";
+
+    @Test
+    public void readsSameRowsAsCSVLoader() throws IOException {
+        File file = write(DATA);
+        List<InputRow> expected = Lists.newArrayList(new CSVLoader(file, COLUMNS, DIMENSIONS, "ts"));
+        Assert.assertEquals(expected.size(), 5);
+
+        assertSameRows(Lists.newArrayList(new MappedCSVLoader(file, COLUMNS, DIMENSIONS, "ts")), expected);
+        // Small windows, so that records are remapped at window ends
+        assertSameRows(Lists.newArrayList(new MappedCSVLoader(file, ',', COLUMNS, DIMENSIONS, "ts", 40)), expected);
+    }
+
+    @Test
+    public void splitsAtRecordBoundaries() throws IOException {
+        File file = write(DATA);
+        List<InputRow> expected = Lists.newArrayList(new CSVLoader(file, COLUMNS, DIMENSIONS, "ts"));
+        for (int mapSize : new int[]{40, MappedCSVLoader.DEFAULT_MAP_SIZE}) {
+            Loader loader = new MappedCSVLoader(file, ',', COLUMNS, DIMENSIONS, "ts", mapSize);
+            List<InputRow> rows = new ArrayList<InputRow>();
+            Iterator<? extends Iterable<InputRow>> batches = loader.split(2);
+            while (batches.hasNext()) {
+                rows.addAll(Lists.newArrayList(batches.next()));
+            }
+            assertSameRows(rows, expected);
+        }
+    }
+
+    @Test
+    public void readsTabSeparatedFiles() throws IOException {
+        File file = write("1\tsf\tx\tcount\t1\n2\tsj\ty\tcount\t2\n");
+        List<InputRow> rows = Lists.newArrayList(new MappedCSVLoader(file, '\t', COLUMNS, DIMENSIONS, "ts"));
+        Assert.assertEquals(rows.size(), 2);
+        Assert.assertEquals(rows.get(1).getDimension("city"), Arrays.asList("sj"));
+        Assert.assertEquals(rows.get(1).getFloatMetric("value"), 2f);
+        Assert.assertNotEquals(new MappedCSVLoader(file, '\t', COLUMNS, DIMENSIONS, "ts").getFingerprint(),
+                new CSVLoader(file, COLUMNS, DIMENSIONS, "ts").getFingerprint());
+    }
+
+    @Test
+    public void sharesDictionariesAcrossBatches() throws IOException {
+        File file = write("1,sf,x,count,1\n2,sf,y,count,2\n3,sf,z,count,3\n");
+        Iterator<? extends Iterable<InputRow>> batches =
+                new MappedCSVLoader(file, COLUMNS, DIMENSIONS, "ts").split(1);
+        List<String> cities = new ArrayList<String>();
+        while (batches.hasNext()) {
+            for (InputRow row : batches.next()) {
+                cities.add(row.getDimension("city").get(0));
+            }
+        }
+        Assert.assertEquals(cities.size(), 3);
+        Assert.assertSame(cities.get(2), cities.get(0));
+    }
+
+    @Test
+    public void failsOnUnterminatedQuote() throws IOException {
+        File file = write("1,sf,x,count,1\n2,\"sj,y,count,2\n3,sf,z,count,3\n");
+        try {
+            Lists.newArrayList(new MappedCSVLoader(file, COLUMNS, DIMENSIONS, "ts"));
+            Assert.fail("Expected the load to fail");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void failsOnRecordLongerThanWindow() throws IOException {
+        Lists.newArrayList(new MappedCSVLoader(write(DATA), ',', COLUMNS, DIMENSIONS, "ts", 8).split(1));
+    }
+
+    private static void assertSameRows(List<InputRow> actual, List<InputRow> expected) {
+        Assert.assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(actual.get(i).getTimestampFromEpoch(), expected.get(i).getTimestampFromEpoch());
+            Assert.assertEquals(((MapBasedInputRow) actual.get(i)).getEvent(),
+                    ((MapBasedInputRow) expected.get(i)).getEvent());
+        }
+    }
+
+    private static File write(String data) throws IOException {
+        File file = File.createTempFile("mapped", ".csv");
+        file.deleteOnExit();
+        Files.write(data, file, Charsets.UTF_8);
+        return file;
+    }
+}
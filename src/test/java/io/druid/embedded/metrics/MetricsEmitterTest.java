@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.metrics;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Lists;
+import com.metamx.common.guava.Sequences;
+import com.metamx.emitter.service.ServiceEmitter;
+import com.metamx.emitter.service.ServiceMetricEvent;
+import io.druid.data.input.Row;
+import io.druid.embedded.QueryHelper;
+import io.druid.embedded.SegmentRegistry;
+import io.druid.embedded.helper.IndexCreationHelper;
+import io.druid.embedded.helper.QueryCreationHelper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class MetricsEmitterTest {
+
+    @Test
+    public void writesPrometheusFormat() throws IOException {
+        MetricsEmitter metrics = new MetricsEmitter();
+        ServiceEmitter emitter = new ServiceEmitter("test", "localhost", metrics);
+        emitter.emit(ServiceMetricEvent.builder().setDimension("type", "topN").build("query/time", 3));
+        emitter.emit(ServiceMetricEvent.builder().setDimension("type", "topN").build("query/time", 70));
+        emitter.emit(ServiceMetricEvent.builder().setDimension("type", "topN").build("query/bytes", 100));
+        metrics.addGauge("buffer_pool_in_use", Suppliers.ofInstance(2));
+        metrics.addCounter("buffer_pool_waits", Suppliers.ofInstance(5L));
+
+        StringWriter writer = new StringWriter();
+        metrics.writePrometheus(writer);
+        String text = writer.toString();
+        Assert.assertTrue(text.contains("# TYPE druid_query_time_milliseconds histogram\n"));
+        Assert.assertTrue(text.contains("druid_query_time_milliseconds_bucket{type=\"topN\",le=\"5\"} 1\n"));
+        Assert.assertTrue(text.contains("druid_query_time_milliseconds_bucket{type=\"topN\",le=\"100\"} 2\n"));
+        Assert.assertTrue(text.contains("druid_query_time_milliseconds_sum{type=\"topN\"} 73\n"));
+        Assert.assertTrue(text.contains("druid_query_bytes_total{type=\"topN\"} 100\n"));
+        Assert.assertTrue(text.contains("# TYPE druid_buffer_pool_in_use gauge\n"));
+        Assert.assertTrue(text.contains("druid_buffer_pool_in_use 2\n"));
+        Assert.assertTrue(text.contains("# TYPE druid_buffer_pool_waits_total counter\n"));
+        Assert.assertTrue(text.contains("druid_buffer_pool_waits_total 5\n"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void recordsQueryMetrics() throws IOException {
+        SegmentRegistry registry = new SegmentRegistry();
+        registry.addIndex("test", IndexCreationHelper.createDruidSegments());
+        MetricsEmitter metrics = QueryHelper.getMetrics();
+        long before = metrics.getCounter("query/segment/rows", "groupBy");
+
+        Sequences.toList(QueryHelper.run(QueryCreationHelper.getGroupByQuery(), registry), Lists.<Row>newArrayList());
+        Assert.assertTrue(metrics.getHistogram("query/time", "groupBy").getCount() > 0);
+        Assert.assertTrue(metrics.getHistogram("query/segment/time", "groupBy").getCount() > 0);
+        Assert.assertEquals(metrics.getCounter("query/segment/rows", "groupBy") - before, 3);
+    }
+}
@@ -0,0 +1,93 @@
+package io.druid.embedded.resource;
+
+import com.google.common.collect.ImmutableMap;
+import io.druid.data.input.MapBasedRow;
+import io.druid.query.Result;
+import io.druid.query.select.EventHolder;
+import io.druid.query.select.SelectResultValue;
+import io.druid.query.timeseries.TimeseriesResultValue;
+import org.joda.time.DateTime;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ColumnarResultWriterTest {
+
+    @Test
+    public void roundTripsAcrossFrames() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ColumnarResultWriter writer = new ColumnarResultWriter(bytes, 2);
+        for (int i = 0; i < 5; i++) {
+            Map<String, Object> event = new HashMap<String, Object>();
+            event.put("page", i % 2 == 0 ? "even" : "odd");
+            event.put("count", (long) i);
+            event.put("sum", i * 1.5f);
+            if (i != 3) {
+                event.put("mixed", i == 4 ? "text" : i);
+                event.put("rare", (long) i);
+            }
+            event.put("list", Arrays.asList("a", "b"));
+            writer.write(new MapBasedRow(1000L * i, event));
+        }
+        writer.write(new Result<TimeseriesResultValue>(new DateTime(7000),
+                new TimeseriesResultValue(ImmutableMap.<String, Object>of("count", 10L))));
+        writer.finish();
+        writer.close();
+
+        List<MapBasedRow> rows = new ColumnarResultReader(new ByteArrayInputStream(bytes.toByteArray())).readAll();
+        Assert.assertEquals(rows.size(), 6);
+        for (int i = 0; i < 5; i++) {
+            MapBasedRow row = rows.get(i);
+            Assert.assertEquals(row.getTimestampFromEpoch(), 1000L * i);
+            Assert.assertEquals(row.getEvent().get("page"), i % 2 == 0 ? "even" : "odd");
+            Assert.assertEquals(row.getEvent().get("count"), (long) i);
+            Assert.assertEquals(row.getEvent().get("sum"), i * 1.5);
+            Assert.assertEquals(row.getEvent().get("list"), Arrays.asList("a", "b"));
+            Assert.assertEquals(row.getEvent().containsKey("rare"), i != 3);
+        }
+        Assert.assertEquals(rows.get(2).getEvent().get("mixed"), 2L);
+        Assert.assertEquals(rows.get(4).getEvent().get("mixed"), "text");
+        Assert.assertEquals(rows.get(5).getTimestampFromEpoch(), 7000);
+        Assert.assertEquals(rows.get(5).getEvent(), ImmutableMap.<String, Object>of("count", 10L));
+    }
+
+    @Test
+    public void keepsSelectPagingIdentifiers() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ColumnarResultWriter writer = new ColumnarResultWriter(bytes);
+        List<EventHolder> events = Arrays.asList(
+                new EventHolder("segment1", 0, ImmutableMap.<String, Object>of(EventHolder.timestampKey,
+                        new DateTime(1000), "page", "a")),
+                new EventHolder("segment1", 1, ImmutableMap.<String, Object>of(EventHolder.timestampKey,
+                        new DateTime(2000), "page", "b")));
+        writer.write(new Result<SelectResultValue>(new DateTime(0),
+                new SelectResultValue(ImmutableMap.of("segment1", 1), events)));
+        writer.finish();
+        writer.close();
+
+        ColumnarResultReader reader = new ColumnarResultReader(new ByteArrayInputStream(bytes.toByteArray()));
+        List<MapBasedRow> rows = reader.readAll();
+        Assert.assertEquals(rows.size(), 2);
+        Assert.assertEquals(rows.get(1).getTimestampFromEpoch(), 2000);
+        Assert.assertEquals(rows.get(1).getEvent(), ImmutableMap.<String, Object>of("page", "b"));
+        Assert.assertEquals(reader.getPagingIdentifiers(), ImmutableMap.of("segment1", 1));
+    }
+
+    @Test
+    public void writesEmptyResult() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ColumnarResultWriter writer = new ColumnarResultWriter(bytes);
+        writer.finish();
+        writer.close();
+        ColumnarResultReader reader = new ColumnarResultReader(new ByteArrayInputStream(bytes.toByteArray()));
+        Assert.assertTrue(reader.readAll().isEmpty());
+        Assert.assertNull(reader.getPagingIdentifiers());
+    }
+}
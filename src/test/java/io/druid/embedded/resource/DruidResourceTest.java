@@ -1,13 +1,26 @@
 package io.druid.embedded.resource;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import io.druid.data.input.MapBasedRow;
 import io.druid.data.input.Row;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.metamx.common.guava.BaseSequence;
+import com.metamx.common.guava.Sequence;
 import io.druid.embedded.QueryHelper;
+import io.druid.embedded.QueryTimeoutException;
+import io.druid.embedded.RealtimeIndex;
 import io.druid.embedded.app.DruidRunner;
 import io.druid.embedded.helper.DruidClient;
 import io.druid.embedded.helper.IndexCreationHelper;
 import io.druid.embedded.helper.QueryCreationHelper;
+import io.druid.query.Druids;
 import io.druid.query.Query;
+import io.druid.query.QueryContextKeys;
+import io.druid.query.QueryInterruptedException;
 import io.druid.query.Result;
+import io.druid.query.TableDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
@@ -15,9 +28,25 @@ import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import javax.ws.rs.core.MediaType;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests querying the server
@@ -33,6 +62,9 @@ public class DruidResourceTest {
         client = new DruidClient("http://localhost:" + PORT + "/druid/v2");
         try {
             druidRunner = new DruidRunner(PORT, IndexCreationHelper.createDruidSegments());
+            druidRunner.addRealtimeIndex(new RealtimeIndex("live", IndexCreationHelper.getIndexSchema(), "TS",
+                    druidRunner.getRegistry(), 1000, 60000,
+                    new File(System.getProperty("java.io.tmpdir"), "druid-realtime-test")));
         } catch (IOException e) {
             throw new IllegalStateException("Could not create index", e);
         }
@@ -79,6 +111,217 @@ public class DruidResourceTest {
         }
     }
 
+    @Test
+    public void testConcurrentQueries() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<List<Result>>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                futures.add(executor.submit(new Callable<List<Result>>() {
+                    @Override
+                    public List<Result> call() throws Exception {
+                        return client.topN(QueryCreationHelper.getTopNQuery());
+                    }
+                }));
+            }
+            for (Future<List<Result>> future : futures) {
+                Assert.assertEquals(future.get().size(), 1);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testIngest() throws Exception {
+        Map<String, Object> row = ImmutableMap.<String, Object>builder()
+                .put("colo", "slc").put("pool", "r1cart").put("report", "URLTransaction").put("URL", "abc")
+                .put("TS", 1234).put("metric", "Duration").put("value", 123).put("count", 5)
+                .put("min", 0).put("max", 123).put("sum", 123).build();
+        Map<String, Object> response = client.ingest("live", Arrays.asList(row, row));
+        Assert.assertEquals(response.get("rows"), 2);
+
+        Query query = QueryCreationHelper.getGroupByQuery().withDataSource(new TableDataSource("live"));
+        List<Row> results = client.groupBy(query);
+        Assert.assertEquals(results.size(), 1);
+        Assert.assertEquals(results.get(0).getLongMetric("agg_count"), 10);
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        client.groupBy(QueryCreationHelper.getGroupByQuery());
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL("http://localhost:" + PORT + "/druid/metrics").openConnection();
+        Assert.assertEquals(connection.getResponseCode(), 200);
+        String text = new String(ByteStreams.toByteArray(connection.getInputStream()), Charsets.UTF_8);
+        Assert.assertTrue(text.contains("druid_query_parse_time_milliseconds_count{type=\"groupBy\"}"));
+        Assert.assertTrue(text.contains("druid_query_serialize_time_milliseconds_count{type=\"groupBy\"}"));
+        Assert.assertTrue(text.contains("druid_query_bytes_total{type=\"groupBy\"}"));
+        Assert.assertTrue(text.contains("# TYPE druid_buffer_pool_waits_total counter\n"));
+        Assert.assertTrue(text.contains("# TYPE druid_buffer_pool_in_use gauge\n"));
+    }
+
+    @Test
+    public void testSmileResponse() throws Exception {
+        HttpURLConnection connection = post(QueryCreationHelper.getGroupByQuery(), ResultFormat.APPLICATION_SMILE);
+        Assert.assertEquals(connection.getResponseCode(), 200);
+        Assert.assertEquals(connection.getContentType(), ResultFormat.APPLICATION_SMILE);
+        List<Row> results = QueryHelper.smileMapper.readValue(connection.getInputStream(),
+                new TypeReference<List<Row>>() {
+                });
+        Assert.assertEquals(results.size(), 2);
+        List<Row> expected = client.groupBy(QueryCreationHelper.getGroupByQuery());
+        for (int i = 0; i < results.size(); i++) {
+            Assert.assertEquals(results.get(i).getDimension("URL"), expected.get(i).getDimension("URL"));
+            Assert.assertEquals(results.get(i).getLongMetric("agg_count"), expected.get(i).getLongMetric("agg_count"));
+            Assert.assertEquals(results.get(i).getFloatMetric("agg_sum"), expected.get(i).getFloatMetric("agg_sum"));
+        }
+    }
+
+    @Test
+    public void testColumnarResponse() throws Exception {
+        HttpURLConnection connection = post(QueryCreationHelper.getGroupByQuery(),
+                ResultFormat.APPLICATION_COLUMNAR + ", application/json;q=0.5");
+        Assert.assertEquals(connection.getResponseCode(), 200);
+        Assert.assertEquals(connection.getContentType(), ResultFormat.APPLICATION_COLUMNAR);
+        List<MapBasedRow> results = new ColumnarResultReader(connection.getInputStream()).readAll();
+        Assert.assertEquals(results.size(), 2);
+        for (MapBasedRow row : results) {
+            if (row.getDimension("URL").get(0).equals("abc")) {
+                Assert.assertEquals(row.getLongMetric("agg_count"), 12);
+                Assert.assertEquals(row.getFloatMetric("agg_sum"), 247f);
+            } else {
+                Assert.assertEquals(row.getLongMetric("agg_count"), 3);
+            }
+        }
+
+        connection = post(QueryCreationHelper.getTopNQuery(), ResultFormat.APPLICATION_COLUMNAR);
+        List<MapBasedRow> topN = new ColumnarResultReader(connection.getInputStream()).readAll();
+        Assert.assertEquals(topN.size(), 2);
+        Assert.assertEquals(topN.get(0).getEvent().get("colo"), "slc");
+    }
+
+    @Test
+    public void testNotAcceptable() throws Exception {
+        Query query = Druids.newTimeBoundaryQueryBuilder().dataSource("test").build();
+        Assert.assertEquals(post(query, ResultFormat.APPLICATION_COLUMNAR).getResponseCode(), 406);
+        HttpURLConnection connection = post(query, ResultFormat.APPLICATION_COLUMNAR + ", application/json;q=0.5");
+        Assert.assertEquals(connection.getResponseCode(), 200);
+        Assert.assertEquals(connection.getContentType(), MediaType.APPLICATION_JSON);
+    }
+
+    @Test
+    public void testMalformedQuery() throws Exception {
+        Assert.assertEquals(send("POST", "/", "{\"queryType\": ", MediaType.APPLICATION_JSON).getResponseCode(), 400);
+    }
+
+    @Test
+    public void testInvalidChunkPeriod() throws Exception {
+        Query query = QueryCreationHelper.getGroupByQuery().withOverriddenContext(
+                ImmutableMap.<String, Object>of(QueryContextKeys.CHUNK_PERIOD, "one week"));
+        Assert.assertEquals(post(query, MediaType.APPLICATION_JSON).getResponseCode(), 400);
+    }
+
+    @Test
+    public void testReleasesUnwrittenResult() throws Exception {
+        final AtomicBoolean cleanedUp = new AtomicBoolean();
+        Sequence<Integer> sequence = new BaseSequence<Integer, Iterator<Integer>>(
+                new BaseSequence.IteratorMaker<Integer, Iterator<Integer>>() {
+                    @Override
+                    public Iterator<Integer> make() {
+                        return Arrays.asList(1, 2, 3).iterator();
+                    }
+
+                    @Override
+                    public void cleanup(Iterator<Integer> iterator) {
+                        cleanedUp.set(true);
+                    }
+                });
+        final AtomicInteger slotReleases = new AtomicInteger();
+        DruidResource.ResultOutput output = DruidResource.stream(QueryCreationHelper.getGroupByQuery(), sequence,
+                ResultFormat.JSON, new Closeable() {
+                    @Override
+                    public void close() {
+                        slotReleases.incrementAndGet();
+                    }
+                });
+        Assert.assertFalse(cleanedUp.get());
+
+        // As done by the completion callback when Jersey never writes the response
+        output.release();
+        output.release();
+        Assert.assertTrue(cleanedUp.get());
+        Assert.assertEquals(slotReleases.get(), 1);
+    }
+
+    @Test
+    public void testTimeoutStatus() {
+        // Thrown by the chunking decorator and the spilling groupBy merger
+        Assert.assertEquals(DruidResource.errorResponse(new QueryTimeoutException()).getStatus(), 504);
+        // Thrown by Druid's own merging runners
+        Assert.assertEquals(DruidResource.errorResponse(
+                new QueryInterruptedException(QueryTimeoutException.MESSAGE)).getStatus(), 504);
+        Assert.assertEquals(DruidResource.errorResponse(
+                new QueryInterruptedException("Query cancelled")).getStatus(), 500);
+    }
+
+    @Test
+    public void testPreparedQuery() throws Exception {
+        String template = QueryHelper.jsonMapper.writeValueAsString(QueryCreationHelper.getGroupByQuery())
+                .replace("\"r1cart\"", "\"${pool}\"");
+        HttpURLConnection connection = send("PUT", "/prepared/byUrl", template, MediaType.APPLICATION_JSON);
+        Assert.assertEquals(connection.getResponseCode(), 200);
+        Map<String, Object> prepared = QueryHelper.jsonMapper.readValue(connection.getInputStream(),
+                new TypeReference<Map<String, Object>>() {
+                });
+        Assert.assertEquals(prepared.get("parameters"), Arrays.asList("pool"));
+
+        connection = send("POST", "/prepared/byUrl", "{\"pool\": \"r1cart\"}", MediaType.APPLICATION_JSON);
+        Assert.assertEquals(connection.getResponseCode(), 200);
+        List<Row> results = QueryHelper.jsonMapper.readValue(connection.getInputStream(),
+                new TypeReference<List<Row>>() {
+                });
+        Assert.assertEquals(results.size(), 2);
+
+        Assert.assertEquals(send("POST", "/prepared/byUrl", "{}", MediaType.APPLICATION_JSON).getResponseCode(), 400);
+        Assert.assertEquals(send("POST", "/prepared/byUrl", "{\"pool\": []}", MediaType.APPLICATION_JSON)
+                .getResponseCode(), 400);
+        Assert.assertEquals(send("POST", "/prepared/byUrl", "{\"pool\": ", MediaType.APPLICATION_JSON)
+                .getResponseCode(), 400);
+        Assert.assertEquals(send("DELETE", "/prepared/byUrl", null, MediaType.APPLICATION_JSON).getResponseCode(), 204);
+        Assert.assertEquals(send("POST", "/prepared/byUrl", "{\"pool\": \"r1cart\"}", MediaType.APPLICATION_JSON)
+                .getResponseCode(), 404);
+    }
+
+    private static HttpURLConnection send(String method, String path, String body, String accept)
+            throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL("http://localhost:" + PORT + "/druid/v2" + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept", accept);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", MediaType.APPLICATION_JSON);
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(body.getBytes(Charsets.UTF_8));
+            }
+        }
+        return connection;
+    }
+
+    private static HttpURLConnection post(Query query, String accept) throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL("http://localhost:" + PORT + "/druid/v2/").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", MediaType.APPLICATION_JSON);
+        connection.setRequestProperty("Accept", accept);
+        try (OutputStream output = connection.getOutputStream()) {
+            QueryHelper.jsonMapper.writeValue(output, query);
+        }
+        return connection;
+    }
+
     @AfterClass
     public static void tearDown() throws Exception {
         druidRunner.stop();